@@ -1,3 +1,5 @@
+import java.util.concurrent.Callable
+
 plugins {
     alias(libs.plugins.android.application)
 }
@@ -32,6 +34,14 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    // The on-device model is memory-mapped straight out of the APK
+    androidResources {
+        noCompress += "tflite"
+    }
+    // android.util.Log in plain JVM tests
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -39,11 +49,27 @@ dependencies {
     implementation(libs.appcompat)
     implementation(libs.material)
     implementation(libs.constraintlayout)
+    implementation(libs.recyclerview)
+    implementation(libs.tflite)
+    implementation(libs.camera.camera2)
+    implementation(libs.camera.lifecycle)
+    implementation(libs.camera.view)
     implementation(libs.navigation.fragment)
     implementation(libs.navigation.ui)
+    implementation(project(":core"))
     testImplementation(libs.junit)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     implementation("org.eclipse.paho:org.eclipse.paho.client.mqttv3:1.2.5")
     implementation("org.eclipse.paho:org.eclipse.paho.android.service:1.1.1")
-}
\ No newline at end of file
+}
+// Bytes per image and encode time per EncodePolicy preset, kept out of the unit test run:
+// ./gradlew :app:encoderBenchmark (--args="<images>" to change the default of 5)
+tasks.register<JavaExec>("encoderBenchmark") {
+    group = "verification"
+    description = "Reports encoded size and time for each EncodePolicy preset on the host JVM."
+    dependsOn("compileDebugUnitTestJavaWithJavac")
+    mainClass.set("com.android.fooddetectionapp.ImageEncoderBenchmark")
+    // Same classes and mockable android.jar as the debug unit tests, without running them
+    classpath(files(Callable { tasks.getByName<Test>("testDebugUnitTest").classpath }))
+}
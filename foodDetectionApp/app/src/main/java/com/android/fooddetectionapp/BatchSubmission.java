@@ -0,0 +1,281 @@
+package com.android.fooddetectionapp;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.service.CompactPredictions;
+import com.android.service.ImageFrameOutputStream;
+import com.android.service.MqttClient;
+import com.android.service.ReplyDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends several images (e.g. every plate of a meal) to the server as a pipelined stream.
+ *
+ * Images are decoded straight to upload size and encoded on a small worker pool, each worker
+ * with its own encoder, and each is published as its own tracked request as soon as it is
+ * ready, so the first results come back while later images are still being encoded. The server
+ * coalesces requests arriving together into one model call. Cache hits skip the network.
+ *
+ * Callbacks run on the main thread. A new {@link #submit} or {@link #cancel} drops the previous
+ * batch: its queued work is skipped, its requests stop retrying and no further callbacks arrive.
+ *
+ * This outlives activities, so the batch keeps its results and the listener can be swapped: an
+ * activity going away {@link #detach}es, and the one recreated in its place {@link #attach}es and
+ * is told everything that happened so far.
+ */
+public class BatchSubmission {
+    private static final String TAG = "BatchSubmission";
+
+    public interface Listener {
+        /** One image finished; exactly one of {@code prediction} and {@code error} is set. */
+        void onImageResult(int index, Bitmap upload, CompactPredictions prediction, Throwable error);
+
+        /** {@code sent} images are encoded and on their way, {@code completed} have a result. */
+        void onProgress(int sent, int completed, int total);
+
+        void onBatchComplete(int succeeded, int failed);
+    }
+
+    private final ImageIngest imageIngest;
+    private final MqttClient mqttClient;
+    private final PredictionCache predictionCache;
+    private final EncodePolicy encodePolicy;
+    private final ExecutorService workers;
+    private final ThreadLocal<ImageEncoder> encoders = new ThreadLocal<>();
+    private final ThreadLocal<ReplyDecoder> cacheDecoders = new ThreadLocal<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Batch current;
+
+    public BatchSubmission(ImageIngest imageIngest, MqttClient mqttClient, PredictionCache predictionCache,
+                           EncodePolicy encodePolicy, int workerCount) {
+        this.imageIngest = imageIngest;
+        this.mqttClient = mqttClient;
+        this.predictionCache = predictionCache;
+        this.encodePolicy = encodePolicy;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "batch-encode");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /** Starts a batch, replacing any running one. Call on the main thread. */
+    public void submit(List<Uri> uris, Listener listener) {
+        cancel();
+        Batch batch = new Batch(uris.size(), listener);
+        current = batch;
+        for (int i = 0; i < uris.size(); i++) {
+            int index = i;
+            Uri uri = uris.get(i);
+            workers.execute(() -> process(batch, index, uri));
+        }
+    }
+
+    /**
+     * Makes {@code listener} the running batch's listener and replays its results and progress so
+     * far. Returns false if there is no batch. Call on the main thread.
+     */
+    public boolean attach(Listener listener) {
+        if (current == null) {
+            return false;
+        }
+        current.attach(listener);
+        return true;
+    }
+
+    /** Stops calling {@code listener}, e.g. from a destroyed activity. Call on the main thread. */
+    public void detach(Listener listener) {
+        if (current != null && current.listener == listener) {
+            current.listener = null;
+        }
+    }
+
+    /** Number of images in the running batch, or 0. Call on the main thread. */
+    public int getBatchSize() {
+        return current != null ? current.total : 0;
+    }
+
+    /** Call on the main thread. */
+    public void cancel() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+    }
+
+    private void process(Batch batch, int index, Uri uri) {
+        if (batch.cancelled) {
+            return;
+        }
+        Bitmap upload = null;
+        try {
+            upload = imageIngest.decodeUpload(uri);
+            ImageEncoder encoded = ImageIngest.encode(encoder(), upload, encodePolicy);
+            String sha256 = ImageIngest.sha256(encoded);
+            long dHash = ImageIngest.dHash(upload);
+
+            CompactPredictions cached = decodeCached(predictionCache.get(sha256, dHash));
+            if (cached != null) {
+                batch.sent();
+                batch.finish(index, upload, cached, null);
+                return;
+            }
+
+            ImageFrameOutputStream frame = mqttClient.newImageFrame(mqttClient.nextRequestId(), encoded.size());
+            encoded.writeTo(frame);
+            if (batch.cancelled) {
+                return;
+            }
+            CompletableFuture<CompactPredictions> reply = mqttClient.requestPrediction(frame);
+            batch.track(reply);
+            batch.sent();
+            Bitmap shown = upload;
+            reply.whenComplete((prediction, error) -> {
+                if (error == null) {
+                    predictionCache.put(sha256, dHash, prediction.json);
+                }
+                batch.finish(index, shown, prediction, error);
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Batch image " + index + " failed: " + uri, e);
+            batch.sent();
+            batch.finish(index, upload, null, e);
+        }
+    }
+
+    private ImageEncoder encoder() {
+        ImageEncoder encoder = encoders.get();
+        if (encoder == null) {
+            encoder = new ImageEncoder();
+            encoders.set(encoder);
+        }
+        return encoder;
+    }
+
+    private CompactPredictions decodeCached(String json) {
+        if (json == null) {
+            return null;
+        }
+        ReplyDecoder decoder = cacheDecoders.get();
+        if (decoder == null) {
+            decoder = new ReplyDecoder();
+            cacheDecoders.set(decoder);
+        }
+        try {
+            return decoder.decodePrediction(json);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring corrupt cache entry: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private class Batch {
+        final int total;
+        // Null while no activity is attached; the results below are kept for the next one
+        Listener listener;
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        private final List<CompletableFuture<CompactPredictions>> requests = new ArrayList<>();
+        volatile boolean cancelled;
+        // Main thread only
+        final boolean[] finished;
+        final Bitmap[] uploads;
+        final CompactPredictions[] predictions;
+        final Throwable[] errors;
+        boolean complete;
+
+        Batch(int total, Listener listener) {
+            this.total = total;
+            this.listener = listener;
+            finished = new boolean[total];
+            uploads = new Bitmap[total];
+            predictions = new CompactPredictions[total];
+            errors = new Throwable[total];
+        }
+
+        void attach(Listener listener) {
+            this.listener = listener;
+            for (int i = 0; i < total; i++) {
+                if (finished[i]) {
+                    listener.onImageResult(i, uploads[i], predictions[i], errors[i]);
+                }
+            }
+            reportProgress();
+            if (complete) {
+                listener.onBatchComplete(total - failed.get(), failed.get());
+            }
+        }
+
+        synchronized void track(CompletableFuture<CompactPredictions> request) {
+            if (cancelled) {
+                request.cancel(false);
+            } else {
+                requests.add(request);
+            }
+        }
+
+        void sent() {
+            sent.incrementAndGet();
+            post(this::reportProgress);
+        }
+
+        void finish(int index, Bitmap upload, CompactPredictions prediction, Throwable error) {
+            if (error != null) {
+                failed.incrementAndGet();
+            }
+            boolean last = completed.incrementAndGet() == total;
+            post(() -> {
+                finished[index] = true;
+                uploads[index] = upload;
+                predictions[index] = error == null ? prediction : null;
+                errors[index] = error;
+                if (last) {
+                    complete = true;
+                }
+                if (listener == null) {
+                    return;
+                }
+                listener.onImageResult(index, upload, predictions[index], error);
+                reportProgress();
+                if (last) {
+                    listener.onBatchComplete(total - failed.get(), failed.get());
+                }
+            });
+        }
+
+        // Read on the main thread, so the counts only ever go up
+        private void reportProgress() {
+            if (listener != null) {
+                listener.onProgress(sent.get(), completed.get(), total);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (CompletableFuture<CompactPredictions> request : requests) {
+                request.cancel(false);
+            }
+            requests.clear();
+        }
+
+        private void post(Runnable callback) {
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    callback.run();
+                }
+            });
+        }
+    }
+}
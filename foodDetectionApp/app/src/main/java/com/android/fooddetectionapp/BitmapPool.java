@@ -0,0 +1,76 @@
+package com.android.fooddetectionapp;
+
+import android.graphics.Bitmap;
+
+/**
+ * Bitmaps nobody draws or reads any more, kept for reuse instead of left to the garbage
+ * collector: as decode targets ({@code BitmapFactory.Options.inBitmap}) or as the canvas for a
+ * scaled or rotated copy. Every image goes through the same few sizes (the camera's resolution,
+ * its sampled-down decode, the preview), so most decodes after the first allocate nothing.
+ *
+ * Bounded by bytes; when full, the bitmaps pooled longest ago are recycled. Only mutable
+ * bitmaps are kept. A bitmap handed to {@link #put} must not be used by the caller afterwards.
+ * Thread-safe.
+ */
+public class BitmapPool extends ReusePool<Bitmap> {
+
+    // Decode targets may be at most this much larger than the decoded image
+    private static final int MAX_DECODE_WASTE = 2;
+
+    static final Adapter<Bitmap> BITMAPS = new Adapter<Bitmap>() {
+        @Override
+        public long sizeOf(Bitmap bitmap) {
+            return bitmap.getAllocationByteCount();
+        }
+
+        @Override
+        public boolean isReusable(Bitmap bitmap) {
+            return bitmap.isMutable();
+        }
+
+        @Override
+        public boolean isRecycled(Bitmap bitmap) {
+            return bitmap.isRecycled();
+        }
+
+        @Override
+        public void recycle(Bitmap bitmap) {
+            bitmap.recycle();
+        }
+    };
+
+    public BitmapPool(long maxBytes) {
+        super(BITMAPS, maxBytes);
+    }
+
+    /** A pooled bitmap of exactly this size and config, with undefined contents; or null. */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        return take(bitmap -> bitmap.getWidth() == width && bitmap.getHeight() == height
+                && bitmap.getConfig() == config);
+    }
+
+    /**
+     * A pooled bitmap to pass as {@code inBitmap} for decoding an image of this size, or null.
+     * It has the same config and the smallest allocation that fits; the decoder reconfigures it
+     * to the image's size.
+     */
+    public Bitmap getForDecode(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        return takeSmallest(bitmap -> {
+            long allocation = bitmap.getAllocationByteCount();
+            return bitmap.getConfig() == config && allocation >= needed && allocation <= needed * MAX_DECODE_WASTE;
+        });
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.android.fooddetectionapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.Log;
+
+import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+import androidx.camera.core.Preview;
+import androidx.camera.core.resolutionselector.AspectRatioStrategy;
+import androidx.camera.core.resolutionselector.ResolutionSelector;
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.camera.view.PreviewView;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Frames of the back camera's preview stream, via CameraX: a {@link Preview} shown in a
+ * {@link PreviewView}, and an {@link ImageAnalysis} use case with the same 4:3 aspect ratio whose
+ * RGBA frames are rotated upright and scaled down to at most {@code maxEdgePx} straight into the
+ * sink's buffer. Analysis keeps only the latest frame, so the camera never queues up behind us.
+ *
+ * The sink's buffers must be mutable ARGB_8888 bitmaps of at least maxEdgePx x maxEdgePx; each is
+ * reconfigured to the frame's aspect ratio. The full-size frame is copied into one reused bitmap,
+ * so a frame allocates nothing. Frames are delivered on a thread of this source's own, and the
+ * camera is bound to {@code lifecycleOwner}, so it is released when that stops.
+ */
+public class CameraFrameSource implements FrameSource<Bitmap> {
+    private static final String TAG = "CameraFrameSource";
+
+    private final Context context;
+    private final LifecycleOwner lifecycleOwner;
+    private final PreviewView previewView;
+    private final int maxEdgePx;
+
+    private ProcessCameraProvider cameraProvider;
+    private Preview preview;
+    private ImageAnalysis analysis;
+    private ExecutorService analysisExecutor;
+    private boolean started;
+
+    // Only touched on the analysis thread
+    private Bitmap cameraFrame;
+    private final Canvas canvas = new Canvas();
+    private final Matrix matrix = new Matrix();
+    private final RectF bounds = new RectF();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public CameraFrameSource(Context context, LifecycleOwner lifecycleOwner, PreviewView previewView, int maxEdgePx) {
+        this.context = context.getApplicationContext();
+        this.lifecycleOwner = lifecycleOwner;
+        this.previewView = previewView;
+        this.maxEdgePx = maxEdgePx;
+    }
+
+    /** Call on the main thread. */
+    @Override
+    public void start(Sink<Bitmap> sink) {
+        started = true;
+        analysisExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "camera-frames"));
+        ListenableFuture<ProcessCameraProvider> providerFuture = ProcessCameraProvider.getInstance(context);
+        providerFuture.addListener(() -> {
+            if (!started) {
+                return;
+            }
+            try {
+                cameraProvider = providerFuture.get();
+            } catch (Exception e) {
+                Log.e(TAG, "Camera unavailable", e);
+                return;
+            }
+            ResolutionSelector resolution = new ResolutionSelector.Builder()
+                    .setAspectRatioStrategy(AspectRatioStrategy.RATIO_4_3_FALLBACK_AUTO_STRATEGY)
+                    .build();
+            preview = new Preview.Builder().setResolutionSelector(resolution).build();
+            preview.setSurfaceProvider(previewView.getSurfaceProvider());
+            analysis = new ImageAnalysis.Builder()
+                    .setResolutionSelector(resolution)
+                    .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                    .setOutputImageFormat(ImageAnalysis.OUTPUT_IMAGE_FORMAT_RGBA_8888)
+                    .build();
+            analysis.setAnalyzer(analysisExecutor, image -> analyze(image, sink));
+            try {
+                cameraProvider.bindToLifecycle(lifecycleOwner, CameraSelector.DEFAULT_BACK_CAMERA, preview, analysis);
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Log.e(TAG, "Could not bind the camera", e);
+            }
+        }, ContextCompat.getMainExecutor(context));
+    }
+
+    /** Call on the main thread. */
+    @Override
+    public void stop() {
+        started = false;
+        if (analysis != null) {
+            analysis.clearAnalyzer();
+        }
+        if (cameraProvider != null && preview != null) {
+            cameraProvider.unbind(preview, analysis);
+        }
+        if (analysisExecutor != null) {
+            analysisExecutor.shutdown();
+        }
+    }
+
+    private void analyze(ImageProxy image, Sink<Bitmap> sink) {
+        try {
+            Bitmap target = sink.obtainBuffer();
+            if (target == null) {
+                return;
+            }
+            boolean filled = false;
+            try {
+                filled = draw(image, target);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not read a camera frame", e);
+            } finally {
+                if (filled) {
+                    sink.onFrame(target);
+                } else {
+                    sink.releaseBuffer(target);
+                }
+            }
+        } finally {
+            image.close();
+        }
+    }
+
+    private boolean draw(ImageProxy image, Bitmap target) {
+        ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+        ByteBuffer pixels = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int width = image.getWidth();
+        // Rows may be padded, and the last one is not always padded to the full stride
+        pixels.rewind();
+        int rows = Math.min(image.getHeight(), pixels.remaining() / rowStride);
+        if (rows <= 0 || plane.getPixelStride() != 4) {
+            return false;
+        }
+        int strideWidth = rowStride / 4;
+        if (cameraFrame == null || cameraFrame.getWidth() != strideWidth || cameraFrame.getHeight() != rows) {
+            cameraFrame = Bitmap.createBitmap(strideWidth, rows, Bitmap.Config.ARGB_8888);
+        }
+        cameraFrame.copyPixelsFromBuffer(pixels);
+
+        // Rotate upright about the origin, move back into view, then scale down
+        int rotation = image.getImageInfo().getRotationDegrees();
+        matrix.setRotate(rotation);
+        bounds.set(0, 0, width, rows);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        float scale = Math.min(1f, maxEdgePx / Math.max(bounds.width(), bounds.height()));
+        matrix.postScale(scale, scale);
+        int targetWidth = Math.max(1, Math.round(bounds.width() * scale));
+        int targetHeight = Math.max(1, Math.round(bounds.height() * scale));
+        if (target.getWidth() != targetWidth || target.getHeight() != targetHeight) {
+            target.reconfigure(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        canvas.setBitmap(target);
+        // Only the first width columns of the padded rows are image
+        canvas.save();
+        canvas.clipRect(0, 0, targetWidth, targetHeight);
+        canvas.concat(matrix);
+        canvas.clipRect(0, 0, width, rows);
+        canvas.drawBitmap(cameraFrame, 0, 0, paint);
+        canvas.restore();
+        canvas.setBitmap(null);
+        return true;
+    }
+}
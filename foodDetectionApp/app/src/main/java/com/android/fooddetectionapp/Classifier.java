@@ -0,0 +1,29 @@
+package com.android.fooddetectionapp;
+
+import android.graphics.Bitmap;
+
+import com.android.service.CompactPredictions;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Turns an upload-sized bitmap into predictions. Every implementation completes with the same
+ * {@link CompactPredictions} structure the server replies with, so the UI does not care where a
+ * result came from. Futures may complete on any thread.
+ */
+public interface Classifier {
+
+    /** {@code requestId} ties the result to its latency trace and, for the server, its reply. */
+    CompletableFuture<CompactPredictions> classify(Bitmap image, String requestId);
+
+    /**
+     * For an image that is only looked at, never confirmed (e.g. a live preview frame): the server
+     * classifies it without keeping it. The same as {@link #classify} for on-device classifiers.
+     */
+    default CompletableFuture<CompactPredictions> classifyTransient(Bitmap image, String requestId) {
+        return classify(image, requestId);
+    }
+
+    /** Whether {@link #classify} can currently be expected to produce a result. */
+    boolean isAvailable();
+}
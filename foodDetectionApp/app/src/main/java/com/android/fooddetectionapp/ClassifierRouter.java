@@ -0,0 +1,151 @@
+package com.android.fooddetectionapp;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.service.CompactPredictions;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the on-device or the server classifier for each image.
+ *
+ * <ul>
+ * <li>No usable on-device model: the server, as before (queued while offline).</li>
+ * <li>Offline or battery low: on-device only, the radio stays off.</li>
+ * <li>Otherwise on-device first, and the server only when the best on-device confidence is
+ * below {@code minLocalConfidence}. The server's answer wins if it arrives within
+ * {@code remoteWaitMs}; if it is late or fails, the on-device result is used.</li>
+ * </ul>
+ *
+ * Whenever the on-device model fails, the request goes to the server instead.
+ */
+public class ClassifierRouter implements Classifier {
+    private static final String TAG = "ClassifierRouter";
+
+    public enum Route {
+        REMOTE_ONLY,
+        LOCAL_ONLY,
+        LOCAL_FIRST
+    }
+
+    public interface Conditions {
+        boolean isBatteryLow();
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "classifier-router");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Classifier local;
+    private final Classifier remote;
+    private final Conditions conditions;
+    private final float minLocalConfidence;
+    private final long remoteWaitMs;
+
+    public ClassifierRouter(Classifier local, Classifier remote, Conditions conditions,
+                            float minLocalConfidence, long remoteWaitMs) {
+        this.local = local;
+        this.remote = remote;
+        this.conditions = conditions;
+        this.minLocalConfidence = minLocalConfidence;
+        this.remoteWaitMs = remoteWaitMs;
+    }
+
+    public Route chooseRoute() {
+        if (!local.isAvailable()) {
+            return Route.REMOTE_ONLY;
+        }
+        if (!remote.isAvailable() || conditions.isBatteryLow()) {
+            return Route.LOCAL_ONLY;
+        }
+        return Route.LOCAL_FIRST;
+    }
+
+    @Override
+    public CompletableFuture<CompactPredictions> classify(Bitmap image, String requestId) {
+        Route route = chooseRoute();
+        Log.d(TAG, "Request " + requestId + " routed " + route);
+        if (route == Route.REMOTE_ONLY) {
+            return remote.classify(image, requestId);
+        }
+
+        CompletableFuture<CompactPredictions> result = new CompletableFuture<>();
+        local.classify(image, requestId).whenComplete((prediction, error) -> {
+            if (error != null) {
+                Log.d(TAG, "On-device classification failed, asking the server: " + error);
+                forward(remote.classify(image, requestId), result);
+            } else if (route == Route.LOCAL_FIRST && topConfidence(prediction) < minLocalConfidence) {
+                escalate(image, requestId, prediction, result);
+            } else {
+                result.complete(prediction);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * For frames of a live preview: the on-device result as it is whenever the model can run, the
+     * server otherwise, which doesn't keep the frame. Never escalates, the next frame is only a
+     * moment away; so the future only completes once neither classifier reads {@code image} any
+     * more, and the caller may reuse it.
+     */
+    public CompletableFuture<CompactPredictions> classifyLive(Bitmap image, String requestId) {
+        if (!local.isAvailable()) {
+            return remote.classifyTransient(image, requestId);
+        }
+        CompletableFuture<CompactPredictions> result = new CompletableFuture<>();
+        local.classify(image, requestId).whenComplete((prediction, error) -> {
+            if (error != null) {
+                forward(remote.classifyTransient(image, requestId), result);
+            } else {
+                result.complete(prediction);
+            }
+        });
+        return result;
+    }
+
+    /** Whether either classifier can run right now. */
+    @Override
+    public boolean isAvailable() {
+        return local.isAvailable() || remote.isAvailable();
+    }
+
+    private void escalate(Bitmap image, String requestId, CompactPredictions localPrediction,
+                          CompletableFuture<CompactPredictions> result) {
+        CompletableFuture<CompactPredictions> remotePrediction = remote.classify(image, requestId);
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            if (result.complete(localPrediction)) {
+                Log.d(TAG, "Server too slow for request " + requestId + ", using the on-device result");
+            }
+        }, remoteWaitMs, TimeUnit.MILLISECONDS);
+        remotePrediction.whenComplete((prediction, error) -> {
+            deadline.cancel(false);
+            result.complete(error == null ? prediction : localPrediction);
+        });
+    }
+
+    private static void forward(CompletableFuture<CompactPredictions> from, CompletableFuture<CompactPredictions> to) {
+        from.whenComplete((prediction, error) -> {
+            if (error != null) {
+                to.completeExceptionally(error);
+            } else {
+                to.complete(prediction);
+            }
+        });
+    }
+
+    static float topConfidence(CompactPredictions prediction) {
+        float top = 0;
+        for (int i = 0; i < prediction.count; i++) {
+            top = Math.max(top, prediction.confidences[i]);
+        }
+        return top;
+    }
+}
@@ -0,0 +1,39 @@
+package com.android.fooddetectionapp;
+
+/**
+ * Writes a confidence as a percentage with two decimals ("95.31%") into a caller-owned buffer,
+ * for {@code TextView.setText(char[], int, int)}; unlike {@code String.format} this allocates
+ * nothing per row.
+ */
+final class ConfidenceText {
+    /** Longest output, "100.00%". */
+    static final int MAX_LENGTH = 7;
+
+    private ConfidenceText() {
+    }
+
+    /** Returns the number of chars written to {@code out}; NaN and negatives print as 0. */
+    static int format(float confidence, char[] out) {
+        float clamped = confidence > 1f ? 1f : (confidence >= 0f ? confidence : 0f);
+        int hundredths = Math.round(clamped * 10000);
+        int whole = hundredths / 100;
+        int fraction = hundredths % 100;
+
+        int length = 0;
+        if (whole >= 100) {
+            out[length++] = '1';
+            out[length++] = '0';
+            out[length++] = '0';
+        } else {
+            if (whole >= 10) {
+                out[length++] = (char) ('0' + whole / 10);
+            }
+            out[length++] = (char) ('0' + whole % 10);
+        }
+        out[length++] = '.';
+        out[length++] = (char) ('0' + fraction / 10);
+        out[length++] = (char) ('0' + fraction % 10);
+        out[length++] = '%';
+        return length;
+    }
+}
@@ -0,0 +1,36 @@
+package com.android.fooddetectionapp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * Battery state for {@link ClassifierRouter}, read from the sticky battery broadcast on each
+ * request; no receiver is kept registered.
+ */
+public class DeviceConditions implements ClassifierRouter.Conditions {
+    private static final float LOW_BATTERY_FRACTION = 0.2f;
+
+    private final Context context;
+
+    public DeviceConditions(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /** Below 20% and not charging. */
+    @Override
+    public boolean isBatteryLow() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return false;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level < LOW_BATTERY_FRACTION * scale;
+    }
+}
@@ -4,65 +4,452 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.android.service.CompactPredictions;
+import com.android.service.ImageTransform;
+
+import java.util.Arrays;
+
+/**
+ * Overlay on the captured image that draws the server's predicted boxes with their labels and the
+ * box the user drags for a manual label.
+ *
+ * Boxes are kept normalized to the image (as they travel over MQTT) and mapped to and from view
+ * pixels with the {@link ImageTransform} of the image underneath, so scale type, letterboxing and
+ * rotation are accounted for. Until one is set the image is assumed to fill the view. Tapping a
+ * predicted box toggles its selection; dragging a box or one of the corners of the active box
+ * edits it in place. Dragging on empty space draws the manual box.
+ *
+ * Everything onDraw and onTouchEvent touch is allocated up front or when predictions arrive, and
+ * only plain canvas primitives are used, so the view stays on the hardware-accelerated path
+ * without GC churn at touch rates.
+ */
 public class DrawBoundingBoxView extends View {
-    private float startX, startY, endX, endY;
-    private Paint paint;
-    private RectF boundingBox;
+    /** Index of the manual box in {@link OnBoxSelectedListener} calls and {@link #getBox}. */
+    public static final int USER_BOX = -1;
+    private static final int NO_BOX = -2;
+
+    private static final int MODE_NONE = 0;
+    private static final int MODE_DRAW = 1;
+    private static final int MODE_TAP = 2;
+    private static final int MODE_MOVE = 3;
+    private static final int MODE_RESIZE = 4;
+
+    public interface OnBoxSelectedListener {
+        /** The user tapped or edited predicted box {@code index}. */
+        void onBoxSelected(int index, boolean selected);
+    }
+
+    private final Paint boxPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint selectedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint userPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint handlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelBackgroundPaint = new Paint();
+    private final float touchSlop;
+    private final float handleRadius;
+    private final float labelPadding;
+    private final float labelHeight;
+    private final float labelBaseline;
+
+    // Shared with whoever lays out the image; the fallback fills the view
+    private ImageTransform transform;
+    private final ImageTransform fillTransform = new ImageTransform();
+    // Part of the displayed image inside the view: left, top, right, bottom
+    private final float[] visibleRect = new float[4];
+    private static final float[] WHOLE_IMAGE = {0, 0, 1, 1};
+
+    // Predicted boxes: normalized to the image, and mapped to view pixels
+    private int boxCount;
+    private float[] boxes = new float[0];
+    private float[] viewBoxes = new float[0];
+    private String[] labels = new String[0];
+    private float[] labelWidths = new float[0];
+    private boolean[] shown = new boolean[0];
+    private boolean[] selected = new boolean[0];
+    private int maxShown = Integer.MAX_VALUE;
+
+    // Manual box in view pixels
+    private final float[] userBox = new float[4];
+    private boolean hasUserBox;
+
+    private int activeBox = NO_BOX;
+    private int touchMode = MODE_NONE;
+    private int touchBox = NO_BOX;
+    private int resizeCorner;
+    private float downX, downY, lastX, lastY;
+
+    private OnBoxSelectedListener listener;
 
     public DrawBoundingBoxView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        paint = new Paint();
-        paint.setColor(Color.RED);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeWidth(5);
+        float density = getResources().getDisplayMetrics().density;
+        touchSlop = 12 * density;
+        handleRadius = 6 * density;
+        labelPadding = 3 * density;
+
+        boxPaint.setColor(0xFF29B6F6);
+        boxPaint.setStyle(Paint.Style.STROKE);
+        boxPaint.setStrokeWidth(2 * density);
+        selectedPaint.setColor(0xFF00E676);
+        selectedPaint.setStyle(Paint.Style.STROKE);
+        selectedPaint.setStrokeWidth(4 * density);
+        userPaint.setColor(Color.RED);
+        userPaint.setStyle(Paint.Style.STROKE);
+        userPaint.setStrokeWidth(5);
+        handlePaint.setColor(Color.WHITE);
+        labelPaint.setColor(Color.WHITE);
+        labelPaint.setTextSize(12 * density);
+        labelBackgroundPaint.setColor(0x99000000);
+
+        Paint.FontMetrics metrics = labelPaint.getFontMetrics();
+        labelHeight = metrics.descent - metrics.ascent + 2 * labelPadding;
+        labelBaseline = labelPadding - metrics.ascent;
+    }
+
+    public void setOnBoxSelectedListener(OnBoxSelectedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Uses {@code imageTransform} (normalized image to this view's pixels) for drawing and touch.
+     * Call again after changing the transform so the boxes are re-mapped.
+     */
+    public void setImageTransform(ImageTransform imageTransform) {
+        transform = imageTransform;
+        updateViewBoxes();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        fillTransform.set(1, 1, 0, ImageTransform.ScaleType.FIT_XY, w, h, 0, 0, 0, 0);
+        updateViewBoxes();
+    }
+
+    private ImageTransform transform() {
+        return transform != null && transform.isValid() ? transform : fillTransform;
+    }
+
+    /**
+     * Shows the predicted boxes of a result. Only the {@code maxShown} most confident distinct
+     * boxes are drawn until others are selected; predictions without a box are skipped.
+     */
+    public void setPredictions(CompactPredictions predictions, int maxShown) {
+        int n = predictions.count;
+        if (boxes.length < n * 4) {
+            boxes = new float[n * 4];
+            viewBoxes = new float[n * 4];
+            labels = new String[n];
+            labelWidths = new float[n];
+            shown = new boolean[n];
+            selected = new boolean[n];
+        }
+        boxCount = n;
+        this.maxShown = maxShown;
+        System.arraycopy(predictions.boxes, 0, boxes, 0, n * 4);
+        Arrays.fill(selected, false);
+        for (int i = 0; i < n; i++) {
+            labels[i] = predictions.labels[i];
+            labelWidths[i] = labels[i] != null ? labelPaint.measureText(labels[i]) + 2 * labelPadding : 0;
+        }
+        activeBox = NO_BOX;
+        updateShown(predictions.confidences);
+        updateViewBoxes();
+        invalidate();
+    }
+
+    public void clearPredictions() {
+        boxCount = 0;
+        activeBox = hasUserBox ? USER_BOX : NO_BOX;
+        invalidate();
+    }
+
+    /** Highlights a predicted box, e.g. when its label is picked from the list. */
+    public void setBoxSelected(int index, boolean isSelected) {
+        if (index < 0 || index >= boxCount) {
+            return;
+        }
+        selected[index] = isSelected;
+        if (isSelected && !Float.isNaN(boxes[index * 4])) {
+            activeBox = index;
+        } else if (activeBox == index) {
+            activeBox = NO_BOX;
+        }
+        invalidate();
+    }
+
+    /**
+     * Copies box {@code index} ({@link #USER_BOX} for the manual one), normalized to the image and
+     * including the user's edits, into {@code out}. Returns false if there is no such box.
+     */
+    public boolean getBox(int index, float[] out) {
+        if (index == USER_BOX) {
+            return hasUserBox && transform().mapBoxToImage(userBox[0], userBox[1], userBox[2], userBox[3], out, 0);
+        }
+        if (index < 0 || index >= boxCount || Float.isNaN(boxes[index * 4])) {
+            return false;
+        }
+        System.arraycopy(boxes, index * 4, out, 0, 4);
+        return true;
+    }
+
+    public void resetBoundingBox() {
+        hasUserBox = false;
+        if (activeBox == USER_BOX) {
+            activeBox = NO_BOX;
+        }
+        invalidate();
+    }
+
+    private void updateShown(float[] confidences) {
+        Arrays.fill(shown, 0, boxCount, false);
+        // Labels sharing a box come in one group from the server; draw the box once
+        for (int picked = 0; picked < maxShown; picked++) {
+            int best = -1;
+            for (int i = 0; i < boxCount; i++) {
+                if (!shown[i] && !Float.isNaN(boxes[i * 4]) && !sameAsShownBox(i)
+                        && (best < 0 || confidences[i] > confidences[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return;
+            }
+            shown[best] = true;
+        }
+    }
+
+    private boolean sameAsShownBox(int index) {
+        for (int i = 0; i < boxCount; i++) {
+            if (shown[i] && boxes[i * 4] == boxes[index * 4] && boxes[i * 4 + 1] == boxes[index * 4 + 1]
+                    && boxes[i * 4 + 2] == boxes[index * 4 + 2] && boxes[i * 4 + 3] == boxes[index * 4 + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateViewBoxes() {
+        ImageTransform t = transform();
+        t.mapBoxToView(WHOLE_IMAGE, 0, visibleRect, 0);
+        visibleRect[0] = Math.max(visibleRect[0], 0);
+        visibleRect[1] = Math.max(visibleRect[1], 0);
+        visibleRect[2] = Math.max(visibleRect[0], Math.min(visibleRect[2], getWidth()));
+        visibleRect[3] = Math.max(visibleRect[1], Math.min(visibleRect[3], getHeight()));
+        for (int i = 0; i < boxCount; i++) {
+            t.mapBoxToView(boxes, i * 4, viewBoxes, i * 4);
+        }
+    }
+
+    private boolean isDrawn(int index) {
+        return !Float.isNaN(boxes[index * 4]) && (shown[index] || selected[index]);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (boundingBox != null) { // Keep the last drawn box visible
-            canvas.drawRect(boundingBox, paint);
+        // Unselected first so selected boxes end up on top
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < boxCount; i++) {
+                if (isDrawn(i) && selected[i] == (pass == 1)) {
+                    drawBox(canvas, i);
+                }
+            }
+        }
+        if (hasUserBox) { // Keep the last drawn box visible
+            canvas.drawRect(userBox[0], userBox[1], userBox[2], userBox[3], userPaint);
+        }
+        if (activeBox != NO_BOX) {
+            float[] box = activeBox == USER_BOX ? userBox : viewBoxes;
+            int offset = activeBox == USER_BOX ? 0 : activeBox * 4;
+            canvas.drawCircle(box[offset], box[offset + 1], handleRadius, handlePaint);
+            canvas.drawCircle(box[offset + 2], box[offset + 1], handleRadius, handlePaint);
+            canvas.drawCircle(box[offset], box[offset + 3], handleRadius, handlePaint);
+            canvas.drawCircle(box[offset + 2], box[offset + 3], handleRadius, handlePaint);
         }
     }
 
+    private void drawBox(Canvas canvas, int i) {
+        int o = i * 4;
+        float left = Math.min(viewBoxes[o], viewBoxes[o + 2]);
+        float top = Math.min(viewBoxes[o + 1], viewBoxes[o + 3]);
+        canvas.drawRect(viewBoxes[o], viewBoxes[o + 1], viewBoxes[o + 2], viewBoxes[o + 3],
+                selected[i] ? selectedPaint : boxPaint);
+        if (labels[i] == null) {
+            return;
+        }
+        // Label sits above the box, or just inside it at the top edge of the view
+        float labelTop = top - labelHeight >= 0 ? top - labelHeight : top;
+        canvas.drawRect(left, labelTop, left + labelWidths[i], labelTop + labelHeight, labelBackgroundPaint);
+        canvas.drawText(labels[i], left + labelPadding, labelTop + labelBaseline, labelPaint);
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        switch (event.getAction()) {
+        float x = clamp(event.getX(), visibleRect[0], visibleRect[2]);
+        float y = clamp(event.getY(), visibleRect[1], visibleRect[3]);
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                // Reset previous bounding box when starting a new one
-                startX = event.getX();
-                startY = event.getY();
-                boundingBox = null;
+                downX = lastX = x;
+                downY = lastY = y;
+                resizeCorner = findCorner(activeBox, x, y);
+                if (resizeCorner >= 0) {
+                    touchMode = MODE_RESIZE;
+                    touchBox = activeBox;
+                } else {
+                    touchBox = findBoxAt(x, y);
+                    touchMode = touchBox != NO_BOX ? MODE_TAP : MODE_DRAW;
+                }
                 break;
 
             case MotionEvent.ACTION_MOVE:
-                endX = event.getX();
-                endY = event.getY();
-                boundingBox = new RectF(startX, startY, endX, endY);
+                if (touchMode == MODE_TAP && Math.hypot(x - downX, y - downY) > touchSlop) {
+                    touchMode = MODE_MOVE;
+                    activeBox = touchBox;
+                }
+                if (touchMode == MODE_DRAW && Math.hypot(x - downX, y - downY) > touchSlop) {
+                    // Reset previous bounding box when starting a new one
+                    hasUserBox = true;
+                    activeBox = USER_BOX;
+                    userBox[0] = downX;
+                    userBox[1] = downY;
+                    touchMode = MODE_RESIZE;
+                    touchBox = USER_BOX;
+                    resizeCorner = 3;
+                }
+                if (touchMode == MODE_MOVE) {
+                    moveBox(touchBox, x - lastX, y - lastY);
+                } else if (touchMode == MODE_RESIZE) {
+                    moveCorner(touchBox, resizeCorner, x, y);
+                }
+                lastX = x;
+                lastY = y;
                 invalidate();
                 break;
 
             case MotionEvent.ACTION_UP:
-                endX = event.getX();
-                endY = event.getY();
-                boundingBox = new RectF(startX, startY, endX, endY);
+                if (touchMode == MODE_TAP) {
+                    if (touchBox == USER_BOX) {
+                        activeBox = USER_BOX;
+                    } else {
+                        toggleSelected(touchBox);
+                    }
+                } else if (touchMode == MODE_MOVE || touchMode == MODE_RESIZE) {
+                    finishEdit(touchBox);
+                } else if (touchMode == MODE_DRAW) {
+                    activeBox = NO_BOX;
+                }
+                touchMode = MODE_NONE;
+                invalidate();
+                break;
+
+            case MotionEvent.ACTION_CANCEL:
+                if (touchMode == MODE_MOVE || touchMode == MODE_RESIZE) {
+                    finishEdit(touchBox);
+                }
+                touchMode = MODE_NONE;
                 invalidate();
                 break;
         }
         return true;
     }
 
-    public RectF getBoundingBox() {
-        return boundingBox;
+    /** Topmost box under the point: the manual box, then the smallest drawn predicted box. */
+    private int findBoxAt(float x, float y) {
+        if (hasUserBox && contains(userBox, 0, x, y)) {
+            return USER_BOX;
+        }
+        int best = NO_BOX;
+        float bestArea = Float.MAX_VALUE;
+        for (int i = 0; i < boxCount; i++) {
+            if (isDrawn(i) && contains(viewBoxes, i * 4, x, y)) {
+                int o = i * 4;
+                float area = Math.abs((viewBoxes[o + 2] - viewBoxes[o]) * (viewBoxes[o + 3] - viewBoxes[o + 1]));
+                if (area < bestArea) {
+                    best = i;
+                    bestArea = area;
+                }
+            }
+        }
+        return best;
     }
 
-    public void resetBoundingBox() {
-        boundingBox = null;
-        invalidate();
+    /** Corner of {@code index} within reach of the point: 0 top-left, 1 top-right, 2 bottom-left, 3 bottom-right. */
+    private int findCorner(int index, float x, float y) {
+        if (index == NO_BOX) {
+            return -1;
+        }
+        float[] box = index == USER_BOX ? userBox : viewBoxes;
+        int o = index == USER_BOX ? 0 : index * 4;
+        float reach = Math.max(touchSlop, handleRadius * 2);
+        for (int corner = 0; corner < 4; corner++) {
+            float cx = box[o + ((corner & 1) == 0 ? 0 : 2)];
+            float cy = box[o + ((corner & 2) == 0 ? 1 : 3)];
+            if (Math.abs(x - cx) <= reach && Math.abs(y - cy) <= reach) {
+                return corner;
+            }
+        }
+        return -1;
+    }
+
+    private void moveCorner(int index, int corner, float x, float y) {
+        float[] box = index == USER_BOX ? userBox : viewBoxes;
+        int o = index == USER_BOX ? 0 : index * 4;
+        box[o + ((corner & 1) == 0 ? 0 : 2)] = x;
+        box[o + ((corner & 2) == 0 ? 1 : 3)] = y;
+    }
+
+    private void moveBox(int index, float dx, float dy) {
+        float[] box = index == USER_BOX ? userBox : viewBoxes;
+        int o = index == USER_BOX ? 0 : index * 4;
+        // Keep the whole box on the visible image
+        float left = Math.min(box[o], box[o + 2]);
+        float right = Math.max(box[o], box[o + 2]);
+        float top = Math.min(box[o + 1], box[o + 3]);
+        float bottom = Math.max(box[o + 1], box[o + 3]);
+        dx = clamp(dx, visibleRect[0] - left, visibleRect[2] - right);
+        dy = clamp(dy, visibleRect[1] - top, visibleRect[3] - bottom);
+        box[o] += dx;
+        box[o + 2] += dx;
+        box[o + 1] += dy;
+        box[o + 3] += dy;
+    }
+
+    private void finishEdit(int index) {
+        activeBox = index;
+        if (index == USER_BOX) {
+            return;
+        }
+        int o = index * 4;
+        ImageTransform t = transform();
+        t.mapBoxToImage(viewBoxes[o], viewBoxes[o + 1], viewBoxes[o + 2], viewBoxes[o + 3], boxes, o);
+        // Mapping back orders the corners; keep the pixels in step
+        t.mapBoxToView(boxes, o, viewBoxes, o);
+        if (!selected[index]) {
+            // Fixing a box up means the label is right
+            toggleSelected(index);
+        }
+    }
+
+    private void toggleSelected(int index) {
+        selected[index] = !selected[index];
+        activeBox = selected[index] ? index : NO_BOX;
+        if (listener != null) {
+            listener.onBoxSelected(index, selected[index]);
+        }
+    }
+
+    private static boolean contains(float[] box, int o, float x, float y) {
+        return x >= Math.min(box[o], box[o + 2]) && x <= Math.max(box[o], box[o + 2])
+                && y >= Math.min(box[o + 1], box[o + 3]) && y <= Math.max(box[o + 1], box[o + 3]);
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return value < min ? min : (value > max ? max : value);
     }
 }
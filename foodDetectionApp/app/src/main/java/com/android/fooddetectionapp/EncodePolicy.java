@@ -0,0 +1,47 @@
+package com.android.fooddetectionapp;
+
+/**
+ * How an image is encoded for upload: the longest edge it is scaled down to, the byte budget
+ * the quality search aims for, and the output format.
+ */
+public class EncodePolicy {
+
+    public enum Format {
+        JPEG,
+        WEBP
+    }
+
+    /** Twice the model's 224px input, comfortably under 64 KB on typical food photos. */
+    public static final EncodePolicy DEFAULT = new EncodePolicy("default", 448, 64 * 1024, Format.JPEG, 70, 30);
+    /** Exactly the model input size, for metered connections. */
+    public static final EncodePolicy SMALL = new EncodePolicy("small", 224, 16 * 1024, Format.JPEG, 70, 30);
+    /** Full preview resolution, e.g. when the image is kept for retraining. */
+    public static final EncodePolicy LARGE = new EncodePolicy("large", 1280, 256 * 1024, Format.JPEG, 80, 40);
+    public static final EncodePolicy WEBP = new EncodePolicy("webp", 448, 48 * 1024, Format.WEBP, 70, 30);
+
+    public final String name;
+    public final int maxEdgePx;
+    public final int targetBytes;
+    public final Format format;
+    /** Preferred quality; most images fit the budget here and need no search. */
+    public final int quality;
+    /** Lowest quality the search may go down to when the preferred one is over budget. */
+    public final int minQuality;
+
+    public EncodePolicy(String name, int maxEdgePx, int targetBytes, Format format, int quality, int minQuality) {
+        if (minQuality < 0 || quality > 100 || minQuality > quality) {
+            throw new IllegalArgumentException("Invalid quality range for policy " + name);
+        }
+        this.name = name;
+        this.maxEdgePx = maxEdgePx;
+        this.targetBytes = targetBytes;
+        this.format = format;
+        this.quality = quality;
+        this.minQuality = minQuality;
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + format + ", " + maxEdgePx + "px, " + targetBytes / 1024 + " KB)";
+    }
+}
@@ -0,0 +1,181 @@
+package com.android.fooddetectionapp;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.service.FeedbackBatcher;
+import com.android.service.MqttClient;
+import com.android.service.NetworkMonitor;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Holds everything that should live as long as the process rather than a single activity: the
+ * MQTT connection (with a client id that stays the same across restarts), the feedback batcher,
+ * the prediction cache, the history, the image ingest thread with its bitmap pool and preview
+ * cache, and the classifiers (the on-device model is loaded once). Rotating the screen or
+ * reopening the app reuses the existing connection instead of connecting and subscribing again.
+ */
+public class FoodDetectionApp extends Application {
+    private static final String TAG = "FoodDetectionApp";
+
+    private static final String PREFS_NAME = "MqttPrefs";
+    private static final String PREF_CLIENT_ID = "clientId";
+
+    private static final int FEEDBACK_BATCH_SIZE = 20;
+    private static final long FEEDBACK_BATCH_DELAY_MS = 30000;
+
+    private static final int PREDICTION_CACHE_SIZE = 200;
+    private static final long PREDICTION_CACHE_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+    // Only used in PERCEPTUAL mode, which is opt-in: a similar-looking plate would get another
+    // photo's result without asking the server
+    private static final PredictionCache.Mode PREDICTION_CACHE_MODE = PredictionCache.Mode.EXACT;
+    private static final int PREDICTION_CACHE_MAX_DISTANCE = 6;
+
+    // Below this top confidence an on-device result is double-checked by the server
+    private static final float MIN_LOCAL_CONFIDENCE = 0.5f;
+    private static final long REMOTE_WAIT_MS = 5000;
+
+    // Shares of the heap limit (ActivityManager.getMemoryClass) for decoded bitmaps: a 1280px
+    // preview is about 5 MB, so one or two fit on a low-RAM device, a dozen on most others
+    private static final int PREVIEW_CACHE_HEAP_DIVISOR = 8;
+    private static final int BITMAP_POOL_HEAP_DIVISOR = 16;
+
+    // Decode and encode workers for multi-image batches; leaves a core for the UI
+    private static final int BATCH_WORKERS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private MqttClient mqttClient;
+    private FeedbackBatcher feedbackBatcher;
+    private PredictionCache predictionCache;
+    private ImageIngest imageIngest;
+    private RemoteClassifier remoteClassifier;
+    private ClassifierRouter classifier;
+    private BatchSubmission batchSubmission;
+    private PredictionHistory history;
+    private BitmapPool bitmapPool;
+    private PreviewCache<Bitmap> previewCache;
+
+    public static FoodDetectionApp get(Context context) {
+        return (FoodDetectionApp) context.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        bitmapPool = new BitmapPool(heapBytes / BITMAP_POOL_HEAP_DIVISOR);
+        previewCache = new PreviewCache<>(bitmapPool, heapBytes / PREVIEW_CACHE_HEAP_DIVISOR);
+        imageIngest = new ImageIngest(getContentResolver(), bitmapPool, previewCache);
+        predictionCache = new PredictionCache(new File(getFilesDir(), "prediction_cache.bin"),
+                PREDICTION_CACHE_MODE, PREDICTION_CACHE_SIZE, PREDICTION_CACHE_TTL_MS,
+                PREDICTION_CACHE_MAX_DISTANCE);
+        imageIngest.execute(predictionCache::load);
+
+        // Connect before the first activity is even created
+        mqttClient = new MqttClient(this, getOrCreateClientId());
+        new NetworkMonitor(this).start(mqttClient::setNetworkType);
+        mqttClient.connect();
+        feedbackBatcher = new FeedbackBatcher(mqttClient, FEEDBACK_BATCH_SIZE, FEEDBACK_BATCH_DELAY_MS);
+
+        remoteClassifier = new RemoteClassifier(mqttClient, imageIngest, predictionCache, EncodePolicy.DEFAULT);
+        classifier = new ClassifierRouter(new TfliteClassifier(this, mqttClient.getLatencyTracker()),
+                remoteClassifier, new DeviceConditions(this), MIN_LOCAL_CONFIDENCE, REMOTE_WAIT_MS);
+        batchSubmission = new BatchSubmission(imageIngest, mqttClient, predictionCache, EncodePolicy.DEFAULT,
+                BATCH_WORKERS);
+        history = new PredictionHistory(this);
+    }
+
+    /**
+     * Gives back decoded bitmaps as memory gets tight: the pool, since it only saves allocations,
+     * and then previews, which only save a decode. Previews are trimmed before the pool is
+     * cleared, because evicted previews go to the pool. Previews on screen stay either way.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // Next in line to be killed
+            previewCache.clear();
+            bitmapPool.clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            previewCache.trimToSize(previewCache.getMaxBytes() / 4);
+            bitmapPool.clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            previewCache.trimToSize(previewCache.getMaxBytes() / 2);
+            bitmapPool.clear();
+        } else {
+            bitmapPool.trimToSize(bitmapPool.getMaxBytes() / 2);
+        }
+        Log.d(TAG, "Trimmed memory at level " + level + ": pool " + bitmapPool.getStats()
+                + "; previews " + previewCache.getStats());
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    private String getOrCreateClientId() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        String clientId = prefs.getString(PREF_CLIENT_ID, null);
+        if (clientId == null) {
+            clientId = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_CLIENT_ID, clientId).apply();
+        }
+        return clientId;
+    }
+
+    public MqttClient getMqttClient() {
+        return mqttClient;
+    }
+
+    public FeedbackBatcher getFeedbackBatcher() {
+        return feedbackBatcher;
+    }
+
+    public PredictionCache getPredictionCache() {
+        return predictionCache;
+    }
+
+    public ImageIngest getImageIngest() {
+        return imageIngest;
+    }
+
+    /** Routes each image to the on-device model or the server. */
+    public ClassifierRouter getClassifier() {
+        return classifier;
+    }
+
+    /** Several images at once, e.g. every plate of a meal. */
+    public BatchSubmission getBatchSubmission() {
+        return batchSubmission;
+    }
+
+    /** Past results and what the user confirmed, searchable by time and label. */
+    public PredictionHistory getHistory() {
+        return history;
+    }
+
+    /** Decoded bitmaps free for reuse. */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /** Decoded previews by image URI. */
+    public PreviewCache<Bitmap> getPreviewCache() {
+        return previewCache;
+    }
+
+    /** Always the server, e.g. to get an image id for feedback on an on-device result. */
+    public RemoteClassifier getRemoteClassifier() {
+        return remoteClassifier;
+    }
+}
@@ -0,0 +1,26 @@
+package com.android.fooddetectionapp;
+
+/**
+ * Produces a stream of frames, e.g. the camera preview ({@link CameraFrameSource}) or synthetic
+ * frames in tests. The source doesn't allocate frames: it asks its {@link Sink} for a buffer,
+ * fills it and hands it back, so a pipeline can recycle a few buffers for the whole stream.
+ */
+public interface FrameSource<F> {
+
+    interface Sink<F> {
+        /** A buffer to fill with the next frame, or null to skip this frame. */
+        F obtainBuffer();
+
+        /** The buffer from {@link #obtainBuffer}, now holding a frame. */
+        void onFrame(F frame);
+
+        /** The buffer from {@link #obtainBuffer}, unused (the frame could not be read). */
+        void releaseBuffer(F buffer);
+    }
+
+    /** Starts delivering frames to {@code sink}, on a thread of the source's choosing. */
+    void start(Sink<F> sink);
+
+    /** Stops delivering; a frame already being filled may still arrive. */
+    void stop();
+}
@@ -0,0 +1,135 @@
+package com.android.fooddetectionapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Encodes an image to fit an {@link EncodePolicy} byte budget.
+ *
+ * Tries the policy's preferred quality first and, only if that is over budget, binary-searches
+ * down towards the minimum quality, keeping the highest quality that fits. Every attempt writes
+ * into the same pooled buffer, so steady-state encoding does not allocate. Not thread-safe; use
+ * one encoder per worker thread.
+ */
+public class ImageEncoder {
+    private static final int MAX_ATTEMPTS = 4;
+    // Buffers that grew past this (e.g. one huge image) are dropped instead of being kept around
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    /** Compresses the (already scaled) image at the given quality. */
+    public interface Source {
+        void compress(EncodePolicy.Format format, int quality, OutputStream out) throws IOException;
+    }
+
+    public static class Result {
+        public int quality;
+        public int size;
+        public int attempts;
+        public long encodeNanos;
+        public boolean withinBudget;
+    }
+
+    private PooledBuffer buffer = new PooledBuffer(64 * 1024);
+    private PooledBuffer best = new PooledBuffer(64 * 1024);
+    private final Result result = new Result();
+
+    private static class PooledBuffer extends ByteArrayOutputStream {
+        PooledBuffer(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Encodes {@code source} under {@code policy}. The bytes stay in the encoder until the next
+     * call; copy them out with {@link #writeTo(OutputStream)}. The returned result is reused too.
+     */
+    public Result encode(Source source, EncodePolicy policy) throws IOException {
+        long start = System.nanoTime();
+        // The previous image is no longer needed, so both buffers can be dropped now
+        buffer = trimmed(buffer);
+        best = trimmed(best);
+        int low = policy.minQuality;
+        int high = policy.quality;
+        int quality = policy.quality;
+        int bestQuality = -1;
+        int lastTried = -1;
+        int attempts = 0;
+
+        while (attempts < MAX_ATTEMPTS && low <= high) {
+            buffer.reset();
+            source.compress(policy.format, quality, buffer);
+            lastTried = quality;
+            attempts++;
+
+            if (buffer.size() <= policy.targetBytes) {
+                bestQuality = quality;
+                swapBest();
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+            quality = (low + high) >>> 1;
+        }
+
+        if (bestQuality < 0) {
+            // Nothing fit the budget; send the smallest we are allowed to make
+            bestQuality = policy.minQuality;
+            if (lastTried == bestQuality) {
+                swapBest();
+            } else {
+                best.reset();
+                source.compress(policy.format, bestQuality, best);
+                attempts++;
+            }
+        }
+
+        result.quality = bestQuality;
+        result.size = best.size();
+        result.attempts = attempts;
+        result.encodeNanos = System.nanoTime() - start;
+        result.withinBudget = result.size <= policy.targetBytes;
+        // best still holds this image; it is trimmed at the start of the next call
+        buffer = trimmed(buffer);
+        return result;
+    }
+
+    /** Size of the last encoded image. */
+    public int size() {
+        return best.size();
+    }
+
+    /** Copies the last encoded image to {@code out} without an intermediate array. */
+    public void writeTo(OutputStream out) throws IOException {
+        best.writeTo(out);
+    }
+
+    /** Feeds the last encoded image into {@code digest}, e.g. for the prediction cache key. */
+    public void updateDigest(MessageDigest digest) {
+        digest.update(best.bytes(), 0, best.size());
+    }
+
+    private void swapBest() {
+        PooledBuffer tmp = best;
+        best = buffer;
+        buffer = tmp;
+    }
+
+    private static PooledBuffer trimmed(PooledBuffer pooled) {
+        return pooled.capacity() > MAX_RETAINED_CAPACITY ? new PooledBuffer(64 * 1024) : pooled;
+    }
+
+    /** Bytes held by the pooled buffers between calls. */
+    int getRetainedCapacity() {
+        return buffer.capacity() + best.capacity();
+    }
+}
@@ -0,0 +1,331 @@
+package com.android.fooddetectionapp;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes camera and gallery images off the UI thread.
+ *
+ * The file is read twice: once for its bounds and EXIF orientation, then decoded with an
+ * inSampleSize that keeps it just above the preview size. The upload bitmap is scaled from the
+ * preview, since the server only looks at a 224x224 resize anyway, and is encoded for upload
+ * under an {@link EncodePolicy}.
+ *
+ * Previews are kept in the {@link PreviewCache}, so the same image is only decoded once while it
+ * stays cached; the result's preview is acquired for the caller, who releases it once it is off
+ * screen. Decodes, scales and rotations draw into bitmaps from the {@link BitmapPool} and hand
+ * their intermediates back to it. Upload bitmaps are never pooled: classifiers and the history
+ * read them long after they are shown.
+ */
+public class ImageIngest {
+    private static final String TAG = "ImageIngest";
+
+    static final int PREVIEW_MAX_EDGE = 1280;
+    static final int UPLOAD_MAX_EDGE = 448;
+
+    private final ContentResolver contentResolver;
+    private final BitmapPool bitmapPool;
+    private final PreviewCache<Bitmap> previewCache;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Only used from the ingest thread
+    private final ImageEncoder encoder = new ImageEncoder();
+
+    public static class Result {
+        public final Bitmap preview;
+        public final Bitmap upload;
+
+        Result(Bitmap preview, Bitmap upload) {
+            this.preview = preview;
+            this.upload = upload;
+        }
+    }
+
+    public interface Callback {
+        void onImageLoaded(Result result);
+
+        void onImageFailed(Exception error);
+    }
+
+    public ImageIngest(ContentResolver contentResolver, BitmapPool bitmapPool, PreviewCache<Bitmap> previewCache) {
+        this.contentResolver = contentResolver;
+        this.bitmapPool = bitmapPool;
+        this.previewCache = previewCache;
+    }
+
+    /**
+     * Decodes {@code uri} in the background, or takes its preview from the cache; the callback
+     * runs on the main thread. The caller releases the preview to the {@link PreviewCache}.
+     */
+    public void load(Uri uri, Callback callback) {
+        executor.execute(() -> {
+            try {
+                Result result = decode(uri);
+                mainHandler.post(() -> callback.onImageLoaded(result));
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to decode " + uri, e);
+                mainHandler.post(() -> callback.onImageFailed(e));
+            }
+        });
+    }
+
+    /** Runs follow-up work (e.g. encoding the upload bitmap) on the ingest thread. */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Scales and encodes {@code bitmap} under {@code policy}. Must run on the ingest thread
+     * (inside {@link #execute}); the returned encoder holds the bytes until the next call.
+     */
+    public ImageEncoder encode(Bitmap bitmap, EncodePolicy policy) throws IOException {
+        return encode(encoder, bitmap, policy);
+    }
+
+    /** Same, into a caller-owned encoder, for threads other than the ingest thread. */
+    public static ImageEncoder encode(ImageEncoder encoder, Bitmap bitmap, EncodePolicy policy) throws IOException {
+        Bitmap scaled = scaleToMaxEdge(bitmap, policy.maxEdgePx);
+        ImageEncoder.Result result = encoder.encode((format, quality, out) ->
+                scaled.compress(toCompressFormat(format), quality, out), policy);
+        Log.d(TAG, "Encoded " + scaled.getWidth() + "x" + scaled.getHeight() + " with " + policy + ": "
+                + result.size + " bytes at q" + result.quality + " in " + result.attempts + " attempts, "
+                + result.encodeNanos / 1000000 + " ms");
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+        return encoder;
+    }
+
+    /** Perceptual hash of the image, see {@link PredictionCache#dHash(int[])}. */
+    public static long dHash(Bitmap bitmap) {
+        Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, 9, 8, true);
+        int[] pixels = new int[9 * 8];
+        thumbnail.getPixels(pixels, 0, 9, 0, 0, 9, 8);
+        if (thumbnail != bitmap) {
+            thumbnail.recycle();
+        }
+        return PredictionCache.dHash(pixels);
+    }
+
+    /** Hex SHA-256 of the encoder's last output. */
+    public static String sha256(ImageEncoder encoded) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            encoded.updateDigest(digest);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat toCompressFormat(EncodePolicy.Format format) {
+        if (format == EncodePolicy.Format.WEBP) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Decodes straight to the upload size, upright, without a preview; for batches, where no
+     * full-size preview is shown. Blocking and safe on any thread.
+     */
+    public Bitmap decodeUpload(Uri uri) throws IOException {
+        return decodeUpright(uri, UPLOAD_MAX_EDGE);
+    }
+
+    private Result decode(Uri uri) throws IOException {
+        String key = uri.toString();
+        Bitmap preview = previewCache.acquire(key);
+        if (preview == null) {
+            preview = decodeUpright(uri, PREVIEW_MAX_EDGE);
+            previewCache.putAcquired(key, preview);
+        }
+        Bitmap upload = scaleToMaxEdge(preview, UPLOAD_MAX_EDGE, bitmapPool);
+        if (upload == preview) {
+            // Small image: the preview may be pooled while the upload is still being read
+            upload = preview.copy(preview.getConfig(), false);
+        }
+        Log.d(TAG, "Preview " + preview.getWidth() + "x" + preview.getHeight()
+                + ", upload " + upload.getWidth() + "x" + upload.getHeight() + "; " + previewCache.getStats());
+        return new Result(preview, upload);
+    }
+
+    private Bitmap decodeUpright(Uri uri, int maxEdge) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = open(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + uri);
+        }
+
+        int orientation;
+        try (InputStream in = open(uri)) {
+            orientation = new ExifInterface(in).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, maxEdge);
+        options.inMutable = true;
+        // Sampled sizes round up at most
+        int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = bitmapPool.getForDecode(sampledWidth, sampledHeight, options.inPreferredConfig);
+        Bitmap decoded;
+        try {
+            decoded = decodeStream(uri, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder can't reuse that bitmap after all (e.g. the format's own config differs)
+            Log.d(TAG, "Could not decode into a pooled bitmap: " + e.getMessage());
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            decoded = decodeStream(uri, options);
+        }
+        if (decoded == null) {
+            bitmapPool.put(options.inBitmap);
+            throw new IOException("Failed to decode " + uri);
+        }
+
+        Bitmap scaled = scaleToMaxEdge(decoded, maxEdge, bitmapPool);
+        if (scaled != decoded) {
+            bitmapPool.put(decoded);
+        }
+        Log.d(TAG, "Decoded " + options.outWidth + "x" + options.outHeight + " with sample size "
+                + options.inSampleSize + " to max edge " + maxEdge
+                + (options.inBitmap != null ? " into a pooled bitmap" : ""));
+        return applyOrientation(scaled, orientation, bitmapPool);
+    }
+
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        try (InputStream in = open(uri)) {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        return in;
+    }
+
+    /** Largest power of two that keeps the longer edge at or above {@code maxEdge}. */
+    static int calculateInSampleSize(int width, int height, int maxEdge) {
+        int longEdge = Math.max(width, height);
+        int sampleSize = 1;
+        while (longEdge / (sampleSize * 2) >= maxEdge) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    static Bitmap scaleToMaxEdge(Bitmap bitmap, int maxEdge) {
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longEdge <= maxEdge) {
+            return bitmap;
+        }
+        float scale = (float) maxEdge / longEdge;
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+    }
+
+    /** Same, drawn into a pooled bitmap when one of the right size is free. */
+    static Bitmap scaleToMaxEdge(Bitmap bitmap, int maxEdge, BitmapPool pool) {
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longEdge <= maxEdge) {
+            return bitmap;
+        }
+        float scale = (float) maxEdge / longEdge;
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        return transform(bitmap, matrix, pool);
+    }
+
+    /**
+     * Draws {@code bitmap} through {@code matrix} into a pooled (or new) ARGB_8888 bitmap the
+     * size of the result, with filtering, like {@code Bitmap.createBitmap(.., matrix, true)}.
+     */
+    private static Bitmap transform(Bitmap bitmap, Matrix matrix, BitmapPool pool) {
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        int width = Math.max(1, Math.round(bounds.width()));
+        int height = Math.max(1, Math.round(bounds.height()));
+        Bitmap target = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (target == null) {
+            target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            target.eraseColor(0);
+        }
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        Canvas canvas = new Canvas(target);
+        canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
+        return target;
+    }
+
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation, BitmapPool pool) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            default:
+                return bitmap;
+        }
+        Bitmap rotated = transform(bitmap, matrix, pool);
+        pool.put(bitmap);
+        return rotated;
+    }
+}
@@ -0,0 +1,190 @@
+package com.android.fooddetectionapp;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Classifies a stream of frames with at most one request in flight. A frame that arrives while a
+ * request is pending waits in a single slot, and a newer frame replaces it; when the request
+ * completes, the waiting frame (always the newest) goes next. Results therefore lag the stream by
+ * at most one request, however slow the classifier is.
+ *
+ * Frames live in at most three recycled buffers (in flight, waiting, being filled by the source).
+ * A buffer is only handed out again once the request that read it has completed, so the
+ * {@link Processor}'s future must not complete before it is done with the frame.
+ */
+public class LiveFramePipeline<F, R> implements FrameSource.Sink<F> {
+    private static final String TAG = "LiveFramePipeline";
+
+    private static final int MAX_BUFFERS = 3;
+
+    public interface BufferFactory<F> {
+        F create();
+    }
+
+    public interface Processor<F, R> {
+        CompletableFuture<R> process(F frame);
+    }
+
+    public interface Listener<F, R> {
+        /**
+         * Called on the thread that completed the request, while {@code frame} still holds the
+         * frame it was for. Not called for requests that complete after {@link #stop()}.
+         */
+        void onResult(F frame, R result, Throwable error);
+    }
+
+    private final BufferFactory<F> bufferFactory;
+    private final Processor<F, R> processor;
+    private final Listener<F, R> listener;
+
+    // Guarded by this
+    private final ArrayDeque<F> freeBuffers = new ArrayDeque<>();
+    private int createdBuffers;
+    private F inFlight;
+    private F waiting;
+    private FrameSource<F> source;
+    // Bumped by stop(), so results of an earlier run are not delivered
+    private int generation;
+    private long submittedCount;
+    private long droppedCount;
+
+    public LiveFramePipeline(BufferFactory<F> bufferFactory, Processor<F, R> processor, Listener<F, R> listener) {
+        this.bufferFactory = bufferFactory;
+        this.processor = processor;
+        this.listener = listener;
+    }
+
+    public void start(FrameSource<F> frameSource) {
+        synchronized (this) {
+            if (source != null) {
+                throw new IllegalStateException("Already started");
+            }
+            source = frameSource;
+        }
+        frameSource.start(this);
+    }
+
+    /** Stops the source and drops the waiting frame; the request in flight is left to finish. */
+    public void stop() {
+        FrameSource<F> stopped;
+        synchronized (this) {
+            stopped = source;
+            if (stopped == null) {
+                return;
+            }
+            source = null;
+            generation++;
+            if (waiting != null) {
+                freeBuffers.add(waiting);
+                waiting = null;
+                droppedCount++;
+            }
+        }
+        stopped.stop();
+        Log.d(TAG, "Stopped: " + getStats());
+    }
+
+    @Override
+    public synchronized F obtainBuffer() {
+        if (source == null) {
+            return null;
+        }
+        F buffer = freeBuffers.poll();
+        if (buffer == null && createdBuffers < MAX_BUFFERS) {
+            buffer = bufferFactory.create();
+            createdBuffers++;
+        }
+        return buffer;
+    }
+
+    @Override
+    public synchronized void releaseBuffer(F buffer) {
+        freeBuffers.add(buffer);
+    }
+
+    @Override
+    public void onFrame(F frame) {
+        int submittedGeneration;
+        synchronized (this) {
+            if (source == null) {
+                freeBuffers.add(frame);
+                return;
+            }
+            if (inFlight != null) {
+                if (waiting != null) {
+                    freeBuffers.add(waiting);
+                    droppedCount++;
+                }
+                waiting = frame;
+                return;
+            }
+            inFlight = frame;
+            submittedCount++;
+            submittedGeneration = generation;
+        }
+        process(frame, submittedGeneration);
+    }
+
+    private void process(F frame, int frameGeneration) {
+        CompletableFuture<R> result;
+        try {
+            result = processor.process(frame);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((value, error) -> onProcessed(frame, frameGeneration, value, error));
+    }
+
+    private void onProcessed(F frame, int frameGeneration, R result, Throwable error) {
+        boolean current;
+        synchronized (this) {
+            current = frameGeneration == generation;
+        }
+        if (current) {
+            try {
+                listener.onResult(frame, result, error);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Result listener failed", e);
+            }
+        }
+
+        F next;
+        int nextGeneration;
+        synchronized (this) {
+            freeBuffers.add(frame);
+            next = waiting;
+            waiting = null;
+            inFlight = next;
+            nextGeneration = generation;
+            if (next != null) {
+                submittedCount++;
+            }
+        }
+        if (next != null) {
+            process(next, nextGeneration);
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return source != null;
+    }
+
+    /** Frames sent to the processor so far. */
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /** Frames replaced by a newer one before they could be sent. */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized String getStats() {
+        return submittedCount + " frames classified, " + droppedCount + " dropped, "
+                + createdBuffers + " buffers";
+    }
+}
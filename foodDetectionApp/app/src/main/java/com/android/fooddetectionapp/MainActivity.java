@@ -2,12 +2,14 @@ package com.android.fooddetectionapp;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.RectF;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -18,26 +20,29 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.fooddetectionapp.databinding.ActivityMainBinding;
+import com.android.service.CompactPredictions;
+import com.android.service.FeedbackBatcher;
+import com.android.service.ImageTransform;
+import com.android.service.LatencyTracker;
+import com.android.service.MessageCodec;
 import com.android.service.MqttClient;
 
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -45,6 +50,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -59,7 +67,13 @@ public class MainActivity extends AppCompatActivity {
     private Button confirmButton;
     private DrawBoundingBoxView drawBoundingBoxView;
 
-    private LinearLayout predictionContainer;
+    private RecyclerView predictionList;
+    private PredictionListAdapter predictionAdapter;
+    // Rows shown before "Show more"; the server sends every class above 1% confidence
+    private static final int TOP_K_PREDICTIONS = 5;
+
+    // Debug builds only: stage breakdown of the last request, long-press to dump histograms
+    private TextView latencyOverlay;
 
     private ActivityResultLauncher<Intent> galleryLauncher;
 
@@ -67,10 +81,112 @@ public class MainActivity extends AppCompatActivity {
 
     private float[] boundingBoxCoordinates;
 
+    // Normalized image <-> capturedImage pixels; shared with the box overlay
+    private final ImageTransform imageTransform = new ImageTransform();
+
+    // Server image id of the result on screen; -1 for an on-device result
     private int imageId;
 
+    // Upload-sized copy of the image on screen, sent to the server when confirming an on-device result
+    private Bitmap lastUpload;
+
+    // Request whose result belongs to the image currently on screen
+    private String currentRequestId;
+
     private MqttClient mqttClient;
 
+    private ImageIngest imageIngest;
+
+    private FeedbackBatcher feedbackBatcher;
+
+    private PredictionCache predictionCache;
+
+    private ClassifierRouter classifier;
+
+    private RemoteClassifier remoteClassifier;
+
+    private PredictionHistory history;
+
+    private PreviewCache<Bitmap> previewCache;
+    // The preview on screen while it is acquired from the preview cache, and its key
+    private Bitmap shownPreview;
+    private String shownPreviewKey;
+    // History entry of the image on screen: its request id, or the batch's key and plate index
+    private String historyKey;
+
+    // Multi-select from the gallery: one result per plate, confirmed one plate at a time
+    private static final int MAX_BATCH_SIZE = 10;
+    private BatchSubmission batchSubmission;
+    private Bitmap[] batchUploads;
+    private CompactPredictions[] batchPredictions;
+    private Throwable[] batchErrors;
+    private int batchIndex;
+    private String batchKey;
+    // Detached in onDestroy; the batch itself lives on in BatchSubmission for the next activity
+    private final BatchSubmission.Listener batchListener = new BatchSubmission.Listener() {
+        @Override
+        public void onImageResult(int index, Bitmap upload, CompactPredictions prediction, Throwable error) {
+            batchUploads[index] = upload;
+            batchPredictions[index] = prediction;
+            batchErrors[index] = error;
+            if (index == batchIndex) {
+                showBatchItem(index);
+            }
+        }
+
+        @Override
+        public void onProgress(int sent, int completed, int total) {
+            showBatchProgress(sent, completed, total);
+        }
+
+        @Override
+        public void onBatchComplete(int succeeded, int failed) {
+            Log.d("mainActivity", "Batch done: " + succeeded + " predicted, " + failed + " failed");
+        }
+    };
+
+    // Live mode: preview frames classified as they come, one request at a time
+    private static final int LIVE_FRAME_EDGE = 224;  // the model's input size
+    private PreviewView livePreview;
+    private LiveFramePipeline<Bitmap, CompactPredictions> livePipeline;
+    // The latest live result and a copy of its frame, written on the classifier's thread
+    private final Object liveResultLock = new Object();
+    private final Canvas liveCanvas = new Canvas();
+    private Bitmap liveFrame;
+    private CompactPredictions livePrediction;
+
+    private static final String STATE_REQUEST_ID = "currentRequestId";
+    private static final String STATE_IMAGE_ID = "imageId";
+    private static final String STATE_HISTORY_KEY = "historyKey";
+    private static final String STATE_PREVIEW_KEY = "previewKey";
+    private static final String STATE_BATCH_KEY = "batchKey";
+    private static final String STATE_BATCH_INDEX = "batchIndex";
+
+    // Last state and result shown, so replays after onStart don't repeat them
+    private MqttClient.ConnectionState shownConnectionState;
+    private String shownRequestId;
+    private CompactPredictions shownPrediction;
+
+    private final MqttClient.ConnectionListener connectionListener = (state, error) -> runOnUiThread(() -> {
+        if (state == shownConnectionState) {
+            return;
+        }
+        shownConnectionState = state;
+        if (state == MqttClient.ConnectionState.CONNECTED) {
+            binding.fabCamera.setEnabled(true);
+            binding.fabGallery.setEnabled(true);
+            descriptionText.append("\nServer(MQTT) connected.");
+        } else if (state == MqttClient.ConnectionState.CONNECTING && error != null) {
+            descriptionText.setText("MQTT connection lost, reconnecting...");
+        } else if (error != null) {
+            descriptionText.setText("MQTT connection failed: " + error);
+        }
+    });
+
+    // Server replies also arrive here, so a result reaches the activity recreated after a rotation
+    private final MqttClient.PredictionListener predictionListener = (requestId, prediction, error) ->
+            runOnUiThread(() -> showPrediction(requestId, prediction, error));
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -88,7 +204,38 @@ public class MainActivity extends AppCompatActivity {
         alternativeInput = findViewById(R.id.alternativeInput);
         confirmButton = findViewById(R.id.confirmButton);
 
-        predictionContainer = findViewById(R.id.predictionContainer);
+        predictionList = findViewById(R.id.predictionList);
+        predictionAdapter = new PredictionListAdapter(TOP_K_PREDICTIONS);
+        predictionAdapter.setOnPredictionClickListener(this::onPredictionClicked);
+        predictionList.setLayoutManager(new LinearLayoutManager(this));
+        predictionList.setHasFixedSize(true);
+        predictionList.setAdapter(predictionAdapter);
+        latencyOverlay = findViewById(R.id.latencyOverlay);
+        livePreview = findViewById(R.id.livePreview);
+
+        // Process-scoped; already connected unless this is the very first launch
+        FoodDetectionApp app = FoodDetectionApp.get(this);
+        mqttClient = app.getMqttClient();
+        feedbackBatcher = app.getFeedbackBatcher();
+        predictionCache = app.getPredictionCache();
+        imageIngest = app.getImageIngest();
+        classifier = app.getClassifier();
+        remoteClassifier = app.getRemoteClassifier();
+        batchSubmission = app.getBatchSubmission();
+        history = app.getHistory();
+        previewCache = app.getPreviewCache();
+
+        if (savedInstanceState != null) {
+            currentRequestId = savedInstanceState.getString(STATE_REQUEST_ID);
+            imageId = savedInstanceState.getInt(STATE_IMAGE_ID);
+            historyKey = savedInstanceState.getString(STATE_HISTORY_KEY);
+            // Still cached after a rotation most of the time, so no decode needed
+            String previewKey = savedInstanceState.getString(STATE_PREVIEW_KEY);
+            Bitmap preview = previewKey != null ? previewCache.acquire(previewKey) : null;
+            if (preview != null) {
+                showImage(preview, previewKey);
+            }
+        }
         registerActivityLauncher();
         // Check Camera Permissions
         checkPermissions();
@@ -96,65 +243,94 @@ public class MainActivity extends AppCompatActivity {
         // FAB Click Listener to Open Camera
         binding.fabCamera.setOnClickListener(view -> openCamera());
         binding.fabGallery.setOnClickListener(view -> openGallery());
+        binding.fabLive.setOnClickListener(view -> {
+            if (livePipeline != null) {
+                stopLiveMode(true);
+            } else {
+                startLiveMode();
+            }
+        });
 
         // Set submit button action
         confirmButton.setOnClickListener(v -> {
             sendResultToServer();
         });
-
-        drawBoundingBoxView = findViewById(R.id.drawBoundingBoxView);
-
-        mqttClient = new MqttClient(this, new MqttCallback() {
-            @Override
-            public void connectionLost(Throwable cause) {
-                runOnUiThread(() -> descriptionText.setText("MQTT connection lost"));
+        descriptionText.setOnClickListener(v -> {
+            if (batchUploads != null) {
+                showBatchItem((batchIndex + 1) % batchUploads.length);
             }
+        });
 
-            @Override
-            public void messageArrived(String topic, MqttMessage message) {
-                String payload = new String(message.getPayload());
-                Log.d("Payload", payload);
-                try {
-                    JSONObject json = new JSONObject(payload);
-                    String receivedClientId = json.optString("client_id");
-                    String prediction = json.optString("prediction");
-
-                    // Compare to this client's own ID
-                    String myClientId = mqttClient.getClientId();
-
-                    if (receivedClientId.equals(myClientId)) {
-                        runOnUiThread(() -> handlePredictionResponse(prediction));
-                    } else {
-                        Log.d("mainActivity", "Ignored prediction for client: " + receivedClientId);
-                    }
+        drawBoundingBoxView = findViewById(R.id.drawBoundingBoxView);
+        drawBoundingBoxView.setOnBoxSelectedListener(this::onBoxSelected);
+        drawBoundingBoxView.setImageTransform(imageTransform);
+        capturedImage.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
+                updateImageTransform());
+
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            latencyOverlay.setVisibility(View.VISIBLE);
+            latencyOverlay.setOnLongClickListener(v -> {
+                LatencyTracker tracker = mqttClient.getLatencyTracker();
+                tracker.dumpToLog();
+                Log.d("Memory", "Bitmap pool: " + app.getBitmapPool().getStats()
+                        + "; preview cache: " + previewCache.getStats());
+                imageIngest.execute(() -> tracker.dumpToFile(new File(getFilesDir(), "latency.txt")));
+                return true;
+            });
+            showLatency();
+        }
 
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    Log.e("mainActivity", "Failed to parse prediction JSON: " + payload);
-                }
-            }
+        if (savedInstanceState != null) {
+            restoreBatch(savedInstanceState.getString(STATE_BATCH_KEY), savedInstanceState.getInt(STATE_BATCH_INDEX));
+        }
+    }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mqttClient.addConnectionListener(connectionListener);
+        mqttClient.addPredictionListener(predictionListener);
+    }
 
-            @Override
-            public void deliveryComplete(org.eclipse.paho.client.mqttv3.IMqttDeliveryToken token) {
-            }
-        }, new MqttClient.MqttConnectionListener() {
-            @Override
-            public void onConnected() {
-                runOnUiThread(() -> {
-                    binding.fabCamera.setEnabled(true);
-                    binding.fabGallery.setEnabled(true);
-                    descriptionText.append("\nServer(MQTT) connected.");
-                });
-            }
+    @Override
+    protected void onStop() {
+        super.onStop();
+        stopLiveMode(true);
+        mqttClient.removeConnectionListener(connectionListener);
+        mqttClient.removePredictionListener(predictionListener);
+    }
 
-            @Override
-            public void onConnectionFailed(String error) {
-                runOnUiThread(() -> descriptionText.setText("MQTT connection failed: " + error));
-            }
-        });
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_REQUEST_ID, currentRequestId);
+        outState.putInt(STATE_IMAGE_ID, imageId);
+        outState.putString(STATE_HISTORY_KEY, historyKey);
+        outState.putString(STATE_PREVIEW_KEY, shownPreviewKey);
+        if (batchUploads != null) {
+            outState.putString(STATE_BATCH_KEY, batchKey);
+            outState.putInt(STATE_BATCH_INDEX, batchIndex);
+        }
+    }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            endBatch();
+        } else {
+            batchSubmission.detach(batchListener);
+        }
+        showImage(null, null);
+    }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        imageIngest.execute(predictionCache::save);
+        if (feedbackBatcher != null) {
+            feedbackBatcher.flush();
+        }
     }
 
     private void registerActivityLauncher() {
@@ -162,22 +338,20 @@ public class MainActivity extends AppCompatActivity {
                 new ActivityResultContracts.StartActivityForResult(),
                 result -> {
                     if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
-                        Uri selectedImageUri = result.getData().getData();
+                        List<Uri> selectedUris = getSelectedUris(result.getData());
+                        if (selectedUris.size() > 1) {
+                            startBatch(selectedUris);
+                            return;
+                        }
+                        Uri selectedImageUri = selectedUris.isEmpty() ? null : selectedUris.get(0);
                         if (selectedImageUri != null) {
-                            capturedImage.setImageURI(selectedImageUri);
-                            capturedImage.setVisibility(View.VISIBLE);
                             descriptionText.setText("Selected Image from Gallery");
                             descriptionText.setVisibility(View.VISIBLE);
 
                             saveGalleryImageUriToPreference(selectedImageUri.toString());
                             latestPhotoPath = selectedImageUri.toString();
 
-                            try {
-                                Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), selectedImageUri);
-                                sendImageForPrediction(bitmap);
-                            } catch (IOException e) {
-                                descriptionText.setText("Error loading image");
-                            }
+                            loadAndPredict(selectedImageUri);
                         }
                     }
                 }
@@ -229,13 +403,31 @@ public class MainActivity extends AppCompatActivity {
 
 
     private void openGallery() {
-        Intent intent = new Intent(Intent.ACTION_PICK);
-        intent.setDataAndType(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, "image/*");
+        stopLiveMode(false);
+        // ACTION_PICK only returns one image; GET_CONTENT lets the user select a whole meal
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         galleryLauncher.launch(intent);
     }
 
+    private static List<Uri> getSelectedUris(Intent data) {
+        List<Uri> uris = new ArrayList<>();
+        ClipData clipData = data.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                uris.add(clipData.getItemAt(i).getUri());
+            }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
+        }
+        return uris;
+    }
+
 
     private void openCamera() {
+        stopLiveMode(false);
 
         Intent cameraIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);  // ✅ Use the correct intent
 
@@ -296,110 +488,403 @@ public class MainActivity extends AppCompatActivity {
 
         if (galleryImageUri != null && galleryImageUri.toString().equals(latestPhotoPath)) {
             // Load gallery image
-            capturedImage.setImageURI(galleryImageUri);
-            capturedImage.setVisibility(View.VISIBLE);
-            descriptionText.setText("Sending Image for Prediction...");
-            descriptionText.setVisibility(View.VISIBLE);
-
-            // Convert URI to Bitmap
-            try {
-                Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), galleryImageUri);
-                sendImageForPrediction(bitmap);
-            } catch (IOException e) {
-                descriptionText.setText("Error loading image");
-            }
+            loadAndPredict(galleryImageUri);
         } else if (imagePath != null && imagePath.equals(latestPhotoPath)) {
             // Load camera image
             File imgFile = new File(imagePath);
             if (imgFile.exists()) {
-                Bitmap bitmap = BitmapFactory.decodeFile(imagePath);
-                capturedImage.setImageBitmap(bitmap);
+                loadAndPredict(Uri.fromFile(imgFile));
+            } else {
+                Log.d("DEBUG", "Camera image file not found: " + imagePath);
+            }
+        } else {
+            Log.d("DEBUG", "No image found in SharedPreferences.");
+        }
+    }
+
+
+    // Decodes in the background, then shows the preview and uploads the small copy
+    private void loadAndPredict(Uri imageUri) {
+        endBatch();
+        String requestId = mqttClient.nextRequestId();
+        currentRequestId = requestId;
+        historyKey = requestId;
+        LatencyTracker tracker = mqttClient.getLatencyTracker();
+        tracker.begin(requestId);
+
+        imageIngest.load(imageUri, new ImageIngest.Callback() {
+            @Override
+            public void onImageLoaded(ImageIngest.Result result) {
+                tracker.mark(requestId, LatencyTracker.Stage.DECODED);
+                if (isDestroyed()) {
+                    // Recreated meanwhile: nowhere to show it, but the reply reaches the new activity
+                    previewCache.release(result.preview);
+                    sendImageForPrediction(result.upload, requestId);
+                    return;
+                }
+                showImage(result.preview, imageUri.toString());
                 capturedImage.setVisibility(View.VISIBLE);
+                drawBoundingBoxView.clearPredictions();
+                drawBoundingBoxView.resetBoundingBox();
+                capturedImage.post(MainActivity.this::updateImageTransform);
                 descriptionText.setVisibility(View.VISIBLE);
                 descriptionText.setText("Sending Image for Prediction...");
 
-                // Send Image for Prediction
-                sendImageForPrediction(bitmap);
-            } else {
-                Log.d("DEBUG", "Camera image file not found: " + imagePath);
+                sendImageForPrediction(result.upload, requestId);
+            }
+
+            @Override
+            public void onImageFailed(Exception error) {
+                tracker.discard(requestId);
+                descriptionText.setText("Error loading image");
             }
+        });
+    }
+
+    private void sendImageForPrediction(Bitmap bitmap, String requestId) {
+        lastUpload = bitmap;
+        ClassifierRouter.Route route = classifier.chooseRoute();
+        if (route == ClassifierRouter.Route.REMOTE_ONLY && !mqttClient.isConnected()) {
+            descriptionText.setText("Offline: image queued, waiting for connection...");
+        } else if (route == ClassifierRouter.Route.REMOTE_ONLY) {
+            descriptionText.setText("Image sent over MQTT, waiting for predictions...");
         } else {
-            Log.d("DEBUG", "No image found in SharedPreferences.");
+            descriptionText.setText("Classifying on device...");
         }
+
+        classifier.classify(bitmap, requestId).whenComplete((prediction, error) -> runOnUiThread(() -> {
+            if (!isDestroyed()) {
+                showPrediction(requestId, prediction, error);
+            }
+        }));
     }
 
+    // Results for images no longer on screen are ignored
+    private void showPrediction(String requestId, CompactPredictions prediction, Throwable error) {
+        if (!requestId.equals(currentRequestId)) {
+            Log.d("mainActivity", "Ignored result for superseded request " + requestId);
+            return;
+        }
+        // Same reply via the listener and the future; a different one (the server's answer to the
+        // full image, or a late reply after an on-device result) replaces it
+        if (requestId.equals(shownRequestId) && (error != null || prediction == shownPrediction)) {
+            return;
+        }
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof TimeoutException) {
+            descriptionText.setText("No reply from server. Please try again.");
+        } else if (error != null) {
+            mqttClient.getLatencyTracker().discard(requestId);
+            descriptionText.setText("Prediction failed: " + error.getMessage());
+        } else {
+            // A late reply still replaces the timeout message
+            shownRequestId = requestId;
+            shownPrediction = prediction;
+            handlePredictionResponse(prediction);
+            onResultRendered(requestId);
+        }
+    }
 
-    private void sendImageForPrediction(Bitmap bitmap) {
-        if (mqttClient == null || !mqttClient.isConnected()) {
-            runOnUiThread(() -> descriptionText.setText("MQTT not connected yet. Please wait..."));
+    /** Sends every selected plate at once; each result is kept and shown when its plate is. */
+    private void startBatch(List<Uri> uris) {
+        if (uris.size() > MAX_BATCH_SIZE) {
+            uris = uris.subList(0, MAX_BATCH_SIZE);
+        }
+        int count = uris.size();
+        batchUploads = new Bitmap[count];
+        batchPredictions = new CompactPredictions[count];
+        batchErrors = new Throwable[count];
+        batchIndex = 0;
+        batchKey = "batch-" + mqttClient.nextRequestId();
+        historyKey = null;
+        // Replies still on their way for a single image no longer belong on screen
+        currentRequestId = null;
+
+        showImage(null, null);
+        predictionAdapter.clear();
+        drawBoundingBoxView.clearPredictions();
+        drawBoundingBoxView.resetBoundingBox();
+        descriptionText.setVisibility(View.VISIBLE);
+        descriptionText.setText("Sending " + count + " images for prediction...");
+        showBatchProgress(0, 0, count);
+
+        batchSubmission.submit(uris, batchListener);
+    }
+
+    /** After a rotation: picks up the batch the previous activity started, at the same plate. */
+    private void restoreBatch(String key, int index) {
+        int count = batchSubmission.getBatchSize();
+        if (key == null || count == 0) {
             return;
         }
+        batchUploads = new Bitmap[count];
+        batchPredictions = new CompactPredictions[count];
+        batchErrors = new Throwable[count];
+        batchIndex = Math.min(index, count - 1);
+        batchKey = key;
+        batchSubmission.attach(batchListener);
+        showBatchItem(batchIndex);
+    }
 
-        // Convert Bitmap to ByteArray
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 50, byteArrayOutputStream);
-        byte[] imageBytes = byteArrayOutputStream.toByteArray();
+    /** Classifies the camera preview continuously; the overlay follows the newest result. */
+    private void startLiveMode() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            checkPermissions();
+            return;
+        }
+        endBatch();
+        // Replies still on their way for a photo no longer belong on screen
+        currentRequestId = null;
+        historyKey = null;
+        synchronized (liveResultLock) {
+            liveFrame = null;
+            livePrediction = null;
+        }
 
-        // Publish image over MQTT
-        mqttClient.publishImage(imageBytes);
+        showImage(null, null);
+        capturedImage.setVisibility(View.INVISIBLE);
+        livePreview.setVisibility(View.VISIBLE);
+        predictionAdapter.clear();
+        drawBoundingBoxView.clearPredictions();
+        drawBoundingBoxView.resetBoundingBox();
+        alternativeInput.setVisibility(View.GONE);
+        confirmButton.setVisibility(View.GONE);
+        descriptionText.setVisibility(View.VISIBLE);
+        descriptionText.setText("Live: point the camera at the food, tap the button again to keep the result");
+        binding.fabLive.setImageResource(android.R.drawable.ic_media_pause);
+
+        livePipeline = new LiveFramePipeline<>(
+                () -> Bitmap.createBitmap(LIVE_FRAME_EDGE, LIVE_FRAME_EDGE, Bitmap.Config.ARGB_8888),
+                this::classifyLiveFrame, this::onLiveResult);
+        livePipeline.start(new CameraFrameSource(this, this, livePreview, LIVE_FRAME_EDGE));
+    }
 
-        // Optionally show status on UI
-        runOnUiThread(() -> descriptionText.setText("Image sent over MQTT, waiting for predictions..."));
+    private CompletableFuture<CompactPredictions> classifyLiveFrame(Bitmap frame) {
+        return classifier.classifyLive(frame, mqttClient.nextRequestId());
     }
 
-    private void handlePredictionResponse(String response) {
-        try {
-            JSONObject jsonResponse = new JSONObject(response);
-            Log.d("mainActivity", jsonResponse.toString());
-
-            if (jsonResponse.has("predictions")) {
-                predictionContainer.removeAllViews();
-                JSONArray predictions = jsonResponse.getJSONArray("predictions");
-
-                if (predictions.length() > 0) {
-                    for (int i = 0; i < predictions.length(); i++) {
-                        JSONObject prediction = predictions.getJSONObject(i);
-                        String label = prediction.getString("predicted_label");
-                        double confidence = prediction.getDouble("confidence");
-                        imageId = prediction.getInt("img_id");
-
-                        TextView predictedLabelView = new TextView(MainActivity.this);
-                        predictedLabelView.setText(label + " (" + String.format("%.2f", confidence * 100) + "%)");
-                        predictionContainer.addView(predictedLabelView);
-                    }
-                    alternativeInput.setVisibility(View.VISIBLE);
-                    confirmButton.setVisibility(View.VISIBLE);
-                    descriptionText.setText("Prediction Result");
-                }else {
-                    // Handle no predictions found
-                    descriptionText.setText("No predictions found. :(");
-                    alternativeInput.setVisibility(View.VISIBLE);
-                    confirmButton.setVisibility(View.VISIBLE);
-                }
+    // On the classifier's thread, while the pipeline still holds the frame
+    private void onLiveResult(Bitmap frame, CompactPredictions prediction, Throwable error) {
+        if (error != null) {
+            Log.d("mainActivity", "Live frame not classified: " + error);
+            return;
+        }
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        synchronized (liveResultLock) {
+            if (liveFrame == null || liveFrame.getWidth() != width || liveFrame.getHeight() != height) {
+                liveFrame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            liveCanvas.setBitmap(liveFrame);
+            liveCanvas.drawBitmap(frame, 0, 0, null);
+            liveCanvas.setBitmap(null);
+            livePrediction = prediction;
+        }
+        runOnUiThread(() -> showLivePrediction(prediction, width, height));
+    }
 
+    private void showLivePrediction(CompactPredictions prediction, int frameWidth, int frameHeight) {
+        if (livePipeline == null || isDestroyed() || !prediction.hasPredictionList()) {
+            return;
+        }
+        // Frames are upright and share the preview's aspect ratio; PreviewView fills its bounds
+        imageTransform.set(frameWidth, frameHeight, 0, ImageTransform.ScaleType.CENTER_CROP,
+                livePreview.getWidth(), livePreview.getHeight(),
+                livePreview.getPaddingLeft(), livePreview.getPaddingTop(),
+                livePreview.getPaddingRight(), livePreview.getPaddingBottom());
+        drawBoundingBoxView.setImageTransform(imageTransform);
+        predictionAdapter.submit(prediction);
+        drawBoundingBoxView.setPredictions(prediction, TOP_K_PREDICTIONS);
+    }
 
-            } else if (jsonResponse.has("status")) {
-                String status = jsonResponse.getString("status");
-                if ("success".equals(status)) {
-                    descriptionText.setText("[Server ]Confirmed label successfully saved!");
-                } else {
-                    descriptionText.setText("Received status: " + status);
-                }
-            } else {
-                descriptionText.setText("Unknown response received.");
+    /**
+     * Leaves live mode. With {@code keepResult}, the last result stays on screen with its frame,
+     * and can be confirmed and is kept in the history like a photo's.
+     */
+    private void stopLiveMode(boolean keepResult) {
+        if (livePipeline == null) {
+            return;
+        }
+        livePipeline.stop();
+        livePipeline = null;
+        livePreview.setVisibility(View.GONE);
+        capturedImage.setVisibility(View.VISIBLE);
+        binding.fabLive.setImageResource(android.R.drawable.ic_media_play);
+
+        Bitmap frame;
+        CompactPredictions prediction;
+        synchronized (liveResultLock) {
+            frame = liveFrame;
+            prediction = livePrediction;
+            // Ours now; a result still being delivered copies into a new one
+            liveFrame = null;
+            livePrediction = null;
+        }
+        predictionAdapter.clear();
+        drawBoundingBoxView.clearPredictions();
+        if (!keepResult || prediction == null) {
+            descriptionText.setText("Take photo or choose photo from gallery");
+            return;
+        }
+        showImage(frame, null);
+        capturedImage.post(this::updateImageTransform);
+        lastUpload = frame;
+        historyKey = "live-" + mqttClient.nextRequestId();
+        alternativeInput.setText("");
+        handlePredictionResponse(prediction);
+    }
+
+    private void showBatchProgress(int sent, int completed, int total) {
+        binding.toolbar.setSubtitle(completed == total
+                ? total + " plates analysed"
+                : "Analysing plates: " + completed + "/" + total + " done, " + sent + " sent");
+    }
+
+    private void showBatchItem(int index) {
+        batchIndex = index;
+        int count = batchUploads.length;
+        String plate = "Plate " + (index + 1) + " of " + count;
+        Bitmap upload = batchUploads[index];
+        if (upload == null) {
+            descriptionText.setText(plate + ": still analysing...");
+            return;
+        }
+
+        showImage(upload, null);
+        capturedImage.setVisibility(View.VISIBLE);
+        drawBoundingBoxView.clearPredictions();
+        drawBoundingBoxView.resetBoundingBox();
+        capturedImage.post(this::updateImageTransform);
+        lastUpload = upload;
+        historyKey = batchKey + "-" + index;
+        alternativeInput.setText("");
+
+        if (batchPredictions[index] != null) {
+            handlePredictionResponse(batchPredictions[index]);
+            descriptionText.setText(plate + ": tap the correct labels and send. Tap here for the next plate.");
+        } else {
+            predictionAdapter.clear();
+            imageId = -1;
+            Throwable error = batchErrors[index];
+            descriptionText.setText(plate + " failed: " + (error != null ? error.getMessage() : "unknown error")
+                    + "\nType a label below, or tap here for the next plate.");
+            alternativeInput.setVisibility(View.VISIBLE);
+            confirmButton.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /** After a plate is confirmed: on to the next one, until every plate has been shown. */
+    private void showNextBatchItem() {
+        if (batchUploads == null) {
+            return;
+        }
+        if (batchIndex + 1 < batchUploads.length) {
+            showBatchItem(batchIndex + 1);
+        } else {
+            descriptionText.append("\nAll " + batchUploads.length + " plates done.");
+            endBatch();
+        }
+    }
+
+    private void endBatch() {
+        if (batchUploads == null) {
+            return;
+        }
+        batchSubmission.cancel();
+        batchUploads = null;
+        batchPredictions = null;
+        batchErrors = null;
+        binding.toolbar.setSubtitle(null);
+    }
+
+    private void onResultRendered(String requestId) {
+        LatencyTracker tracker = mqttClient.getLatencyTracker();
+        tracker.mark(requestId, LatencyTracker.Stage.RENDERED);
+        LatencyTracker.Trace trace = tracker.getLastTrace();
+        if (trace != null && trace.traceId.equals(requestId)) {
+            Log.d("Latency", trace.format());
+        }
+        showLatency();
+    }
+
+    private void showLatency() {
+        if (latencyOverlay.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        LatencyTracker.Trace trace = mqttClient.getLatencyTracker().getLastTrace();
+        latencyOverlay.setText(trace != null ? trace.format() : "No request traced yet");
+    }
+
+    private void handlePredictionResponse(CompactPredictions result) {
+        if (result.json != null) {
+            Log.d("mainActivity", result.json);
+        }
+
+        if (result.hasPredictionList()) {
+            predictionAdapter.submit(result);
+            drawBoundingBoxView.setPredictions(result, TOP_K_PREDICTIONS);
+            imageId = result.imageId();
+            if (historyKey != null) {
+                history.record(historyKey, result, lastUpload);
             }
 
-        } catch (JSONException e) {
-            descriptionText.setText("Error parsing MQTT response.");
-            e.printStackTrace();
+            if (result.count > 0) {
+                alternativeInput.setVisibility(View.VISIBLE);
+                confirmButton.setVisibility(View.VISIBLE);
+                descriptionText.setText("Prediction Result");
+            }else {
+                // Handle no predictions found
+                descriptionText.setText("No predictions found. :(");
+                alternativeInput.setVisibility(View.VISIBLE);
+                confirmButton.setVisibility(View.VISIBLE);
+            }
+
+
+        } else if ("success".equals(result.status)) {
+            descriptionText.setText("[Server ]Confirmed label successfully saved!");
+        } else if (result.status != null) {
+            descriptionText.setText("Received status: " + result.status);
+        } else {
+            descriptionText.setText("Unknown response received.");
         }
     }
 
 
+    private void onPredictionClicked(int index, boolean selected) {
+        drawBoundingBoxView.setBoxSelected(index, selected);
+        showSelectionCount();
+    }
+
+    private void onBoxSelected(int index, boolean selected) {
+        predictionAdapter.setSelected(index, selected);
+        showSelectionCount();
+    }
+
+    private void showSelectionCount() {
+        int count = predictionAdapter.getSelectedCount();
+        descriptionText.setText(count == 0
+                ? "Tap the correct labels, or type one below"
+                : count + " label(s) selected, tap send to confirm");
+    }
+
     private void sendResultToServer() {
         List<String> selectedLabels = new ArrayList<>();
         List<float[]> boundingBoxes = new ArrayList<>();
 
+        // Predicted labels the user tapped, with the box the server found for each
+        CompactPredictions predictions = predictionAdapter.getPredictions();
+        for (int i = 0; i < predictions.count; i++) {
+            if (predictionAdapter.isSelected(i)) {
+                selectedLabels.add(predictions.labels[i]);
+                // As drawn, including the user's corrections
+                float[] box = new float[4];
+                drawBoundingBoxView.getBox(i, box);
+                boundingBoxes.add(box);
+            }
+        }
+
         String manualInput = alternativeInput.getText().toString().trim();
         if (!manualInput.isEmpty()) {
             selectedLabels.add(manualInput);
@@ -414,48 +899,34 @@ public class MainActivity extends AppCompatActivity {
             try {
                 JSONArray labelsArray = new JSONArray();
                 for (int i = 0; i < selectedLabels.size(); i++) {
-                    JSONObject labelObject = new JSONObject();
-                    labelObject.put("label", selectedLabels.get(i));
-
-                    JSONArray bboxArray = new JSONArray();
-                    if (i < boundingBoxes.size() && boundingBoxes.get(i) != null) {
-                        for (float coord : boundingBoxes.get(i)) {
-                            bboxArray.put(coord);
-                        }
-                    } else {
-                        bboxArray.put(0).put(0).put(0).put(0);
-                    }
-                    labelObject.put("bounding_box", bboxArray);
-
-                    labelsArray.put(labelObject);
+                    float[] box = i < boundingBoxes.size() ? boundingBoxes.get(i) : null;
+                    labelsArray.put(MessageCodec.encodeConfirmedLabel(selectedLabels.get(i), box));
                 }
 
-                JSONObject payload = new JSONObject();
-                payload.put("img_id", imageId);
-                payload.put("confirmed_labels", labelsArray);
-
                 final List<String> finalSelectedLabels = new ArrayList<>(selectedLabels);
+                if (historyKey != null) {
+                    history.confirm(historyKey, imageId, finalSelectedLabels, lastUpload);
+                }
 
-                if (mqttClient != null && mqttClient.isConnected()) {
-                    mqttClient.publishJson("project/confirmed_labels", payload.toString());
+                if (feedbackBatcher != null) {
+                    if (imageId >= 0) {
+                        // Sent together with other confirmations; queued on disk when offline
+                        feedbackBatcher.add(imageId, labelsArray);
+                    } else if (lastUpload != null) {
+                        uploadForFeedback(lastUpload, labelsArray, historyKey, finalSelectedLabels);
+                    }
                     runOnUiThread(() -> {
-                        descriptionText.setText("User feedback sent over MQTT.");
-                        predictionContainer.removeAllViews();
-
-                        TextView userFeedback = new TextView(MainActivity.this);
-                        userFeedback.setText("User verified: " + String.join(", ", finalSelectedLabels));
-                        userFeedback.setPadding(10, 10, 10, 10);
-                        TextView tv = new TextView(MainActivity.this);
-                        tv.setText("Your response is sent to the server for improving the model. :)");
-                        predictionContainer.addView(userFeedback);
-                        predictionContainer.addView(tv);
+                        descriptionText.setText("User feedback saved, it will be sent to the server shortly."
+                                + "\nUser verified: " + String.join(", ", finalSelectedLabels)
+                                + "\nYour response is sent to the server for improving the model. :)");
+                        predictionAdapter.clear();
+                        drawBoundingBoxView.clearPredictions();
                         alternativeInput.setText("");
                         alternativeInput.setVisibility(View.GONE);
                         confirmButton.setVisibility(View.GONE);
                         drawBoundingBoxView.resetBoundingBox();
+                        showNextBatchItem();
                     });
-                } else {
-                    runOnUiThread(() -> descriptionText.setText("Error: MQTT not connected."));
                 }
 
             } catch (JSONException e) {
@@ -468,24 +939,70 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * The server has never seen an image classified on the device, and feedback refers to images
+     * by the id the server stores them under. Upload it first, then confirm against that id.
+     */
+    private void uploadForFeedback(Bitmap upload, JSONArray labelsArray, String key, List<String> labels) {
+        remoteClassifier.classify(upload, mqttClient.nextRequestId()).whenComplete((prediction, error) -> {
+            if (error != null || prediction.imageId() < 0) {
+                Log.e("mainActivity", "Could not upload image for feedback: " + error);
+                runOnUiThread(() -> descriptionText.setText("Could not reach the server, feedback not sent."));
+                return;
+            }
+            if (key != null) {
+                history.confirm(key, prediction.imageId(), labels, upload);
+            }
+            try {
+                feedbackBatcher.add(prediction.imageId(), labelsArray);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
     private void setBouncingInfo() {
-        RectF boundingBox = drawBoundingBoxView.getBoundingBox();
-        if (boundingBox != null) {
-            float x1 = boundingBox.left;
-            float y1 = boundingBox.top;
-            float x2 = boundingBox.right;
-            float y2 = boundingBox.bottom;
-
-            // Convert values to relative coordinates (normalized 0-1)
-            x1 /= capturedImage.getWidth();
-            y1 /= capturedImage.getHeight();
-            x2 /= capturedImage.getWidth();
-            y2 /= capturedImage.getHeight();
-
-            // Store bounding box for manual entry
-            boundingBoxCoordinates = new float[]{x1, y1, x2, y2};
+        float[] box = new float[4];
+        if (drawBoundingBoxView.getBox(DrawBoundingBoxView.USER_BOX, box)) {
+            // Store bounding box for manual entry, relative to the image (normalized 0-1)
+            boundingBoxCoordinates = box;
             Log.d("MainActivity", "Bouncing box = " + Arrays.toString(boundingBoxCoordinates));
         }
     }
 
+    /**
+     * Shows {@code image} in place of the current one, and releases the previous preview if it
+     * came from the preview cache. {@code previewKey} is set when {@code image} is such a
+     * preview, acquired by the caller.
+     */
+    private void showImage(Bitmap image, String previewKey) {
+        Bitmap previous = shownPreview;
+        if (image != null) {
+            capturedImage.setImageBitmap(image);
+        } else {
+            capturedImage.setImageDrawable(null);
+        }
+        shownPreview = previewKey != null ? image : null;
+        shownPreviewKey = previewKey;
+        if (previous != null) {
+            previewCache.release(previous);
+        }
+    }
+
+    /** Recomputed once per layout and image; touch and drawing then only apply it. */
+    private void updateImageTransform() {
+        Drawable drawable = capturedImage.getDrawable();
+        if (drawable == null) {
+            return;
+        }
+        // The preview is already rotated upright by ImageIngest, the same bitmap the server gets.
+        // The overlay is constrained to the image view's bounds, so the two share coordinates.
+        imageTransform.set(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), 0,
+                ImageTransform.ScaleType.valueOf(capturedImage.getScaleType().name()),
+                capturedImage.getWidth(), capturedImage.getHeight(),
+                capturedImage.getPaddingLeft(), capturedImage.getPaddingTop(),
+                capturedImage.getPaddingRight(), capturedImage.getPaddingBottom());
+        drawBoundingBoxView.setImageTransform(imageTransform);
+    }
+
 }
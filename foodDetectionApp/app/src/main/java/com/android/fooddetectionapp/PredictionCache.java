@@ -0,0 +1,218 @@
+package com.android.fooddetectionapp;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-device LRU cache of prediction replies, so resubmitting the same photo skips the round trip.
+ *
+ * Entries are keyed by the SHA-256 of the encoded upload. In {@link Mode#PERCEPTUAL} mode a miss
+ * falls back to the closest 64-bit dHash within {@code maxHammingDistance}, which catches retakes
+ * and re-encodes of the same plate. Entries expire after {@code ttlMs} and the cache is written to
+ * the app files dir so it survives restarts.
+ */
+public class PredictionCache {
+    private static final String TAG = "PredictionCache";
+    private static final int FILE_VERSION = 1;
+
+    public enum Mode {
+        EXACT,
+        PERCEPTUAL
+    }
+
+    private static class Entry {
+        final String sha256;
+        final long dHash;
+        final long createdAt;
+        final String prediction;
+
+        Entry(String sha256, long dHash, long createdAt, String prediction) {
+            this.sha256 = sha256;
+            this.dHash = dHash;
+            this.createdAt = createdAt;
+            this.prediction = prediction;
+        }
+    }
+
+    private final File file;
+    private final Mode mode;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final int maxHammingDistance;
+    private boolean dirty;
+
+    private long hits;
+    private long perceptualHits;
+    private long misses;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    public PredictionCache(File file, Mode mode, int maxEntries, long ttlMs, int maxHammingDistance) {
+        this.file = file;
+        this.mode = mode;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.maxHammingDistance = maxHammingDistance;
+    }
+
+    /** Cached prediction JSON for this image, or null on a miss. */
+    public synchronized String get(String sha256, long dHash) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(sha256);
+        if (entry != null && isExpired(entry, now)) {
+            entries.remove(sha256);
+            dirty = true;
+            entry = null;
+        }
+
+        if (entry == null && mode == Mode.PERCEPTUAL) {
+            entry = findNearest(dHash, now);
+            if (entry != null) {
+                perceptualHits++;
+            }
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.prediction;
+    }
+
+    public synchronized void put(String sha256, long dHash, String prediction) {
+        entries.put(sha256, new Entry(sha256, dHash, System.currentTimeMillis(), prediction));
+        dirty = true;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized String getStats() {
+        return "entries=" + entries.size() + " hits=" + hits + " (perceptual " + perceptualHits + ") misses=" + misses;
+    }
+
+    private Entry findNearest(long dHash, long now) {
+        Entry nearest = null;
+        int nearestDistance = maxHammingDistance + 1;
+        for (Entry entry : entries.values()) {
+            if (isExpired(entry, now)) {
+                continue;
+            }
+            int distance = Long.bitCount(entry.dHash ^ dHash);
+            if (distance < nearestDistance) {
+                nearest = entry;
+                nearestDistance = distance;
+            }
+        }
+        if (nearest != null) {
+            // Touch it so near-duplicates keep their source entry alive in LRU order
+            entries.get(nearest.sha256);
+        }
+        return nearest;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.createdAt > ttlMs;
+    }
+
+    /** Loads the persisted cache, dropping expired entries. Call off the UI thread. */
+    public synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String sha256 = in.readUTF();
+                long dHash = in.readLong();
+                long createdAt = in.readLong();
+                byte[] prediction = new byte[in.readInt()];
+                in.readFully(prediction);
+                Entry entry = new Entry(sha256, dHash, createdAt, new String(prediction, StandardCharsets.UTF_8));
+                if (!isExpired(entry, now)) {
+                    entries.put(sha256, entry);
+                }
+            }
+            Log.d(TAG, "Loaded " + entries.size() + " cached predictions");
+        } catch (IOException e) {
+            Log.e(TAG, "Discarding unreadable prediction cache: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /** Writes the cache if it changed since the last save. Call off the UI thread. */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            // Least recently used first, so reloading restores the same LRU order
+            for (Entry entry : entries.values()) {
+                byte[] prediction = entry.prediction.getBytes(StandardCharsets.UTF_8);
+                out.writeUTF(entry.sha256);
+                out.writeLong(entry.dHash);
+                out.writeLong(entry.createdAt);
+                out.writeInt(prediction.length);
+                out.write(prediction);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save prediction cache: " + e.getMessage());
+            return;
+        }
+        if (tmp.renameTo(file)) {
+            dirty = false;
+        }
+    }
+
+    /**
+     * 64-bit difference hash of a 9x8 grayscale thumbnail: bit i is set when pixel i is brighter
+     * than its right neighbour.
+     */
+    public static long dHash(int[] argb9x8) {
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                int left = luminance(argb9x8[y * 9 + x]);
+                int right = luminance(argb9x8[y * 9 + x + 1]);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    private static int luminance(int argb) {
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+}
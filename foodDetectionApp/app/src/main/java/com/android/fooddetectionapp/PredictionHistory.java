@@ -0,0 +1,356 @@
+package com.android.fooddetectionapp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.android.service.CompactPredictions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Every image the user had classified, with what it was predicted and confirmed as, so past
+ * meals can be browsed and searched ("what did I eat this week").
+ *
+ * Entries live in SQLite, indexed by time, by label (each entry's top predicted and confirmed
+ * labels, in their own table) and by server image id. Their thumbnails live in one
+ * {@link ThumbnailStore} file. An entry is keyed by the request it came from, so a refined reply
+ * for the same image updates it instead of adding another.
+ *
+ * All writes and queries run in order on one background thread. Queries page by keyset (time,
+ * then id) rather than offset, so every page costs the same however far back it is.
+ */
+public class PredictionHistory {
+    private static final String TAG = "PredictionHistory";
+
+    private static final String DATABASE_NAME = "history.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String THUMBNAIL_FILE = "history_thumbnails.bin";
+
+    private static final int THUMBNAIL_EDGE = 96;
+    private static final int THUMBNAIL_QUALITY = 70;
+    // Predicted labels searchable per entry, besides the confirmed ones
+    private static final int INDEXED_LABELS = 3;
+
+    private static final String COLUMNS = "h._id, h.created_at, h.img_id, h.top_label, h.top_confidence, "
+            + "h.labels, h.confirmed_labels, h.thumb_offset, h.thumb_length";
+
+    public static class Entry {
+        public final long id;
+        public final long createdAt;
+        /** Server image id, -1 for an on-device result nobody confirmed. */
+        public final int imageId;
+        public final String topLabel;
+        public final float topConfidence;
+        /** Predicted labels, best first, comma separated. */
+        public final String labels;
+        /** What the user confirmed, comma separated, or null. */
+        public final String confirmedLabels;
+        final long thumbnailOffset;
+        final int thumbnailLength;
+
+        Entry(Cursor cursor) {
+            id = cursor.getLong(0);
+            createdAt = cursor.getLong(1);
+            imageId = cursor.getInt(2);
+            topLabel = cursor.getString(3);
+            topConfidence = cursor.getFloat(4);
+            labels = cursor.getString(5);
+            confirmedLabels = cursor.getString(6);
+            thumbnailOffset = cursor.getLong(7);
+            thumbnailLength = cursor.getInt(8);
+        }
+    }
+
+    private final Helper helper;
+    private final ThumbnailStore thumbnails;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "history");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    public PredictionHistory(Context context) {
+        Context appContext = context.getApplicationContext();
+        helper = new Helper(appContext);
+        thumbnails = new ThumbnailStore(new File(appContext.getFilesDir(), THUMBNAIL_FILE));
+    }
+
+    /**
+     * Records (or, for a known {@code key}, updates) the predictions for an image. The thumbnail
+     * is only taken the first time; {@code image} must not be recycled afterwards.
+     */
+    public void record(String key, CompactPredictions prediction, Bitmap image) {
+        long now = System.currentTimeMillis();
+        executor.execute(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                long id = findOrInsert(db, key, now, image);
+                ContentValues values = new ContentValues();
+                int top = topIndex(prediction);
+                values.put("top_label", top >= 0 ? prediction.labels[top] : null);
+                values.put("top_confidence", top >= 0 ? prediction.confidences[top] : 0f);
+                values.put("labels", joinLabels(prediction));
+                if (prediction.imageId() >= 0) {
+                    values.put("img_id", prediction.imageId());
+                }
+                db.update("history", values, "_id = ?", new String[]{Long.toString(id)});
+
+                db.delete("history_labels", "entry_id = ? AND confirmed = 0", new String[]{Long.toString(id)});
+                long createdAt = createdAt(db, id);
+                for (String label : topLabels(prediction)) {
+                    insertLabel(db, id, label, createdAt, false);
+                }
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to record " + key, e);
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    /**
+     * Stores what the user confirmed for the image recorded under {@code key}, adding the entry
+     * if it has none yet (e.g. a failed image labelled by hand). {@code imageId} replaces the
+     * stored id unless it is negative.
+     */
+    public void confirm(String key, int imageId, List<String> labels, Bitmap image) {
+        long now = System.currentTimeMillis();
+        List<String> confirmed = new ArrayList<>(labels);
+        executor.execute(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                long id = findOrInsert(db, key, now, image);
+                ContentValues values = new ContentValues();
+                values.put("confirmed_labels", String.join(", ", confirmed));
+                if (imageId >= 0) {
+                    values.put("img_id", imageId);
+                }
+                db.update("history", values, "_id = ?", new String[]{Long.toString(id)});
+                long createdAt = createdAt(db, id);
+                // Replaces an earlier confirmation, so labels the user took back stop matching; the
+                // predicted ones it had taken over go back to being predicted
+                db.delete("history_labels", "entry_id = ? AND confirmed = 1", new String[]{Long.toString(id)});
+                for (String label : confirmed) {
+                    insertLabel(db, id, label, createdAt, true);
+                }
+                for (String label : predictedLabels(db, id)) {
+                    insertLabel(db, id, label, createdAt, false);
+                }
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to confirm " + key, e);
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    /**
+     * Newest first, one page at a time.
+     *
+     * @param label only entries predicted or confirmed as this (any case), or null for all
+     * @param since only entries from this time on (epoch ms), 0 for all
+     * @param after the last entry of the previous page, or null for the first page
+     */
+    public CompletableFuture<List<Entry>> query(String label, long since, Entry after, int limit) {
+        CompletableFuture<List<Entry>> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(queryNow(label, since, after, limit));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private List<Entry> queryNow(String label, long since, Entry after, int limit) {
+        long beforeTime = after != null ? after.createdAt : Long.MAX_VALUE;
+        long beforeId = after != null ? after.id : Long.MAX_VALUE;
+        String sql;
+        String[] args;
+        // (created_at, id) < (beforeTime, beforeId), spelled out: row values need SQLite 3.15
+        if (label == null) {
+            sql = "SELECT " + COLUMNS + " FROM history h"
+                    + " WHERE h.created_at >= ? AND h.created_at <= ? AND (h.created_at < ? OR h._id < ?)"
+                    + " ORDER BY h.created_at DESC, h._id DESC LIMIT ?";
+            args = new String[]{Long.toString(since), Long.toString(beforeTime), Long.toString(beforeTime),
+                    Long.toString(beforeId), Integer.toString(limit)};
+        } else {
+            sql = "SELECT " + COLUMNS + " FROM history_labels l JOIN history h ON h._id = l.entry_id"
+                    + " WHERE l.label = ? AND l.created_at >= ? AND l.created_at <= ?"
+                    + " AND (l.created_at < ? OR l.entry_id < ?)"
+                    + " ORDER BY l.created_at DESC, l.entry_id DESC LIMIT ?";
+            args = new String[]{label, Long.toString(since), Long.toString(beforeTime), Long.toString(beforeTime),
+                    Long.toString(beforeId), Integer.toString(limit)};
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor));
+            }
+        }
+        return entries;
+    }
+
+    /** Decodes the entry's thumbnail, or returns null if it has none. Call off the main thread. */
+    public Bitmap loadThumbnail(Entry entry) {
+        try {
+            byte[] jpeg = thumbnails.read(entry.thumbnailOffset, entry.thumbnailLength);
+            return jpeg != null ? BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length) : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read thumbnail of entry " + entry.id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Existing entry for {@code key}, or a new one with the image's thumbnail. */
+    private long findOrInsert(SQLiteDatabase db, String key, long now, Bitmap image) {
+        try (Cursor cursor = db.rawQuery("SELECT _id FROM history WHERE request_key = ?", new String[]{key})) {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        }
+        ContentValues values = new ContentValues();
+        values.put("request_key", key);
+        values.put("created_at", now);
+        byte[] jpeg = image != null ? encodeThumbnail(image) : null;
+        if (jpeg != null) {
+            try {
+                // Written before the row that points at it; a crash in between only leaves unused bytes
+                values.put("thumb_offset", thumbnails.append(jpeg));
+                values.put("thumb_length", jpeg.length);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to store thumbnail: " + e.getMessage());
+            }
+        }
+        return db.insertOrThrow("history", null, values);
+    }
+
+    /** The entry's indexed predicted labels, as {@link #joinLabels} stored them. */
+    private static List<String> predictedLabels(SQLiteDatabase db, long id) {
+        try (Cursor cursor = db.rawQuery("SELECT labels FROM history WHERE _id = ?",
+                new String[]{Long.toString(id)})) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return Collections.emptyList();
+            }
+            return Arrays.asList(cursor.getString(0).split(", "));
+        }
+    }
+
+    private static long createdAt(SQLiteDatabase db, long id) {
+        try (Cursor cursor = db.rawQuery("SELECT created_at FROM history WHERE _id = ?",
+                new String[]{Long.toString(id)})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    private static void insertLabel(SQLiteDatabase db, long id, String label, long createdAt, boolean confirmed) {
+        ContentValues values = new ContentValues();
+        values.put("entry_id", id);
+        values.put("label", label);
+        values.put("created_at", createdAt);
+        values.put("confirmed", confirmed ? 1 : 0);
+        db.insertWithOnConflict("history_labels", null, values,
+                confirmed ? SQLiteDatabase.CONFLICT_REPLACE : SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private static byte[] encodeThumbnail(Bitmap image) {
+        float scale = Math.min(1f, (float) THUMBNAIL_EDGE / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+        Bitmap thumbnail = Bitmap.createScaledBitmap(image, width, height, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        if (thumbnail != image) {
+            thumbnail.recycle();
+        }
+        return out.size() > 0 ? out.toByteArray() : null;
+    }
+
+    private static int topIndex(CompactPredictions prediction) {
+        int top = -1;
+        for (int i = 0; i < prediction.count; i++) {
+            if (top < 0 || prediction.confidences[i] > prediction.confidences[top]) {
+                top = i;
+            }
+        }
+        return top;
+    }
+
+    /** The best {@link #INDEXED_LABELS} distinct labels, best first. */
+    private static Set<String> topLabels(CompactPredictions prediction) {
+        Integer[] order = new Integer[prediction.count];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(prediction.confidences[b], prediction.confidences[a]));
+        Set<String> labels = new LinkedHashSet<>();
+        for (int i = 0; i < order.length && labels.size() < INDEXED_LABELS; i++) {
+            labels.add(prediction.labels[order[i]]);
+        }
+        return labels;
+    }
+
+    private static String joinLabels(CompactPredictions prediction) {
+        Set<String> labels = topLabels(prediction);
+        return labels.isEmpty() ? null : String.join(", ", labels);
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            // Readers don't wait for the writer
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE history ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "request_key TEXT NOT NULL UNIQUE, "
+                    + "created_at INTEGER NOT NULL, "
+                    + "img_id INTEGER NOT NULL DEFAULT -1, "
+                    + "top_label TEXT, "
+                    + "top_confidence REAL NOT NULL DEFAULT 0, "
+                    + "labels TEXT, "
+                    + "confirmed_labels TEXT, "
+                    + "thumb_offset INTEGER NOT NULL DEFAULT -1, "
+                    + "thumb_length INTEGER NOT NULL DEFAULT 0)");
+            // The rowid is part of every index entry, so this also orders ties by _id
+            db.execSQL("CREATE INDEX history_created_at ON history (created_at)");
+            db.execSQL("CREATE INDEX history_img_id ON history (img_id)");
+            db.execSQL("CREATE TABLE history_labels ("
+                    + "entry_id INTEGER NOT NULL, "
+                    + "label TEXT NOT NULL COLLATE NOCASE, "
+                    + "created_at INTEGER NOT NULL, "
+                    + "confirmed INTEGER NOT NULL DEFAULT 0, "
+                    + "PRIMARY KEY (entry_id, label)) WITHOUT ROWID");
+            db.execSQL("CREATE INDEX history_labels_label ON history_labels (label, created_at, entry_id)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
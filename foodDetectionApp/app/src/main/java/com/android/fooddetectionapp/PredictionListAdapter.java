@@ -0,0 +1,259 @@
+package com.android.fooddetectionapp;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.service.CompactPredictions;
+
+import java.util.List;
+
+/**
+ * Predicted labels, most confident first. Only the top {@code topK} are shown until the user taps
+ * the "Show N more" row. A new result is diffed against the rows on screen by label, so rows that
+ * only changed confidence are rebound in place instead of rebuilt.
+ *
+ * Tapping a row toggles it as a confirmed label. Binding reuses each row's char buffer for the
+ * confidence text, so scrolling and updates don't allocate per row.
+ */
+public class PredictionListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+    private static final int TYPE_PREDICTION = 0;
+    private static final int TYPE_MORE = 1;
+    // Rebind only the selection highlight
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    public interface OnPredictionClickListener {
+        /** {@code index} is the prediction's index in {@link #getPredictions()}. */
+        void onPredictionClick(int index, boolean selected);
+    }
+
+    private final int topK;
+    private OnPredictionClickListener listener;
+
+    private CompactPredictions predictions = new CompactPredictions(0);
+    // Prediction indices by descending confidence
+    private int[] order = new int[0];
+    private boolean[] selected = new boolean[0];
+    private boolean expanded;
+
+    public PredictionListAdapter(int topK) {
+        this.topK = topK;
+    }
+
+    public void setOnPredictionClickListener(OnPredictionClickListener listener) {
+        this.listener = listener;
+    }
+
+    /** Shows a new result, collapsed to the top K with nothing selected. */
+    public void submit(CompactPredictions newPredictions) {
+        final CompactPredictions oldPredictions = predictions;
+        final int[] oldOrder = order;
+        final boolean[] oldSelected = selected;
+        final boolean oldExpanded = expanded;
+        final int oldRows = rowCount();
+        final int oldShown = shownCount();
+
+        predictions = newPredictions;
+        order = sortByConfidence(newPredictions);
+        selected = new boolean[newPredictions.count];
+        expanded = false;
+        final int newRows = rowCount();
+        final int newShown = shownCount();
+
+        DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldRows;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newRows;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                boolean oldMore = oldPosition >= oldShown;
+                boolean newMore = newPosition >= newShown;
+                if (oldMore || newMore) {
+                    return oldMore && newMore;
+                }
+                String oldLabel = oldPredictions.labels[oldOrder[oldPosition]];
+                return oldLabel != null && oldLabel.equals(newPredictions.labels[order[newPosition]]);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                if (oldPosition >= oldShown) {
+                    return !oldExpanded && oldPredictions.count == newPredictions.count;
+                }
+                int oldIndex = oldOrder[oldPosition];
+                return !oldSelected[oldIndex]
+                        && oldPredictions.confidences[oldIndex] == newPredictions.confidences[order[newPosition]];
+            }
+        }, false).dispatchUpdatesTo(this);
+    }
+
+    public void clear() {
+        submit(new CompactPredictions(0));
+    }
+
+    public CompactPredictions getPredictions() {
+        return predictions;
+    }
+
+    public boolean isSelected(int index) {
+        return selected[index];
+    }
+
+    /** Selects a prediction from elsewhere, e.g. its box on the image; no click callback. */
+    public void setSelected(int index, boolean isSelected) {
+        if (index < 0 || index >= selected.length || selected[index] == isSelected) {
+            return;
+        }
+        selected[index] = isSelected;
+        int shown = shownCount();
+        for (int position = 0; position < shown; position++) {
+            if (order[position] == index) {
+                notifyItemChanged(position, PAYLOAD_SELECTION);
+                return;
+            }
+        }
+    }
+
+    public int getSelectedCount() {
+        int count = 0;
+        for (boolean s : selected) {
+            if (s) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int shownCount() {
+        return expanded ? predictions.count : Math.min(predictions.count, topK);
+    }
+
+    private boolean hasMoreRow() {
+        return predictions.count > topK;
+    }
+
+    private int rowCount() {
+        return shownCount() + (hasMoreRow() ? 1 : 0);
+    }
+
+    private static int[] sortByConfidence(CompactPredictions p) {
+        int[] indices = new int[p.count];
+        // Insertion sort: a few dozen rows at most, and usually already in order
+        for (int i = 0; i < p.count; i++) {
+            int j = i;
+            while (j > 0 && p.confidences[indices[j - 1]] < p.confidences[i]) {
+                indices[j] = indices[j - 1];
+                j--;
+            }
+            indices[j] = i;
+        }
+        return indices;
+    }
+
+    private void toggleSelected(int position) {
+        int index = order[position];
+        selected[index] = !selected[index];
+        notifyItemChanged(position, PAYLOAD_SELECTION);
+        if (listener != null) {
+            listener.onPredictionClick(index, selected[index]);
+        }
+    }
+
+    private void toggleExpanded() {
+        int collapsed = Math.min(predictions.count, topK);
+        int hidden = predictions.count - collapsed;
+        expanded = !expanded;
+        if (expanded) {
+            notifyItemRangeInserted(collapsed, hidden);
+        } else {
+            notifyItemRangeRemoved(collapsed, hidden);
+        }
+        notifyItemChanged(shownCount());
+    }
+
+    @Override
+    public int getItemCount() {
+        return rowCount();
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return position < shownCount() ? TYPE_PREDICTION : TYPE_MORE;
+    }
+
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+        if (viewType == TYPE_MORE) {
+            MoreHolder holder = new MoreHolder(inflater.inflate(R.layout.item_prediction_more, parent, false));
+            holder.itemView.setOnClickListener(v -> toggleExpanded());
+            return holder;
+        }
+        PredictionHolder holder = new PredictionHolder(inflater.inflate(R.layout.item_prediction, parent, false));
+        holder.itemView.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && position < shownCount()) {
+                toggleSelected(position);
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position, List<Object> payloads) {
+        if (holder instanceof PredictionHolder && payloads.contains(PAYLOAD_SELECTION)) {
+            holder.itemView.setActivated(selected[order[position]]);
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+        if (holder instanceof MoreHolder) {
+            ((MoreHolder) holder).text.setText(expanded
+                    ? "Show less"
+                    : "Show " + (predictions.count - topK) + " more");
+            return;
+        }
+        PredictionHolder row = (PredictionHolder) holder;
+        int index = order[position];
+        row.label.setText(predictions.labels[index]);
+        int length = ConfidenceText.format(predictions.confidences[index], row.confidenceChars);
+        row.confidence.setText(row.confidenceChars, 0, length);
+        row.itemView.setActivated(selected[index]);
+    }
+
+    static class PredictionHolder extends RecyclerView.ViewHolder {
+        final TextView label;
+        final TextView confidence;
+        // TextView keeps a reference to the chars, so each row owns its buffer
+        final char[] confidenceChars = new char[ConfidenceText.MAX_LENGTH];
+
+        PredictionHolder(View itemView) {
+            super(itemView);
+            label = itemView.findViewById(R.id.predictionLabel);
+            confidence = itemView.findViewById(R.id.predictionConfidence);
+        }
+    }
+
+    static class MoreHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        MoreHolder(View itemView) {
+            super(itemView);
+            text = (TextView) itemView;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.android.fooddetectionapp;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Decoded previews by image URI, bounded by bytes, so showing an image again (picking it a
+ * second time, or the activity recreated after a rotation) skips the decode.
+ *
+ * Callers {@link #acquire} a preview before showing it and {@link #release} it once it is off
+ * screen. Evicted previews go to the {@link BitmapPool}; one still in use is no longer found or
+ * counted here, and goes to the pool when its last user releases it. Previews are compared by
+ * identity and sized by the pool's {@link ReusePool.Adapter}, so tests can use plain objects.
+ * Thread-safe.
+ */
+public class PreviewCache<T> {
+
+    private final ReusePool<T> pool;
+    private final ReusePool.Adapter<T> adapter;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, T> previews = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // Acquired previews and how many users each has
+    private final IdentityHashMap<T, Integer> inUse = new IdentityHashMap<>();
+    // In use when they were evicted; pooled on their last release
+    private final IdentityHashMap<T, Boolean> evictedInUse = new IdentityHashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PreviewCache(ReusePool<T> pool, long maxBytes) {
+        this.pool = pool;
+        this.adapter = pool.getAdapter();
+        this.maxBytes = maxBytes;
+    }
+
+    /** The cached preview for {@code key}, acquired; or null. */
+    public synchronized T acquire(String key) {
+        T preview = previews.get(key);
+        if (preview == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        acquire(preview);
+        return preview;
+    }
+
+    /** Caches a newly decoded preview, replacing any under the same key, and acquires it. */
+    public synchronized void putAcquired(String key, T preview) {
+        acquire(preview);
+        T previous = previews.put(key, preview);
+        if (previous == preview) {
+            return;
+        }
+        bytes += adapter.sizeOf(preview);
+        if (previous != null) {
+            bytes -= adapter.sizeOf(previous);
+            evict(previous);
+        }
+        trimToSize(maxBytes);
+    }
+
+    private void acquire(T preview) {
+        Integer users = inUse.get(preview);
+        inUse.put(preview, users == null ? 1 : users + 1);
+    }
+
+    /** {@code preview} is no longer shown by this user. Bitmaps not from this cache are ignored. */
+    public synchronized void release(T preview) {
+        Integer users = inUse.get(preview);
+        if (users == null) {
+            return;
+        }
+        if (users > 1) {
+            inUse.put(preview, users - 1);
+            return;
+        }
+        inUse.remove(preview);
+        if (evictedInUse.remove(preview) != null) {
+            pool.put(preview);
+        }
+    }
+
+    /** Evicts the least recently used previews until at most {@code size} bytes are cached. */
+    public synchronized void trimToSize(long size) {
+        Iterator<T> it = previews.values().iterator();
+        while (bytes > size && it.hasNext()) {
+            T evicted = it.next();
+            it.remove();
+            bytes -= adapter.sizeOf(evicted);
+            evict(evicted);
+        }
+    }
+
+    private void evict(T preview) {
+        evictions++;
+        if (inUse.containsKey(preview)) {
+            evictedInUse.put(preview, Boolean.TRUE);
+        } else {
+            pool.put(preview);
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytes;
+    }
+
+    public synchronized String getStats() {
+        return "previews=" + previews.size() + " bytes=" + bytes + "/" + maxBytes + " in use=" + inUse.size()
+                + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+}
@@ -0,0 +1,143 @@
+package com.android.fooddetectionapp;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.service.CompactPredictions;
+import com.android.service.ImageFrameOutputStream;
+import com.android.service.LatencyTracker;
+import com.android.service.MqttClient;
+import com.android.service.ReplyDecoder;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Classifies on the server over MQTT. The image is encoded on the ingest thread, looked up in the
+ * prediction cache (exact and perceptual hash), and only sent when it misses. Replies are cached
+ * for the next time the same photo comes along. While offline the request waits in the outbound
+ * queue like any other publish.
+ *
+ * When the server supports it, uploads are progressive: first a thumbnail at the model's input
+ * size ({@link EncodePolicy#SMALL}), whose result completes the future right away. Only if the
+ * reply asks for it ("need_full", e.g. the server is unsure or archives originals) is the image
+ * sent again under the encode policy, with the same request id. That reply reaches the screen
+ * through {@link MqttClient.PredictionListener} and replaces the thumbnail's result. Images no
+ * larger than the thumbnail (e.g. live preview frames) are sent once, as they are; the returned
+ * future then completes after the last read of the bitmap. Transient images go out in one frame
+ * marked {@link ImageFrameOutputStream#FLAG_NO_STORE}; their results carry no server image id, so
+ * they aren't cached for photos that could be confirmed later.
+ */
+public class RemoteClassifier implements Classifier {
+    private static final String TAG = "RemoteClassifier";
+
+    private final MqttClient mqttClient;
+    private final ImageIngest imageIngest;
+    private final PredictionCache predictionCache;
+    private volatile EncodePolicy encodePolicy;
+    // Decodes cache hits; only used on the image ingest thread
+    private final ReplyDecoder cacheDecoder = new ReplyDecoder();
+
+    public RemoteClassifier(MqttClient mqttClient, ImageIngest imageIngest, PredictionCache predictionCache,
+                            EncodePolicy encodePolicy) {
+        this.mqttClient = mqttClient;
+        this.imageIngest = imageIngest;
+        this.predictionCache = predictionCache;
+        this.encodePolicy = encodePolicy;
+    }
+
+    public void setEncodePolicy(EncodePolicy encodePolicy) {
+        this.encodePolicy = encodePolicy;
+    }
+
+    @Override
+    public CompletableFuture<CompactPredictions> classify(Bitmap image, String requestId) {
+        return classify(image, requestId, true);
+    }
+
+    @Override
+    public CompletableFuture<CompactPredictions> classifyTransient(Bitmap image, String requestId) {
+        return classify(image, requestId, false);
+    }
+
+    private CompletableFuture<CompactPredictions> classify(Bitmap image, String requestId, boolean store) {
+        CompletableFuture<CompactPredictions> result = new CompletableFuture<>();
+        LatencyTracker tracker = mqttClient.getLatencyTracker();
+
+        // Encode off the UI thread and copy straight into an exactly sized frame buffer
+        imageIngest.execute(() -> {
+            try {
+                boolean progressive = store && mqttClient.isThumbnailUploadSupported()
+                        && Math.max(image.getWidth(), image.getHeight()) > EncodePolicy.SMALL.maxEdgePx;
+                ImageEncoder encoded = imageIngest.encode(image, progressive ? EncodePolicy.SMALL : encodePolicy);
+                String sha256 = ImageIngest.sha256(encoded);
+                long dHash = ImageIngest.dHash(image);
+
+                // Same (or nearly the same) photo as before: reuse its result, even offline
+                CompactPredictions cached = decodeCached(predictionCache.get(sha256, dHash));
+                if (cached != null) {
+                    Log.d(TAG, "Prediction cache hit, " + predictionCache.getStats());
+                    tracker.mark(requestId, LatencyTracker.Stage.ENCODED);
+                    result.complete(cached);
+                    return;
+                }
+
+                ImageFrameOutputStream frame = mqttClient.newImageFrame(requestId, encoded.size(),
+                        progressive ? ImageFrameOutputStream.FLAG_THUMBNAIL
+                                : store ? 0 : ImageFrameOutputStream.FLAG_NO_STORE);
+                encoded.writeTo(frame);
+                tracker.mark(requestId, LatencyTracker.Stage.ENCODED);
+                mqttClient.requestPrediction(frame).whenComplete((prediction, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                        return;
+                    }
+                    if (progressive && prediction.needFull) {
+                        // Show the quick answer now; the cache gets the final one
+                        sendFullImage(image, requestId, sha256, dHash);
+                    } else if (store) {
+                        predictionCache.put(sha256, dHash, prediction.json);
+                    }
+                    result.complete(prediction);
+                });
+            } catch (IOException e) {
+                tracker.discard(requestId);
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private void sendFullImage(Bitmap image, String requestId, String sha256, long dHash) {
+        imageIngest.execute(() -> {
+            try {
+                ImageEncoder encoded = imageIngest.encode(image, encodePolicy);
+                ImageFrameOutputStream frame = mqttClient.newImageFrame(requestId, encoded.size(),
+                        ImageFrameOutputStream.FLAG_FULL_IMAGE);
+                encoded.writeTo(frame);
+                Log.d(TAG, "Server asked for the full image of request " + requestId + ", " + encoded.size() + " bytes");
+                mqttClient.requestPrediction(frame).thenAccept(full -> predictionCache.put(sha256, dHash, full.json));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to encode full image for request " + requestId, e);
+            }
+        });
+    }
+
+    /** The request is queued while disconnected, but no answer can come back until reconnected. */
+    @Override
+    public boolean isAvailable() {
+        return mqttClient.isConnected();
+    }
+
+    private CompactPredictions decodeCached(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return cacheDecoder.decodePrediction(json);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring corrupt cache entry: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.android.fooddetectionapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The bookkeeping behind {@link BitmapPool}: objects kept for reuse, bounded by bytes, and
+ * recycled oldest first when full. What an object's size is, whether it can be reused and how to
+ * recycle it is up to the {@link Adapter}, so this runs on the JVM as it does on the device.
+ * An object handed to {@link #put} must not be used by the caller afterwards.
+ * Thread-safe.
+ */
+public class ReusePool<T> {
+
+    public interface Adapter<T> {
+        /** Bytes held by {@code item}. */
+        long sizeOf(T item);
+
+        /** Whether {@code item} may be pooled; if not, {@link #put} recycles it. */
+        boolean isReusable(T item);
+
+        boolean isRecycled(T item);
+
+        void recycle(T item);
+    }
+
+    private final Adapter<T> adapter;
+    // Oldest first
+    private final List<T> items = new ArrayList<>();
+    private final long maxBytes;
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ReusePool(Adapter<T> adapter, long maxBytes) {
+        this.adapter = adapter;
+        this.maxBytes = maxBytes;
+    }
+
+    Adapter<T> getAdapter() {
+        return adapter;
+    }
+
+    /** The most recently pooled item that {@code matches}, taken out of the pool; or null. */
+    protected synchronized T take(Predicate<T> matches) {
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (matches.test(items.get(i))) {
+                return take(i);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /** The smallest pooled item that {@code fits}, taken out of the pool; or null. */
+    protected synchronized T takeSmallest(Predicate<T> fits) {
+        int best = -1;
+        for (int i = 0; i < items.size(); i++) {
+            T item = items.get(i);
+            if (fits.test(item) && (best < 0 || adapter.sizeOf(item) < adapter.sizeOf(items.get(best)))) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            misses++;
+            return null;
+        }
+        return take(best);
+    }
+
+    private T take(int index) {
+        T item = items.remove(index);
+        bytes -= adapter.sizeOf(item);
+        hits++;
+        return item;
+    }
+
+    /** Hands {@code item} over for reuse, or recycles it if it can't be reused. Null is ignored. */
+    public void put(T item) {
+        if (item == null || adapter.isRecycled(item)) {
+            return;
+        }
+        synchronized (this) {
+            for (T pooled : items) {
+                if (pooled == item) {
+                    return;
+                }
+            }
+            if (adapter.isReusable(item) && adapter.sizeOf(item) <= maxBytes) {
+                items.add(item);
+                bytes += adapter.sizeOf(item);
+                trimToSize(maxBytes);
+                return;
+            }
+        }
+        adapter.recycle(item);
+    }
+
+    /** Recycles the oldest items until at most {@code size} bytes are pooled. */
+    public synchronized void trimToSize(long size) {
+        while (bytes > size && !items.isEmpty()) {
+            T evicted = items.remove(0);
+            bytes -= adapter.sizeOf(evicted);
+            evictions++;
+            adapter.recycle(evicted);
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String getStats() {
+        return "items=" + items.size() + " bytes=" + bytes + "/" + maxBytes + " hits=" + hits
+                + " misses=" + misses + " evictions=" + evictions;
+    }
+}
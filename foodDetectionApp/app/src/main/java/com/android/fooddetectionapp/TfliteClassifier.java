@@ -0,0 +1,258 @@
+package com.android.fooddetectionapp;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.android.service.CompactPredictions;
+import com.android.service.LatencyTracker;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the food model on the device's CPU with TensorFlow Lite and its XNNPACK delegate; no GPU
+ * or NNAPI delegate, so results and timings are the same on every phone.
+ *
+ * The model and its labels are the assets written by {@code server/export_tflite.py}: a
+ * quantized copy of the server's Keras model with float input and outputs, and one
+ * "label&lt;TAB&gt;category id" line per class in the model's output order. Scores are turned
+ * into predictions exactly as the server does it (see {@link CompactPredictions#fromScores}),
+ * except that there is no image id, since the server never saw the image.
+ *
+ * The model is memory-mapped and loaded on the inference thread, which also owns the
+ * interpreter and the preallocated input bitmap and tensors, so a classification allocates
+ * nothing but its result. Builds without the model asset report {@link #isAvailable()} false.
+ */
+public class TfliteClassifier implements Classifier {
+    private static final String TAG = "TfliteClassifier";
+
+    static final String MODEL_ASSET = "food_model.tflite";
+    static final String LABELS_ASSET = "food_labels.txt";
+
+    // Same as the server's CONFIDENCE_THRESHOLD
+    private static final float CONFIDENCE_THRESHOLD = 0.01f;
+    private static final int MAX_THREADS = 4;
+
+    private enum State {
+        LOADING,
+        READY,
+        UNAVAILABLE
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "tflite");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private volatile State state = State.LOADING;
+    private final LatencyTracker tracker;
+
+    // Everything below is only touched on the inference thread
+    private Interpreter interpreter;
+    private String[] labels;
+    private int[] categoryIds;
+    private int inputWidth;
+    private int inputHeight;
+    private Bitmap inputBitmap;
+    private Canvas inputCanvas;
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect inputRect = new Rect();
+    private int[] pixels;
+    private ByteBuffer input;
+    private final Map<Integer, Object> outputs = new HashMap<>();
+    private final Object[] inputs = new Object[1];
+    private ByteBuffer scoresOutput;
+    private ByteBuffer boxesOutput;
+    private float[] scores;
+    private float[] boxes = new float[0];
+    private int boxCount;
+
+    public TfliteClassifier(Context context, LatencyTracker tracker) {
+        this.tracker = tracker;
+        Context appContext = context.getApplicationContext();
+        executor.execute(() -> load(appContext));
+    }
+
+    @Override
+    public CompletableFuture<CompactPredictions> classify(Bitmap image, String requestId) {
+        CompletableFuture<CompactPredictions> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (state != State.READY) {
+                result.completeExceptionally(new IllegalStateException("On-device model not available"));
+                return;
+            }
+            try {
+                CompactPredictions predictions = run(image);
+                tracker.mark(requestId, LatencyTracker.Stage.INFERRED);
+                result.complete(predictions);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** True while loading, so early requests queue behind the model instead of skipping it. */
+    @Override
+    public boolean isAvailable() {
+        return state != State.UNAVAILABLE;
+    }
+
+    public void close() {
+        executor.execute(() -> {
+            if (interpreter != null) {
+                interpreter.close();
+                interpreter = null;
+            }
+            state = State.UNAVAILABLE;
+        });
+        executor.shutdown();
+    }
+
+    private void load(Context context) {
+        try {
+            labels = readLabels(context);
+            Interpreter.Options options = new Interpreter.Options()
+                    .setNumThreads(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()))
+                    .setUseXNNPACK(true);
+            interpreter = new Interpreter(mapModel(context), options);
+            prepareTensors();
+            state = State.READY;
+            Log.d(TAG, "Loaded on-device model: " + labels.length + " classes, "
+                    + inputWidth + "x" + inputHeight + " input, " + boxCount + " box(es)");
+        } catch (IOException | RuntimeException e) {
+            // No model in this build, or one the app can't use: everything goes to the server
+            Log.d(TAG, "On-device model unavailable: " + e.getMessage());
+            if (interpreter != null) {
+                interpreter.close();
+                interpreter = null;
+            }
+            state = State.UNAVAILABLE;
+        }
+    }
+
+    private static MappedByteBuffer mapModel(Context context) throws IOException {
+        // Stored uncompressed (see noCompress in build.gradle.kts), so it can be mapped in place
+        try (AssetFileDescriptor fd = context.getAssets().openFd(MODEL_ASSET);
+             FileInputStream in = new FileInputStream(fd.getFileDescriptor())) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getDeclaredLength());
+        }
+    }
+
+    private String[] readLabels(Context context) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                context.getAssets().open(LABELS_ASSET), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int tab = line.lastIndexOf('\t');
+                names.add(tab >= 0 ? line.substring(0, tab) : line);
+                ids.add(tab >= 0 ? Integer.parseInt(line.substring(tab + 1).trim()) : -1);
+            }
+        }
+        categoryIds = new int[ids.size()];
+        for (int i = 0; i < categoryIds.length; i++) {
+            categoryIds[i] = ids.get(i);
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /** Checks the model's signature and allocates the buffers every run reuses. */
+    private void prepareTensors() {
+        if (interpreter.getInputTensorCount() != 1) {
+            throw new IllegalStateException("Expected one input, got " + interpreter.getInputTensorCount());
+        }
+        Tensor in = interpreter.getInputTensor(0);
+        int[] inShape = in.shape();
+        if (in.dataType() != DataType.FLOAT32 || inShape.length != 4 || inShape[0] != 1 || inShape[3] != 3) {
+            throw new IllegalStateException("Expected a float [1, h, w, 3] input");
+        }
+        inputHeight = inShape[1];
+        inputWidth = inShape[2];
+        inputBitmap = Bitmap.createBitmap(inputWidth, inputHeight, Bitmap.Config.ARGB_8888);
+        inputCanvas = new Canvas(inputBitmap);
+        inputRect.set(0, 0, inputWidth, inputHeight);
+        pixels = new int[inputWidth * inputHeight];
+        input = ByteBuffer.allocateDirect(4 * 3 * pixels.length).order(ByteOrder.nativeOrder());
+        inputs[0] = input;
+
+        // Told apart by shape: [1, classes] scores and [1, 4] or [1, boxes, 4] boxes
+        for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+            Tensor out = interpreter.getOutputTensor(i);
+            int[] shape = out.shape();
+            if (out.dataType() != DataType.FLOAT32) {
+                throw new IllegalStateException("Output " + i + " is not float32");
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4 * out.numElements()).order(ByteOrder.nativeOrder());
+            if (scoresOutput == null && shape.length == 2 && shape[1] == labels.length) {
+                scoresOutput = buffer;
+                scores = new float[labels.length];
+            } else if (boxesOutput == null && shape[shape.length - 1] == 4) {
+                boxesOutput = buffer;
+                boxes = new float[out.numElements()];
+                boxCount = out.numElements() / 4;
+            }
+            outputs.put(i, buffer);
+        }
+        if (scoresOutput == null) {
+            throw new IllegalStateException("No output matches the " + labels.length + " labels");
+        }
+    }
+
+    private CompactPredictions run(Bitmap image) {
+        // Same preprocessing as the server: RGB resized to the input size, scaled to 0..1
+        inputCanvas.drawBitmap(image, null, inputRect, scalePaint);
+        inputBitmap.getPixels(pixels, 0, inputWidth, 0, 0, inputWidth, inputHeight);
+        input.rewind();
+        for (int pixel : pixels) {
+            input.putFloat(((pixel >> 16) & 0xFF) / 255f);
+            input.putFloat(((pixel >> 8) & 0xFF) / 255f);
+            input.putFloat((pixel & 0xFF) / 255f);
+        }
+        input.rewind();
+
+        for (Object output : outputs.values()) {
+            ((ByteBuffer) output).rewind();
+        }
+        interpreter.runForMultipleInputsOutputs(inputs, outputs);
+
+        readFloats(scoresOutput, scores);
+        if (boxesOutput != null) {
+            readFloats(boxesOutput, boxes);
+        }
+        return CompactPredictions.fromScores(scores, labels, categoryIds, boxes, boxCount, CONFIDENCE_THRESHOLD);
+    }
+
+    private static void readFloats(ByteBuffer buffer, float[] out) {
+        ByteBuffer bytes = buffer.duplicate().order(ByteOrder.nativeOrder());
+        bytes.rewind();
+        bytes.asFloatBuffer().get(out);
+    }
+}
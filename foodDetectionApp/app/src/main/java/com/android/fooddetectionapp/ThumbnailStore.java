@@ -0,0 +1,119 @@
+package com.android.fooddetectionapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One append-only file holding every history thumbnail, addressed by offset and length.
+ *
+ * Reads go through read-only memory maps of fixed-size segments, mapped on first use, so
+ * scrolling through the history neither opens a file per thumbnail nor maps the whole file at
+ * once. A thumbnail never spans two segments: an append that would cross a boundary starts at
+ * the next segment instead.
+ */
+public class ThumbnailStore {
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final File file;
+    private final int segmentSize;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    public ThumbnailStore(File file) {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    ThumbnailStore(File file, int segmentSize) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+    }
+
+    /** Appends the thumbnail and returns its offset. */
+    public synchronized long append(byte[] data) throws IOException {
+        if (data.length > segmentSize) {
+            throw new IllegalArgumentException(data.length + " bytes is larger than a segment");
+        }
+        FileChannel channel = channel();
+        long offset = channel.size();
+        long segmentEnd = (offset / segmentSize + 1) * segmentSize;
+        if (offset + data.length > segmentEnd) {
+            offset = segmentEnd;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return offset;
+    }
+
+    /** The thumbnail at {@code offset}, or null if the file doesn't have it (e.g. it was cleared). */
+    public synchronized byte[] read(long offset, int length) throws IOException {
+        if (offset < 0 || length <= 0 || length > segmentSize) {
+            return null;
+        }
+        int index = (int) (offset / segmentSize);
+        int position = (int) (offset % segmentSize);
+        MappedByteBuffer segment = segment(index, position + length);
+        if (segment == null) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(position);
+        view.get(data);
+        return data;
+    }
+
+    /** Maps segment {@code index}, again if the file has grown past the part mapped so far. */
+    private MappedByteBuffer segment(int index, int minLength) throws IOException {
+        MappedByteBuffer segment = index < segments.size() ? segments.get(index) : null;
+        if (segment != null && segment.capacity() >= minLength) {
+            return segment;
+        }
+        FileChannel channel = channel();
+        long start = (long) index * segmentSize;
+        long length = Math.min(segmentSize, channel.size() - start);
+        if (length < minLength) {
+            return null;
+        }
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        while (segments.size() <= index) {
+            segments.add(null);
+        }
+        segments.set(index, segment);
+        return segment;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+        return channel;
+    }
+
+    public synchronized long size() throws IOException {
+        return file.exists() ? channel().size() : 0;
+    }
+
+    public synchronized void close() {
+        segments.clear();
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.android.service;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects confirmed labels and publishes them as one batch message on project/confirmed_labels:
+ *
+ * <pre>
+ *   {"type": "batch", "items": [{"img_id": 12, "confirmed_labels": [{"label": ..., "bounding_box": [...]}]}, ...]}
+ * </pre>
+ *
+ * A batch goes out once it holds {@code maxItems} images, {@code maxDelayMs} after its first
+ * item, or when {@link #flush()} is called (e.g. when the activity pauses).
+ */
+public class FeedbackBatcher {
+    private static final String TAG = "FeedbackBatcher";
+    public static final String TOPIC_CONFIRMED_LABELS = "project/confirmed_labels";
+
+    private final MqttClient mqttClient;
+    private final int maxItems;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private JSONArray items = new JSONArray();
+    private ScheduledFuture<?> scheduledFlush;
+
+    public FeedbackBatcher(MqttClient mqttClient, int maxItems, long maxDelayMs) {
+        this.mqttClient = mqttClient;
+        this.maxItems = maxItems;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /** Adds one image's confirmed labels; each label is {"label": ..., "bounding_box": [x1, y1, x2, y2]}. */
+    public synchronized void add(int imageId, JSONArray confirmedLabels) throws JSONException {
+        items.put(MessageCodec.encodeConfirmedItem(imageId, confirmedLabels));
+
+        if (items.length() >= maxItems) {
+            flush();
+        } else if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flush, maxDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized int pendingCount() {
+        return items.length();
+    }
+
+    /** Publishes everything collected so far; queued on disk by {@link MqttClient} when offline. */
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (items.length() == 0) {
+            return;
+        }
+
+        try {
+            mqttClient.publishJson(TOPIC_CONFIRMED_LABELS, MessageCodec.encodeConfirmedBatch(items));
+            Log.d(TAG, "Published " + items.length() + " confirmed images in one batch");
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        items = new JSONArray();
+    }
+
+    public void shutdown() {
+        flush();
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,221 @@
+package com.android.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-request latency tracing from the moment an image is picked until its result is on screen.
+ *
+ * Each request is a trace, keyed by its request id, that collects {@link System#nanoTime()} marks
+ * as it passes through the {@link Stage}s. When the trace reaches {@link Stage#RENDERED}, the time
+ * between consecutive marks is recorded into one {@link LatencyHistogram} per stage. Stage timings
+ * echoed by the server (the "timings" object of a reply, in milliseconds) are recorded under
+ * "server.&lt;name&gt;". Stages a request skipped, e.g. the network on a cache hit or an on-device
+ * result, are left out.
+ */
+public class LatencyTracker {
+    private static final String TAG = "Latency";
+    private static final int MAX_ACTIVE_TRACES = 64;
+
+    /** Marks in pipeline order; each names the segment that ends at it. */
+    public enum Stage {
+        START("start"),
+        DECODED("decode"),
+        INFERRED("on-device"),
+        ENCODED("encode"),
+        SERIALIZED("serialize"),
+        PUBLISHED("publish"),
+        REPLIED("network"),
+        RENDERED("render");
+
+        final String segment;
+
+        Stage(String segment) {
+            this.segment = segment;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    public static class Trace {
+        public final String traceId;
+        final long[] marks = new long[STAGES.length];
+        final Map<String, Double> serverTimingsMs = new LinkedHashMap<>();
+
+        Trace(String traceId) {
+            this.traceId = traceId;
+        }
+
+        /** Time spent in the segment ending at {@code stage}, or -1 if it was skipped. */
+        public long segmentNanos(Stage stage) {
+            int i = stage.ordinal();
+            if (i == 0 || marks[i] == 0) {
+                return -1;
+            }
+            for (int j = i - 1; j >= 0; j--) {
+                if (marks[j] != 0) {
+                    return marks[i] - marks[j];
+                }
+            }
+            return -1;
+        }
+
+        public long totalNanos() {
+            long end = 0;
+            for (long mark : marks) {
+                if (mark != 0) {
+                    end = mark;
+                }
+            }
+            return marks[0] != 0 ? end - marks[0] : 0;
+        }
+
+        /** One line per stage, for the debug overlay and logcat. */
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "request %s  %.1f ms", traceId, totalNanos() / 1e6));
+            for (int i = 1; i < STAGES.length; i++) {
+                long nanos = segmentNanos(STAGES[i]);
+                if (nanos >= 0) {
+                    sb.append(String.format(Locale.US, "\n%-10s %8.1f ms", STAGES[i].segment, nanos / 1e6));
+                }
+            }
+            for (Map.Entry<String, Double> timing : serverTimingsMs.entrySet()) {
+                sb.append(String.format(Locale.US, "\n  server.%-10s %8.1f ms", timing.getKey(), timing.getValue()));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final LinkedHashMap<String, Trace> active = new LinkedHashMap<>();
+    private final LatencyHistogram[] stageHistograms = new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram totalHistogram = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> serverHistograms = new LinkedHashMap<>();
+    private volatile Trace lastTrace;
+
+    public LatencyTracker() {
+        for (int i = 0; i < STAGES.length; i++) {
+            stageHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Starts a trace and marks {@link Stage#START}. */
+    public synchronized void begin(String traceId) {
+        Trace trace = new Trace(traceId);
+        trace.marks[0] = System.nanoTime();
+        active.put(traceId, trace);
+        // Traces of requests that never finished (app killed mid-request, errors) age out here
+        Iterator<String> it = active.keySet().iterator();
+        while (active.size() > MAX_ACTIVE_TRACES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Marks {@code stage} for the trace; only the first mark counts, so retries don't reset it.
+     * Reaching {@link Stage#RENDERED} records the trace and ends it. Unknown ids are ignored.
+     */
+    public void mark(String traceId, Stage stage) {
+        long now = System.nanoTime();
+        Trace finished = null;
+        synchronized (this) {
+            Trace trace = active.get(traceId);
+            if (trace == null || trace.marks[stage.ordinal()] != 0) {
+                return;
+            }
+            trace.marks[stage.ordinal()] = now;
+            if (stage == Stage.RENDERED) {
+                active.remove(traceId);
+                record(trace);
+                finished = trace;
+            }
+        }
+        if (finished != null) {
+            lastTrace = finished;
+        }
+    }
+
+    /** Adds the stage timings the server echoed in its reply. */
+    public synchronized void addServerTimings(String traceId, String[] names, double[] valuesMs, int count) {
+        Trace trace = active.get(traceId);
+        if (trace == null) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!Double.isNaN(valuesMs[i])) {
+                trace.serverTimingsMs.put(names[i], valuesMs[i]);
+            }
+        }
+    }
+
+    /** Drops a trace that will never render, e.g. a failed or timed-out request. */
+    public synchronized void discard(String traceId) {
+        active.remove(traceId);
+    }
+
+    public Trace getLastTrace() {
+        return lastTrace;
+    }
+
+    private void record(Trace trace) {
+        for (int i = 1; i < STAGES.length; i++) {
+            long nanos = trace.segmentNanos(STAGES[i]);
+            if (nanos >= 0) {
+                stageHistograms[i].recordNanos(nanos);
+            }
+        }
+        totalHistogram.recordNanos(trace.totalNanos());
+        for (Map.Entry<String, Double> timing : trace.serverTimingsMs.entrySet()) {
+            LatencyHistogram histogram = serverHistograms.get(timing.getKey());
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                serverHistograms.put(timing.getKey(), histogram);
+            }
+            histogram.record((long) (timing.getValue() * 1000));
+        }
+    }
+
+    /** p50/p95/p99/max per stage in milliseconds. */
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-18s %6s %8s %8s %8s %8s", "stage (ms)", "count", "p50", "p95", "p99", "max"));
+        for (int i = 1; i < STAGES.length; i++) {
+            appendRow(sb, STAGES[i].segment, stageHistograms[i]);
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : serverHistograms.entrySet()) {
+            appendRow(sb, "server." + entry.getKey(), entry.getValue());
+        }
+        appendRow(sb, "total", totalHistogram);
+        return sb.toString();
+    }
+
+    private static void appendRow(StringBuilder sb, String name, LatencyHistogram histogram) {
+        sb.append(String.format(Locale.US, "\n%-18s %6d %8.1f %8.1f %8.1f %8.1f", name, histogram.getCount(),
+                histogram.percentile(50) / 1e3, histogram.percentile(95) / 1e3,
+                histogram.percentile(99) / 1e3, histogram.getMax() / 1e3));
+    }
+
+    public void dumpToLog() {
+        for (String line : dump().split("\n")) {
+            Log.d(TAG, line);
+        }
+    }
+
+    public void dumpToFile(File file) {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(dump());
+            writer.write('\n');
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write latency dump: " + e.getMessage());
+        }
+    }
+}
@@ -4,129 +4,935 @@ import android.content.Context;
 import android.util.Log;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Process-wide MQTT transport, owned by {@code FoodDetectionApp} so the connection, client id and
+ * in-flight requests outlive activity recreation. Screens observe it through
+ * {@link ConnectionListener} and {@link PredictionListener}; both replay the latest value when
+ * added, so a recreated activity picks up where the old one left off.
+ */
 public class MqttClient {
     private static final String TAG = "MQTT";
-    private static final String MQTT_BROKER_URL = "tcp://broker.hivemq.com:1883";
+    /** Public brokers the server listens on, in order of preference until they are measured. */
+    public static final List<String> DEFAULT_BROKER_URLS = Collections.unmodifiableList(Arrays.asList(
+            "tcp://broker.hivemq.com:1883",
+            "tcp://broker.emqx.io:1883",
+            "tcp://test.mosquitto.org:1883"));
     private static final String TOPIC_IMAGE = "project/images";
     private static final String TOPIC_PREDICTIONS = "project/predictions";
+    private static final String TOPIC_PREDICTIONS_PREFIX = "project/predictions/";
+    // Retained server capabilities, e.g. {"image_format_version": 2, "thumbnail_upload": true, "chunked_upload": true,
+    // "image_partitions": 4}
+    private static final String TOPIC_CONFIG = "project/config";
+    // Pieces of payloads too large for one publish, see ChunkedTransfer
+    private static final String TOPIC_CHUNKS = "project/chunks";
 
-    private boolean isConnected = false;
+    /** Base64 image inside a JSON object; understood by every server version. */
+    public static final int IMAGE_FORMAT_JSON = 1;
+    /** Raw JPEG behind a small binary header, see {@link ImageFrameOutputStream}. */
+    public static final int IMAGE_FORMAT_BINARY = ImageFrameOutputStream.FORMAT_VERSION;
+
+    /**
+     * How prediction replies are routed back to this device.
+     * SHARED listens on the common predictions topic and filters by client_id (old servers).
+     * REPLY_TOPIC asks the server to answer on project/predictions/&lt;clientId&gt;; the shared topic is
+     * kept as a fallback until the first reply arrives on the private topic.
+     */
+    public enum ReplyMode {
+        SHARED,
+        REPLY_TOPIC
+    }
+
+    public enum ConnectionState {
+        CONNECTING,
+        CONNECTED,
+        DISCONNECTED
+    }
+
+    private volatile boolean isConnected = false;
+    private volatile ConnectionState connectionState = ConnectionState.DISCONNECTED;
+    private volatile String connectionError;
     private MqttAsyncClient mqttAsyncClient;
+    private ReplyMode replyMode = ReplyMode.REPLY_TOPIC;
+    private volatile boolean sharedTopicSubscribed = false;
+    // Raised to IMAGE_FORMAT_BINARY once the server advertises it on TOPIC_CONFIG
+    private volatile int serverImageFormatVersion = IMAGE_FORMAT_JSON;
+    // Server answers thumbnails and asks for the full image when it needs it
+    private volatile boolean serverAcceptsThumbnails = false;
+    // Server reassembles payloads sent in pieces on TOPIC_CHUNKS
+    private volatile boolean serverAcceptsChunks = false;
+    // Images go to TOPIC_IMAGE/<partition of our client id> when the server runs partitioned workers
+    private volatile int serverImagePartitions = 0;
+    // The client id is stable across restarts, so request ids must be too: start from the clock
+    private final AtomicLong requestCounter = new AtomicLong(System.currentTimeMillis());
+
+    // Per-attempt deadline, retry and pipelining limits for prediction requests
+    private static final long REQUEST_TIMEOUT_MS = 15000;
+    private static final int REQUEST_MAX_RETRIES = 2;
+    private static final long REQUEST_BACKOFF_MS = 1000;
+    private static final int MAX_REQUESTS_IN_FLIGHT = 4;
+
+    private final InFlightRequests<CompactPredictions> inFlightRequests = new InFlightRequests<>(
+            REQUEST_TIMEOUT_MS, REQUEST_MAX_RETRIES, REQUEST_BACKOFF_MS, MAX_REQUESTS_IN_FLIGHT);
+
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    // Only used on Paho's callback thread
+    private final ReplyDecoder replyDecoder = new ReplyDecoder();
+    private byte[] clientIdBytes;
+
+    // Offline messages live next to Paho's own persistence and are drained in batches on (re)connect
+    private static final int OUTBOX_MAX_ITEMS = 100;
+    private static final long OUTBOX_MAX_BYTES = 20L * 1024 * 1024;
+    private static final long OUTBOX_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+    private static final int OUTBOX_BATCH_SIZE = 10;
+    private static final int OUTBOX_MAX_CONCURRENT = 4;
+
+    private OutboundQueue outboundQueue;
+
+    // Payloads above one chunk go out in pieces, each acknowledged by the broker (QoS 1), so a
+    // dropped connection only costs the chunks that weren't acknowledged yet
+    private static final int CHUNK_SIZE = ChunkedTransfer.DEFAULT_CHUNK_SIZE;
+    private static final int MAX_PENDING_TRANSFERS = 16;
+    private final AtomicLong transferCounter = new AtomicLong(System.currentTimeMillis());
+    // Unfinished transfers by key, oldest first
+    private final Map<String, OutgoingTransfer> transfers = new LinkedHashMap<>();
+
+    // Paho only reconnects automatically after a first successful connect, so retry that one here
+    private static final long CONNECT_RETRY_MS = 1000;
+    private static final long CONNECT_RETRY_MAX_MS = 60000;
+    private final ScheduledExecutorService connectScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mqtt-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int connectAttempts;
+
+    // Brokers are probed in the background and the client moves when another is clearly faster;
+    // Paho's automatic reconnect tries them in ranked order when the current one goes away
+    private static final long PROBE_FIRST_DELAY_MS = 10000;
+    private static final long PROBE_INTERVAL_MS = 10L * 60 * 1000;
+    private static final long PROBE_AFTER_LOSS_MS = 5000;
+    private static final long PROBE_TIMEOUT_MS = 5000;
+    private static final double BROKER_SWITCH_MARGIN = 0.3;
+    private static final long BROKER_SWITCH_QUIESCE_MS = 2000;
+    private final BrokerSelector brokerSelector;
+    private final BrokerProbe brokerProbe = new BrokerProbe(PROBE_TIMEOUT_MS);
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private boolean probesScheduled;
+    // Broker of the current or last connection
+    private volatile String connectedBroker;
+
+    // Mutated as the network type changes; Paho reads it again on every (re)connect
+    private final MqttConnectOptions connectOptions = new MqttConnectOptions();
+    // Unacknowledged chunks per transfer, see setNetworkType
+    private volatile int chunkWindow = 4;
 
-    private final Context context;
-    private final MqttConnectionListener connectionListener;
+    private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+    private final List<PredictionListener> predictionListeners = new CopyOnWriteArrayList<>();
+    // Last prediction outcome, replayed to listeners that register after it arrived
+    private volatile PredictionEvent lastPrediction;
 
-    public interface MqttConnectionListener {
-        void onConnected();
+    public interface ConnectionListener {
+        /** Called with the current state when registered and again on every change, on an MQTT thread. */
+        void onConnectionStateChanged(ConnectionState state, String error);
+    }
+
+    public interface PredictionListener {
+        /**
+         * Called for every finished prediction request, including replies that arrive after the
+         * request timed out. Exactly one of {@code prediction} and {@code error} is non-null.
+         */
+        void onPredictionResult(String requestId, CompactPredictions prediction, Throwable error);
+    }
+
+    private static class PredictionEvent {
+        final String requestId;
+        final CompactPredictions prediction;
+        final Throwable error;
+
+        PredictionEvent(String requestId, CompactPredictions prediction, Throwable error) {
+            this.requestId = requestId;
+            this.prediction = prediction;
+            this.error = error;
+        }
+    }
 
-        void onConnectionFailed(String error);
+    public MqttClient(Context context, String clientId) {
+        this(context, clientId, DEFAULT_BROKER_URLS, ReplyMode.REPLY_TOPIC);
     }
 
-    public MqttClient(Context context, MqttCallback callback, MqttConnectionListener listener) {
-        this.context = context;
-        this.connectionListener = listener;
+    public MqttClient(Context context, String clientId, ReplyMode replyMode) {
+        this(context, clientId, DEFAULT_BROKER_URLS, replyMode);
+    }
+
+    /** {@code brokerUrls} in order of preference; the fastest working one is used once measured. */
+    public MqttClient(Context context, String clientId, List<String> brokerUrls, ReplyMode replyMode) {
+        this.replyMode = replyMode;
+        this.brokerSelector = new BrokerSelector(brokerUrls, BROKER_SWITCH_MARGIN);
+        inFlightRequests.setCompletionListener(this::notifyPrediction);
+        connectOptions.setAutomaticReconnect(true);
+        connectOptions.setCleanSession(true);
+        setNetworkType(NetworkMonitor.NetworkType.OTHER);
         try {
             String persistenceDir = context.getFilesDir().getAbsolutePath();
-            mqttAsyncClient = new MqttAsyncClient(MQTT_BROKER_URL, UUID.randomUUID().toString(),
+            outboundQueue = new OutboundQueue(new File(persistenceDir, "outbox"),
+                    OUTBOX_MAX_ITEMS, OUTBOX_MAX_BYTES, OUTBOX_MAX_AGE_MS);
+            mqttAsyncClient = new MqttAsyncClient(brokerUrls.get(0), clientId,
                     new MqttDefaultFilePersistence(persistenceDir));
-            mqttAsyncClient.setCallback(callback);
+            mqttAsyncClient.setCallback(new ReplyRoutingCallback());
+        } catch (MqttException e) {
+            e.printStackTrace();
+            setConnectionState(ConnectionState.DISCONNECTED, e.getMessage());
+        }
+    }
 
-            MqttConnectOptions options = new MqttConnectOptions();
-            options.setAutomaticReconnect(true);
-            options.setCleanSession(true);
+    /**
+     * Opens the connection once, to the best broker known so far; later drops are handled by
+     * Paho's automatic reconnect.
+     */
+    public synchronized void connect() {
+        if (mqttAsyncClient == null || connectionState != ConnectionState.DISCONNECTED) {
+            return;
+        }
+        setConnectionState(ConnectionState.CONNECTING, null);
+        if (!probesScheduled) {
+            probesScheduled = true;
+            connectScheduler.scheduleWithFixedDelay(this::probeBrokers, PROBE_FIRST_DELAY_MS, PROBE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        connectOptions.setServerURIs(brokerSelector.ranked().toArray(new String[0]));
 
-            mqttAsyncClient.connect(options, null, new IMqttActionListener() {
+        try {
+            mqttAsyncClient.connect(connectOptions, null, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken asyncActionToken) {
-                    Log.d(TAG, "Connected to MQTT broker");
-                    isConnected = true;
-
-                    if (connectionListener != null) {
-                        connectionListener.onConnected();
-                    }
-
-                    subscribeToPredictions();
+                    Log.d(TAG, "Connected to MQTT broker as " + getClientId());
+                    connectAttempts = 0;
+                    onConnectionUp();
                 }
 
                 @Override
                 public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
                     Log.e(TAG, "Failed to connect to MQTT broker: " + exception.getMessage());
                     isConnected = false;
-
-                    if (connectionListener != null) {
-                        connectionListener.onConnectionFailed(exception.getMessage());
-                    }
+                    setConnectionState(ConnectionState.DISCONNECTED, exception.getMessage());
+                    scheduleConnectRetry();
                 }
             });
-
         } catch (MqttException e) {
             e.printStackTrace();
-            if (connectionListener != null) {
-                connectionListener.onConnectionFailed(e.getMessage());
+            setConnectionState(ConnectionState.DISCONNECTED, e.getMessage());
+            scheduleConnectRetry();
+        }
+    }
+
+    private synchronized void scheduleConnectRetry() {
+        long delay = Math.min(CONNECT_RETRY_MS << Math.min(connectAttempts, 6), CONNECT_RETRY_MAX_MS);
+        connectAttempts++;
+        Log.d(TAG, "Retrying connect in " + delay + " ms");
+        connectScheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void onConnectionUp() {
+        String broker = mqttAsyncClient.getCurrentServerURI();
+        String previous = connectedBroker;
+        connectedBroker = broker;
+        isConnected = true;
+        inFlightRequests.setConnected(true);
+        setConnectionState(ConnectionState.CONNECTED, null);
+        // Clean session: subscriptions have to be made again
+        subscribeToPredictions();
+        if (previous != null && !previous.equals(broker)) {
+            onBrokerChanged(previous, broker);
+        }
+        resumeTransfers();
+        drainOutbox();
+    }
+
+    /**
+     * Replies to anything sent through the old broker come back through the old broker, and it
+     * holds the chunks it acknowledged. So in-flight requests are sent again, in full; queued
+     * messages are still on disk and drain as usual.
+     */
+    private void onBrokerChanged(String from, String to) {
+        Log.d(TAG, "Moved from " + from + " to " + to + ", resending " + inFlightRequests.inFlightCount()
+                + " request(s)");
+        List<OutgoingTransfer> stale;
+        synchronized (transfers) {
+            stale = new ArrayList<>(transfers.values());
+        }
+        for (OutgoingTransfer transfer : stale) {
+            if (transfer.requestId != null) {
+                removeTransfer(transfer);
+                transfer.cancel();
+            } else {
+                transfer.chunks.reset();
             }
         }
+        inFlightRequests.resendAll();
+    }
+
+    /** Measures every broker and moves to the best one if the current one is clearly worse. */
+    private void probeBrokers() {
+        if (brokerSelector.getUrls().size() < 2 || !probing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            brokerSelector.probeAll(brokerProbe);
+            Log.d(TAG, "Brokers: " + brokerSelector);
+            // Used by Paho's automatic reconnect as well as by connect()
+            connectOptions.setServerURIs(brokerSelector.ranked().toArray(new String[0]));
+            String current = connectedBroker;
+            if (isConnected && current != null && brokerSelector.shouldSwitch(current)) {
+                switchBroker(current);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Broker probe failed: " + e.getMessage());
+        } finally {
+            probing.set(false);
+        }
+    }
+
+    private void switchBroker(String from) {
+        Log.d(TAG, "Switching from " + from + " to " + brokerSelector.best());
+        try {
+            mqttAsyncClient.disconnect(BROKER_SWITCH_QUIESCE_MS).waitForCompletion();
+        } catch (MqttException e) {
+            Log.e(TAG, "Disconnect from " + from + " failed: " + e.getMessage());
+        }
+        isConnected = false;
+        inFlightRequests.setConnected(false);
+        setConnectionState(ConnectionState.DISCONNECTED, null);
+        connect();
+    }
+
+    /**
+     * Tunes the connection for the network: on mobile data a longer keepalive wakes the radio
+     * less often and a narrower window keeps a slow link from queueing up; on Wi-Fi the window
+     * opens wider. Keepalive and Paho's in-flight limit apply from the next (re)connect, which a
+     * change of network usually causes anyway.
+     */
+    public void setNetworkType(NetworkMonitor.NetworkType type) {
+        int keepAliveSeconds;
+        int maxInflight;
+        int chunks;
+        switch (type) {
+            case UNMETERED:
+                keepAliveSeconds = 60;
+                maxInflight = 64;
+                chunks = 8;
+                break;
+            case CELLULAR:
+                // Still below the idle timeout of most carrier NATs
+                keepAliveSeconds = 120;
+                maxInflight = 16;
+                chunks = 2;
+                break;
+            default:
+                keepAliveSeconds = 60;
+                maxInflight = 32;
+                chunks = 4;
+                break;
+        }
+        connectOptions.setKeepAliveInterval(keepAliveSeconds);
+        // Paho's default of 10 is easily used up by a few transfers plus the outbox drain
+        connectOptions.setMaxInflight(maxInflight);
+        chunkWindow = chunks;
+        Log.d(TAG, "Network " + type + ": keepalive " + keepAliveSeconds + " s, " + maxInflight
+                + " messages and " + chunks + " chunks per transfer in flight");
+    }
+
+    /** Broker of the current (or, while reconnecting, the last) connection. */
+    public String getConnectedBroker() {
+        return connectedBroker;
     }
 
     public boolean isConnected() {
         return isConnected;
     }
 
+    /** Stage timings of prediction requests; the request id doubles as the trace id. */
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    public ConnectionState getConnectionState() {
+        return connectionState;
+    }
+
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+        listener.onConnectionStateChanged(connectionState, connectionError);
+    }
+
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionListeners.remove(listener);
+    }
+
+    public void addPredictionListener(PredictionListener listener) {
+        predictionListeners.add(listener);
+        PredictionEvent last = lastPrediction;
+        if (last != null) {
+            listener.onPredictionResult(last.requestId, last.prediction, last.error);
+        }
+    }
+
+    public void removePredictionListener(PredictionListener listener) {
+        predictionListeners.remove(listener);
+    }
+
+    private void setConnectionState(ConnectionState state, String error) {
+        connectionState = state;
+        connectionError = error;
+        for (ConnectionListener listener : connectionListeners) {
+            listener.onConnectionStateChanged(state, error);
+        }
+    }
+
+    private void notifyPrediction(String requestId, CompactPredictions prediction, Throwable error) {
+        if (error == null) {
+            // Covers replies matched without a request id, which skip handlePredictionReply's mark
+            latencyTracker.mark(requestId, LatencyTracker.Stage.REPLIED);
+        }
+        lastPrediction = new PredictionEvent(requestId, prediction, error);
+        for (PredictionListener listener : predictionListeners) {
+            listener.onPredictionResult(requestId, prediction, error);
+        }
+    }
+
     public void publishJson(String topic, String jsonPayload) {
-        if (mqttAsyncClient != null && isConnected) {
+        try {
+            byte[] payload = jsonPayload.getBytes("UTF-8");
+            if (mqttAsyncClient != null && isConnected) {
+                mqttAsyncClient.publish(topic, new MqttMessage(payload));
+            } else if (outboundQueue != null) {
+                Log.d(TAG, "MQTT client not connected, queueing message for " + topic);
+                outboundQueue.enqueue("json-" + UUID.randomUUID(), topic, payload);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Number of messages waiting for the connection to come back. */
+    public int getQueuedMessageCount() {
+        return outboundQueue != null ? outboundQueue.size() : 0;
+    }
+
+    private void drainOutbox() {
+        outboundQueue.drain((topic, payload, onSuccess, onFailure) -> {
+            if (shouldChunk(payload)) {
+                drainChunked(topic, payload, onSuccess, onFailure);
+                return;
+            }
             try {
-                MqttMessage message = new MqttMessage(jsonPayload.getBytes("UTF-8"));
-                mqttAsyncClient.publish(topic, message);
-            } catch (Exception e) {
-                e.printStackTrace();
+                // QoS 1 so a queued message is only deleted once the broker has it
+                mqttAsyncClient.publish(topic, payload, 1, false, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken) {
+                        onSuccess.run();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                        onFailure.run();
+                    }
+                });
+            } catch (MqttException e) {
+                onFailure.run();
             }
-        } else {
-            Log.e(TAG, "MQTT client not connected, cannot publish message.");
+        }, OUTBOX_BATCH_SIZE, OUTBOX_MAX_CONCURRENT);
+    }
+
+    /**
+     * Sends a queued message in chunks. The queue only deletes it once every chunk is
+     * acknowledged; if the connection drops first, the next drain reads the same message again
+     * and picks up the unfinished transfer instead of starting over.
+     */
+    private void drainChunked(String topic, byte[] payload, Runnable onSuccess, Runnable onFailure) {
+        String key = "outbox-" + topic + "-" + payload.length + "-" + Arrays.hashCode(payload);
+        OutgoingTransfer transfer;
+        synchronized (transfers) {
+            transfer = transfers.get(key);
         }
+        if (transfer == null) {
+            transfer = startTransfer(key, null, topic, payload);
+        }
+        transfer.setCallbacks(onSuccess, onFailure);
+        transfer.start();
     }
 
+    private boolean shouldChunk(byte[] payload) {
+        return serverAcceptsChunks && payload.length > CHUNK_SIZE;
+    }
 
+    /**
+     * Splits (and, unless it is an image, compresses) the payload and registers the transfer under
+     * {@code key}, replacing an earlier one with the same key, e.g. a retried request that is
+     * sent again in full. Call {@link OutgoingTransfer#start()} to send it.
+     */
+    private OutgoingTransfer startTransfer(String key, String requestId, String topic, byte[] payload) {
+        ChunkedTransfer chunks = ChunkedTransfer.create(getClientId(),
+                Long.toString(transferCounter.incrementAndGet(), 36), topic, payload, CHUNK_SIZE, true);
+        OutgoingTransfer transfer = new OutgoingTransfer(key, requestId, chunks, getChunkTopic(topic));
+        List<OutgoingTransfer> dropped = new ArrayList<>();
+        synchronized (transfers) {
+            OutgoingTransfer replaced = transfers.remove(key);
+            if (replaced != null) {
+                dropped.add(replaced);
+            }
+            transfers.put(key, transfer);
+            Iterator<OutgoingTransfer> oldest = transfers.values().iterator();
+            while (transfers.size() > MAX_PENDING_TRANSFERS) {
+                dropped.add(oldest.next());
+                oldest.remove();
+            }
+        }
+        for (OutgoingTransfer old : dropped) {
+            old.cancel();
+        }
+        Log.d(TAG, "Sending " + payload.length + " bytes for " + topic + " in " + chunks.getChunkCount()
+                + " chunks" + (chunks.isDeflated() ? ", deflated to " + chunks.getDataLength() : ""));
+        return transfer;
+    }
 
-    public void publishImage(byte[] imageBytes) {
-        try {
-            if (mqttAsyncClient != null && mqttAsyncClient.isConnected()) {
-                String clientId = mqttAsyncClient.getClientId();
-                String base64Image = android.util.Base64.encodeToString(imageBytes, android.util.Base64.DEFAULT);
+    /**
+     * After a reconnect: sends the chunks of unfinished requests that the broker never
+     * acknowledged. Transfers whose request has since finished or given up are dropped; queued
+     * messages are resumed by the outbox drain.
+     */
+    private void resumeTransfers() {
+        List<OutgoingTransfer> pending = new ArrayList<>();
+        synchronized (transfers) {
+            Iterator<OutgoingTransfer> it = transfers.values().iterator();
+            while (it.hasNext()) {
+                OutgoingTransfer transfer = it.next();
+                if (transfer.requestId == null) {
+                    continue;
+                }
+                if (inFlightRequests.isInFlight(transfer.requestId)) {
+                    pending.add(transfer);
+                } else {
+                    transfer.cancel();
+                    it.remove();
+                }
+            }
+        }
+        for (OutgoingTransfer transfer : pending) {
+            Log.d(TAG, "Resuming transfer for request " + transfer.requestId + ": "
+                    + transfer.chunks.getMissingCount() + " of " + transfer.chunks.getChunkCount() + " chunks left");
+            transfer.start();
+        }
+    }
+
+    private void removeTransfer(OutgoingTransfer transfer) {
+        synchronized (transfers) {
+            transfers.remove(transfer.key, transfer);
+        }
+    }
+
+    /** A chunked payload on its way, with at most {@link #chunkWindow} chunks unacknowledged. */
+    private class OutgoingTransfer {
+        final String key;
+        // Null for queued messages
+        final String requestId;
+        final ChunkedTransfer chunks;
+        final String chunkTopic;
+        private Runnable onComplete;
+        private Runnable onFailure;
+        // Bumped on every (re)start and failure, so acknowledgements from an older round still
+        // count as delivered but no longer move the window
+        private int round;
+        private int nextSeq;
+        private int inFlight;
+        private boolean finished;
+
+        OutgoingTransfer(String key, String requestId, ChunkedTransfer chunks, String chunkTopic) {
+            this.key = key;
+            this.requestId = requestId;
+            this.chunks = chunks;
+            this.chunkTopic = chunkTopic;
+        }
+
+        /** Exactly one of them runs, once, when the transfer completes or stalls. */
+        synchronized void setCallbacks(Runnable onComplete, Runnable onFailure) {
+            this.onComplete = onComplete;
+            this.onFailure = onFailure;
+        }
+
+        /** Sends every chunk that isn't acknowledged yet, from the first. */
+        synchronized void start() {
+            round++;
+            nextSeq = 0;
+            inFlight = 0;
+            pump();
+        }
+
+        synchronized void cancel() {
+            finished = true;
+            onComplete = null;
+            onFailure = null;
+        }
+
+        private void pump() {
+            while (!finished && inFlight < chunkWindow) {
+                int seq = chunks.nextMissing(nextSeq);
+                if (seq < 0) {
+                    break;
+                }
+                int sentRound = round;
+                try {
+                    mqttAsyncClient.publish(chunkTopic, chunks.chunk(seq), 1, false, null, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken asyncActionToken) {
+                            onChunkDone(sentRound, seq, true);
+                        }
 
-                JSONObject payload = new JSONObject();
-                payload.put("client_id", clientId);
-                payload.put("image_data", base64Image);
+                        @Override
+                        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                            onChunkDone(sentRound, seq, false);
+                        }
+                    });
+                } catch (MqttException e) {
+                    stall("chunk " + seq + ": " + e.getMessage());
+                    return;
+                }
+                nextSeq = seq + 1;
+                inFlight++;
+            }
+            if (!finished && inFlight == 0 && chunks.isComplete()) {
+                finished = true;
+                removeTransfer(this);
+                Runnable callback = onComplete;
+                onComplete = null;
+                onFailure = null;
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        }
 
-                MqttMessage message = new MqttMessage(payload.toString().getBytes("UTF-8"));
-                mqttAsyncClient.publish(TOPIC_IMAGE, message);
+        private synchronized void onChunkDone(int sentRound, int seq, boolean delivered) {
+            if (delivered) {
+                chunks.markDelivered(seq);
+            }
+            if (sentRound != round) {
+                return;
+            }
+            inFlight--;
+            if (delivered) {
+                pump();
             } else {
-                Log.e(TAG, "Cannot publish, MQTT client not connected");
+                stall("chunk " + seq + " not acknowledged");
+            }
+        }
+
+        /** Stops sending until the next {@link #start()}; what was acknowledged stays acknowledged. */
+        private void stall(String reason) {
+            Log.d(TAG, "Transfer " + chunks.getTransferId() + " paused at " + chunks.getMissingCount()
+                    + " missing chunks, " + reason);
+            round++;
+            inFlight = 0;
+            Runnable callback = onFailure;
+            onComplete = null;
+            onFailure = null;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * Starts an image frame for the next request. Compress the image into the returned stream and
+     * pass it to {@link #publishImage(ImageFrameOutputStream)}.
+     */
+    public ImageFrameOutputStream newImageFrame(int expectedImageSize) {
+        return newImageFrame(nextRequestId(), expectedImageSize);
+    }
+
+    public ImageFrameOutputStream newImageFrame(String requestId, int expectedImageSize) {
+        return newImageFrame(requestId, expectedImageSize, 0);
+    }
+
+    /** {@code flags} e.g. {@link ImageFrameOutputStream#FLAG_THUMBNAIL}; the reply topic flag is added here. */
+    public ImageFrameOutputStream newImageFrame(String requestId, int expectedImageSize, int flags) {
+        if (replyMode == ReplyMode.REPLY_TOPIC) {
+            flags |= ImageFrameOutputStream.FLAG_REPLY_TOPIC;
+        }
+        return new ImageFrameOutputStream(getClientId(), requestId, flags, expectedImageSize);
+    }
+
+    public String nextRequestId() {
+        return Long.toString(requestCounter.incrementAndGet());
+    }
+
+    public void publishImage(byte[] imageBytes) {
+        ImageFrameOutputStream frame = newImageFrame(imageBytes.length);
+        frame.write(imageBytes, 0, imageBytes.length);
+        publishImage(frame);
+    }
+
+    /**
+     * Publishes the frame as-is when the server understands binary frames, otherwise falls back
+     * to the JSON/Base64 message that older servers expect. Payloads larger than one chunk are
+     * sent in chunks when the server supports it (see {@link ChunkedTransfer}).
+     */
+    public void publishImage(ImageFrameOutputStream frame) {
+        try {
+            byte[] payload;
+            if (getImageFormat() == IMAGE_FORMAT_BINARY) {
+                payload = frame.toFrame();
+            } else {
+                payload = buildJsonImagePayload(frame);
+            }
+            latencyTracker.mark(frame.getRequestId(), LatencyTracker.Stage.SERIALIZED);
+            String topic = getImageTopic();
+
+            if (mqttAsyncClient != null && mqttAsyncClient.isConnected()) {
+                if (shouldChunk(payload)) {
+                    startTransfer("image-" + frame.getRequestId(), frame.getRequestId(), topic, payload).start();
+                } else {
+                    mqttAsyncClient.publish(topic, new MqttMessage(payload));
+                }
+                latencyTracker.mark(frame.getRequestId(), LatencyTracker.Stage.PUBLISHED);
+            } else if (outboundQueue != null) {
+                // Keyed by request id so retries replace the queued copy instead of piling up
+                Log.d(TAG, "MQTT client not connected, queueing image " + frame.getRequestId());
+                outboundQueue.enqueue("image-" + frame.getRequestId(), topic, payload);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Sends the frame as a tracked prediction request. The future completes with the decoded
+     * predictions for this request id, fails after the last retry times out, and can be
+     * cancelled to stop retrying.
+     */
+    public CompletableFuture<CompactPredictions> requestPrediction(ImageFrameOutputStream frame) {
+        return inFlightRequests.submit(frame.getRequestId(), stageOf(frame.getFlags()), () -> publishImage(frame));
+    }
+
+    /**
+     * A full image goes out under its thumbnail's request id; the stage tells their replies apart,
+     * so a late copy of the thumbnail's reply can't complete the full image's request.
+     */
+    private static int stageOf(int flags) {
+        if (flags < 0) {
+            return InFlightRequests.ANY_STAGE;
+        }
+        return (flags & ImageFrameOutputStream.FLAG_FULL_IMAGE) != 0 ? 1 : 0;
+    }
+
+    private byte[] buildJsonImagePayload(ImageFrameOutputStream frame) {
+        return MessageCodec.encodeImageJson(frame, getClientId(),
+                replyMode == ReplyMode.REPLY_TOPIC ? getReplyTopic() : null);
+    }
+
+    /** Image format used for the next publish, negotiated from the server's config message. */
+    public int getImageFormat() {
+        return serverImageFormatVersion >= IMAGE_FORMAT_BINARY ? IMAGE_FORMAT_BINARY : IMAGE_FORMAT_JSON;
+    }
+
+    /**
+     * Whether to send a thumbnail first (see {@link ImageFrameOutputStream#FLAG_THUMBNAIL}).
+     * Needs binary frames, as the flags travel in the frame header.
+     */
+    public boolean isThumbnailUploadSupported() {
+        return serverAcceptsThumbnails && getImageFormat() == IMAGE_FORMAT_BINARY;
+    }
+
+    /**
+     * Where images are published: TOPIC_IMAGE, or the partition of this client id when the server
+     * advertises partitioned workers (see {@link ImagePartitions}). The client id never changes,
+     * so every request of this device goes to the same worker, in order.
+     */
+    public String getImageTopic() {
+        String clientId = getClientId();
+        if (clientId == null) {
+            return TOPIC_IMAGE;
+        }
+        return ImagePartitions.topicFor(TOPIC_IMAGE, clientId, serverImagePartitions);
+    }
+
+    /** Chunks of a partitioned image go to the same partition of TOPIC_CHUNKS, so one worker joins them. */
+    private String getChunkTopic(String topic) {
+        if (topic.startsWith(TOPIC_IMAGE + "/")) {
+            return TOPIC_CHUNKS + topic.substring(TOPIC_IMAGE.length());
+        }
+        return TOPIC_CHUNKS;
+    }
 
+    private void handleConfigMessage(MqttMessage message) {
+        try {
+            JSONObject config = new JSONObject(new String(message.getPayload(), "UTF-8"));
+            serverImageFormatVersion = config.optInt("image_format_version", IMAGE_FORMAT_JSON);
+            serverAcceptsThumbnails = config.optBoolean("thumbnail_upload", false);
+            serverAcceptsChunks = config.optBoolean("chunked_upload", false);
+            serverImagePartitions = Math.max(0, config.optInt("image_partitions", 0));
+            Log.d(TAG, "Server image format version " + serverImageFormatVersion
+                    + (serverAcceptsThumbnails ? ", thumbnail upload" : "")
+                    + (serverAcceptsChunks ? ", chunked upload" : "")
+                    + (serverImagePartitions > 0 ? ", images on " + getImageTopic() : ""));
+        } catch (Exception e) {
+            Log.e(TAG, "Ignoring malformed config message: " + e.getMessage());
+        }
+    }
 
     private void subscribeToPredictions() {
         try {
+            if (replyMode == ReplyMode.REPLY_TOPIC) {
+                mqttAsyncClient.subscribe(getReplyTopic(), 0);
+            }
+            // Old servers ignore reply_to and only answer on the shared topic
             mqttAsyncClient.subscribe(TOPIC_PREDICTIONS, 0);
+            sharedTopicSubscribed = true;
+            mqttAsyncClient.subscribe(TOPIC_CONFIG, 0);
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void unsubscribeSharedPredictions() {
+        if (!sharedTopicSubscribed) {
+            return;
+        }
+        sharedTopicSubscribed = false;
+        try {
+            mqttAsyncClient.unsubscribe(TOPIC_PREDICTIONS);
+            Log.d(TAG, "Server answers on " + getReplyTopic() + ", dropped shared predictions topic");
         } catch (MqttException e) {
             e.printStackTrace();
         }
     }
 
+    public String getReplyTopic() {
+        return TOPIC_PREDICTIONS_PREFIX + getClientId();
+    }
+
+    /**
+     * True when the message arrived on this client's private reply topic, so it does not need
+     * to be filtered by client_id.
+     */
+    public boolean isReplyTopic(String topic) {
+        return replyMode == ReplyMode.REPLY_TOPIC && getReplyTopic().equals(topic);
+    }
+
+    private class ReplyRoutingCallback implements MqttCallbackExtended {
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            if (!reconnect) {
+                return; // handled by the connect listener
+            }
+            Log.d(TAG, "Reconnected to " + serverURI);
+            onConnectionUp();
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            isConnected = false;
+            inFlightRequests.setConnected(false);
+            // Paho reconnects on its own from here, trying the brokers in ranked order; re-rank them soon
+            connectScheduler.schedule(MqttClient.this::probeBrokers, PROBE_AFTER_LOSS_MS, TimeUnit.MILLISECONDS);
+            setConnectionState(ConnectionState.CONNECTING, cause != null ? cause.getMessage() : null);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            if (TOPIC_CONFIG.equals(topic)) {
+                handleConfigMessage(message);
+                return;
+            }
+            if (isReplyTopic(topic)) {
+                unsubscribeSharedPredictions();
+            }
+            if (isReplyTopic(topic) || TOPIC_PREDICTIONS.equals(topic)) {
+                handlePredictionReply(topic, message);
+                return;
+            }
+            Log.d(TAG, "Unhandled message on " + topic);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+
+    private void handlePredictionReply(String topic, MqttMessage message) {
+        try {
+            // On the shared topic the decoder gives up at client_id when the reply isn't ours
+            byte[] payload = message.getPayload();
+            DecodedReply reply = replyDecoder.decodeReply(payload, 0, payload.length,
+                    isReplyTopic(topic) ? null : getClientIdBytes());
+            if (reply == null) {
+                return;
+            }
+
+            String requestId = reply.requestId;
+            if (requestId != null) {
+                latencyTracker.mark(requestId, LatencyTracker.Stage.REPLIED);
+                latencyTracker.addServerTimings(requestId, reply.timingNames, reply.timingValuesMs, reply.timingCount);
+            }
+            CompactPredictions prediction = reply.predictions;
+            int stage = stageOf(reply.flags);
+            boolean matched;
+            if (reply.isError()) {
+                IOException error = new IOException(reply.error);
+                // An error without a request id is for the oldest request, like a legacy reply
+                matched = requestId != null ? inFlightRequests.fail(requestId, stage, error)
+                        : inFlightRequests.failOldest(error);
+            } else if (requestId != null) {
+                matched = inFlightRequests.complete(requestId, stage, prediction);
+            } else {
+                // Servers that predate request ids answer in order
+                matched = inFlightRequests.completeOldest(prediction);
+            }
+
+            if (!matched && requestId != null && inFlightRequests.isInFlight(requestId)) {
+                // An earlier stage's reply, e.g. a duplicate of the thumbnail's while the full image is out
+                Log.d(TAG, "Dropped stale reply for request " + requestId + " (flags " + reply.flags + ")");
+            } else if (!matched && requestId != null && !reply.isError()) {
+                // Timed out or retried already; the screen may still be showing this image
+                Log.d(TAG, "Late reply for request " + requestId);
+                notifyPrediction(requestId, prediction, null);
+            } else if (!matched) {
+                Log.d(TAG, "Dropped unknown reply for request " + requestId);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to parse prediction reply: " + e.getMessage());
+        }
+    }
+
     public String getClientId() {
         if (mqttAsyncClient != null) {
             return mqttAsyncClient.getClientId();
@@ -134,10 +940,20 @@ public class MqttClient {
         return null;
     }
 
+    private byte[] getClientIdBytes() {
+        if (clientIdBytes == null) {
+            clientIdBytes = getClientId().getBytes(StandardCharsets.UTF_8);
+        }
+        return clientIdBytes;
+    }
+
     public void disconnect() {
         try {
             if (mqttAsyncClient != null) {
+                inFlightRequests.shutdown();
+                connectScheduler.shutdownNow();
                 mqttAsyncClient.disconnect();
+                setConnectionState(ConnectionState.DISCONNECTED, null);
             }
         } catch (MqttException e) {
             e.printStackTrace();
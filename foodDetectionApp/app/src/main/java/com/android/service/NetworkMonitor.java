@@ -0,0 +1,79 @@
+package com.android.service;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+/**
+ * Follows the default network's transport, so the MQTT connection can be tuned for it (see
+ * {@link MqttClient#setNetworkType}).
+ */
+public class NetworkMonitor {
+    private static final String TAG = "NetworkMonitor";
+
+    public enum NetworkType {
+        /** Wi-Fi or Ethernet: fast, cheap and rarely behind an aggressive NAT. */
+        UNMETERED,
+        /** Mobile data: slower, every keepalive wakes the radio. */
+        CELLULAR,
+        /** No network, or one we can't classify. */
+        OTHER
+    }
+
+    public interface Listener {
+        void onNetworkTypeChanged(NetworkType type);
+    }
+
+    private final ConnectivityManager connectivityManager;
+    private volatile NetworkType networkType = NetworkType.OTHER;
+
+    public NetworkMonitor(Context context) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /** Reports the current type right away, then every change, on a system thread. */
+    public void start(Listener listener) {
+        if (connectivityManager == null) {
+            listener.onNetworkTypeChanged(networkType);
+            return;
+        }
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                update(typeOf(capabilities), listener);
+            }
+
+            @Override
+            public void onLost(Network network) {
+                update(NetworkType.OTHER, listener);
+            }
+        });
+    }
+
+    public NetworkType getNetworkType() {
+        return networkType;
+    }
+
+    private void update(NetworkType type, Listener listener) {
+        if (type == networkType) {
+            return;
+        }
+        Log.d(TAG, "Network type " + networkType + " -> " + type);
+        networkType = type;
+        listener.onNetworkTypeChanged(type);
+    }
+
+    private static NetworkType typeOf(NetworkCapabilities capabilities) {
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return NetworkType.UNMETERED;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return NetworkType.CELLULAR;
+        }
+        return NetworkType.OTHER;
+    }
+}
@@ -0,0 +1,216 @@
+package com.android.service;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Messages published while offline, one file per message so they survive process death.
+ *
+ * Files are named {@code <createdAt>-<key>.msg}; enqueueing with a key that is already queued
+ * replaces the older copy (e.g. a retried image request). The oldest messages are dropped once
+ * the queue exceeds its item or byte limit, and expired ones are dropped when draining.
+ */
+public class OutboundQueue {
+    private static final String TAG = "OutboundQueue";
+    private static final String SUFFIX = ".msg";
+    private static final int FILE_VERSION = 1;
+
+    public interface Publisher {
+        /** Publishes asynchronously and reports the outcome through exactly one of the callbacks. */
+        void publish(String topic, byte[] payload, Runnable onSuccess, Runnable onFailure);
+    }
+
+    private static class Item {
+        final String topic;
+        final byte[] payload;
+
+        Item(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    private final File dir;
+    private final int maxItems;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final ExecutorService drainExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    public OutboundQueue(File dir, int maxItems, long maxBytes, long maxAgeMs) {
+        this.dir = dir;
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create outbound queue dir " + dir);
+        }
+    }
+
+    public synchronized void enqueue(String key, String topic, byte[] payload) {
+        String safeKey = key.replaceAll("[^A-Za-z0-9_-]", "_");
+        for (File existing : listOldestFirst()) {
+            if (existing.getName().endsWith("-" + safeKey + SUFFIX)) {
+                existing.delete();
+            }
+        }
+
+        File file = new File(dir, String.format(Locale.US, "%013d-%s%s", System.currentTimeMillis(), safeKey, SUFFIX));
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(topic);
+            out.writeInt(payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to queue message for " + topic + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        Log.d(TAG, "Queued " + payload.length + " bytes for " + topic);
+        enforceLimits();
+    }
+
+    public synchronized int size() {
+        return listOldestFirst().size();
+    }
+
+    /**
+     * Publishes queued messages oldest first, {@code batchSize} at a time with at most
+     * {@code maxConcurrent} outstanding. Each file is deleted once its publish succeeds; the
+     * drain stops at the first failure and resumes on the next call.
+     */
+    public void drain(Publisher publisher, int batchSize, int maxConcurrent) {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        drainExecutor.execute(() -> {
+            try {
+                drainLoop(publisher, batchSize, maxConcurrent);
+            } finally {
+                draining.set(false);
+            }
+        });
+    }
+
+    private void drainLoop(Publisher publisher, int batchSize, int maxConcurrent) {
+        Semaphore permits = new Semaphore(maxConcurrent);
+        AtomicBoolean failed = new AtomicBoolean();
+        int sent = 0;
+
+        List<File> batch = nextBatch(batchSize);
+        while (!batch.isEmpty() && !failed.get()) {
+            for (File file : batch) {
+                permits.acquireUninterruptibly();
+                Item item = failed.get() ? null : read(file);
+                if (item == null) {
+                    permits.release();
+                    continue;
+                }
+                try {
+                    publisher.publish(item.topic, item.payload, () -> {
+                        file.delete();
+                        permits.release();
+                    }, () -> {
+                        failed.set(true);
+                        permits.release();
+                    });
+                    sent++;
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    permits.release();
+                }
+            }
+            // Wait for the whole batch before picking the next one
+            permits.acquireUninterruptibly(maxConcurrent);
+            permits.release(maxConcurrent);
+            batch = failed.get() ? new ArrayList<File>() : nextBatch(batchSize);
+        }
+        Log.d(TAG, "Drained " + sent + " queued messages" + (failed.get() ? ", stopped on failure" : ""));
+    }
+
+    private synchronized List<File> nextBatch(int batchSize) {
+        long now = System.currentTimeMillis();
+        List<File> batch = new ArrayList<>();
+        for (File file : listOldestFirst()) {
+            if (now - createdAt(file) > maxAgeMs) {
+                Log.d(TAG, "Dropping expired " + file.getName());
+                file.delete();
+            } else if (batch.size() < batchSize) {
+                batch.add(file);
+            }
+        }
+        return batch;
+    }
+
+    private Item read(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown version");
+            }
+            String topic = in.readUTF();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            return new Item(topic, payload);
+        } catch (IOException e) {
+            // Partially written or from an incompatible build; it will never send
+            Log.e(TAG, "Dropping unreadable " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    private void enforceLimits() {
+        List<File> files = listOldestFirst();
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        int count = files.size();
+        for (int i = 0; i < files.size() && (count > maxItems || totalBytes > maxBytes); i++) {
+            File oldest = files.get(i);
+            totalBytes -= oldest.length();
+            count--;
+            Log.d(TAG, "Queue full, dropping " + oldest.getName());
+            oldest.delete();
+        }
+    }
+
+    private List<File> listOldestFirst() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static long createdAt(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('-')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.android.fooddetectionapp;
+
+import android.graphics.Bitmap;
+
+import com.android.service.CompactPredictions;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClassifierRouterTest {
+
+    private static class FakeClassifier implements Classifier {
+        boolean available = true;
+        CompletableFuture<CompactPredictions> next = new CompletableFuture<>();
+        int calls;
+        int transientCalls;
+
+        @Override
+        public CompletableFuture<CompactPredictions> classify(Bitmap image, String requestId) {
+            calls++;
+            return next;
+        }
+
+        @Override
+        public CompletableFuture<CompactPredictions> classifyTransient(Bitmap image, String requestId) {
+            transientCalls++;
+            return classify(image, requestId);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return available;
+        }
+    }
+
+    private final FakeClassifier local = new FakeClassifier();
+    private final FakeClassifier remote = new FakeClassifier();
+    private boolean batteryLow;
+    private final ClassifierRouter router = new ClassifierRouter(local, remote, () -> batteryLow, 0.5f, 200);
+
+    private static CompactPredictions result(float confidence) {
+        return CompactPredictions.fromScores(new float[]{confidence}, new String[]{"laksa"}, new int[]{7},
+                new float[0], 0, 0.01f);
+    }
+
+    private CompactPredictions classify() throws Exception {
+        return router.classify(null, "1").get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void confidentLocalResultStaysOnDevice() throws Exception {
+        CompactPredictions confident = result(0.9f);
+        local.next.complete(confident);
+        assertSame(confident, classify());
+        assertEquals(0, remote.calls);
+    }
+
+    @Test
+    public void unsureLocalResultAsksServer() throws Exception {
+        local.next.complete(result(0.2f));
+        CompactPredictions server = result(0.8f);
+        remote.next.complete(server);
+        assertSame(server, classify());
+    }
+
+    @Test
+    public void slowOrFailingServerFallsBackToLocal() throws Exception {
+        CompactPredictions unsure = result(0.2f);
+        local.next.complete(unsure);
+        // Never answers: the wait runs out
+        assertSame(unsure, classify());
+
+        remote.next = new CompletableFuture<>();
+        remote.next.completeExceptionally(new RuntimeException("broker down"));
+        assertSame(unsure, classify());
+    }
+
+    @Test
+    public void offlineOrLowBatteryStaysOnDevice() throws Exception {
+        CompactPredictions unsure = result(0.2f);
+        local.next.complete(unsure);
+
+        remote.available = false;
+        assertEquals(ClassifierRouter.Route.LOCAL_ONLY, router.chooseRoute());
+        assertSame(unsure, classify());
+
+        remote.available = true;
+        batteryLow = true;
+        assertEquals(ClassifierRouter.Route.LOCAL_ONLY, router.chooseRoute());
+        assertSame(unsure, classify());
+        assertEquals(0, remote.calls);
+    }
+
+    @Test
+    public void missingOrFailingModelUsesServer() throws Exception {
+        CompactPredictions server = result(0.8f);
+        remote.next.complete(server);
+
+        local.available = false;
+        assertEquals(ClassifierRouter.Route.REMOTE_ONLY, router.chooseRoute());
+        assertSame(server, classify());
+        assertEquals(0, local.calls);
+
+        local.available = true;
+        local.next.completeExceptionally(new IllegalStateException("bad model"));
+        assertSame(server, classify());
+    }
+
+    @Test
+    public void liveFramesNeverWaitForTheServer() throws Exception {
+        CompactPredictions unsure = result(0.2f);
+        local.next.complete(unsure);
+        assertSame(unsure, router.classifyLive(null, "1").get(2, TimeUnit.SECONDS));
+        assertEquals(0, remote.calls);
+
+        CompactPredictions server = result(0.8f);
+        remote.next.complete(server);
+        local.available = false;
+        assertSame(server, router.classifyLive(null, "2").get(2, TimeUnit.SECONDS));
+        // The server must not keep live frames
+        assertEquals(1, remote.transientCalls);
+    }
+}
@@ -0,0 +1,30 @@
+package com.android.fooddetectionapp;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class ConfidenceTextTest {
+
+    private static String format(float confidence) {
+        char[] out = new char[ConfidenceText.MAX_LENGTH];
+        return new String(out, 0, ConfidenceText.format(confidence, out));
+    }
+
+    @Test
+    public void matchesStringFormat() {
+        for (int i = 0; i <= 10000; i++) {
+            float confidence = i / 10000f;
+            assertEquals(String.format(Locale.US, "%.2f%%", Math.round(confidence * 10000) / 100.0), format(confidence));
+        }
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        assertEquals("100.00%", format(1.5f));
+        assertEquals("0.00%", format(-0.2f));
+        assertEquals("0.00%", format(Float.NaN));
+    }
+}
@@ -0,0 +1,57 @@
+package com.android.fooddetectionapp;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Reports bytes per image and encode time for each JPEG {@link EncodePolicy} preset, over
+ * synthetic camera-sized photos. Not a unit test, so it stays out of the test run:
+ * {@code ./gradlew :app:encoderBenchmark}, optionally with {@code --args="<images>"}.
+ */
+public final class ImageEncoderBenchmark {
+    private static final EncodePolicy[] POLICIES = {EncodePolicy.SMALL, EncodePolicy.DEFAULT, EncodePolicy.LARGE};
+    private static final int WARMUP_ROUNDS = 2;
+
+    private ImageEncoderBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int images = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        BufferedImage[] photos = new BufferedImage[images];
+        Random random = new Random(42);
+        for (int i = 0; i < images; i++) {
+            photos[i] = SyntheticPhotos.photo(4000, 3000, random);
+        }
+
+        ImageEncoder encoder = new ImageEncoder();
+        for (EncodePolicy policy : POLICIES) {
+            BufferedImage[] scaled = new BufferedImage[images];
+            for (int i = 0; i < images; i++) {
+                scaled[i] = SyntheticPhotos.scaleToMaxEdge(photos[i], policy.maxEdgePx);
+            }
+            // JIT and ImageIO warm-up, not counted
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                encodeAll(encoder, policy, scaled);
+            }
+            long[] totals = encodeAll(encoder, policy, scaled);
+            System.out.printf(Locale.US, "%-40s %8d bytes/image %7.1f ms/image %4.1f attempts/image%n", policy,
+                    totals[0] / images, totals[1] / 1e6 / images, (double) totals[2] / images);
+        }
+    }
+
+    /** {bytes, encode nanos, attempts} summed over {@code photos}. */
+    private static long[] encodeAll(ImageEncoder encoder, EncodePolicy policy, BufferedImage[] photos)
+            throws IOException {
+        long[] totals = new long[3];
+        for (BufferedImage photo : photos) {
+            ImageEncoder.Result result = encoder.encode(
+                    (format, quality, out) -> SyntheticPhotos.writeJpeg(photo, quality, out), policy);
+            totals[0] += result.size;
+            totals[1] += result.encodeNanos;
+            totals[2] += result.attempts;
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,58 @@
+package com.android.fooddetectionapp;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the encode policies over a synthetic photo on the host JVM. ImageIO stands in for
+ * Bitmap.compress, so only JPEG policies run here. Sizes and timings per policy are reported by
+ * {@link ImageEncoderBenchmark}, outside the test run.
+ */
+public class ImageEncoderTest {
+    private static final EncodePolicy[] POLICIES = {EncodePolicy.SMALL, EncodePolicy.DEFAULT, EncodePolicy.LARGE};
+
+    @Test
+    public void everyPolicyFitsItsBudgetOrUsesTheMinimumQuality() throws IOException {
+        // Big enough that LARGE still scales it down
+        BufferedImage photo = SyntheticPhotos.photo(1600, 1200, new Random(42));
+
+        ImageEncoder encoder = new ImageEncoder();
+        for (EncodePolicy policy : POLICIES) {
+            BufferedImage scaled = SyntheticPhotos.scaleToMaxEdge(photo, policy.maxEdgePx);
+            ImageEncoder.Result result = encoder.encode((format, quality, out) -> SyntheticPhotos.writeJpeg(scaled, quality, out), policy);
+
+            assertTrue(policy + " produced " + result.size + " bytes",
+                    result.withinBudget || result.quality == policy.minQuality);
+            assertTrue(result.quality >= policy.minQuality && result.quality <= policy.quality);
+            assertEquals(result.size, encoder.size());
+        }
+    }
+
+    @Test
+    public void dropsBuffersThatGrewForOneHugeImage() throws IOException {
+        EncodePolicy policy = new EncodePolicy("huge", 4000, 8 * 1024 * 1024, EncodePolicy.Format.JPEG, 70, 30);
+        ImageEncoder encoder = new ImageEncoder();
+        encoder.encode((format, quality, out) -> out.write(new byte[3 * 1024 * 1024]), policy);
+        assertEquals(3 * 1024 * 1024, encoder.size());
+
+        encoder.encode((format, quality, out) -> out.write(new byte[1000]), policy);
+        assertEquals(1000, encoder.size());
+        assertTrue("retained " + encoder.getRetainedCapacity(), encoder.getRetainedCapacity() <= 2 * 1024 * 1024);
+    }
+
+    @Test
+    public void fallsBackToMinimumQualityWhenNothingFits() throws IOException {
+        BufferedImage photo = SyntheticPhotos.photo(448, 336, new Random(7));
+        EncodePolicy tiny = new EncodePolicy("tiny", 448, 100, EncodePolicy.Format.JPEG, 70, 30);
+
+        ImageEncoder.Result result = new ImageEncoder().encode((format, quality, out) -> SyntheticPhotos.writeJpeg(photo, quality, out), tiny);
+
+        assertEquals(30, result.quality);
+        assertFalse(result.withinBudget);
+    }
+}
@@ -0,0 +1,210 @@
+package com.android.fooddetectionapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LiveFramePipelineTest {
+
+    /** Stands in for the downscaled bitmap: just the number of the frame it holds. */
+    private static class Frame {
+        int number;
+    }
+
+    private static class SyntheticSource implements FrameSource<Frame> {
+        volatile FrameSource.Sink<Frame> sink;
+        boolean stopped;
+
+        @Override
+        public void start(FrameSource.Sink<Frame> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        /** Returns false if the sink had no buffer for this frame. */
+        boolean emit(int number) {
+            Frame buffer = sink.obtainBuffer();
+            if (buffer == null) {
+                return false;
+            }
+            buffer.number = number;
+            sink.onFrame(buffer);
+            return true;
+        }
+    }
+
+    private final AtomicInteger createdBuffers = new AtomicInteger();
+    private final List<CompletableFuture<Integer>> pending = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+    private final SyntheticSource source = new SyntheticSource();
+
+    private LiveFramePipeline<Frame, Integer> manualPipeline() {
+        return new LiveFramePipeline<>(this::newFrame,
+                frame -> {
+                    processed.add(frame.number);
+                    CompletableFuture<Integer> result = new CompletableFuture<>();
+                    pending.add(result);
+                    return result;
+                },
+                // -1 if the buffer no longer holds the frame the result is for
+                (frame, result, error) -> delivered.add(frame.number == result ? result : -1));
+    }
+
+    private Frame newFrame() {
+        createdBuffers.incrementAndGet();
+        return new Frame();
+    }
+
+    @Test
+    public void newestFrameReplacesTheWaitingOne() {
+        LiveFramePipeline<Frame, Integer> pipeline = manualPipeline();
+        pipeline.start(source);
+
+        source.emit(1);
+        source.emit(2);
+        source.emit(3);
+        source.emit(4);
+        assertEquals(Collections.singletonList(1), processed);
+        assertEquals(2, pipeline.getDroppedCount());
+
+        pending.get(0).complete(1);
+        assertEquals(Collections.singletonList(1), delivered);
+        assertEquals(Arrays.asList(1, 4), processed);
+
+        pending.get(1).complete(4);
+        assertEquals(Arrays.asList(1, 4), delivered);
+        assertEquals(2, pipeline.getSubmittedCount());
+    }
+
+    @Test
+    public void reusesThreeBuffersAndNeverTheOneInFlight() {
+        LiveFramePipeline<Frame, Integer> pipeline = manualPipeline();
+        pipeline.start(source);
+
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(source.emit(i));
+        }
+        assertEquals(3, createdBuffers.get());
+        // Checks in the listener that frame 1 wasn't overwritten by the 99 after it
+        pending.get(0).complete(1);
+        assertEquals(Arrays.asList(1, 100), processed);
+        pending.get(1).complete(100);
+        assertEquals(Arrays.asList(1, 100), delivered);
+        assertEquals(3, createdBuffers.get());
+    }
+
+    @Test
+    public void failedRequestMovesOnToTheNextFrame() {
+        List<Throwable> errors = new ArrayList<>();
+        LiveFramePipeline<Frame, Integer> pipeline = new LiveFramePipeline<>(this::newFrame,
+                frame -> {
+                    if (frame.number == 1) {
+                        throw new IllegalStateException("model not loaded");
+                    }
+                    processed.add(frame.number);
+                    return CompletableFuture.completedFuture(frame.number);
+                },
+                (frame, result, error) -> {
+                    if (error != null) {
+                        errors.add(error);
+                    } else {
+                        delivered.add(result);
+                    }
+                });
+        pipeline.start(source);
+
+        source.emit(1);
+        source.emit(2);
+        assertEquals(1, errors.size());
+        assertEquals(Collections.singletonList(2), delivered);
+    }
+
+    @Test
+    public void resultsAfterStopAreNotDelivered() {
+        LiveFramePipeline<Frame, Integer> pipeline = manualPipeline();
+        pipeline.start(source);
+        source.emit(1);
+        source.emit(2);
+
+        pipeline.stop();
+        assertTrue(source.stopped);
+        assertFalse(source.emit(3));
+        pending.get(0).complete(1);
+        assertTrue(delivered.isEmpty());
+        assertEquals(Collections.singletonList(1), processed);
+
+        // Every buffer came back: a new run gets by without creating more
+        SyntheticSource next = new SyntheticSource();
+        pipeline.start(next);
+        next.emit(4);
+        next.emit(5);
+        next.emit(6);
+        assertEquals(3, createdBuffers.get());
+        pending.get(1).complete(4);
+        assertEquals(Collections.singletonList(4), delivered);
+    }
+
+    @Test
+    public void keepsUpWithAFastSourceOneRequestAtATime() throws Exception {
+        ExecutorService classifier = Executors.newSingleThreadExecutor();
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        LiveFramePipeline<Frame, Integer> pipeline = new LiveFramePipeline<>(this::newFrame,
+                frame -> {
+                    maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                    int number = frame.number;
+                    return CompletableFuture.supplyAsync(() -> {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        concurrent.decrementAndGet();
+                        // Nobody wrote into the buffer while it was being classified
+                        return frame.number == number ? number : -1;
+                    }, classifier);
+                },
+                (frame, result, error) -> delivered.add(result));
+        pipeline.start(source);
+
+        int frames = 2000;
+        for (int i = 1; i <= frames; i++) {
+            assertTrue(source.emit(i));
+            if (i % 20 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!delivered.contains(frames) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        classifier.shutdown();
+
+        // The last frame is always classified, in order, never two at a time
+        assertEquals(frames, delivered.get(delivered.size() - 1).intValue());
+        assertFalse(delivered.contains(-1));
+        for (int i = 1; i < delivered.size(); i++) {
+            assertTrue(delivered.get(i) > delivered.get(i - 1));
+        }
+        assertEquals(1, maxConcurrent.get());
+        assertTrue(pipeline.getDroppedCount() > 0);
+        assertEquals(frames, pipeline.getSubmittedCount() + pipeline.getDroppedCount());
+        assertTrue(createdBuffers.get() <= 3);
+        assertTrue(classifier.awaitTermination(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,94 @@
+package com.android.fooddetectionapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class PredictionCacheTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final String RICE = "{\"predictions\": [{\"predicted_label\": \"rice\"}]}";
+    private static final String SOUP = "{\"predictions\": [{\"predicted_label\": \"miso soup\"}]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PredictionCache cache(PredictionCache.Mode mode, int maxEntries, long ttlMs) {
+        return new PredictionCache(new File(folder.getRoot(), "cache.bin"), mode, maxEntries, ttlMs, 6);
+    }
+
+    @Test
+    public void exactModeOnlyMatchesTheSameUpload() {
+        PredictionCache cache = cache(PredictionCache.Mode.EXACT, 10, DAY_MS);
+        cache.put("sha-a", 0xF0F0L, RICE);
+
+        assertEquals(RICE, cache.get("sha-a", 0xF0F0L));
+        // Same dHash, different bytes: a similar-looking plate is not the same photo
+        assertNull(cache.get("sha-b", 0xF0F0L));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void perceptualModeMatchesTheNearestHashWithinTheDistance() {
+        PredictionCache cache = cache(PredictionCache.Mode.PERCEPTUAL, 10, DAY_MS);
+        cache.put("sha-a", 0L, RICE);
+        cache.put("sha-b", 0xFFFFL, SOUP);
+
+        // 3 bits from the first, 13 from the second
+        assertEquals(RICE, cache.get("sha-c", 0x7L));
+        // 7 bits from the nearest is too far
+        assertNull(cache.get("sha-d", 0x7FL << 32));
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() throws Exception {
+        PredictionCache cache = cache(PredictionCache.Mode.PERCEPTUAL, 10, 20);
+        cache.put("sha-a", 0L, RICE);
+        Thread.sleep(40);
+
+        assertNull(cache.get("sha-a", 0L));
+        assertNull(cache.get("sha-b", 0L));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        PredictionCache cache = cache(PredictionCache.Mode.EXACT, 2, DAY_MS);
+        cache.put("sha-a", 0L, RICE);
+        cache.put("sha-b", 0L, SOUP);
+        assertEquals(RICE, cache.get("sha-a", 0L));
+        cache.put("sha-c", 0L, SOUP);
+
+        assertNull(cache.get("sha-b", 0L));
+        assertEquals(RICE, cache.get("sha-a", 0L));
+        assertEquals(SOUP, cache.get("sha-c", 0L));
+    }
+
+    @Test
+    public void survivesASaveAndLoad() {
+        PredictionCache cache = cache(PredictionCache.Mode.EXACT, 10, DAY_MS);
+        cache.put("sha-a", 0x1234L, RICE);
+        cache.put("sha-b", 0x5678L, SOUP);
+        cache.save();
+
+        PredictionCache reloaded = cache(PredictionCache.Mode.EXACT, 10, DAY_MS);
+        reloaded.load();
+        assertEquals(RICE, reloaded.get("sha-a", 0L));
+        assertEquals(SOUP, reloaded.get("sha-b", 0L));
+    }
+
+    @Test
+    public void dHashComparesEachPixelWithItsRightNeighbour() {
+        int[] pixels = new int[9 * 8];
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 9; x++) {
+                // Darker to the right in the first row only
+                pixels[y * 9 + x] = y == 0 ? 0xFF000000 | (255 - x * 20) * 0x010101 : 0xFF808080;
+            }
+        }
+        assertEquals(0xFFL << 56, PredictionCache.dHash(pixels));
+    }
+}
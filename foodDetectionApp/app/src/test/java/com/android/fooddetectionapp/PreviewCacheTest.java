@@ -0,0 +1,93 @@
+package com.android.fooddetectionapp;
+
+import com.android.fooddetectionapp.ReusePoolTest.Buffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreviewCacheTest {
+
+    private final ReusePool<Buffer> pool = new ReusePool<>(ReusePoolTest.BUFFERS, 10000);
+    private final PreviewCache<Buffer> cache = new PreviewCache<>(pool, 250);
+
+    @Test
+    public void findsWhatWasPutAndCountsBytes() {
+        Buffer preview = new Buffer(100);
+        cache.putAcquired("a", preview);
+        cache.release(preview);
+
+        assertSame(preview, cache.acquire("a"));
+        assertNull(cache.acquire("b"));
+        assertEquals(100, cache.getBytesHeld());
+        assertTrue(cache.getStats(), cache.getStats().contains("hits=1 misses=1"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedToThePool() {
+        Buffer a = new Buffer(100);
+        Buffer b = new Buffer(100);
+        Buffer c = new Buffer(100);
+        cache.putAcquired("a", a);
+        cache.release(a);
+        cache.putAcquired("b", b);
+        cache.release(b);
+        // Touch a, so b is the least recently used
+        cache.release(cache.acquire("a"));
+        cache.putAcquired("c", c);
+        cache.release(c);
+
+        assertNull(cache.acquire("b"));
+        assertEquals(200, cache.getBytesHeld());
+        assertSame(b, pool.take(buffer -> true));
+    }
+
+    @Test
+    public void previewsInUseArePooledOnTheirLastRelease() {
+        Buffer shown = new Buffer(100);
+        cache.putAcquired("a", shown);
+        assertSame(shown, cache.acquire("a"));
+
+        cache.clear();
+        assertNull(cache.acquire("a"));
+        assertEquals(0, cache.getBytesHeld());
+        assertEquals(0, pool.size());
+
+        cache.release(shown);
+        assertEquals(0, pool.size());
+        cache.release(shown);
+        assertEquals(1, pool.size());
+        // Further releases, and bitmaps the cache never had, are ignored
+        cache.release(shown);
+        cache.release(new Buffer(10));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void replacingAKeyEvictsTheOldPreview() {
+        Buffer old = new Buffer(100);
+        Buffer replacement = new Buffer(120);
+        cache.putAcquired("a", old);
+        cache.release(old);
+        cache.putAcquired("a", replacement);
+        cache.putAcquired("a", replacement);
+
+        assertEquals(120, cache.getBytesHeld());
+        assertSame(old, pool.take(buffer -> true));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void trimKeepsAtMostTheGivenBytes() {
+        for (int i = 0; i < 3; i++) {
+            Buffer preview = new Buffer(80);
+            cache.putAcquired("p" + i, preview);
+            cache.release(preview);
+        }
+        cache.trimToSize(100);
+
+        assertEquals(80, cache.getBytesHeld());
+        assertNotNull(cache.acquire("p2"));
+        assertEquals(2, pool.size());
+    }
+}
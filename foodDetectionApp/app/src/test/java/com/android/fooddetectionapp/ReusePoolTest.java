@@ -0,0 +1,128 @@
+package com.android.fooddetectionapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReusePoolTest {
+
+    /** Stands in for a bitmap: an allocation size and the flags the pool looks at. */
+    static class Buffer {
+        final long size;
+        boolean mutable = true;
+        boolean recycled;
+
+        Buffer(long size) {
+            this.size = size;
+        }
+    }
+
+    static final ReusePool.Adapter<Buffer> BUFFERS = new ReusePool.Adapter<Buffer>() {
+        @Override
+        public long sizeOf(Buffer buffer) {
+            return buffer.size;
+        }
+
+        @Override
+        public boolean isReusable(Buffer buffer) {
+            return buffer.mutable;
+        }
+
+        @Override
+        public boolean isRecycled(Buffer buffer) {
+            return buffer.recycled;
+        }
+
+        @Override
+        public void recycle(Buffer buffer) {
+            buffer.recycled = true;
+        }
+    };
+
+    @Test
+    public void takesTheNewestMatchAndCountsHitsAndMisses() {
+        ReusePool<Buffer> pool = new ReusePool<>(BUFFERS, 1000);
+        Buffer older = new Buffer(100);
+        Buffer newer = new Buffer(100);
+        pool.put(older);
+        pool.put(newer);
+        assertEquals(200, pool.getBytesHeld());
+
+        assertSame(newer, pool.take(buffer -> buffer.size == 100));
+        assertNull(pool.take(buffer -> buffer.size == 300));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(100, pool.getBytesHeld());
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void takesTheSmallestThatFits() {
+        ReusePool<Buffer> pool = new ReusePool<>(BUFFERS, 1000);
+        Buffer large = new Buffer(400);
+        Buffer small = new Buffer(150);
+        Buffer tooSmall = new Buffer(50);
+        pool.put(large);
+        pool.put(small);
+        pool.put(tooSmall);
+
+        assertSame(small, pool.takeSmallest(buffer -> buffer.size >= 100));
+        assertSame(large, pool.takeSmallest(buffer -> buffer.size >= 100));
+        assertNull(pool.takeSmallest(buffer -> buffer.size >= 100));
+        assertEquals(50, pool.getBytesHeld());
+    }
+
+    @Test
+    public void recyclesTheOldestWhenFull() {
+        ReusePool<Buffer> pool = new ReusePool<>(BUFFERS, 250);
+        Buffer first = new Buffer(100);
+        Buffer second = new Buffer(100);
+        Buffer third = new Buffer(100);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertTrue(first.recycled);
+        assertFalse(second.recycled);
+        assertEquals(200, pool.getBytesHeld());
+        assertEquals(1, pool.getEvictions());
+
+        pool.trimToSize(100);
+        assertTrue(second.recycled);
+        assertFalse(third.recycled);
+        pool.clear();
+        assertTrue(third.recycled);
+        assertEquals(0, pool.getBytesHeld());
+        assertEquals(3, pool.getEvictions());
+    }
+
+    @Test
+    public void recyclesWhatItCannotKeep() {
+        ReusePool<Buffer> pool = new ReusePool<>(BUFFERS, 250);
+        Buffer immutable = new Buffer(10);
+        immutable.mutable = false;
+        Buffer huge = new Buffer(300);
+        pool.put(immutable);
+        pool.put(huge);
+        pool.put(null);
+
+        assertTrue(immutable.recycled);
+        assertTrue(huge.recycled);
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void ignoresRecycledAndAlreadyPooledItems() {
+        ReusePool<Buffer> pool = new ReusePool<>(BUFFERS, 1000);
+        Buffer recycled = new Buffer(10);
+        recycled.recycled = true;
+        Buffer buffer = new Buffer(10);
+        pool.put(recycled);
+        pool.put(buffer);
+        pool.put(buffer);
+
+        assertEquals(1, pool.size());
+        assertEquals(10, pool.getBytesHeld());
+        assertFalse(buffer.recycled);
+    }
+}
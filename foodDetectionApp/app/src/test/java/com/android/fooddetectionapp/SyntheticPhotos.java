@@ -0,0 +1,69 @@
+package com.android.fooddetectionapp;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Camera-like images for running {@link ImageEncoder} on the host JVM, where ImageIO stands in
+ * for Bitmap.compress (so JPEG only).
+ */
+final class SyntheticPhotos {
+
+    private SyntheticPhotos() {
+    }
+
+    // Smooth gradients plus sensor-like noise, roughly as hard to compress as a plate of food
+    static BufferedImage photo(int width, int height, Random random) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(24)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(24)) & 0xff;
+                int b = ((x + y) * 128 / (width + height) + random.nextInt(24)) & 0xff;
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    static BufferedImage scaleToMaxEdge(BufferedImage image, int maxEdge) {
+        int longEdge = Math.max(image.getWidth(), image.getHeight());
+        if (longEdge <= maxEdge) {
+            return image;
+        }
+        float scale = (float) maxEdge / longEdge;
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    static void writeJpeg(BufferedImage image, int quality, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
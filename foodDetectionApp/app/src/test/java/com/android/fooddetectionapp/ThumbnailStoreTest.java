@@ -0,0 +1,55 @@
+package com.android.fooddetectionapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] thumbnail(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(folder.newFile("thumbs.bin"), 100);
+        long first = store.append(thumbnail(40, 1));
+        // Maps the first segment while it is still short; the next read must see the growth
+        assertArrayEquals(thumbnail(40, 1), store.read(first, 40));
+        long second = store.append(thumbnail(40, 2));
+        assertArrayEquals(thumbnail(40, 2), store.read(second, 40));
+        assertArrayEquals(thumbnail(40, 1), store.read(first, 40));
+    }
+
+    @Test
+    public void thumbnailsNeverSpanSegments() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(folder.newFile("thumbs.bin"), 100);
+        store.append(thumbnail(70, 1));
+        long offset = store.append(thumbnail(50, 2));
+        assertEquals(100, offset);
+        assertArrayEquals(thumbnail(50, 2), store.read(offset, 50));
+    }
+
+    @Test
+    public void survivesReopeningAndIgnoresMissingData() throws Exception {
+        File file = folder.newFile("thumbs.bin");
+        ThumbnailStore store = new ThumbnailStore(file, 100);
+        long offset = store.append(thumbnail(30, 3));
+        store.close();
+
+        ThumbnailStore reopened = new ThumbnailStore(file, 100);
+        assertArrayEquals(thumbnail(30, 3), reopened.read(offset, 30));
+        assertNull(reopened.read(offset + 30, 30));
+        assertNull(reopened.read(-1, 0));
+    }
+}
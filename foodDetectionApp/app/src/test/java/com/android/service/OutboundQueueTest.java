@@ -0,0 +1,151 @@
+package com.android.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> published = Collections.synchronizedList(new ArrayList<>());
+
+    private OutboundQueue queue(int maxItems, long maxBytes, long maxAgeMs) {
+        return new OutboundQueue(new File(folder.getRoot(), "outbox"), maxItems, maxBytes, maxAgeMs);
+    }
+
+    /** Enqueues with distinct creation times, so the oldest-first order is by call order. */
+    private static void enqueue(OutboundQueue queue, String key, String payload) throws InterruptedException {
+        queue.enqueue(key, "project/topic", payload.getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(2);
+    }
+
+    private final OutboundQueue.Publisher succeeding = (topic, payload, onSuccess, onFailure) -> {
+        published.add(new String(payload, StandardCharsets.UTF_8));
+        onSuccess.run();
+    };
+
+    private static void awaitSize(OutboundQueue queue, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(size, queue.size());
+    }
+
+    @Test
+    public void replaysOldestFirst() throws Exception {
+        OutboundQueue queue = queue(10, 1 << 20, DAY_MS);
+        enqueue(queue, "a", "first");
+        enqueue(queue, "b", "second");
+        enqueue(queue, "c", "third");
+
+        queue.drain(succeeding, 2, 1);
+        awaitSize(queue, 0);
+        assertEquals(Arrays.asList("first", "second", "third"), published);
+    }
+
+    @Test
+    public void sameKeyReplacesTheQueuedCopy() throws Exception {
+        OutboundQueue queue = queue(10, 1 << 20, DAY_MS);
+        enqueue(queue, "image-1", "attempt 1");
+        enqueue(queue, "image-1", "attempt 2");
+        assertEquals(1, queue.size());
+
+        queue.drain(succeeding, 10, 4);
+        awaitSize(queue, 0);
+        assertEquals(Collections.singletonList("attempt 2"), published);
+    }
+
+    @Test
+    public void dropsTheOldestOverTheItemLimit() throws Exception {
+        OutboundQueue queue = queue(3, 1 << 20, DAY_MS);
+        for (int i = 1; i <= 5; i++) {
+            enqueue(queue, "m" + i, "message " + i);
+        }
+        assertEquals(3, queue.size());
+
+        queue.drain(succeeding, 10, 1);
+        awaitSize(queue, 0);
+        assertEquals(Arrays.asList("message 3", "message 4", "message 5"), published);
+    }
+
+    @Test
+    public void dropsTheOldestOverTheByteLimit() throws Exception {
+        char[] kilobyte = new char[1000];
+        Arrays.fill(kilobyte, 'x');
+        // Each file is the payload plus a small header, so two fit and three don't
+        OutboundQueue queue = queue(100, 2500, DAY_MS);
+        enqueue(queue, "a", "a" + new String(kilobyte));
+        enqueue(queue, "b", "b" + new String(kilobyte));
+        enqueue(queue, "c", "c" + new String(kilobyte));
+        assertEquals(2, queue.size());
+
+        queue.drain(succeeding, 10, 1);
+        awaitSize(queue, 0);
+        assertEquals(2, published.size());
+        assertTrue(published.get(0).startsWith("b"));
+        assertTrue(published.get(1).startsWith("c"));
+    }
+
+    /** Moves a queued message's creation time, which is the start of its file name, back by {@code ms}. */
+    private void backdate(String key, long ms) {
+        File dir = new File(folder.getRoot(), "outbox");
+        for (File file : dir.listFiles((d, name) -> name.endsWith("-" + key + ".msg"))) {
+            String name = file.getName();
+            long createdAt = Long.parseLong(name.substring(0, name.indexOf('-')));
+            String backdated = String.format(Locale.US, "%013d%s", createdAt - ms, name.substring(name.indexOf('-')));
+            assertTrue(file.renameTo(new File(dir, backdated)));
+        }
+    }
+
+    @Test
+    public void expiredMessagesAreDroppedInsteadOfSent() throws Exception {
+        OutboundQueue queue = queue(10, 1 << 20, 60 * 1000L);
+        enqueue(queue, "old", "stale");
+        backdate("old", 2 * 60 * 1000L);
+        enqueue(queue, "new", "fresh");
+
+        queue.drain(succeeding, 10, 1);
+        awaitSize(queue, 0);
+        assertEquals(Collections.singletonList("fresh"), published);
+    }
+
+    @Test
+    public void stopsAtTheFirstFailureAndResumesLater() throws Exception {
+        OutboundQueue queue = queue(10, 1 << 20, DAY_MS);
+        enqueue(queue, "a", "first");
+        enqueue(queue, "b", "second");
+        enqueue(queue, "c", "third");
+
+        queue.drain((topic, payload, onSuccess, onFailure) -> {
+            String message = new String(payload, StandardCharsets.UTF_8);
+            if (message.equals("second")) {
+                onFailure.run();
+            } else {
+                published.add(message);
+                onSuccess.run();
+            }
+        }, 1, 1);
+        awaitSize(queue, 2);
+        assertEquals(Collections.singletonList("first"), published);
+
+        // A drain still finishing would ignore the next call
+        Thread.sleep(50);
+        queue.drain(succeeding, 10, 1);
+        awaitSize(queue, 0);
+        assertEquals(Arrays.asList("first", "second", "third"), published);
+    }
+}
@@ -0,0 +1,21 @@
+// JMH benchmarks for :core: ./gradlew :benchmarks:jmh (results in build/results/jmh)
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+dependencies {
+    jmhImplementation(project(":core"))
+    jmhImplementation(libs.json)
+}
+
+jmh {
+    // e.g. ./gradlew :benchmarks:jmh -PjmhIncludes=Prediction
+    project.findProperty("jmhIncludes")?.let { includes.add(it.toString()) }
+    resultFormat.set("JSON")
+}
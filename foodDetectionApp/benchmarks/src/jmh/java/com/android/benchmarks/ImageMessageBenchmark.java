@@ -0,0 +1,88 @@
+package com.android.benchmarks;
+
+import com.android.service.Base64Codec;
+import com.android.service.ImageFrameOutputStream;
+import com.android.service.ImageMessage;
+import com.android.service.MessageCodec;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of project/images messages. Sizes follow the encode policies: SMALL
+ * (~16 KB), DEFAULT (~64 KB) and LARGE (~256 KB). JPEG data is close to random, so random bytes
+ * stand in for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageMessageBenchmark {
+    private static final String CLIENT_ID = "3f2b8c1e-6a2d-4f0e-9b7a-1c2d3e4f5a6b";
+    private static final String REPLY_TOPIC = "project/predictions/" + CLIENT_ID;
+
+    @Param({"16384", "65536", "262144"})
+    public int imageSize;
+
+    private byte[] image;
+    private byte[] binaryMessage;
+    private byte[] jsonMessage;
+
+    @Setup
+    public void setUp() {
+        image = new byte[imageSize];
+        new Random(42).nextBytes(image);
+        binaryMessage = encodeBinaryFrame();
+        jsonMessage = encodeJson();
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryFrame() {
+        ImageFrameOutputStream frame = new ImageFrameOutputStream(CLIENT_ID, "1700000000123",
+                ImageFrameOutputStream.FLAG_REPLY_TOPIC, image.length);
+        frame.write(image, 0, image.length);
+        return frame.toFrame();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return MessageCodec.encodeImageJson(CLIENT_ID, "1700000000123", REPLY_TOPIC, image, 0, image.length);
+    }
+
+    /** How the app built JSON image messages before the codec: Base64 string into a JSONObject. */
+    @Benchmark
+    public byte[] encodeJsonViaJSONObject() {
+        JSONObject payload = new JSONObject();
+        payload.put("client_id", CLIENT_ID);
+        payload.put("request_id", "1700000000123");
+        payload.put("image_data", Base64Codec.encodeToString(image, 0, image.length));
+        payload.put("reply_to", REPLY_TOPIC);
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ImageMessage decodeBinaryFrame() throws Exception {
+        return MessageCodec.decodeImage(binaryMessage);
+    }
+
+    @Benchmark
+    public ImageMessage decodeJson() throws Exception {
+        return MessageCodec.decodeImage(jsonMessage);
+    }
+}
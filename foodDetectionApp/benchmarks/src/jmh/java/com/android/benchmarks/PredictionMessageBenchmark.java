@@ -0,0 +1,119 @@
+package com.android.benchmarks;
+
+import com.android.service.CompactPredictions;
+import com.android.service.DecodedReply;
+import com.android.service.MessageCodec;
+import com.android.service.PredictionReply;
+import com.android.service.PredictionResult;
+import com.android.service.ReplyDecoder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prediction replies as the server sends them (an envelope holding the prediction JSON as a
+ * string) and confirmed-label batches going the other way. The org.json decode path is kept
+ * alongside {@link ReplyDecoder} for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictionMessageBenchmark {
+    private static final String[] LABELS = {"rice", "mixed rice", "fried chicken", "laksa", "char kway teow",
+            "roti prata", "satay", "chicken rice", "nasi lemak", "bak kut teh"};
+
+    @Param({"1", "5", "20"})
+    public int predictionCount;
+
+    private String prediction;
+    private String reply;
+    private byte[] replyBytes;
+    private byte[] otherClientId;
+    private final ReplyDecoder decoder = new ReplyDecoder();
+    private JSONArray confirmedItems;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        JSONArray predictions = new JSONArray();
+        for (int i = 0; i < predictionCount; i++) {
+            JSONObject item = new JSONObject();
+            item.put("img_id", 1234);
+            item.put("predicted_label", LABELS[i % LABELS.length]);
+            item.put("category_id", i);
+            item.put("confidence", random.nextDouble());
+            float x = random.nextFloat() * 0.5f;
+            float y = random.nextFloat() * 0.5f;
+            item.put("bounding_box", new JSONArray().put(x).put(y).put(x + 0.4f).put(y + 0.4f));
+            predictions.put(item);
+        }
+        prediction = new JSONObject().put("predictions", predictions).toString();
+        reply = MessageCodec.encodeReply("3f2b8c1e-6a2d-4f0e-9b7a-1c2d3e4f5a6b", "1700000000123", prediction,
+                "{\"parse_ms\": 0.4, \"udp_ms\": 41.2, \"inference_ms\": 35.1, \"server_ms\": 42.0}");
+        replyBytes = reply.getBytes(StandardCharsets.UTF_8);
+        otherClientId = "9d8c7b6a-5f4e-4d3c-8b2a-190817161514".getBytes(StandardCharsets.UTF_8);
+
+        confirmedItems = new JSONArray();
+        for (int i = 0; i < predictionCount; i++) {
+            JSONArray labels = new JSONArray().put(MessageCodec.encodeConfirmedLabel(LABELS[i % LABELS.length],
+                    new float[]{0.1f, 0.2f, 0.6f, 0.7f}));
+            confirmedItems.put(MessageCodec.encodeConfirmedItem(1000 + i, labels));
+        }
+    }
+
+    @Benchmark
+    public PredictionReply decodeReply() throws Exception {
+        return MessageCodec.decodeReply(reply);
+    }
+
+    @Benchmark
+    public PredictionResult decodeReplyAndPrediction() throws Exception {
+        return MessageCodec.decodePrediction(MessageCodec.decodeReply(new String(replyBytes, StandardCharsets.UTF_8)).prediction);
+    }
+
+    /** Same work as {@link #decodeReplyAndPrediction()}, straight from the payload bytes. */
+    @Benchmark
+    public DecodedReply streamDecodeReply() {
+        return decoder.decodeReply(replyBytes, 0, replyBytes.length, null);
+    }
+
+    /** Another client's reply on the shared topic: rejected at client_id. */
+    @Benchmark
+    public DecodedReply streamRejectReply() {
+        return decoder.decodeReply(replyBytes, 0, replyBytes.length, otherClientId);
+    }
+
+    @Benchmark
+    public CompactPredictions streamDecodePrediction() {
+        return decoder.decodePrediction(prediction);
+    }
+
+    @Benchmark
+    public String encodeReply() throws Exception {
+        return MessageCodec.encodeReply("3f2b8c1e-6a2d-4f0e-9b7a-1c2d3e4f5a6b", "1700000000123", prediction, null);
+    }
+
+    /** One batch with {@code predictionCount} confirmed images. */
+    @Benchmark
+    public String encodeConfirmedBatch() throws Exception {
+        return MessageCodec.encodeConfirmedBatch(confirmedItems);
+    }
+}
@@ -0,0 +1,18 @@
+// Protocol pieces with no Android dependencies, shared by the app and the JVM tools
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    // Part of the Android platform; JVM consumers (loadgen, benchmarks, tests) add it themselves
+    compileOnly(libs.json)
+    // BrokerProbe; the app and loadgen bring their own Paho
+    compileOnly(libs.paho.mqttv3)
+    testImplementation(libs.json)
+    testImplementation(libs.junit)
+}
@@ -0,0 +1,100 @@
+package com.android.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Standard Base64 (RFC 4648, padded, no line breaks). java.util.Base64 needs API 26 and
+ * android.util.Base64 is not on the plain JVM, so the shared codec carries its own.
+ */
+public final class Base64Codec {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] DECODE = new int[128];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /** Writes the encoding of {@code src[off, off + len)} into {@code dst} at {@code dstOff}; returns the bytes written. */
+    public static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int end = off + len;
+        int d = dstOff;
+        int i = off;
+        for (; i + 2 < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[d++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = end - i;
+        if (remaining > 0) {
+            int bits = (src[i] & 0xff) << 16 | (remaining == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            dst[d++] = '=';
+        }
+        return d - dstOff;
+    }
+
+    public static String encodeToString(byte[] src, int off, int len) {
+        byte[] dst = new byte[encodedLength(len)];
+        encode(src, off, len, dst, 0);
+        return new String(dst, StandardCharsets.US_ASCII);
+    }
+
+    /** Decodes {@code src[off, off + len)}, skipping whitespace. */
+    public static byte[] decode(byte[] src, int off, int len) {
+        byte[] out = new byte[len / 4 * 3 + 3];
+        int o = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = off; i < off + len; i++) {
+            int c = src[i] & 0xff;
+            if (c == '=') {
+                break;
+            }
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                continue;
+            }
+            int value = c < 128 ? DECODE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid Base64 character 0x" + Integer.toHexString(c));
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out[o++] = (byte) (bits >> 16);
+                out[o++] = (byte) (bits >> 8);
+                out[o++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 2) {
+            out[o++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            out[o++] = (byte) (bits >> 10);
+            out[o++] = (byte) (bits >> 2);
+        } else if (count == 1) {
+            throw new IllegalArgumentException("Truncated Base64 input");
+        }
+        return Arrays.copyOf(out, o);
+    }
+
+    public static byte[] decode(String src) {
+        byte[] bytes = src.getBytes(StandardCharsets.US_ASCII);
+        return decode(bytes, 0, bytes.length);
+    }
+}
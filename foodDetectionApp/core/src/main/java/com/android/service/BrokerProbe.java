@@ -0,0 +1,83 @@
+package com.android.service;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Measures a broker with a short-lived connection of its own: the time to connect, then the round
+ * trip of a small QoS 0 message published to a topic only this probe subscribes to. That round
+ * trip goes through the broker's whole message path, so an overloaded broker shows up even when
+ * its TCP handshake is quick.
+ */
+public class BrokerProbe implements BrokerSelector.Prober {
+    private static final String TOPIC_PROBE_PREFIX = "project/probe/";
+
+    private final long timeoutMs;
+
+    public BrokerProbe(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public BrokerSelector.ProbeResult probe(String url) throws Exception {
+        String clientId = "probe-" + UUID.randomUUID();
+        String topic = TOPIC_PROBE_PREFIX + clientId;
+        CountDownLatch echoed = new CountDownLatch(1);
+        MqttAsyncClient client = new MqttAsyncClient(url, clientId, new MemoryPersistence());
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void messageArrived(String messageTopic, MqttMessage message) {
+                echoed.countDown();
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setConnectionTimeout((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutMs)));
+        try {
+            long start = System.nanoTime();
+            client.connect(options).waitForCompletion(timeoutMs);
+            long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            client.subscribe(topic, 0).waitForCompletion(timeoutMs);
+            start = System.nanoTime();
+            client.publish(topic, new byte[]{1}, 0, false);
+            if (!echoed.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("No echo from " + url + " within " + timeoutMs + " ms");
+            }
+            long roundTripMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return new BrokerSelector.ProbeResult(connectMs, roundTripMs);
+        } finally {
+            close(client);
+        }
+    }
+
+    private static void close(MqttAsyncClient client) {
+        try {
+            if (client.isConnected()) {
+                client.disconnectForcibly(0, 1000);
+            }
+            client.close();
+        } catch (MqttException e) {
+            // Nothing left to clean up that the next probe depends on
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.android.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks the configured MQTT brokers by measured latency so the client can use the fastest one
+ * that works and fail over to the next.
+ *
+ * Each probe (see {@link BrokerProbe}) reports how long a connect took and the round trip of a
+ * message through the broker; both are smoothed over probes. A broker's score is its round trip
+ * plus a quarter of its connect time, since every request pays the round trip but only
+ * reconnects pay the handshake. Brokers that failed their last probe rank last, in configured
+ * order, and so do brokers not probed yet, but ahead of failed ones.
+ *
+ * {@link #shouldSwitch} adds hysteresis: the client only moves when the current broker failed or
+ * another one is clearly faster, so two similar brokers don't make it flap.
+ */
+public class BrokerSelector {
+
+    public interface Prober {
+        /** Connects to the broker and measures it; throws if it can't be used. */
+        ProbeResult probe(String url) throws Exception;
+    }
+
+    public static class ProbeResult {
+        public final long connectMs;
+        public final long roundTripMs;
+
+        public ProbeResult(long connectMs, long roundTripMs) {
+            this.connectMs = connectMs;
+            this.roundTripMs = roundTripMs;
+        }
+    }
+
+    // Weight of the newest probe in the smoothed latencies
+    private static final double SMOOTHING = 0.5;
+    private static final double CONNECT_WEIGHT = 0.25;
+
+    private static class Broker {
+        final String url;
+        final int order;
+        double connectMs = Double.NaN;
+        double roundTripMs = Double.NaN;
+        int consecutiveFailures;
+
+        Broker(String url, int order) {
+            this.url = url;
+            this.order = order;
+        }
+
+        boolean isProbed() {
+            return !Double.isNaN(roundTripMs);
+        }
+
+        boolean isHealthy() {
+            return consecutiveFailures == 0;
+        }
+
+        double score() {
+            return roundTripMs + CONNECT_WEIGHT * connectMs;
+        }
+
+        /** 0 healthy and measured, 1 not measured yet, 2 failed. */
+        int tier() {
+            return !isHealthy() ? 2 : isProbed() ? 0 : 1;
+        }
+    }
+
+    private final Map<String, Broker> brokers = new LinkedHashMap<>();
+    private final double switchMargin;
+
+    /**
+     * @param switchMargin how much faster another broker must be to move to it, e.g. 0.3 for a
+     *                     score at least 30% lower
+     */
+    public BrokerSelector(List<String> urls, double switchMargin) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No brokers configured");
+        }
+        for (String url : urls) {
+            brokers.put(url, new Broker(url, brokers.size()));
+        }
+        this.switchMargin = switchMargin;
+    }
+
+    /** Probes every broker in turn and records the results. Blocks; call off the main thread. */
+    public void probeAll(Prober prober) {
+        for (String url : getUrls()) {
+            try {
+                recordProbe(url, prober.probe(url));
+            } catch (Exception e) {
+                recordFailure(url);
+            }
+        }
+    }
+
+    public synchronized void recordProbe(String url, ProbeResult result) {
+        Broker broker = brokers.get(url);
+        if (broker == null) {
+            return;
+        }
+        broker.connectMs = smooth(broker.connectMs, result.connectMs);
+        broker.roundTripMs = smooth(broker.roundTripMs, result.roundTripMs);
+        broker.consecutiveFailures = 0;
+    }
+
+    /** A failed probe or a connection to the broker that dropped. */
+    public synchronized void recordFailure(String url) {
+        Broker broker = brokers.get(url);
+        if (broker != null) {
+            broker.consecutiveFailures++;
+        }
+    }
+
+    private static double smooth(double previous, long sample) {
+        return Double.isNaN(previous) ? sample : previous + SMOOTHING * (sample - previous);
+    }
+
+    public synchronized List<String> getUrls() {
+        return new ArrayList<>(brokers.keySet());
+    }
+
+    /** Every broker, best first; the order to try them in. */
+    public synchronized List<String> ranked() {
+        List<Broker> ranked = new ArrayList<>(brokers.values());
+        Collections.sort(ranked, (a, b) -> {
+            if (a.tier() != b.tier()) {
+                return Integer.compare(a.tier(), b.tier());
+            }
+            if (a.tier() == 0 && a.score() != b.score()) {
+                return Double.compare(a.score(), b.score());
+            }
+            return Integer.compare(a.order, b.order);
+        });
+        List<String> urls = new ArrayList<>(ranked.size());
+        for (Broker broker : ranked) {
+            urls.add(broker.url);
+        }
+        return urls;
+    }
+
+    public String best() {
+        return ranked().get(0);
+    }
+
+    /** Whether to leave {@code current} for {@link #best()}. */
+    public synchronized boolean shouldSwitch(String current) {
+        String best = best();
+        if (best.equals(current)) {
+            return false;
+        }
+        Broker from = brokers.get(current);
+        Broker to = brokers.get(best);
+        if (from == null || !from.isHealthy()) {
+            return to.isHealthy();
+        }
+        if (!from.isProbed() || !to.isProbed()) {
+            return false;
+        }
+        return to.score() < from.score() * (1 - switchMargin);
+    }
+
+    /** Smoothed round trip in ms, or -1 if the broker hasn't been measured. */
+    public synchronized long getRoundTripMs(String url) {
+        Broker broker = brokers.get(url);
+        return broker != null && broker.isProbed() ? Math.round(broker.roundTripMs) : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Broker broker : brokers.values()) {
+            if (out.length() > 0) {
+                out.append(", ");
+            }
+            out.append(broker.url).append(": ");
+            if (!broker.isHealthy()) {
+                out.append("down");
+            } else if (broker.isProbed()) {
+                out.append(Math.round(broker.roundTripMs)).append(" ms rtt, ")
+                        .append(Math.round(broker.connectMs)).append(" ms connect");
+            } else {
+                out.append("not probed");
+            }
+        }
+        return out.toString();
+    }
+}
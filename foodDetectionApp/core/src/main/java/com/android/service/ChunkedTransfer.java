@@ -0,0 +1,207 @@
+package com.android.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.zip.Deflater;
+
+/**
+ * One large payload split into fixed-size chunks for project/chunks, so no single publish goes
+ * over the broker's message size limit and a dropped connection only costs the chunks the broker
+ * never acknowledged.
+ *
+ * <pre>
+ *   'F' 'C' | version (1) | flags (1) | clientIdLen (1) | clientId | transferIdLen (1) | transferId
+ *           | topicLen (1) | topic | seq (2) | chunkCount (2) | payloadLength (4) | chunk bytes
+ * </pre>
+ *
+ * Numbers are big-endian. {@code topic} is where the reassembled payload would have been
+ * published and {@code payloadLength} its length before compression. Payloads that are not
+ * already compressed (e.g. the JSON/Base64 image message) are deflated first when that saves at
+ * least an eighth; JPEG and WebP images, and binary frames carrying them, are sent as they are.
+ *
+ * Delivery is tracked per chunk; see {@link #markDelivered} and {@link #nextMissing}.
+ */
+public class ChunkedTransfer {
+    public static final byte MAGIC_0 = 'F';
+    public static final byte MAGIC_1 = 'C';
+    public static final int FORMAT_VERSION = 1;
+
+    /** The chunks joined together are a raw DEFLATE stream of the payload. */
+    public static final int FLAG_DEFLATE = 0x01;
+
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+    public static final int MAX_CHUNKS = 0xFFFF;
+
+    private final String transferId;
+    private final String topic;
+    private final byte[] header;
+    private final byte[] data;
+    private final int dataLength;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet delivered;
+
+    private ChunkedTransfer(String clientId, String transferId, String topic, int flags, byte[] data,
+                            int dataLength, int payloadLength, int chunkSize) {
+        this.transferId = transferId;
+        this.topic = topic;
+        this.data = data;
+        this.dataLength = dataLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = Math.max(1, (dataLength + chunkSize - 1) / chunkSize);
+        if (chunkCount > MAX_CHUNKS) {
+            throw new IllegalArgumentException(dataLength + " bytes need more than " + MAX_CHUNKS + " chunks");
+        }
+        this.delivered = new BitSet(chunkCount);
+        this.header = buildHeader(clientId, transferId, topic, flags, chunkCount, payloadLength);
+    }
+
+    /**
+     * @param compress try DEFLATE on payloads that don't look compressed already
+     */
+    public static ChunkedTransfer create(String clientId, String transferId, String topic, byte[] payload,
+                                         int chunkSize, boolean compress) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        if (compress && !isCompressed(payload)) {
+            byte[] deflated = new byte[payload.length - payload.length / 8];
+            int deflatedLength = deflate(payload, deflated);
+            if (deflatedLength > 0) {
+                return new ChunkedTransfer(clientId, transferId, topic, FLAG_DEFLATE, deflated, deflatedLength,
+                        payload.length, chunkSize);
+            }
+        }
+        return new ChunkedTransfer(clientId, transferId, topic, 0, payload, payload.length, payload.length, chunkSize);
+    }
+
+    /** JPEG, PNG or WebP data, or a binary image frame (which carries a JPEG). */
+    static boolean isCompressed(byte[] payload) {
+        if (payload.length < 12) {
+            return false;
+        }
+        int b0 = payload[0] & 0xFF;
+        int b1 = payload[1] & 0xFF;
+        if (b0 == 0xFF && b1 == 0xD8) {
+            return true;
+        }
+        if (b0 == 0x89 && b1 == 'P' && payload[2] == 'N' && payload[3] == 'G') {
+            return true;
+        }
+        if (b0 == 'R' && b1 == 'I' && payload[2] == 'F' && payload[3] == 'F'
+                && payload[8] == 'W' && payload[9] == 'E' && payload[10] == 'B' && payload[11] == 'P') {
+            return true;
+        }
+        return payload[0] == ImageFrameOutputStream.MAGIC_0 && payload[1] == ImageFrameOutputStream.MAGIC_1;
+    }
+
+    /** Deflates into {@code out}; returns the length, or 0 if it didn't fit. */
+    private static int deflate(byte[] payload, byte[] out) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return deflater.finished() ? length : 0;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] buildHeader(String clientId, String transferId, String topic, int flags,
+                                      int chunkCount, int payloadLength) {
+        byte[] clientIdBytes = clientId.getBytes(StandardCharsets.UTF_8);
+        byte[] transferIdBytes = transferId.getBytes(StandardCharsets.UTF_8);
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        if (clientIdBytes.length > 255 || transferIdBytes.length > 255 || topicBytes.length > 255) {
+            throw new IllegalArgumentException("clientId, transferId and topic must fit in 255 bytes");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(15 + clientIdBytes.length
+                + transferIdBytes.length + topicBytes.length);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(FORMAT_VERSION);
+        out.write(flags);
+        out.write(clientIdBytes.length);
+        out.write(clientIdBytes, 0, clientIdBytes.length);
+        out.write(transferIdBytes.length);
+        out.write(transferIdBytes, 0, transferIdBytes.length);
+        out.write(topicBytes.length);
+        out.write(topicBytes, 0, topicBytes.length);
+        // seq, filled in per chunk
+        out.write(0);
+        out.write(0);
+        out.write(chunkCount >> 8);
+        out.write(chunkCount);
+        out.write(payloadLength >>> 24);
+        out.write(payloadLength >> 16);
+        out.write(payloadLength >> 8);
+        out.write(payloadLength);
+        return out.toByteArray();
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    /** Topic of the original payload. */
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /** Bytes on the wire after compression, without chunk headers. */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public boolean isDeflated() {
+        return (header[3] & FLAG_DEFLATE) != 0;
+    }
+
+    /** The complete chunk message for {@code seq}. */
+    public byte[] chunk(int seq) {
+        if (seq < 0 || seq >= chunkCount) {
+            throw new IndexOutOfBoundsException("Chunk " + seq + " of " + chunkCount);
+        }
+        int offset = seq * chunkSize;
+        int length = Math.min(chunkSize, dataLength - offset);
+        byte[] message = new byte[header.length + length];
+        System.arraycopy(header, 0, message, 0, header.length);
+        int seqOffset = header.length - 8;
+        message[seqOffset] = (byte) (seq >> 8);
+        message[seqOffset + 1] = (byte) seq;
+        System.arraycopy(data, offset, message, header.length, length);
+        return message;
+    }
+
+    public synchronized void markDelivered(int seq) {
+        delivered.set(seq);
+    }
+
+    /** First chunk at or after {@code fromSeq} the broker hasn't acknowledged, or -1. */
+    public synchronized int nextMissing(int fromSeq) {
+        int seq = delivered.nextClearBit(fromSeq);
+        return seq < chunkCount ? seq : -1;
+    }
+
+    public synchronized int getMissingCount() {
+        return chunkCount - delivered.cardinality();
+    }
+
+    public synchronized boolean isComplete() {
+        return delivered.cardinality() == chunkCount;
+    }
+
+    /** Forgets all acknowledgements, e.g. when the whole request is retried. */
+    public synchronized void reset() {
+        delivered.clear();
+    }
+}
@@ -0,0 +1,105 @@
+package com.android.service;
+
+import java.util.Arrays;
+
+/**
+ * Decoded prediction list in parallel arrays: entry {@code i} is {@code labels[i]},
+ * {@code categoryIds[i]}, {@code confidences[i]} and the box at {@code boxes[4 * i .. 4 * i + 3]}
+ * (normalized x1, y1, x2, y2; all NaN when the server sent none).
+ */
+public class CompactPredictions {
+    public int count;
+    public int[] imageIds;
+    public int[] categoryIds;
+    public String[] labels;
+    public float[] confidences;
+    public float[] boxes;
+    /** Set instead of a prediction list for acknowledgements such as {"status": "success"}. */
+    public String status;
+    boolean hasPredictionList;
+    /**
+     * The server answered a thumbnail and asks for the full image, e.g. because it is unsure or
+     * archives originals. Send it with {@link ImageFrameOutputStream#FLAG_FULL_IMAGE}.
+     */
+    public boolean needFull;
+    /** The prediction JSON as received, kept for the on-device cache. */
+    public String json;
+
+    public CompactPredictions() {
+        this(4);
+    }
+
+    public CompactPredictions(int capacity) {
+        imageIds = new int[capacity];
+        categoryIds = new int[capacity];
+        labels = new String[capacity];
+        confidences = new float[capacity];
+        boxes = new float[capacity * 4];
+    }
+
+    public boolean hasPredictionList() {
+        return hasPredictionList;
+    }
+
+    /** Image id the server stored this upload under; the same for every entry. */
+    public int imageId() {
+        return count > 0 ? imageIds[0] : -1;
+    }
+
+    /** Index of a new entry, growing the arrays if needed; fields default to -1/NaN. */
+    int add() {
+        if (count == labels.length) {
+            int capacity = Math.max(4, count * 2);
+            imageIds = Arrays.copyOf(imageIds, capacity);
+            categoryIds = Arrays.copyOf(categoryIds, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            confidences = Arrays.copyOf(confidences, capacity);
+            boxes = Arrays.copyOf(boxes, capacity * 4);
+        }
+        int i = count++;
+        imageIds[i] = -1;
+        categoryIds[i] = -1;
+        labels[i] = null;
+        confidences[i] = 0;
+        Arrays.fill(boxes, i * 4, i * 4 + 4, Float.NaN);
+        return i;
+    }
+
+    /**
+     * Builds a result from raw model outputs the way the server's {@code predict()} does: every
+     * class scoring at least {@code threshold}, most confident first, paired with box
+     * {@code i % boxCount}. {@code boxes} holds {@code boxCount} boxes of 4 values. Entries have
+     * no image id, since the server never saw the image.
+     */
+    public static CompactPredictions fromScores(float[] scores, String[] labels, int[] categoryIds,
+                                                float[] boxes, int boxCount, float threshold) {
+        int n = Math.min(scores.length, labels.length);
+        int[] order = new int[n];
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (scores[i] >= threshold) {
+                // Insertion by descending score; ties keep class order like Python's stable sort
+                int j = kept++;
+                while (j > 0 && scores[order[j - 1]] < scores[i]) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = i;
+            }
+        }
+
+        CompactPredictions out = new CompactPredictions(Math.max(kept, 1));
+        out.hasPredictionList = true;
+        for (int rank = 0; rank < kept; rank++) {
+            int cls = order[rank];
+            int i = out.add();
+            out.labels[i] = labels[cls];
+            out.categoryIds[i] = categoryIds[cls];
+            out.confidences[i] = scores[cls];
+            if (boxCount > 0) {
+                System.arraycopy(boxes, (rank % boxCount) * 4, out.boxes, i * 4, 4);
+            }
+        }
+        return out;
+    }
+}
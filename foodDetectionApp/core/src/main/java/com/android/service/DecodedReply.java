@@ -0,0 +1,33 @@
+package com.android.service;
+
+import java.util.Arrays;
+
+/** A prediction reply addressed to this client, as produced by {@link ReplyDecoder}. */
+public class DecodedReply {
+    /** Null for servers that predate request ids. */
+    public String requestId;
+    public String error;
+    /** Flags of the image frame this answers, as the server echoes them; -1 if it doesn't. */
+    public int flags = -1;
+    /** Null for errors. */
+    public CompactPredictions predictions;
+
+    /** Server stage timings in ms, as parallel arrays. */
+    public int timingCount;
+    public String[] timingNames = new String[8];
+    public double[] timingValuesMs = new double[8];
+
+    public boolean isError() {
+        return error != null;
+    }
+
+    void addTiming(String name, double valueMs) {
+        if (timingCount == timingNames.length) {
+            timingNames = Arrays.copyOf(timingNames, timingCount * 2);
+            timingValuesMs = Arrays.copyOf(timingValuesMs, timingCount * 2);
+        }
+        timingNames[timingCount] = name;
+        timingValuesMs[timingCount] = valueMs;
+        timingCount++;
+    }
+}
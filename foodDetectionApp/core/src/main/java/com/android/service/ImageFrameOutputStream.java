@@ -0,0 +1,94 @@
+package com.android.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary image frame for project/images (format version 2).
+ *
+ * <pre>
+ *   'F' 'D' | version (1) | flags (1) | clientIdLen (1) | clientId | requestIdLen (1) | requestId | JPEG bytes
+ * </pre>
+ *
+ * The header is written up front so the encoder can compress straight into this buffer,
+ * and the backing array is handed to MQTT without another copy when it is exactly full.
+ */
+public class ImageFrameOutputStream extends ByteArrayOutputStream {
+    public static final byte MAGIC_0 = 'F';
+    public static final byte MAGIC_1 = 'D';
+    public static final int FORMAT_VERSION = 2;
+
+    /** The server should answer on project/predictions/&lt;clientId&gt;. */
+    public static final int FLAG_REPLY_TOPIC = 0x01;
+    /**
+     * The image is a thumbnail at the model's input size. The server may set "need_full" in its
+     * prediction to ask for the full image, which follows under the same request id.
+     */
+    public static final int FLAG_THUMBNAIL = 0x02;
+    /** The full image for a thumbnail the server asked about. */
+    public static final int FLAG_FULL_IMAGE = 0x04;
+    /**
+     * Classify only: the server keeps neither the image nor a dataset row for it (e.g. a live
+     * preview frame), and the predictions carry an img_id of -1.
+     */
+    public static final int FLAG_NO_STORE = 0x08;
+
+    private final int headerLength;
+    private final String requestId;
+    private final int flags;
+
+    /**
+     * @param expectedImageSize image bytes to reserve after the header; when it is exact,
+     *                          {@link #toFrame()} returns the backing array without copying
+     */
+    public ImageFrameOutputStream(String clientId, String requestId, int flags, int expectedImageSize) {
+        super(computeHeaderLength(clientId, requestId) + Math.max(0, expectedImageSize));
+        this.requestId = requestId;
+        this.flags = flags;
+        byte[] clientIdBytes = clientId.getBytes(StandardCharsets.UTF_8);
+        byte[] requestIdBytes = requestId.getBytes(StandardCharsets.UTF_8);
+        if (clientIdBytes.length > 255 || requestIdBytes.length > 255) {
+            throw new IllegalArgumentException("clientId and requestId must fit in 255 bytes");
+        }
+        write(MAGIC_0);
+        write(MAGIC_1);
+        write(FORMAT_VERSION);
+        write(flags);
+        write(clientIdBytes.length);
+        write(clientIdBytes, 0, clientIdBytes.length);
+        write(requestIdBytes.length);
+        write(requestIdBytes, 0, requestIdBytes.length);
+        headerLength = count;
+    }
+
+    private static int computeHeaderLength(String clientId, String requestId) {
+        return 6 + clientId.getBytes(StandardCharsets.UTF_8).length + requestId.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /** Backing buffer; the image occupies [getHeaderLength(), size()). */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    public int getImageLength() {
+        return count - headerLength;
+    }
+
+    /** Complete frame, sharing the backing array when it has no spare capacity. */
+    public byte[] toFrame() {
+        return count == buf.length ? buf : Arrays.copyOf(buf, count);
+    }
+}
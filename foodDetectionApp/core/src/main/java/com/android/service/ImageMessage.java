@@ -0,0 +1,21 @@
+package com.android.service;
+
+/** A decoded project/images message, binary frame or JSON; the image is a slice of {@code data}. */
+public class ImageMessage {
+    public final String clientId;
+    public final String requestId;
+    /** Topic the reply should go to. */
+    public final String replyTopic;
+    public final byte[] data;
+    public final int imageOffset;
+    public final int imageLength;
+
+    public ImageMessage(String clientId, String requestId, String replyTopic, byte[] data, int imageOffset, int imageLength) {
+        this.clientId = clientId;
+        this.requestId = requestId;
+        this.replyTopic = replyTopic;
+        this.data = data;
+        this.imageOffset = imageOffset;
+        this.imageLength = imageLength;
+    }
+}
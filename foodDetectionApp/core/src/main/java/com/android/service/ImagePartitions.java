@@ -0,0 +1,42 @@
+package com.android.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Splits the image topic into {@code <topic>/<partition>} sub-topics so several inference workers
+ * can share the load, each subscribed to some of the partitions. A device always publishes to the
+ * partition of its client id, so all of its requests reach the same worker, in the order sent.
+ *
+ * The partition is the CRC-32 of the UTF-8 client id modulo the partition count: stable across
+ * restarts and JVMs, and the same as Python's {@code zlib.crc32(client_id.encode()) % n}, so the
+ * server can tell which worker a device belongs to.
+ */
+public final class ImagePartitions {
+
+    private ImagePartitions() {
+    }
+
+    /** The partition in [0, partitions) for this client id. */
+    public static int partitionOf(String clientId, int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(clientId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % partitions);
+    }
+
+    /** {@code baseTopic/partition}. */
+    public static String partitionTopic(String baseTopic, int partition) {
+        return baseTopic + "/" + partition;
+    }
+
+    /** Where this client publishes: its partition's topic, or {@code baseTopic} itself when {@code partitions <= 0}. */
+    public static String topicFor(String baseTopic, String clientId, int partitions) {
+        if (partitions <= 0) {
+            return baseTopic;
+        }
+        return partitionTopic(baseTopic, partitionOf(clientId, partitions));
+    }
+}
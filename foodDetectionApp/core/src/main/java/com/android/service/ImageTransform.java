@@ -0,0 +1,212 @@
+package com.android.service;
+
+/**
+ * Affine map between normalized image coordinates (0..1 of the image the server saw, as boxes
+ * travel over MQTT) and the pixels of the view that shows it, together with its inverse.
+ *
+ * {@link #set} reproduces how {@code ImageView} places its drawable for each {@link ScaleType},
+ * after an optional clockwise rotation of the image (e.g. a camera frame shown upright), and the
+ * view's padding. Both directions are plain float math on caller-owned arrays, so the touch and
+ * drawing paths can map every event without allocating. Compute it once per layout and image.
+ */
+public final class ImageTransform {
+
+    /** Same names and placement rules as {@code android.widget.ImageView.ScaleType}. */
+    public enum ScaleType {
+        MATRIX,
+        FIT_XY,
+        FIT_START,
+        FIT_CENTER,
+        FIT_END,
+        CENTER,
+        CENTER_CROP,
+        CENTER_INSIDE
+    }
+
+    // view = [a b c; d e f] * (u, v, 1), and its inverse
+    private double a, b, c, d, e, f;
+    private double ia, ib, ic, id, ie, iff;
+    private boolean valid;
+
+    /**
+     * @param imageWidth      width of the image the normalized coordinates refer to, before rotation
+     * @param rotationDegrees clockwise rotation applied to the image for display: 0, 90, 180 or 270
+     */
+    public void set(int imageWidth, int imageHeight, int rotationDegrees, ScaleType scaleType,
+                    int viewWidth, int viewHeight,
+                    int paddingLeft, int paddingTop, int paddingRight, int paddingBottom) {
+        int rotation = ((rotationDegrees % 360) + 360) % 360;
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90: " + rotationDegrees);
+        }
+        float contentWidth = viewWidth - paddingLeft - paddingRight;
+        float contentHeight = viewHeight - paddingTop - paddingBottom;
+        valid = imageWidth > 0 && imageHeight > 0 && contentWidth > 0 && contentHeight > 0;
+        if (!valid) {
+            return;
+        }
+
+        // Normalized -> image pixels -> rotated (displayed) pixels
+        double w = imageWidth;
+        double h = imageHeight;
+        switch (rotation) {
+            case 90:  // (x, y) -> (h - y, x)
+                setAffine(0, -h, h, w, 0, 0);
+                break;
+            case 180: // (x, y) -> (w - x, h - y)
+                setAffine(-w, 0, w, 0, -h, h);
+                break;
+            case 270: // (x, y) -> (y, w - x)
+                setAffine(0, h, 0, -w, 0, w);
+                break;
+            default:
+                setAffine(w, 0, 0, 0, h, 0);
+                break;
+        }
+        float drawableWidth = (float) (rotation % 180 == 0 ? w : h);
+        float drawableHeight = (float) (rotation % 180 == 0 ? h : w);
+
+        // Displayed pixels -> content area, as ImageView.configureBounds does it
+        double sx = 1, sy = 1, dx = 0, dy = 0;
+        switch (scaleType) {
+            case FIT_XY:
+                sx = contentWidth / drawableWidth;
+                sy = contentHeight / drawableHeight;
+                break;
+            case CENTER:
+                dx = Math.round((contentWidth - drawableWidth) * 0.5f);
+                dy = Math.round((contentHeight - drawableHeight) * 0.5f);
+                break;
+            case CENTER_CROP: {
+                float scale;
+                float cropX = 0, cropY = 0;
+                if (drawableWidth * contentHeight > contentWidth * drawableHeight) {
+                    scale = contentHeight / drawableHeight;
+                    cropX = (contentWidth - drawableWidth * scale) * 0.5f;
+                } else {
+                    scale = contentWidth / drawableWidth;
+                    cropY = (contentHeight - drawableHeight * scale) * 0.5f;
+                }
+                sx = sy = scale;
+                dx = Math.round(cropX);
+                dy = Math.round(cropY);
+                break;
+            }
+            case CENTER_INSIDE: {
+                float scale = drawableWidth <= contentWidth && drawableHeight <= contentHeight
+                        ? 1f : Math.min(contentWidth / drawableWidth, contentHeight / drawableHeight);
+                sx = sy = scale;
+                dx = Math.round((contentWidth - drawableWidth * scale) * 0.5f);
+                dy = Math.round((contentHeight - drawableHeight * scale) * 0.5f);
+                break;
+            }
+            case FIT_START:
+            case FIT_CENTER:
+            case FIT_END: {
+                // Matrix.setRectToRect: uniform scale, aligned along the axis with room to spare
+                double scale = Math.min(contentWidth / drawableWidth, contentHeight / drawableHeight);
+                double spareX = contentWidth - drawableWidth * scale;
+                double spareY = contentHeight - drawableHeight * scale;
+                double align = scaleType == ScaleType.FIT_START ? 0 : scaleType == ScaleType.FIT_CENTER ? 0.5 : 1;
+                sx = sy = scale;
+                dx = spareX * align;
+                dy = spareY * align;
+                break;
+            }
+            default: // MATRIX: drawn at its own size from the top-left
+                break;
+        }
+        postScaleTranslate(sx, sy, dx + paddingLeft, dy + paddingTop);
+
+        double det = a * e - b * d;
+        ia = e / det;
+        ib = -b / det;
+        ic = (b * f - c * e) / det;
+        id = -d / det;
+        ie = a / det;
+        iff = (c * d - a * f) / det;
+    }
+
+    /** False until {@link #set} has been called with a non-empty image and view. */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /** Maps {@code count} normalized (u, v) points to view pixels. {@code src} may be {@code dst}. */
+    public void mapToView(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        for (int i = 0; i < count * 2; i += 2) {
+            double u = src[srcOffset + i];
+            double v = src[srcOffset + i + 1];
+            dst[dstOffset + i] = (float) (a * u + b * v + c);
+            dst[dstOffset + i + 1] = (float) (d * u + e * v + f);
+        }
+    }
+
+    /** Maps {@code count} view-pixel points to normalized image coordinates (unclamped). */
+    public void mapToImage(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        for (int i = 0; i < count * 2; i += 2) {
+            double x = src[srcOffset + i];
+            double y = src[srcOffset + i + 1];
+            dst[dstOffset + i] = (float) (ia * x + ib * y + ic);
+            dst[dstOffset + i + 1] = (float) (id * x + ie * y + iff);
+        }
+    }
+
+    /**
+     * Maps the normalized box {@code box[offset .. offset + 3]} to a view-pixel rectangle in
+     * {@code out[outOffset ..]}, corners ordered (rotation can swap them).
+     */
+    public void mapBoxToView(float[] box, int offset, float[] out, int outOffset) {
+        mapBox(box[offset], box[offset + 1], box[offset + 2], box[offset + 3], out, outOffset, false);
+    }
+
+    /**
+     * Maps a view-pixel rectangle to a normalized box in {@code out[outOffset ..]}, corners
+     * ordered and clamped to the image. Returns false (leaving zeros) while not {@link #isValid()}.
+     */
+    public boolean mapBoxToImage(float left, float top, float right, float bottom, float[] out, int outOffset) {
+        if (!valid) {
+            out[outOffset] = out[outOffset + 1] = out[outOffset + 2] = out[outOffset + 3] = 0;
+            return false;
+        }
+        mapBox(left, top, right, bottom, out, outOffset, true);
+        return true;
+    }
+
+    private void mapBox(float x1, float y1, float x2, float y2, float[] out, int o, boolean toImage) {
+        double ma = toImage ? ia : a, mb = toImage ? ib : b, mc = toImage ? ic : c;
+        double md = toImage ? id : d, me = toImage ? ie : e, mf = toImage ? iff : f;
+        // Axis-aligned in both spaces, so two opposite corners are enough
+        double px1 = ma * x1 + mb * y1 + mc;
+        double py1 = md * x1 + me * y1 + mf;
+        double px2 = ma * x2 + mb * y2 + mc;
+        double py2 = md * x2 + me * y2 + mf;
+        out[o] = (float) Math.min(px1, px2);
+        out[o + 1] = (float) Math.min(py1, py2);
+        out[o + 2] = (float) Math.max(px1, px2);
+        out[o + 3] = (float) Math.max(py1, py2);
+        if (toImage) {
+            for (int i = o; i < o + 4; i++) {
+                out[i] = out[i] < 0 ? 0 : (out[i] > 1 ? 1 : out[i]);
+            }
+        }
+    }
+
+    private void setAffine(double a, double b, double c, double d, double e, double f) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+        this.e = e;
+        this.f = f;
+    }
+
+    private void postScaleTranslate(double sx, double sy, double tx, double ty) {
+        a *= sx;
+        b *= sx;
+        c = c * sx + tx;
+        d *= sy;
+        e *= sy;
+        f = f * sy + ty;
+    }
+}
@@ -0,0 +1,307 @@
+package com.android.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Table of prediction requests waiting for a reply, keyed by request id.
+ *
+ * Each request gets a deadline per attempt and is re-published with exponential backoff until
+ * {@code maxRetries} is used up, then its future fails with a {@link TimeoutException}. At most
+ * {@code maxInFlight} requests are on the wire at once; the rest wait in submission order.
+ * Cancelling the returned future removes the request and frees its slot. While disconnected,
+ * deadlines are re-armed without using up retries, since the request is sitting in the outbound
+ * queue rather than being lost. {@link #shutdown()} fails every request still pending.
+ *
+ * A request submitted under an id that is still on the wire waits until that one is finished, so a
+ * reply is never matched to the wrong request of the two. Requests sent in stages under one id
+ * (a thumbnail, then the full image) are submitted with their stage; a reply naming a stage only
+ * completes the request of that stage, so a late copy of an earlier stage's reply can't.
+ *
+ * @param <T> decoded reply type
+ */
+public class InFlightRequests<T> {
+
+    /** For replies that don't say which stage they answer. */
+    public static final int ANY_STAGE = -1;
+
+    private final long timeoutMs;
+    private final int maxRetries;
+    private final long backoffMs;
+    private final int maxInFlight;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private volatile boolean connected = true;
+    private boolean shutDown;
+
+    // Insertion order doubles as send order, which the legacy reply fallback relies on
+    private final Map<String, Request<T>> inFlight = new LinkedHashMap<>();
+    private final ArrayDeque<Request<T>> waiting = new ArrayDeque<>();
+    private volatile CompletionListener<T> completionListener;
+
+    /** Told about every request that finishes, whoever is still holding its future. */
+    public interface CompletionListener<T> {
+        void onRequestComplete(String requestId, T reply, Throwable error);
+    }
+
+    private static class Request<T> {
+        final String requestId;
+        final int stage;
+        final Runnable publish;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        int attempt;
+        ScheduledFuture<?> timer;
+
+        Request(String requestId, int stage, Runnable publish) {
+            this.requestId = requestId;
+            this.stage = stage;
+            this.publish = publish;
+        }
+    }
+
+    public InFlightRequests(long timeoutMs, int maxRetries, long backoffMs, int maxInFlight) {
+        this(timeoutMs, maxRetries, backoffMs, maxInFlight, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "in-flight-requests");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Runs timers on a scheduler shared with other tables, e.g. one per simulated device in the
+     * load generator. {@link #shutdown()} leaves a shared scheduler running.
+     */
+    public InFlightRequests(long timeoutMs, int maxRetries, long backoffMs, int maxInFlight,
+                            ScheduledExecutorService scheduler) {
+        this(timeoutMs, maxRetries, backoffMs, maxInFlight, scheduler, false);
+    }
+
+    private InFlightRequests(long timeoutMs, int maxRetries, long backoffMs, int maxInFlight,
+                             ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.timeoutMs = timeoutMs;
+        this.maxRetries = maxRetries;
+        this.backoffMs = backoffMs;
+        this.maxInFlight = maxInFlight;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    /**
+     * Registers a request and publishes it now, or as soon as a slot frees up.
+     * {@code publish} is run again for every retry and must resend the same request id.
+     */
+    public CompletableFuture<T> submit(String requestId, Runnable publish) {
+        return submit(requestId, 0, publish);
+    }
+
+    /** Like {@link #submit(String, Runnable)}, for one stage of a request sent in stages. */
+    public CompletableFuture<T> submit(String requestId, int stage, Runnable publish) {
+        Request<T> request = new Request<>(requestId, stage, publish);
+        request.future.whenComplete((reply, error) -> {
+            remove(request);
+            CompletionListener<T> listener = completionListener;
+            if (listener != null) {
+                listener.onRequestComplete(requestId, reply, error);
+            }
+        });
+
+        boolean sendNow;
+        synchronized (this) {
+            if (shutDown) {
+                request.future.completeExceptionally(new IllegalStateException("Requests shut down"));
+                return request.future;
+            }
+            sendNow = inFlight.size() < maxInFlight && !inFlight.containsKey(requestId);
+            if (sendNow) {
+                inFlight.put(requestId, request);
+            } else {
+                waiting.add(request);
+            }
+        }
+        if (sendNow) {
+            send(request);
+        }
+        return request.future;
+    }
+
+    /** Completes the request with its reply. Returns false for unknown or late replies. */
+    public boolean complete(String requestId, T reply) {
+        return complete(requestId, ANY_STAGE, reply);
+    }
+
+    /** Completes the request if it is at {@code stage}, or at any stage for {@link #ANY_STAGE}. */
+    public boolean complete(String requestId, int stage, T reply) {
+        Request<T> request = find(requestId, stage);
+        return request != null && request.future.complete(reply);
+    }
+
+    /**
+     * Completes the oldest request on the wire; used for replies from servers that do not echo
+     * request_id yet.
+     */
+    public boolean completeOldest(T reply) {
+        Request<T> request;
+        synchronized (this) {
+            Iterator<Request<T>> it = inFlight.values().iterator();
+            request = it.hasNext() ? it.next() : null;
+        }
+        return request != null && request.future.complete(reply);
+    }
+
+    /**
+     * Fails the oldest request on the wire; used for error replies without a request_id, which
+     * would otherwise leave their request waiting for a reply through every retry.
+     */
+    public boolean failOldest(Throwable error) {
+        Request<T> request;
+        synchronized (this) {
+            Iterator<Request<T>> it = inFlight.values().iterator();
+            request = it.hasNext() ? it.next() : null;
+        }
+        return request != null && request.future.completeExceptionally(error);
+    }
+
+    public boolean fail(String requestId, Throwable error) {
+        return fail(requestId, ANY_STAGE, error);
+    }
+
+    public boolean fail(String requestId, int stage, Throwable error) {
+        Request<T> request = find(requestId, stage);
+        return request != null && request.future.completeExceptionally(error);
+    }
+
+    private synchronized Request<T> find(String requestId, int stage) {
+        Request<T> request = inFlight.get(requestId);
+        return request != null && (stage == ANY_STAGE || request.stage == stage) ? request : null;
+    }
+
+    public void setCompletionListener(CompletionListener<T> listener) {
+        this.completionListener = listener;
+    }
+
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    /**
+     * Publishes every request on the wire again now, without using up a retry, for when replies
+     * to the earlier attempts can no longer arrive, e.g. after moving to another broker.
+     */
+    public void resendAll() {
+        List<Request<T>> requests;
+        synchronized (this) {
+            requests = new ArrayList<>(inFlight.values());
+            for (Request<T> request : requests) {
+                if (request.timer != null) {
+                    request.timer.cancel(false);
+                }
+            }
+        }
+        for (Request<T> request : requests) {
+            scheduler.execute(() -> send(request));
+        }
+    }
+
+    /** Whether the request is on the wire and still waiting for its reply. */
+    public synchronized boolean isInFlight(String requestId) {
+        return inFlight.containsKey(requestId);
+    }
+
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    /** Fails every pending request and rejects new ones; stops the scheduler if it is our own. */
+    public void shutdown() {
+        List<Request<T>> pending;
+        synchronized (this) {
+            shutDown = true;
+            pending = new ArrayList<>(inFlight.values());
+            pending.addAll(waiting);
+            inFlight.clear();
+            waiting.clear();
+        }
+        for (Request<T> request : pending) {
+            request.future.completeExceptionally(new IllegalStateException("Requests shut down"));
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void send(Request<T> request) {
+        if (request.future.isDone()) {
+            return;
+        }
+        request.publish.run();
+        synchronized (this) {
+            if (!request.future.isDone()) {
+                request.timer = scheduler.schedule(() -> onTimeout(request), timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void onTimeout(Request<T> request) {
+        if (request.future.isDone()) {
+            return;
+        }
+        if (!connected) {
+            synchronized (this) {
+                request.timer = scheduler.schedule(() -> onTimeout(request), timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        if (request.attempt >= maxRetries) {
+            request.future.completeExceptionally(new TimeoutException(
+                    "No reply for request " + request.requestId + " after " + (request.attempt + 1) + " attempts"));
+            return;
+        }
+        long delay = backoffMs << request.attempt;
+        request.attempt++;
+        synchronized (this) {
+            request.timer = scheduler.schedule(() -> send(request), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void remove(Request<T> request) {
+        List<Request<T>> next = new ArrayList<>();
+        synchronized (this) {
+            if (request.timer != null) {
+                request.timer.cancel(false);
+            }
+            // Only this request: a newer one under the same id may have taken its place
+            if (!inFlight.remove(request.requestId, request)) {
+                waiting.remove(request);
+                return;
+            }
+            Iterator<Request<T>> it = waiting.iterator();
+            while (inFlight.size() < maxInFlight && it.hasNext()) {
+                Request<T> candidate = it.next();
+                if (candidate.future.isDone()) {
+                    it.remove();
+                } else if (!inFlight.containsKey(candidate.requestId)) {
+                    it.remove();
+                    inFlight.put(candidate.requestId, candidate);
+                    next.add(candidate);
+                }
+            }
+        }
+        for (Request<T> toSend : next) {
+            scheduler.execute(() -> send(toSend));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.android.service;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size log-linear histogram of latencies in microseconds, in the style of HdrHistogram.
+ *
+ * Values below 64 get their own bucket; above that every power of two is split into 32 linear
+ * sub-buckets, so any reported value is within about 3% of what was recorded. All storage is
+ * allocated up front and {@link #record(long)} never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // Enough for ~12 days in microseconds; larger values land in the last bucket
+    private static final int MAX_SHIFT = 35;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private long sum;
+
+    public synchronized void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        counts[bucketIndex(valueUs)]++;
+        totalCount++;
+        sum += valueUs;
+        if (valueUs < min) {
+            min = valueUs;
+        }
+        if (valueUs > max) {
+            max = valueUs;
+        }
+    }
+
+    public void recordNanos(long valueNs) {
+        record(valueNs / 1000);
+    }
+
+    /** Highest value equivalent to the given percentile (0-100), or 0 when empty. */
+    public synchronized long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                // The last bucket also holds everything too large for the others
+                return i == BUCKET_COUNT - 1 ? max : Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return totalCount;
+    }
+
+    public synchronized long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        int top = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (top - SUB_BUCKET_HALF);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF + 1;
+        long top = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
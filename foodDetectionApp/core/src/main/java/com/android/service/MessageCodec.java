@@ -0,0 +1,164 @@
+package com.android.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding and decoding of every message the app and server exchange over MQTT.
+ *
+ * Uses org.json, which Android ships as part of the platform; JVM users bring their own copy.
+ */
+public final class MessageCodec {
+    public static final String TOPIC_PREDICTIONS = "project/predictions";
+    public static final String TOPIC_PREDICTIONS_PREFIX = "project/predictions/";
+
+    private static final byte[] IMAGE_DATA_PREFIX = ",\"image_data\":\"".getBytes(StandardCharsets.US_ASCII);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * JSON image message for servers without binary frame support:
+     * {"client_id", "request_id", "reply_to"?, "image_data": "&lt;Base64&gt;"}. The Base64 text is
+     * written straight into the output bytes instead of going through a JSONObject string.
+     *
+     * @param replyTo reply topic to ask for, or null for the shared predictions topic
+     */
+    public static byte[] encodeImageJson(String clientId, String requestId, String replyTo,
+                                         byte[] image, int offset, int length) {
+        StringBuilder head = new StringBuilder(96);
+        head.append("{\"client_id\":").append(JSONObject.quote(clientId));
+        head.append(",\"request_id\":").append(JSONObject.quote(requestId));
+        if (replyTo != null) {
+            head.append(",\"reply_to\":").append(JSONObject.quote(replyTo));
+        }
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] out = new byte[headBytes.length + IMAGE_DATA_PREFIX.length + Base64Codec.encodedLength(length) + 2];
+        int pos = 0;
+        System.arraycopy(headBytes, 0, out, pos, headBytes.length);
+        pos += headBytes.length;
+        System.arraycopy(IMAGE_DATA_PREFIX, 0, out, pos, IMAGE_DATA_PREFIX.length);
+        pos += IMAGE_DATA_PREFIX.length;
+        pos += Base64Codec.encode(image, offset, length, out, pos);
+        out[pos++] = '"';
+        out[pos] = '}';
+        return out;
+    }
+
+    /** JSON image message for the frame's image bytes. */
+    public static byte[] encodeImageJson(ImageFrameOutputStream frame, String clientId, String replyTo) {
+        return encodeImageJson(clientId, frame.getRequestId(), replyTo,
+                frame.getBuffer(), frame.getHeaderLength(), frame.getImageLength());
+    }
+
+    /** Decodes either image message format, the way the server does. */
+    public static ImageMessage decodeImage(byte[] data) throws JSONException {
+        if (data.length >= 2 && data[0] == ImageFrameOutputStream.MAGIC_0 && data[1] == ImageFrameOutputStream.MAGIC_1) {
+            return decodeImageFrame(data);
+        }
+        JSONObject json = new JSONObject(new String(data, StandardCharsets.UTF_8));
+        String clientId = json.optString("client_id", "unknown");
+        String requestId = json.isNull("request_id") ? null : json.optString("request_id");
+        String replyTo = json.optString("reply_to", "");
+        String replyTopic = replyTo.startsWith(TOPIC_PREDICTIONS_PREFIX) ? replyTo : TOPIC_PREDICTIONS;
+        byte[] image = Base64Codec.decode(json.getString("image_data"));
+        return new ImageMessage(clientId, requestId, replyTopic, image, 0, image.length);
+    }
+
+    private static ImageMessage decodeImageFrame(byte[] data) {
+        if (data.length < 6 || data[2] != ImageFrameOutputStream.FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported image frame");
+        }
+        int flags = data[3];
+        int pos = 4;
+        int clientIdLength = data[pos] & 0xff;
+        String clientId = new String(data, pos + 1, clientIdLength, StandardCharsets.UTF_8);
+        pos += 1 + clientIdLength;
+        int requestIdLength = data[pos] & 0xff;
+        String requestId = new String(data, pos + 1, requestIdLength, StandardCharsets.UTF_8);
+        pos += 1 + requestIdLength;
+        String replyTopic = (flags & ImageFrameOutputStream.FLAG_REPLY_TOPIC) != 0
+                ? TOPIC_PREDICTIONS_PREFIX + clientId : TOPIC_PREDICTIONS;
+        return new ImageMessage(clientId, requestId, replyTopic, data, pos, data.length - pos);
+    }
+
+    /** Server-side reply envelope; {@code timingsJson} may be null. */
+    public static String encodeReply(String clientId, String requestId, String prediction, String timingsJson)
+            throws JSONException {
+        JSONObject reply = new JSONObject();
+        reply.put("client_id", clientId);
+        reply.put("request_id", requestId);
+        reply.put("prediction", prediction);
+        if (timingsJson != null) {
+            reply.put("timings", new JSONObject(timingsJson));
+        }
+        return reply.toString();
+    }
+
+    public static PredictionReply decodeReply(String json) throws JSONException {
+        JSONObject reply = new JSONObject(json);
+        String requestId = reply.isNull("request_id") ? null : reply.optString("request_id");
+        String error = reply.has("error") ? reply.optString("error") : null;
+        String prediction = error == null ? reply.optString("prediction") : null;
+        return new PredictionReply(reply.optString("client_id"), requestId, prediction, error,
+                reply.optJSONObject("timings"));
+    }
+
+    /** Parses the "prediction" string: {"predictions": [...]} or {"status": ...}. */
+    public static PredictionResult decodePrediction(String json) throws JSONException {
+        JSONObject result = new JSONObject(json);
+        if (!result.has("predictions")) {
+            return new PredictionResult(null, result.has("status") ? result.getString("status") : null);
+        }
+        JSONArray array = result.getJSONArray("predictions");
+        List<Prediction> predictions = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject item = array.getJSONObject(i);
+            float[] box = null;
+            JSONArray boxArray = item.optJSONArray("bounding_box");
+            if (boxArray != null && boxArray.length() == 4) {
+                box = new float[4];
+                for (int j = 0; j < 4; j++) {
+                    box[j] = (float) boxArray.getDouble(j);
+                }
+            }
+            predictions.add(new Prediction(item.getInt("img_id"), item.getString("predicted_label"),
+                    item.optInt("category_id", -1), item.getDouble("confidence"), box));
+        }
+        return new PredictionResult(predictions, null);
+    }
+
+    /** One confirmed label for project/confirmed_labels: {"label": ..., "bounding_box": [x1, y1, x2, y2]}. */
+    public static JSONObject encodeConfirmedLabel(String label, float[] boundingBox) throws JSONException {
+        JSONArray box = new JSONArray();
+        for (int i = 0; i < 4; i++) {
+            // Android's JSONArray has no put(float); widen explicitly (see AndroidJsonApiTest)
+            box.put((double) (boundingBox != null ? boundingBox[i] : 0));
+        }
+        JSONObject labelObject = new JSONObject();
+        labelObject.put("label", label);
+        labelObject.put("bounding_box", box);
+        return labelObject;
+    }
+
+    /** Batch of confirmed labels: {"type": "batch", "items": [{"img_id", "confirmed_labels"}]}. */
+    public static String encodeConfirmedBatch(JSONArray items) throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("type", "batch");
+        payload.put("items", items);
+        return payload.toString();
+    }
+
+    public static JSONObject encodeConfirmedItem(int imageId, JSONArray confirmedLabels) throws JSONException {
+        JSONObject item = new JSONObject();
+        item.put("img_id", imageId);
+        item.put("confirmed_labels", confirmedLabels);
+        return item;
+    }
+}
@@ -0,0 +1,19 @@
+package com.android.service;
+
+/** One detected food item from the server's prediction JSON. */
+public class Prediction {
+    public final int imageId;
+    public final String label;
+    public final int categoryId;
+    public final double confidence;
+    /** Normalized [x1, y1, x2, y2], or null when the server sent none. */
+    public final float[] boundingBox;
+
+    public Prediction(int imageId, String label, int categoryId, double confidence, float[] boundingBox) {
+        this.imageId = imageId;
+        this.label = label;
+        this.categoryId = categoryId;
+        this.confidence = confidence;
+        this.boundingBox = boundingBox;
+    }
+}
@@ -0,0 +1,30 @@
+package com.android.service;
+
+import org.json.JSONObject;
+
+/**
+ * Envelope the server publishes on the predictions topics:
+ * {"client_id", "request_id", "prediction": "&lt;JSON string&gt;"} or {"client_id", "request_id", "error"}.
+ */
+public class PredictionReply {
+    public final String clientId;
+    /** Null for servers that predate request ids. */
+    public final String requestId;
+    /** Prediction JSON as sent (a string inside the envelope), null for errors. */
+    public final String prediction;
+    public final String error;
+    /** Server stage timings in ms, or null. */
+    public final JSONObject timings;
+
+    public PredictionReply(String clientId, String requestId, String prediction, String error, JSONObject timings) {
+        this.clientId = clientId;
+        this.requestId = requestId;
+        this.prediction = prediction;
+        this.error = error;
+        this.timings = timings;
+    }
+
+    public boolean isError() {
+        return error != null;
+    }
+}
@@ -0,0 +1,25 @@
+package com.android.service;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decoded "prediction" string of a reply: either a list of predictions (possibly empty) or a
+ * status such as "success" for confirmed-label acknowledgements.
+ */
+public class PredictionResult {
+    public final List<Prediction> predictions;
+    /** Null unless the server answered with a status instead of predictions. */
+    public final String status;
+    private final boolean hasPredictionList;
+
+    public PredictionResult(List<Prediction> predictions, String status) {
+        this.hasPredictionList = predictions != null;
+        this.predictions = predictions != null ? predictions : Collections.<Prediction>emptyList();
+        this.status = status;
+    }
+
+    public boolean hasPredictionList() {
+        return hasPredictionList;
+    }
+}
@@ -0,0 +1,547 @@
+package com.android.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Single-pass decoder for prediction replies, working on the raw MQTT payload bytes.
+ *
+ * The envelope is scanned key by key, and a {@code client_id} that doesn't match stops decoding
+ * straight away, so other clients' replies on the shared topic cost a few dozen byte compares.
+ * {@code prediction} may be the nested JSON string the server sends today or a plain object;
+ * either way the predictions land directly in {@link CompactPredictions} without building a
+ * JSON tree. Labels and timing names are interned, since the same few dozen repeat.
+ *
+ * Not thread-safe: use one decoder per thread (e.g. the MQTT callback thread).
+ */
+public class ReplyDecoder {
+    private static final byte[] KEY_CLIENT_ID = ascii("client_id");
+    private static final byte[] KEY_REQUEST_ID = ascii("request_id");
+    private static final byte[] KEY_PREDICTION = ascii("prediction");
+    private static final byte[] KEY_ERROR = ascii("error");
+    private static final byte[] KEY_TIMINGS = ascii("timings");
+    private static final byte[] KEY_FLAGS = ascii("flags");
+    private static final byte[] KEY_PREDICTIONS = ascii("predictions");
+    private static final byte[] KEY_STATUS = ascii("status");
+    private static final byte[] KEY_NEED_FULL = ascii("need_full");
+    private static final byte[] KEY_IMG_ID = ascii("img_id");
+    private static final byte[] KEY_LABEL = ascii("predicted_label");
+    private static final byte[] KEY_CATEGORY_ID = ascii("category_id");
+    private static final byte[] KEY_CONFIDENCE = ascii("confidence");
+    private static final byte[] KEY_BOX = ascii("bounding_box");
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    // Unescaped strings; the nested prediction JSON is decoded into its own buffer
+    private byte[] text = new byte[256];
+    private int textLength;
+    private byte[] nested = new byte[1024];
+    private int nestedLength;
+
+    private final InternTable intern = new InternTable(256);
+
+    /**
+     * Decodes a reply. Returns null when {@code clientId} is non-null and the reply is addressed
+     * to someone else (or to no one). Throws IllegalArgumentException on malformed JSON.
+     */
+    public DecodedReply decodeReply(byte[] payload, String clientId) {
+        return decodeReply(payload, 0, payload.length, clientId == null ? null : clientId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public DecodedReply decodeReply(byte[] payload, int offset, int length, byte[] clientId) {
+        reset(payload, offset, offset + length);
+        DecodedReply reply = new DecodedReply();
+        boolean clientMatched = clientId == null;
+        boolean nestedPrediction = false;
+        int objectStart = -1;
+        int objectEnd = -1;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readString();
+                expect(':');
+                skipWhitespace();
+                if (textEquals(KEY_CLIENT_ID)) {
+                    if (peek() == '"') {
+                        readString();
+                        clientMatched = clientId == null || textEquals(clientId);
+                    } else {
+                        skipValue();
+                        clientMatched = clientId == null;
+                    }
+                    if (!clientMatched) {
+                        return null; // someone else's reply, stop here
+                    }
+                } else if (textEquals(KEY_REQUEST_ID)) {
+                    reply.requestId = readScalarAsString();
+                } else if (textEquals(KEY_ERROR)) {
+                    reply.error = readScalarAsString();
+                } else if (textEquals(KEY_PREDICTION)) {
+                    if (peek() == '"') {
+                        readString();
+                        swapTextIntoNested();
+                        nestedPrediction = true;
+                    } else if (peek() == '{') {
+                        objectStart = pos;
+                        skipValue();
+                        objectEnd = pos;
+                    } else {
+                        skipValue();
+                    }
+                } else if (textEquals(KEY_TIMINGS) && peek() == '{') {
+                    readTimings(reply);
+                } else if (textEquals(KEY_FLAGS) && peek() != 'n') {
+                    reply.flags = (int) readNumber();
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+        if (!clientMatched) {
+            return null;
+        }
+
+        if (reply.error == null) {
+            if (nestedPrediction) {
+                reply.predictions = decodePrediction(nested, 0, nestedLength);
+            } else if (objectStart >= 0) {
+                reply.predictions = decodePrediction(payload, objectStart, objectEnd - objectStart);
+            } else {
+                reply.predictions = new CompactPredictions(0);
+            }
+        }
+        return reply;
+    }
+
+    /** Decodes a prediction JSON object: {"predictions": [...], "need_full": ...} or {"status": ...}. */
+    public CompactPredictions decodePrediction(byte[] json, int offset, int length) {
+        reset(json, offset, offset + length);
+        CompactPredictions out = new CompactPredictions();
+        out.json = new String(json, offset, length, StandardCharsets.UTF_8);
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readString();
+                expect(':');
+                skipWhitespace();
+                if (textEquals(KEY_PREDICTIONS) && peek() == '[') {
+                    out.hasPredictionList = true;
+                    readPredictionArray(out);
+                } else if (textEquals(KEY_STATUS)) {
+                    out.status = readScalarAsString();
+                } else if (textEquals(KEY_NEED_FULL)) {
+                    out.needFull = "true".equals(readScalarAsString());
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+        return out;
+    }
+
+    /** Convenience for cached prediction JSON. */
+    public CompactPredictions decodePrediction(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return decodePrediction(bytes, 0, bytes.length);
+    }
+
+    private void readPredictionArray(CompactPredictions out) {
+        expect('[');
+        if (consumeIf(']')) {
+            return;
+        }
+        do {
+            int i = out.add();
+            expect('{');
+            if (!consumeIf('}')) {
+                do {
+                    readString();
+                    expect(':');
+                    skipWhitespace();
+                    if (textEquals(KEY_LABEL) && peek() == '"') {
+                        readString();
+                        out.labels[i] = intern.get(text, textLength);
+                    } else if (textEquals(KEY_CONFIDENCE)) {
+                        out.confidences[i] = (float) readNumber();
+                    } else if (textEquals(KEY_CATEGORY_ID)) {
+                        out.categoryIds[i] = (int) readNumber();
+                    } else if (textEquals(KEY_IMG_ID)) {
+                        out.imageIds[i] = (int) readNumber();
+                    } else if (textEquals(KEY_BOX) && peek() == '[') {
+                        readBox(out.boxes, i * 4);
+                    } else {
+                        skipValue();
+                    }
+                } while (consumeIf(','));
+                expect('}');
+            }
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    private void readBox(float[] boxes, int offset) {
+        expect('[');
+        int n = 0;
+        if (!consumeIf(']')) {
+            do {
+                skipWhitespace();
+                float value = (float) readNumber();
+                if (n < 4) {
+                    boxes[offset + n] = value;
+                }
+                n++;
+            } while (consumeIf(','));
+            expect(']');
+        }
+        if (n != 4) {
+            Arrays.fill(boxes, offset, offset + 4, Float.NaN);
+        }
+    }
+
+    private void readTimings(DecodedReply reply) {
+        expect('{');
+        if (consumeIf('}')) {
+            return;
+        }
+        do {
+            readString();
+            String name = intern.get(text, textLength);
+            expect(':');
+            skipWhitespace();
+            byte c = peek();
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                reply.addTiming(name, readNumber());
+            } else {
+                skipValue();
+            }
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    // ---- scanning ----
+
+    private void reset(byte[] data, int start, int limit) {
+        buf = data;
+        pos = start;
+        end = limit;
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw error("Unexpected end of input");
+        }
+        return buf[pos];
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (pos >= end || buf[pos] != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private boolean consumeIf(char c) {
+        skipWhitespace();
+        if (pos < end && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /** Reads a JSON string into {@link #text}, resolving escapes to UTF-8. */
+    private void readString() {
+        expect('"');
+        textLength = 0;
+        while (true) {
+            if (pos >= end) {
+                throw error("Unterminated string");
+            }
+            byte c = buf[pos++];
+            if (c == '"') {
+                return;
+            }
+            if (c != '\\') {
+                appendText(c);
+                continue;
+            }
+            if (pos >= end) {
+                throw error("Unterminated escape");
+            }
+            byte e = buf[pos++];
+            switch (e) {
+                case '"': case '\\': case '/': appendText(e); break;
+                case 'b': appendText((byte) '\b'); break;
+                case 'f': appendText((byte) '\f'); break;
+                case 'n': appendText((byte) '\n'); break;
+                case 'r': appendText((byte) '\r'); break;
+                case 't': appendText((byte) '\t'); break;
+                case 'u': appendCodePoint(readUnicodeEscape()); break;
+                default: throw error("Bad escape");
+            }
+        }
+    }
+
+    private int readUnicodeEscape() {
+        int high = readHex4();
+        if (high >= 0xD800 && high <= 0xDBFF && pos + 6 <= end && buf[pos] == '\\' && buf[pos + 1] == 'u') {
+            int save = pos;
+            pos += 2;
+            int low = readHex4();
+            if (low >= 0xDC00 && low <= 0xDFFF) {
+                return 0x10000 + ((high - 0xD800) << 10) + (low - 0xDC00);
+            }
+            pos = save;
+        }
+        return high;
+    }
+
+    private int readHex4() {
+        if (pos + 4 > end) {
+            throw error("Truncated \\u escape");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(buf[pos++], 16);
+            if (digit < 0) {
+                throw error("Bad \\u escape");
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private void appendCodePoint(int cp) {
+        if (cp < 0x80) {
+            appendText((byte) cp);
+        } else if (cp < 0x800) {
+            appendText((byte) (0xC0 | cp >> 6));
+            appendText((byte) (0x80 | cp & 0x3F));
+        } else if (cp < 0x10000) {
+            appendText((byte) (0xE0 | cp >> 12));
+            appendText((byte) (0x80 | cp >> 6 & 0x3F));
+            appendText((byte) (0x80 | cp & 0x3F));
+        } else {
+            appendText((byte) (0xF0 | cp >> 18));
+            appendText((byte) (0x80 | cp >> 12 & 0x3F));
+            appendText((byte) (0x80 | cp >> 6 & 0x3F));
+            appendText((byte) (0x80 | cp & 0x3F));
+        }
+    }
+
+    private void appendText(byte b) {
+        if (textLength == text.length) {
+            text = Arrays.copyOf(text, text.length * 2);
+        }
+        text[textLength++] = b;
+    }
+
+    /** Keeps the just-read string (the nested prediction JSON) while {@link #text} is reused. */
+    private void swapTextIntoNested() {
+        byte[] previous = nested;
+        nested = text;
+        nestedLength = textLength;
+        text = previous;
+        textLength = 0;
+    }
+
+    private boolean textEquals(byte[] expected) {
+        if (textLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < textLength; i++) {
+            if (text[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** String, number, boolean or null value as text; null for JSON null. */
+    private String readScalarAsString() {
+        byte c = peek();
+        if (c == '"') {
+            readString();
+            return new String(text, 0, textLength, StandardCharsets.UTF_8);
+        }
+        int start = pos;
+        skipValue();
+        String literal = new String(buf, start, pos - start, StandardCharsets.UTF_8).trim();
+        return literal.equals("null") ? null : literal;
+    }
+
+    private double readNumber() {
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            mantissa = mantissa * 10 + (buf[pos++] - '0');
+            digits++;
+        }
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                mantissa = mantissa * 10 + (buf[pos++] - '0');
+                digits++;
+                scale++;
+            }
+        }
+        int exponent = 0;
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) {
+                negativeExponent = buf[pos++] == '-';
+            }
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                exponent = exponent * 10 + (buf[pos++] - '0');
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        if (digits == 0) {
+            throw error("Expected a number");
+        }
+        int power = exponent - scale;
+        if (digits > 18 || Math.abs(power) >= POWERS_OF_TEN.length) {
+            // Too long for the fast path; rare enough to take the slow one
+            return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.US_ASCII));
+        }
+        double value = power >= 0 ? mantissa * POWERS_OF_TEN[power] : mantissa / POWERS_OF_TEN[-power];
+        return negative ? -value : value;
+    }
+
+    private void skipValue() {
+        skipWhitespace();
+        byte c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+        } else {
+            while (pos < end) {
+                c = buf[pos];
+                if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                    break;
+                }
+                pos++;
+            }
+        }
+    }
+
+    private void skipString() {
+        pos++; // opening quote
+        while (true) {
+            if (pos >= end) {
+                throw error("Unterminated string");
+            }
+            byte c = buf[pos++];
+            if (c == '\\') {
+                pos++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at byte " + pos);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Small open-addressing table mapping UTF-8 bytes to a shared String. */
+    private static final class InternTable {
+        private final byte[][] keys;
+        private final String[] values;
+        private int size;
+
+        InternTable(int capacity) {
+            keys = new byte[capacity][];
+            values = new String[capacity];
+        }
+
+        String get(byte[] bytes, int length) {
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            int mask = keys.length - 1;
+            for (int probe = 0; probe < keys.length; probe++) {
+                int slot = (hash + probe) & mask;
+                byte[] key = keys[slot];
+                if (key == null) {
+                    String value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                    // Keep the table at most half full so lookups stay short
+                    if (size < keys.length / 2) {
+                        keys[slot] = Arrays.copyOf(bytes, length);
+                        values[slot] = value;
+                        size++;
+                    }
+                    return value;
+                }
+                if (key.length == length && regionEquals(key, bytes, length)) {
+                    return values[slot];
+                }
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private static boolean regionEquals(byte[] a, byte[] b, int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
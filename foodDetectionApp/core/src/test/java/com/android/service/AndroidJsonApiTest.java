@@ -0,0 +1,154 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Core compiles against the Maven org.json, but the app runs it on Android's own org.json, which
+ * lacks some overloads (e.g. {@code JSONArray.put(float)}). javac silently binds to those, and the
+ * app then fails with NoSuchMethodError. This reads every org.json method reference out of core's
+ * compiled classes and checks it against Android's API, listed in android-org-json.txt.
+ */
+public class AndroidJsonApiTest {
+
+    @Test
+    public void coreOnlyCallsOrgJsonMethodsThatAndroidHas() throws Exception {
+        Set<String> android = loadAndroidApi();
+        File classes = new File(MessageCodec.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        List<String> missing = new ArrayList<>();
+        int checked = 0;
+        for (File file : listClassFiles(classes, new ArrayList<>())) {
+            for (String ref : orgJsonMethodRefs(file)) {
+                checked++;
+                if (!android.contains(ref) && !inheritedFromJdk(ref)) {
+                    missing.add(file.getName() + ": " + ref);
+                }
+            }
+        }
+        assertTrue("no org.json calls found in " + classes, checked > 0);
+        assertTrue("Not in Android's org.json: " + missing, missing.isEmpty());
+    }
+
+    private static Set<String> loadAndroidApi() throws IOException {
+        InputStream in = AndroidJsonApiTest.class.getResourceAsStream("/android-org-json.txt");
+        assertNotNull("android-org-json.txt missing from the test resources", in);
+        Set<String> api = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    api.add(line.trim());
+                }
+            }
+        }
+        return api;
+    }
+
+    /** e.g. getMessage() on a JSONException, which Android's has too. */
+    private static boolean inheritedFromJdk(String ref) {
+        Class<?> base = ref.startsWith("org/json/JSONException ") ? Exception.class : Object.class;
+        String name = ref.substring(ref.indexOf(' ') + 1, ref.indexOf('('));
+        for (Method method : base.getMethods()) {
+            if (method.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<File> listClassFiles(File dir, List<File> out) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    listClassFiles(file, out);
+                } else if (file.getName().endsWith(".class")) {
+                    out.add(file);
+                }
+            }
+        }
+        return out;
+    }
+
+    /** "org/json/Owner name(descriptor)" for each method reference in the constant pool. */
+    private static List<String> orgJsonMethodRefs(File classFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(classFile))) {
+            in.readInt();
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classNames = new int[count];
+            int[] nameAndTypeName = new int[count];
+            int[] nameAndTypeDescriptor = new int[count];
+            List<int[]> methodRefs = new ArrayList<>();
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7:
+                        classNames[i] = in.readUnsignedShort();
+                        break;
+                    case 10:
+                    case 11:
+                        methodRefs.add(new int[]{in.readUnsignedShort(), in.readUnsignedShort()});
+                        break;
+                    case 12:
+                        nameAndTypeName[i] = in.readUnsignedShort();
+                        nameAndTypeDescriptor[i] = in.readUnsignedShort();
+                        break;
+                    case 5:
+                    case 6:
+                        in.readLong();
+                        i++;
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 17:
+                    case 18:
+                        in.readInt();
+                        break;
+                    case 15:
+                        in.readUnsignedByte();
+                        in.readUnsignedShort();
+                        break;
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        in.readUnsignedShort();
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag + " in " + classFile);
+                }
+            }
+            List<String> refs = new ArrayList<>();
+            for (int[] ref : methodRefs) {
+                String owner = utf8[classNames[ref[0]]];
+                if (owner.startsWith("org/json/")) {
+                    refs.add(owner + " " + utf8[nameAndTypeName[ref[1]]] + utf8[nameAndTypeDescriptor[ref[1]]]);
+                }
+            }
+            return refs;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BrokerSelectorTest {
+    private static final String A = "tcp://a:1883";
+    private static final String B = "tcp://b:1883";
+    private static final String C = "tcp://c:1883";
+
+    private final Map<String, BrokerSelector.ProbeResult> results = new HashMap<>();
+    private final BrokerSelector.Prober prober = url -> {
+        BrokerSelector.ProbeResult result = results.get(url);
+        if (result == null) {
+            throw new IOException(url + " is down");
+        }
+        return result;
+    };
+
+    @Test
+    public void keepsConfiguredOrderUntilMeasured() {
+        BrokerSelector selector = new BrokerSelector(Arrays.asList(A, B, C), 0.3);
+        assertEquals(Arrays.asList(A, B, C), selector.ranked());
+        assertFalse(selector.shouldSwitch(A));
+    }
+
+    @Test
+    public void ranksByRoundTripAndConnectTime() {
+        BrokerSelector selector = new BrokerSelector(Arrays.asList(A, B, C), 0.3);
+        results.put(A, new BrokerSelector.ProbeResult(400, 300));
+        results.put(B, new BrokerSelector.ProbeResult(200, 40));
+        results.put(C, new BrokerSelector.ProbeResult(100, 100));
+        selector.probeAll(prober);
+
+        assertEquals(Arrays.asList(B, C, A), selector.ranked());
+        assertTrue(selector.shouldSwitch(A));
+    }
+
+    @Test
+    public void failedBrokersRankLastAndAreLeft() {
+        BrokerSelector selector = new BrokerSelector(Arrays.asList(A, B), 0.3);
+        results.put(B, new BrokerSelector.ProbeResult(50, 50));
+        selector.probeAll(prober);
+        assertEquals(Arrays.asList(B, A), selector.ranked());
+        assertTrue(selector.shouldSwitch(A));
+
+        // Back up and faster: measured again, healthy again
+        results.put(A, new BrokerSelector.ProbeResult(10, 10));
+        selector.probeAll(prober);
+        assertEquals(A, selector.best());
+    }
+
+    @Test
+    public void onlyMovesWhenClearlyFaster() {
+        BrokerSelector selector = new BrokerSelector(Arrays.asList(A, B), 0.3);
+        results.put(A, new BrokerSelector.ProbeResult(100, 100));
+        results.put(B, new BrokerSelector.ProbeResult(100, 90));
+        selector.probeAll(prober);
+        assertEquals(B, selector.best());
+        assertFalse(selector.shouldSwitch(A));
+
+        // Smoothed: one fast probe moves B halfway
+        results.put(B, new BrokerSelector.ProbeResult(10, 10));
+        selector.probeAll(prober);
+        assertEquals(50, selector.getRoundTripMs(B));
+        assertTrue(selector.shouldSwitch(A));
+    }
+}
@@ -0,0 +1,118 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedTransferTest {
+
+    /** Joins chunk messages the way the server does, returning the original payload. */
+    private static byte[] reassemble(byte[][] messages) throws Exception {
+        byte[][] parts = null;
+        int flags = 0;
+        int payloadLength = 0;
+        for (byte[] message : messages) {
+            ByteBuffer in = ByteBuffer.wrap(message);
+            assertEquals('F', in.get());
+            assertEquals('C', in.get());
+            assertEquals(ChunkedTransfer.FORMAT_VERSION, in.get());
+            flags = in.get();
+            // clientId, transferId, topic
+            for (int i = 0; i < 3; i++) {
+                int length = in.get() & 0xFF;
+                in.position(in.position() + length);
+            }
+            int seq = in.getShort() & 0xFFFF;
+            int count = in.getShort() & 0xFFFF;
+            payloadLength = in.getInt();
+            if (parts == null) {
+                parts = new byte[count][];
+            }
+            parts[seq] = Arrays.copyOfRange(message, in.position(), message.length);
+        }
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            joined.write(part);
+        }
+        if ((flags & ChunkedTransfer.FLAG_DEFLATE) == 0) {
+            return joined.toByteArray();
+        }
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(joined.toByteArray());
+        byte[] payload = new byte[payloadLength];
+        int length = 0;
+        while (length < payloadLength && !inflater.finished()) {
+            length += inflater.inflate(payload, length, payloadLength - length);
+        }
+        inflater.end();
+        assertEquals(payloadLength, length);
+        return payload;
+    }
+
+    private static byte[][] allChunks(ChunkedTransfer transfer) {
+        byte[][] messages = new byte[transfer.getChunkCount()][];
+        for (int seq = 0; seq < messages.length; seq++) {
+            messages[seq] = transfer.chunk(seq);
+        }
+        return messages;
+    }
+
+    @Test
+    public void jpegIsSplitWithoutCompression() throws Exception {
+        byte[] jpeg = new byte[10000];
+        new Random(1).nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+
+        ChunkedTransfer transfer = ChunkedTransfer.create("client", "t1", "project/images", jpeg, 4096, true);
+        assertFalse(transfer.isDeflated());
+        assertEquals(3, transfer.getChunkCount());
+        assertArrayEquals(jpeg, reassemble(allChunks(transfer)));
+    }
+
+    @Test
+    public void textIsDeflatedAndSurvivesReordering() throws Exception {
+        StringBuilder json = new StringBuilder("{\"image_data\":\"");
+        for (int i = 0; i < 5000; i++) {
+            json.append("QUJDREVGR0g=");
+        }
+        byte[] payload = json.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+
+        ChunkedTransfer transfer = ChunkedTransfer.create("client", "t2", "project/images", payload, 256, true);
+        assertTrue(transfer.isDeflated());
+        assertTrue(transfer.getDataLength() < payload.length / 2);
+        byte[][] messages = allChunks(transfer);
+        byte[] first = messages[0];
+        messages[0] = messages[messages.length - 1];
+        messages[messages.length - 1] = first;
+        assertArrayEquals(payload, reassemble(messages));
+    }
+
+    @Test
+    public void tracksWhichChunksStillNeedSending() {
+        ChunkedTransfer transfer = ChunkedTransfer.create("client", "t3", "project/images", new byte[1000], 100, false);
+        assertEquals(10, transfer.getChunkCount());
+        for (int seq = 0; seq < 10; seq += 2) {
+            transfer.markDelivered(seq);
+        }
+        assertEquals(5, transfer.getMissingCount());
+        assertEquals(1, transfer.nextMissing(0));
+        assertEquals(9, transfer.nextMissing(8));
+        transfer.markDelivered(9);
+        assertEquals(-1, transfer.nextMissing(9));
+        assertFalse(transfer.isComplete());
+
+        transfer.reset();
+        assertEquals(10, transfer.getMissingCount());
+    }
+}
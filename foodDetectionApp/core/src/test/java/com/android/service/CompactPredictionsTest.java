@@ -0,0 +1,36 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactPredictionsTest {
+
+    @Test
+    public void fromScoresMatchesServerPostprocessing() {
+        float[] scores = {0.005f, 0.30f, 0.60f, 0.30f};
+        String[] labels = {"rice", "laksa", "satay", "ramen"};
+        int[] categoryIds = {1, 7, 3, 12};
+        float[] boxes = {0.1f, 0.1f, 0.5f, 0.5f, 0.2f, 0.3f, 0.9f, 0.8f};
+
+        CompactPredictions p = CompactPredictions.fromScores(scores, labels, categoryIds, boxes, 2, 0.01f);
+        assertTrue(p.hasPredictionList());
+        assertEquals(3, p.count);
+        assertArrayEquals(new String[]{"satay", "laksa", "ramen"}, java.util.Arrays.copyOf(p.labels, 3));
+        assertArrayEquals(new int[]{3, 7, 12}, java.util.Arrays.copyOf(p.categoryIds, 3));
+        assertEquals(-1, p.imageId());
+        // Boxes wrap around by rank
+        assertArrayEquals(new float[]{0.1f, 0.1f, 0.5f, 0.5f, 0.2f, 0.3f, 0.9f, 0.8f, 0.1f, 0.1f, 0.5f, 0.5f},
+                java.util.Arrays.copyOf(p.boxes, 12), 0f);
+    }
+
+    @Test
+    public void fromScoresWithNothingAboveThreshold() {
+        CompactPredictions p = CompactPredictions.fromScores(new float[]{0.001f}, new String[]{"rice"},
+                new int[]{1}, new float[0], 0, 0.01f);
+        assertTrue(p.hasPredictionList());
+        assertEquals(0, p.count);
+    }
+}
@@ -0,0 +1,37 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImagePartitionsTest {
+
+    @Test
+    public void matchesPythonCrc32() {
+        // zlib.crc32(b"loadgen-00000") == 3303144358, zlib.crc32(b"loadgen-00001") == 3018246960
+        assertEquals(3303144358L % 4, ImagePartitions.partitionOf("loadgen-00000", 4));
+        assertEquals(3018246960L % 4, ImagePartitions.partitionOf("loadgen-00001", 4));
+        assertEquals(1, ImagePartitions.partitionOf("android-1a2b", 8));
+    }
+
+    @Test
+    public void unpartitionedUsesTheBaseTopic() {
+        assertEquals("project/images", ImagePartitions.topicFor("project/images", "android-1a2b", 0));
+        assertEquals("project/images/1", ImagePartitions.topicFor("project/images", "android-1a2b", 8));
+    }
+
+    @Test
+    public void spreadsClientIdsEvenly() {
+        int partitions = 4;
+        int[] counts = new int[partitions];
+        for (int i = 0; i < 4000; i++) {
+            counts[ImagePartitions.partitionOf("android-" + Integer.toHexString(i * 7919), partitions)]++;
+        }
+        for (int count : counts) {
+            assertTrue("partition counts " + Arrays.toString(counts), count > 900 && count < 1100);
+        }
+    }
+}
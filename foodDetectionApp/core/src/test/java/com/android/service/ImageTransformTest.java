@@ -0,0 +1,110 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageTransformTest {
+    private static final float[] WHOLE_IMAGE = {0, 0, 1, 1};
+
+    private static float[] displayedRect(int imageWidth, int imageHeight, int rotation,
+                                         ImageTransform.ScaleType scaleType, int viewWidth, int viewHeight) {
+        ImageTransform transform = new ImageTransform();
+        transform.set(imageWidth, imageHeight, rotation, scaleType, viewWidth, viewHeight, 0, 0, 0, 0);
+        float[] rect = new float[4];
+        transform.mapBoxToView(WHOLE_IMAGE, 0, rect, 0);
+        return rect;
+    }
+
+    @Test
+    public void placesImageLikeImageViewForEveryScaleType() {
+        // 400x200 image in a 300x300 view
+        assertArrayEquals(new float[]{0, 0, 400, 200}, displayedRect(400, 200, 0, ImageTransform.ScaleType.MATRIX, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{0, 0, 300, 300}, displayedRect(400, 200, 0, ImageTransform.ScaleType.FIT_XY, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{0, 0, 300, 150}, displayedRect(400, 200, 0, ImageTransform.ScaleType.FIT_START, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{0, 75, 300, 225}, displayedRect(400, 200, 0, ImageTransform.ScaleType.FIT_CENTER, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{0, 150, 300, 300}, displayedRect(400, 200, 0, ImageTransform.ScaleType.FIT_END, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{-50, 50, 350, 250}, displayedRect(400, 200, 0, ImageTransform.ScaleType.CENTER, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{-150, 0, 450, 300}, displayedRect(400, 200, 0, ImageTransform.ScaleType.CENTER_CROP, 300, 300), 1e-3f);
+        assertArrayEquals(new float[]{0, 75, 300, 225}, displayedRect(400, 200, 0, ImageTransform.ScaleType.CENTER_INSIDE, 300, 300), 1e-3f);
+        // Small enough to fit: CENTER_INSIDE does not scale up
+        assertArrayEquals(new float[]{100, 125, 200, 175}, displayedRect(100, 50, 0, ImageTransform.ScaleType.CENTER_INSIDE, 300, 300), 1e-3f);
+    }
+
+    @Test
+    public void rotatesClockwiseBeforePlacing() {
+        // Rotated 90 the image is 200x400, so FIT_CENTER letterboxes it left and right
+        assertArrayEquals(new float[]{75, 0, 225, 300}, displayedRect(400, 200, 90, ImageTransform.ScaleType.FIT_CENTER, 300, 300), 1e-3f);
+
+        ImageTransform transform = new ImageTransform();
+        float[] topLeft = {0, 0};
+        float[] out = new float[2];
+        transform.set(400, 200, 90, ImageTransform.ScaleType.FIT_CENTER, 300, 300, 0, 0, 0, 0);
+        transform.mapToView(topLeft, 0, out, 0, 1);
+        assertArrayEquals(new float[]{225, 0}, out, 1e-3f);
+        transform.set(400, 200, 180, ImageTransform.ScaleType.FIT_CENTER, 300, 300, 0, 0, 0, 0);
+        transform.mapToView(topLeft, 0, out, 0, 1);
+        assertArrayEquals(new float[]{300, 225}, out, 1e-3f);
+        transform.set(400, 200, -90, ImageTransform.ScaleType.FIT_CENTER, 300, 300, 0, 0, 0, 0);
+        transform.mapToView(topLeft, 0, out, 0, 1);
+        assertArrayEquals(new float[]{75, 300}, out, 1e-3f);
+    }
+
+    @Test
+    public void addsPadding() {
+        ImageTransform transform = new ImageTransform();
+        transform.set(400, 200, 0, ImageTransform.ScaleType.FIT_XY, 320, 330, 10, 20, 10, 10);
+        float[] rect = new float[4];
+        transform.mapBoxToView(WHOLE_IMAGE, 0, rect, 0);
+        assertArrayEquals(new float[]{10, 20, 310, 320}, rect, 1e-3f);
+    }
+
+    @Test
+    public void boxesRoundTripForEveryScaleTypeAndRotation() {
+        Random random = new Random(3);
+        ImageTransform transform = new ImageTransform();
+        float[] box = new float[8];
+        float[] pixels = new float[8];
+        float[] back = new float[8];
+        for (ImageTransform.ScaleType scaleType : ImageTransform.ScaleType.values()) {
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                transform.set(640, 480, rotation, scaleType, 1080, 1200, 8, 0, 8, 16);
+                for (int i = 0; i < 20; i++) {
+                    float x = random.nextFloat() * 0.5f;
+                    float y = random.nextFloat() * 0.5f;
+                    box[4] = x;
+                    box[5] = y;
+                    box[6] = x + 0.1f + random.nextFloat() * 0.4f;
+                    box[7] = y + 0.1f + random.nextFloat() * 0.4f;
+                    transform.mapBoxToView(box, 4, pixels, 4);
+                    assertTrue(pixels[6] > pixels[4] && pixels[7] > pixels[5]);
+                    // Dragged from the bottom-right corner: corners come back ordered
+                    assertTrue(transform.mapBoxToImage(pixels[6], pixels[7], pixels[4], pixels[5], back, 4));
+                    assertArrayEquals(scaleType + " @ " + rotation, box, back, 1e-4f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clampsToImageAndRejectsEmptyView() {
+        ImageTransform transform = new ImageTransform();
+        float[] out = new float[4];
+        transform.set(400, 200, 0, ImageTransform.ScaleType.FIT_XY, 400, 200, 0, 0, 0, 0);
+        assertTrue(transform.mapBoxToImage(-20, 50, 300, 250, out, 0));
+        assertArrayEquals(new float[]{0f, 0.25f, 0.75f, 1f}, out, 1e-6f);
+
+        transform.set(400, 200, 0, ImageTransform.ScaleType.FIT_XY, 0, 100, 0, 0, 0, 0);
+        assertFalse(transform.isValid());
+        assertFalse(transform.mapBoxToImage(0, 0, 10, 10, out, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddRotation() {
+        new ImageTransform().set(400, 200, 45, ImageTransform.ScaleType.FIT_XY, 300, 300, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,185 @@
+package com.android.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InFlightRequestsTest {
+
+    private InFlightRequests<String> requests;
+
+    @After
+    public void shutDown() {
+        if (requests != null) {
+            requests.shutdown();
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("Expected the request to fail");
+        return null;
+    }
+
+    @Test
+    public void completesWithTheReplyAndSendsTheNextWaitingRequest() throws Exception {
+        requests = new InFlightRequests<>(10000, 0, 10, 1);
+        AtomicInteger sentA = new AtomicInteger();
+        AtomicInteger sentB = new AtomicInteger();
+        CompletableFuture<String> a = requests.submit("a", sentA::incrementAndGet);
+        CompletableFuture<String> b = requests.submit("b", sentB::incrementAndGet);
+        assertEquals(1, sentA.get());
+        assertEquals(0, sentB.get());
+        assertEquals(1, requests.waitingCount());
+
+        assertTrue(requests.complete("a", "rice"));
+        assertEquals("rice", a.get(1, TimeUnit.SECONDS));
+        assertFalse(requests.complete("a", "again"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sentB.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, sentB.get());
+        assertTrue(requests.isInFlight("b"));
+        assertTrue(requests.complete("b", "soup"));
+        assertEquals("soup", b.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retriesThenTimesOut() throws Exception {
+        requests = new InFlightRequests<>(30, 2, 5, 4);
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<String> future = requests.submit("a", sent::incrementAndGet);
+
+        assertTrue(failure(future) instanceof TimeoutException);
+        assertEquals(3, sent.get());
+        assertEquals(0, requests.inFlightCount());
+    }
+
+    @Test
+    public void disconnectedRequestsDoNotUseUpRetries() throws Exception {
+        requests = new InFlightRequests<>(20, 0, 5, 4);
+        requests.setConnected(false);
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<String> future = requests.submit("a", sent::incrementAndGet);
+
+        Thread.sleep(150);
+        assertFalse(future.isDone());
+        requests.setConnected(true);
+        assertTrue(failure(future) instanceof TimeoutException);
+        assertEquals(1, sent.get());
+    }
+
+    @Test
+    public void cancellingFreesTheSlot() throws Exception {
+        requests = new InFlightRequests<>(10000, 0, 10, 1);
+        CompletableFuture<String> a = requests.submit("a", () -> { });
+        AtomicInteger sentB = new AtomicInteger();
+        requests.submit("b", sentB::incrementAndGet);
+
+        assertTrue(a.cancel(false));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sentB.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, sentB.get());
+        assertFalse(requests.isInFlight("a"));
+    }
+
+    @Test
+    public void errorWithoutRequestIdFailsTheOldestRequest() throws Exception {
+        requests = new InFlightRequests<>(10000, 2, 10, 4);
+        CompletableFuture<String> a = requests.submit("a", () -> { });
+        CompletableFuture<String> b = requests.submit("b", () -> { });
+
+        assertTrue(requests.failOldest(new IOException("UDP error")));
+        assertTrue(failure(a) instanceof IOException);
+        assertFalse(b.isDone());
+        assertTrue(requests.isInFlight("b"));
+    }
+
+    @Test
+    public void reusedIdWaitsForTheRequestOnTheWire() throws Exception {
+        requests = new InFlightRequests<>(10000, 0, 10, 4);
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<String> first = requests.submit("r", sent::incrementAndGet);
+        CompletableFuture<CompletableFuture<String>> second = new CompletableFuture<>();
+        // Resubmitted from the completion callback, while the first is still in the table
+        first.whenComplete((reply, error) -> second.complete(requests.submit("r", sent::incrementAndGet)));
+
+        assertTrue(requests.complete("r", "thumbnail"));
+        CompletableFuture<String> again = second.get(1, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sent.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, sent.get());
+        assertTrue(requests.isInFlight("r"));
+        assertEquals(1, requests.inFlightCount());
+        assertFalse(again.isDone());
+        assertTrue(requests.complete("r", "full"));
+        assertEquals("full", again.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void reusedIdIsNotSentWhileTheFirstIsOnTheWire() throws Exception {
+        requests = new InFlightRequests<>(10000, 0, 10, 4);
+        CompletableFuture<String> first = requests.submit("r", () -> { });
+        AtomicInteger sentSecond = new AtomicInteger();
+        CompletableFuture<String> second = requests.submit("r", sentSecond::incrementAndGet);
+
+        assertEquals(0, sentSecond.get());
+        assertEquals(1, requests.waitingCount());
+        assertTrue(requests.complete("r", "a"));
+        assertEquals("a", first.get(1, TimeUnit.SECONDS));
+        assertFalse(second.isDone());
+        assertTrue(requests.complete("r", "b"));
+        assertEquals("b", second.get(1, TimeUnit.SECONDS));
+        assertEquals(0, requests.inFlightCount());
+    }
+
+    @Test
+    public void lateReplyToAnEarlierStageDoesNotCompleteTheNextOne() throws Exception {
+        requests = new InFlightRequests<>(10000, 2, 10, 4);
+        CompletableFuture<String> thumbnail = requests.submit("r2", 0, () -> { });
+        assertTrue(requests.complete("r2", 0, "thumbnail"));
+        assertEquals("thumbnail", thumbnail.get(1, TimeUnit.SECONDS));
+
+        CompletableFuture<String> full = requests.submit("r2", 1, () -> { });
+        // A duplicate of the thumbnail's reply, e.g. redelivered at QoS 1
+        assertFalse(requests.complete("r2", 0, "thumbnail"));
+        assertFalse(requests.fail("r2", 0, new IOException("thumbnail error")));
+        assertFalse(full.isDone());
+        assertTrue(requests.complete("r2", 1, "full"));
+        assertEquals("full", full.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownFailsEveryPendingRequest() throws Exception {
+        requests = new InFlightRequests<>(10000, 2, 10, 1);
+        CompletableFuture<String> a = requests.submit("a", () -> { });
+        CompletableFuture<String> b = requests.submit("b", () -> { });
+
+        requests.shutdown();
+        assertTrue(failure(a) instanceof IllegalStateException);
+        assertTrue(failure(b) instanceof IllegalStateException);
+        assertTrue(failure(requests.submit("c", () -> { })) instanceof IllegalStateException);
+        assertEquals(0, requests.inFlightCount());
+        assertEquals(0, requests.waitingCount());
+    }
+}
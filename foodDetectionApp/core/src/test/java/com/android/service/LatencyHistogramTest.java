@@ -0,0 +1,78 @@
+package com.android.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 64; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.highestEquivalentValue(value));
+        }
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithinThreePercent() {
+        int previous = -1;
+        for (long value = 0; value < 1L << 24; value += 1 + value / 97) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("buckets must not go backwards at " + value, index >= previous);
+            previous = index;
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(value + " reported as " + highest, highest >= value);
+            assertTrue(value + " reported as " + highest, highest - value <= value / 32);
+        }
+        // Powers of two start a new bucket
+        assertEquals(LatencyHistogram.bucketIndex(127) + 1, LatencyHistogram.bucketIndex(128));
+        assertEquals(127, LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(127)));
+    }
+
+    @Test
+    public void percentilesOfAUniformSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getMean());
+        assertWithin(5000, histogram.percentile(50));
+        assertWithin(9900, histogram.percentile(99));
+        assertEquals(10000, histogram.percentile(100));
+        assertEquals(1, histogram.percentile(0));
+    }
+
+    @Test
+    public void hugeAndNegativeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.percentile(50));
+        // Beyond the last bucket, but never reported above what was recorded
+        assertEquals(Long.MAX_VALUE / 2, histogram.percentile(100));
+    }
+
+    @Test
+    public void emptyAndResetReportZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.getMin());
+        histogram.recordNanos(2_500_000);
+        assertEquals(2500, histogram.getMax());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.percentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + ", got " + actual,
+                actual >= expected && actual <= expected + expected / 32);
+    }
+}
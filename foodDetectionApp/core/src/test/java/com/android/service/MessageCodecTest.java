@@ -0,0 +1,83 @@
+package com.android.service;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCodecTest {
+
+    @Test
+    public void base64MatchesJdk() {
+        Random random = new Random(7);
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String expected = Base64.getEncoder().encodeToString(data);
+            assertEquals(expected, Base64Codec.encodeToString(data, 0, length));
+            assertArrayEquals(data, Base64Codec.decode(expected));
+        }
+    }
+
+    @Test
+    public void imageJsonRoundTrip() throws Exception {
+        byte[] image = new byte[1000];
+        new Random(1).nextBytes(image);
+        ImageFrameOutputStream frame = new ImageFrameOutputStream("device-1", "42", 0, image.length);
+        frame.write(image, 0, image.length);
+
+        byte[] json = MessageCodec.encodeImageJson(frame, "device-1", "project/predictions/device-1");
+        JSONObject parsed = new JSONObject(new String(json, StandardCharsets.UTF_8));
+        assertEquals("42", parsed.getString("request_id"));
+
+        ImageMessage decoded = MessageCodec.decodeImage(json);
+        assertEquals("device-1", decoded.clientId);
+        assertEquals("project/predictions/device-1", decoded.replyTopic);
+        assertArrayEquals(image, decoded.data);
+    }
+
+    @Test
+    public void binaryFrameDecodes() throws Exception {
+        byte[] image = {1, 2, 3, 4, 5};
+        ImageFrameOutputStream frame = new ImageFrameOutputStream("device-2", "7",
+                ImageFrameOutputStream.FLAG_REPLY_TOPIC, image.length);
+        frame.write(image, 0, image.length);
+
+        ImageMessage decoded = MessageCodec.decodeImage(frame.toFrame());
+        assertEquals("7", decoded.requestId);
+        assertEquals("project/predictions/device-2", decoded.replyTopic);
+        assertEquals(image.length, decoded.imageLength);
+        assertEquals(3, decoded.data[decoded.imageOffset + 2]);
+    }
+
+    @Test
+    public void replyAndPredictionDecode() throws Exception {
+        String prediction = "{\"predictions\": [{\"img_id\": 12, \"predicted_label\": \"rice\", \"category_id\": 3,"
+                + " \"confidence\": 0.9, \"bounding_box\": [0.1, 0.2, 0.3, 0.4]}]}";
+        String reply = MessageCodec.encodeReply("device-1", "5", prediction, "{\"inference_ms\": 12.5}");
+
+        PredictionReply decodedReply = MessageCodec.decodeReply(reply);
+        assertEquals("5", decodedReply.requestId);
+        assertFalse(decodedReply.isError());
+        assertEquals(12.5, decodedReply.timings.getDouble("inference_ms"), 1e-9);
+
+        PredictionResult result = MessageCodec.decodePrediction(decodedReply.prediction);
+        assertTrue(result.hasPredictionList());
+        assertEquals(12, result.predictions.get(0).imageId);
+        assertEquals("rice", result.predictions.get(0).label);
+        assertEquals(0.4f, result.predictions.get(0).boundingBox[3], 1e-6f);
+
+        PredictionResult status = MessageCodec.decodePrediction("{\"status\": \"success\"}");
+        assertFalse(status.hasPredictionList());
+        assertEquals("success", status.status);
+        assertNull(MessageCodec.decodeReply("{\"request_id\": null, \"prediction\": \"{}\"}").requestId);
+    }
+}
@@ -0,0 +1,104 @@
+package com.android.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyDecoderTest {
+    private final ReplyDecoder decoder = new ReplyDecoder();
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String predictionJson() throws Exception {
+        JSONArray predictions = new JSONArray()
+                .put(new JSONObject().put("img_id", 77).put("predicted_label", "nasi lemak \"special\" é")
+                        .put("category_id", 12).put("confidence", 0.953)
+                        .put("bounding_box", new JSONArray().put(0.1).put(0.2).put(0.6).put(0.7)))
+                .put(new JSONObject().put("img_id", 77).put("predicted_label", "rice")
+                        .put("category_id", 3).put("confidence", 4.7e-2));
+        return new JSONObject().put("predictions", predictions).toString();
+    }
+
+    @Test
+    public void decodesEchoedFrameFlags() throws Exception {
+        String reply = "{\"client_id\": \"device-1\", \"request_id\": \"7\", \"prediction\": "
+                + JSONObject.quote(predictionJson()) + ", \"flags\": 5}";
+        assertEquals(5, decoder.decodeReply(utf8(reply), "device-1").flags);
+
+        String legacy = MessageCodec.encodeReply("device-1", "7", predictionJson(), "{}");
+        assertEquals(-1, decoder.decodeReply(utf8(legacy), "device-1").flags);
+    }
+
+    @Test
+    public void decodesNestedStringPrediction() throws Exception {
+        String reply = MessageCodec.encodeReply("device-1", "1700000000123", predictionJson(),
+                "{\"udp_ms\": 41.5, \"inference_ms\": 35}");
+
+        DecodedReply decoded = decoder.decodeReply(utf8(reply), "device-1");
+        assertNotNull(decoded);
+        assertEquals("1700000000123", decoded.requestId);
+        assertFalse(decoded.isError());
+        assertEquals(2, decoded.timingCount);
+
+        CompactPredictions p = decoded.predictions;
+        assertTrue(p.hasPredictionList());
+        assertEquals(2, p.count);
+        assertEquals(77, p.imageId());
+        assertEquals("nasi lemak \"special\" é", p.labels[0]);
+        assertEquals(12, p.categoryIds[0]);
+        assertEquals(0.953f, p.confidences[0], 1e-6);
+        assertEquals(0.6f, p.boxes[2], 1e-6);
+        assertEquals(0.047f, p.confidences[1], 1e-6);
+        assertTrue(Float.isNaN(p.boxes[4]));
+        assertEquals(predictionJson(), p.json);
+    }
+
+    @Test
+    public void decodesObjectPredictionAndNumericRequestId() {
+        String reply = "{\"request_id\": 42, \"extra\": [1, {\"a\": \"}\"}], \"prediction\": {\"status\": \"success\"}}";
+
+        DecodedReply decoded = decoder.decodeReply(utf8(reply), null);
+        assertEquals("42", decoded.requestId);
+        assertFalse(decoded.predictions.hasPredictionList());
+        assertEquals("success", decoded.predictions.status);
+    }
+
+    @Test
+    public void decodesRequestForFullImage() throws Exception {
+        CompactPredictions p = decoder.decodePrediction(
+                "{\"predictions\": [{\"img_id\": 5, \"predicted_label\": \"rice\", \"confidence\": 0.2}], \"need_full\": true}");
+        assertTrue(p.needFull);
+        assertEquals(1, p.count);
+        assertFalse(decoder.decodePrediction(predictionJson()).needFull);
+    }
+
+    @Test
+    public void stopsAtOtherClientsReply() {
+        String reply = "{\"client_id\": \"device-2\", \"request_id\": \"1\", \"prediction\": \"{not json\"}";
+        assertNull(decoder.decodeReply(utf8(reply), "device-1"));
+        assertNull(decoder.decodeReply(utf8("{\"prediction\": \"{}\"}"), "device-1"));
+    }
+
+    @Test
+    public void decodesErrorsAndEscapes() {
+        DecodedReply error = decoder.decodeReply(utf8("{\"request_id\": null, \"error\": \"Bad \\u00e9\\ud83c\\udf5a\"}"), null);
+        assertNull(error.requestId);
+        assertEquals("Bad é🍚", error.error);
+        assertNull(error.predictions);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedReply() {
+        decoder.decodeReply(utf8("{\"request_id\": \"1\", \"prediction\": \"{\\\"predictions\\\": ["), null);
+    }
+}
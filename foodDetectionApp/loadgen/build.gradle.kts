@@ -0,0 +1,21 @@
+// Command-line load generator: ./gradlew :loadgen:run --args="--devices 500 --rate 200 --duration 60"
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+application {
+    mainClass.set("com.android.loadgen.LoadGenerator")
+}
+
+dependencies {
+    implementation(project(":core"))
+    implementation(libs.paho.mqttv3)
+    implementation(libs.moquette.broker)
+    implementation(libs.json)
+    testImplementation(libs.junit)
+}
@@ -0,0 +1,42 @@
+package com.android.loadgen;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.IConfig;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/** In-process Moquette broker on localhost, so a load run needs no network. */
+class EmbeddedBroker {
+    // Large enough for full-size uploads; Moquette's default is a few KB
+    private static final int MAX_MESSAGE_BYTES = 8 * 1024 * 1024;
+
+    private final int port;
+    private final Server server = new Server();
+
+    EmbeddedBroker(int port) {
+        this.port = port;
+    }
+
+    void start() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(IConfig.HOST_PROPERTY_NAME, "127.0.0.1");
+        properties.setProperty(IConfig.PORT_PROPERTY_NAME, Integer.toString(port));
+        properties.setProperty(IConfig.WEB_SOCKET_PORT_PROPERTY_NAME, BrokerConstants.DISABLED_PORT_BIND);
+        properties.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        properties.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+        properties.setProperty(IConfig.ENABLE_TELEMETRY_NAME, "false");
+        properties.setProperty(IConfig.NETTY_MAX_BYTES_PROPERTY_NAME, Integer.toString(MAX_MESSAGE_BYTES));
+        properties.setProperty(IConfig.BUFFER_FLUSH_MS_PROPERTY_NAME, Integer.toString(BrokerConstants.IMMEDIATE_BUFFER_FLUSH));
+        server.startServer(properties);
+    }
+
+    String getUrl() {
+        return "tcp://127.0.0.1:" + port;
+    }
+
+    void stop() {
+        server.stopServer();
+    }
+}
@@ -0,0 +1,62 @@
+package com.android.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/** Images the simulated devices upload, loaded into memory once before the run. */
+class ImageCorpus {
+    private final List<byte[]> images;
+
+    private ImageCorpus(List<byte[]> images) {
+        this.images = images;
+    }
+
+    /** Every JPEG, PNG and WebP file directly inside {@code dir}. */
+    static ImageCorpus fromDirectory(File dir) throws IOException {
+        File[] files = dir.listFiles((d, name) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png") || lower.endsWith(".webp");
+        });
+        if (files == null || files.length == 0) {
+            throw new IOException("No images found in " + dir);
+        }
+        List<byte[]> images = new ArrayList<>();
+        for (File file : files) {
+            images.add(Files.readAllBytes(file.toPath()));
+        }
+        return new ImageCorpus(images);
+    }
+
+    /** Random bytes of roughly an encoded upload's size, for runs without a corpus. */
+    static ImageCorpus synthetic(int count, int imageSize, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> images = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] image = new byte[imageSize];
+            random.nextBytes(image);
+            images.add(image);
+        }
+        return new ImageCorpus(images);
+    }
+
+    int size() {
+        return images.size();
+    }
+
+    byte[] get(int index) {
+        return images.get(index);
+    }
+
+    long averageBytes() {
+        long total = 0;
+        for (byte[] image : images) {
+            total += image.length;
+        }
+        return total / images.size();
+    }
+}
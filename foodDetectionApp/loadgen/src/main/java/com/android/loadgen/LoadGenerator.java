@@ -0,0 +1,225 @@
+package com.android.loadgen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates a fleet of app installs against a broker and reports throughput and reply latency.
+ *
+ * By default everything runs in this JVM: an embedded Moquette broker, a {@link StubResponder} in
+ * place of the Python server, and N {@link SimulatedDevice}s. Requests arrive as an open-loop
+ * Poisson process at {@code --rate} per second across the whole fleet, each from a random device,
+ * so a slow pipeline shows up as queueing latency instead of quietly lowering the load. Pass
+ * {@code --broker} (and {@code --no-responder} when the real server is attached) to test an
+ * external setup. {@code --partitions} runs one stub responder per partition of the image topic
+ * instead, the way the server scales out to several inference workers.
+ *
+ * <pre>
+ *   --devices N        simulated devices (100)
+ *   --rate R           requests per second across all devices (50)
+ *   --duration S       seconds of load (30)
+ *   --corpus DIR       images to upload; random bytes of --image-size if absent
+ *   --image-size B     synthetic image size in bytes (30000)
+ *   --broker URL       external broker instead of the embedded one
+ *   --port P           embedded broker port (18830)
+ *   --no-responder     don't start the stub responder
+ *   --workers W        stub responder concurrency (4)
+ *   --inference-ms T   stub responder time per request (20)
+ *   --partitions N     image topic partitions, one stub responder each (0: one responder, unpartitioned)
+ *   --timeout-ms T     per-attempt request deadline (15000)
+ *   --retries N        retries per request (2)
+ *   --max-in-flight N  requests on the wire per device (4)
+ *   --seed N           random seed (1)
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final int CONNECT_CONCURRENCY = 32;
+
+    private int devices = 100;
+    private double rate = 50;
+    private int durationSeconds = 30;
+    private File corpusDir;
+    private int imageSize = 30000;
+    private String brokerUrl;
+    private int port = 18830;
+    private boolean responder = true;
+    private int workers = 4;
+    private long inferenceMs = 20;
+    private int partitions = 0;
+    private long timeoutMs = 15000;
+    private int retries = 2;
+    private int maxInFlight = 4;
+    private long seed = 1;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--no-responder")) {
+                responder = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--devices": devices = Integer.parseInt(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--corpus": corpusDir = new File(value); break;
+                case "--image-size": imageSize = Integer.parseInt(value); break;
+                case "--broker": brokerUrl = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--workers": workers = Integer.parseInt(value); break;
+                case "--inference-ms": inferenceMs = Long.parseLong(value); break;
+                case "--partitions": partitions = Integer.parseInt(value); break;
+                case "--timeout-ms": timeoutMs = Long.parseLong(value); break;
+                case "--retries": retries = Integer.parseInt(value); break;
+                case "--max-in-flight": maxInFlight = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        ImageCorpus corpus = corpusDir != null ? ImageCorpus.fromDirectory(corpusDir)
+                : ImageCorpus.synthetic(16, imageSize, seed);
+
+        EmbeddedBroker broker = null;
+        if (brokerUrl == null) {
+            broker = new EmbeddedBroker(port);
+            broker.start();
+            brokerUrl = broker.getUrl();
+        }
+        List<StubResponder> stubResponders = new ArrayList<>();
+        if (responder && partitions > 0) {
+            for (int partition = 0; partition < partitions; partition++) {
+                stubResponders.add(new StubResponder(brokerUrl, "loadgen-responder-" + partition, workers, inferenceMs,
+                        partitions, Collections.singletonList(partition)));
+            }
+        } else if (responder) {
+            stubResponders.add(new StubResponder(brokerUrl, workers, inferenceMs));
+        }
+        for (StubResponder stubResponder : stubResponders) {
+            stubResponder.start();
+        }
+
+        LoadStats stats = new LoadStats();
+        ScheduledExecutorService timers = Executors.newScheduledThreadPool(2, daemon("loadgen-timers"));
+        // The shared "event loop": arrivals are handed to a few threads rather than one per device
+        ExecutorService senders = Executors.newFixedThreadPool(4, daemon("loadgen-send"));
+
+        List<SimulatedDevice> fleet = new ArrayList<>();
+        List<Callable<Void>> connects = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < devices; i++) {
+            SimulatedDevice device = new SimulatedDevice(brokerUrl, String.format(Locale.US, "loadgen-%05d", i),
+                    timers, stats, timeoutMs, retries, maxInFlight);
+            fleet.add(device);
+            connects.add(() -> {
+                device.connect();
+                return null;
+            });
+        }
+        ExecutorService connectors = Executors.newFixedThreadPool(CONNECT_CONCURRENCY, daemon("loadgen-connect"));
+        for (Future<Void> connect : connectors.invokeAll(connects)) {
+            connect.get();
+        }
+        connectors.shutdown();
+        if (partitions > 0) {
+            awaitPartitionedConfig(fleet);
+        }
+        System.out.printf(Locale.US, "Connected %d devices to %s in %.1f s; %d images, avg %d bytes%n",
+                devices, brokerUrl, (System.nanoTime() - connectStart) / 1e9, corpus.size(), corpus.averageBytes());
+        System.out.printf(Locale.US, "Offering %.1f requests/s for %d s%n", rate, durationSeconds);
+
+        Random random = new Random(seed);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long next = start;
+        while (next < end) {
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+            }
+            SimulatedDevice device = fleet.get(random.nextInt(fleet.size()));
+            byte[] image = corpus.get(random.nextInt(corpus.size()));
+            long scheduledAt = next;
+            senders.execute(() -> device.sendImage(image, scheduledAt));
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+        long repliesDuringLoad = stats.replies.get();
+        senders.shutdown();
+        senders.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+
+        // Let outstanding requests finish or time out
+        long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs * (retries + 1) + 1000);
+        while (System.nanoTime() < drainDeadline && outstanding(fleet) > 0) {
+            Thread.sleep(50);
+        }
+        System.out.printf(Locale.US, "throughput %.1f replies/s while offering %.1f/s%n",
+                repliesDuringLoad / (double) durationSeconds, rate);
+        System.out.println(stats.report());
+        for (int i = 0; i < stubResponders.size(); i++) {
+            System.out.println("responder " + (stubResponders.size() > 1 ? i + " " : "")
+                    + "served " + stubResponders.get(i).getServedCount());
+        }
+
+        timers.shutdownNow();
+        for (SimulatedDevice device : fleet) {
+            device.disconnect();
+        }
+        for (StubResponder stubResponder : stubResponders) {
+            stubResponder.stop();
+        }
+        if (broker != null) {
+            broker.stop();
+        }
+    }
+
+    /** Waits for every device to have the partitioned config, so none publishes to the plain topic. */
+    private void awaitPartitionedConfig(List<SimulatedDevice> fleet) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (SimulatedDevice device : fleet) {
+            while (device.getImagePartitions() != partitions && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static int outstanding(List<SimulatedDevice> fleet) {
+        int count = 0;
+        for (SimulatedDevice device : fleet) {
+            count += device.inFlightCount();
+        }
+        return count;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,29 @@
+package com.android.loadgen;
+
+import com.android.service.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters and reply latency shared by every simulated device. */
+class LoadStats {
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong replies = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    // Measured from the scheduled send time, so a backed-up sender shows up as latency
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "sent      %d requests, %.1f MB%n", sent.get(), bytesSent.get() / 1e6));
+        sb.append(String.format(Locale.US, "replies   %d%n", replies.get()));
+        sb.append(String.format(Locale.US, "timeouts  %d%n", timeouts.get()));
+        sb.append(String.format(Locale.US, "errors    %d%n", errors.get()));
+        sb.append(String.format(Locale.US, "latency   p50 %.1f ms  p95 %.1f ms  p99 %.1f ms  max %.1f ms",
+                latency.percentile(50) / 1e3, latency.percentile(95) / 1e3,
+                latency.percentile(99) / 1e3, latency.getMax() / 1e3));
+        return sb.toString();
+    }
+}
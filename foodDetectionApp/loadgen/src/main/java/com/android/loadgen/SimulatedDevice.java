@@ -0,0 +1,164 @@
+package com.android.loadgen;
+
+import com.android.service.CompactPredictions;
+import com.android.service.DecodedReply;
+import com.android.service.ImageFrameOutputStream;
+import com.android.service.ImagePartitions;
+import com.android.service.InFlightRequests;
+import com.android.service.ReplyDecoder;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One app install: its own MQTT connection and private reply topic, binary image frames and the
+ * app's {@link InFlightRequests} table for deadlines and retries, minus everything Android.
+ * Like the app, it publishes to its partition of the image topic once the server's config message
+ * advertises partitioned workers.
+ */
+class SimulatedDevice implements MqttCallback {
+    private static final String TOPIC_IMAGE = "project/images";
+    private static final String TOPIC_PREDICTIONS_PREFIX = "project/predictions/";
+    private static final String TOPIC_CONFIG = "project/config";
+
+    private final String clientId;
+    private final MqttAsyncClient client;
+    private final InFlightRequests<CompactPredictions> requests;
+    // Replies arrive on this client's single callback thread
+    private final ReplyDecoder replyDecoder = new ReplyDecoder();
+    private final LoadStats stats;
+    private final AtomicLong requestCounter = new AtomicLong();
+    private volatile int imagePartitions;
+    private volatile String imageTopic = TOPIC_IMAGE;
+
+    SimulatedDevice(String brokerUrl, String clientId, ScheduledExecutorService scheduler, LoadStats stats,
+                    long timeoutMs, int maxRetries, int maxInFlight) throws MqttException {
+        this.clientId = clientId;
+        this.stats = stats;
+        this.client = new MqttAsyncClient(brokerUrl, clientId, new MemoryPersistence());
+        // Timers for all devices share one scheduler instead of a thread each
+        this.requests = new InFlightRequests<>(timeoutMs, maxRetries, timeoutMs / 10, maxInFlight, scheduler);
+        client.setCallback(this);
+    }
+
+    void connect() throws MqttException {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setKeepAliveInterval(60);
+        options.setMaxInflight(100);
+        client.connect(options).waitForCompletion();
+        client.subscribe(TOPIC_PREDICTIONS_PREFIX + clientId, 0).waitForCompletion();
+        client.subscribe(TOPIC_CONFIG, 0).waitForCompletion();
+    }
+
+    /** Partition count from the server's config message; 0 until one advertises partitions. */
+    int getImagePartitions() {
+        return imagePartitions;
+    }
+
+    String getImageTopic() {
+        return imageTopic;
+    }
+
+    /** Sends one image as a tracked request; latency counts from {@code scheduledAtNanos}. */
+    void sendImage(byte[] image, long scheduledAtNanos) {
+        String requestId = Long.toString(requestCounter.incrementAndGet());
+        ImageFrameOutputStream frame = new ImageFrameOutputStream(clientId, requestId,
+                ImageFrameOutputStream.FLAG_REPLY_TOPIC, image.length);
+        frame.write(image, 0, image.length);
+        byte[] payload = frame.toFrame();
+
+        stats.sent.incrementAndGet();
+        requests.submit(requestId, () -> publish(payload)).whenComplete((reply, error) -> {
+            if (error == null) {
+                stats.replies.incrementAndGet();
+                stats.latency.recordNanos(System.nanoTime() - scheduledAtNanos);
+            } else if (error instanceof TimeoutException) {
+                stats.timeouts.incrementAndGet();
+            } else {
+                stats.errors.incrementAndGet();
+            }
+        });
+    }
+
+    private void publish(byte[] payload) {
+        try {
+            client.publish(imageTopic, payload, 0, false);
+            stats.bytesSent.addAndGet(payload.length);
+        } catch (MqttException e) {
+            // Left to the request deadline, the same as a lost message
+            stats.errors.incrementAndGet();
+        }
+    }
+
+    int inFlightCount() {
+        return requests.inFlightCount() + requests.waitingCount();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        if (TOPIC_CONFIG.equals(topic)) {
+            handleConfig(message.getPayload());
+            return;
+        }
+        DecodedReply reply;
+        try {
+            reply = replyDecoder.decodeReply(message.getPayload(), null);
+        } catch (IllegalArgumentException e) {
+            stats.errors.incrementAndGet();
+            return;
+        }
+        if (reply.isError()) {
+            IOException error = new IOException(reply.error);
+            if (reply.requestId != null) {
+                requests.fail(reply.requestId, error);
+            } else {
+                requests.failOldest(error);
+            }
+        } else {
+            requests.complete(reply.requestId, reply.predictions);
+        }
+    }
+
+    private void handleConfig(byte[] payload) {
+        try {
+            JSONObject config = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+            int partitions = Math.max(0, config.optInt("image_partitions", 0));
+            imageTopic = ImagePartitions.topicFor(TOPIC_IMAGE, clientId, partitions);
+            imagePartitions = partitions;
+        } catch (JSONException e) {
+            System.err.println(clientId + " ignored a malformed config message: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        System.err.println(clientId + " lost its connection: " + cause);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    void disconnect() {
+        try {
+            client.disconnect().waitForCompletion();
+            client.close();
+        } catch (MqttException e) {
+            // Shutting down anyway
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.android.loadgen;
+
+import com.android.service.ImageFrameOutputStream;
+import com.android.service.ImageMessage;
+import com.android.service.ImagePartitions;
+import com.android.service.MessageCodec;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for server/mqtt_handler.py plus the model: decodes image messages in either format
+ * and answers each after a fixed "inference" delay. {@code workers} requests are served at a
+ * time, so the responder saturates like a real server at workers / inferenceMs requests per ms.
+ *
+ * With {@code partitions > 0} it is one of several workers: it advertises the partition count in
+ * the config message and only serves the given partitions of the image topic (see
+ * {@link ImagePartitions}).
+ */
+class StubResponder implements MqttCallback {
+    private static final String TOPIC_IMAGE = "project/images";
+    private static final String TOPIC_CONFIG = "project/config";
+    private static final String PREDICTION = "{\"predictions\": [{\"img_id\": 1, \"predicted_label\": \"rice\", "
+            + "\"category_id\": 0, \"confidence\": 0.953, \"bounding_box\": [0.1, 0.1, 0.9, 0.9]}]}";
+
+    /** Sees each request as it arrives, before it is queued for a worker thread. */
+    interface RequestListener {
+        void onRequest(String topic, ImageMessage image);
+    }
+
+    private final MqttAsyncClient client;
+    private final long inferenceMs;
+    private final int partitions;
+    private final List<Integer> servedPartitions;
+    private volatile RequestListener requestListener;
+    private final ExecutorService workers;
+    private final AtomicLong served = new AtomicLong();
+
+    StubResponder(String brokerUrl, int workers, long inferenceMs) throws MqttException {
+        this(brokerUrl, "loadgen-responder", workers, inferenceMs, 0, Collections.emptyList());
+    }
+
+    StubResponder(String brokerUrl, String clientId, int workers, long inferenceMs, int partitions,
+                  List<Integer> servedPartitions) throws MqttException {
+        this.client = new MqttAsyncClient(brokerUrl, clientId, new MemoryPersistence());
+        this.inferenceMs = inferenceMs;
+        this.partitions = partitions;
+        this.servedPartitions = servedPartitions;
+        this.workers = Executors.newFixedThreadPool(workers);
+        client.setCallback(this);
+    }
+
+    void start() throws MqttException {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(10000);
+        client.connect(options).waitForCompletion();
+        if (partitions > 0) {
+            for (int partition : servedPartitions) {
+                client.subscribe(ImagePartitions.partitionTopic(TOPIC_IMAGE, partition), 0).waitForCompletion();
+            }
+        } else {
+            client.subscribe(TOPIC_IMAGE, 0).waitForCompletion();
+        }
+        JSONObject config = new JSONObject().put("image_format_version", ImageFrameOutputStream.FORMAT_VERSION);
+        if (partitions > 0) {
+            config.put("image_partitions", partitions);
+        }
+        client.publish(TOPIC_CONFIG, config.toString().getBytes(StandardCharsets.UTF_8), 1, true).waitForCompletion();
+    }
+
+    void setRequestListener(RequestListener listener) {
+        requestListener = listener;
+    }
+
+    long getServedCount() {
+        return served.get();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        ImageMessage image;
+        try {
+            image = MessageCodec.decodeImage(message.getPayload());
+        } catch (RuntimeException e) {
+            System.err.println("Responder failed: " + e);
+            return;
+        }
+        RequestListener listener = requestListener;
+        if (listener != null) {
+            listener.onRequest(topic, image);
+        }
+        workers.execute(() -> respond(image));
+    }
+
+    private void respond(ImageMessage image) {
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(inferenceMs);
+
+            JSONObject timings = new JSONObject();
+            timings.put("inference_ms", inferenceMs);
+            timings.put("server_ms", (System.nanoTime() - start) / 1e6);
+            String reply = MessageCodec.encodeReply(image.clientId, image.requestId, PREDICTION, timings.toString());
+            client.publish(image.replyTopic, reply.getBytes(StandardCharsets.UTF_8), 0, false);
+            served.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (MqttException | RuntimeException e) {
+            System.err.println("Responder failed: " + e);
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        System.err.println("Responder lost its connection: " + cause);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    void stop() {
+        workers.shutdownNow();
+        try {
+            client.disconnect().waitForCompletion();
+            client.close();
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+}
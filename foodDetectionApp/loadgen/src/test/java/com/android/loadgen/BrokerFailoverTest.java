@@ -0,0 +1,174 @@
+package com.android.loadgen;
+
+import com.android.service.BrokerProbe;
+import com.android.service.BrokerSelector;
+import com.android.service.CompactPredictions;
+import com.android.service.DecodedReply;
+import com.android.service.ImageFrameOutputStream;
+import com.android.service.InFlightRequests;
+import com.android.service.ReplyDecoder;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two local brokers, the second behind a {@link DelayProxy}: the probes must rank the fast one
+ * first, and a device connected to it must move to the slow one when it goes down, with the
+ * request it had in flight answered there. The device side follows MqttClient: Paho's automatic
+ * reconnect over the ranked broker list, and every in-flight request sent again on a new broker.
+ */
+public class BrokerFailoverTest {
+    private static final long PROXY_DELAY_MS = 150;
+    private static final String TOPIC_IMAGE = "project/images";
+
+    private EmbeddedBroker fastBroker;
+    private EmbeddedBroker slowBroker;
+    private DelayProxy slowProxy;
+    private StubResponder fastResponder;
+    private StubResponder slowResponder;
+    private MqttAsyncClient device;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Before
+    public void startBrokers() throws Exception {
+        fastBroker = new EmbeddedBroker(freePort());
+        fastBroker.start();
+        int slowPort = freePort();
+        slowBroker = new EmbeddedBroker(slowPort);
+        slowBroker.start();
+        slowProxy = new DelayProxy(slowPort, PROXY_DELAY_MS);
+        slowProxy.start();
+
+        fastResponder = new StubResponder(fastBroker.getUrl(), 1, 0);
+        fastResponder.start();
+        slowResponder = new StubResponder(slowBroker.getUrl(), 1, 0);
+        slowResponder.start();
+    }
+
+    @After
+    public void stopBrokers() throws Exception {
+        if (device != null) {
+            device.disconnectForcibly(0, 1000);
+            device.close();
+        }
+        if (fastResponder != null) {
+            fastResponder.stop();
+        }
+        slowResponder.stop();
+        slowProxy.stop();
+        slowBroker.stop();
+        if (fastBroker != null) {
+            fastBroker.stop();
+        }
+    }
+
+    @Test
+    public void probesRankTheFastBrokerFirst() {
+        // Configured slow first, so only the measurements can put the fast one ahead
+        BrokerSelector selector = new BrokerSelector(Arrays.asList(slowProxy.getUrl(), fastBroker.getUrl()), 0.3);
+        selector.probeAll(new BrokerProbe(5000));
+
+        assertEquals(Arrays.asList(fastBroker.getUrl(), slowProxy.getUrl()), selector.ranked());
+        assertTrue(selector.getRoundTripMs(slowProxy.getUrl()) >= 2 * PROXY_DELAY_MS);
+        assertTrue(selector.shouldSwitch(slowProxy.getUrl()));
+        assertFalse(selector.shouldSwitch(fastBroker.getUrl()));
+    }
+
+    @Test
+    public void failsOverWithoutLosingTheRequestInFlight() throws Exception {
+        BrokerSelector selector = new BrokerSelector(Arrays.asList(slowProxy.getUrl(), fastBroker.getUrl()), 0.3);
+        selector.probeAll(new BrokerProbe(5000));
+        List<String> ranked = selector.ranked();
+
+        String clientId = "failover-device";
+        String replyTopic = "project/predictions/" + clientId;
+        InFlightRequests<CompactPredictions> requests = new InFlightRequests<>(10000, 0, 100, 4);
+        ReplyDecoder decoder = new ReplyDecoder();
+        device = new MqttAsyncClient(ranked.get(0), clientId, new MemoryPersistence());
+        device.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                requests.setConnected(true);
+                if (reconnect) {
+                    try {
+                        device.subscribe(replyTopic, 0);
+                    } catch (MqttException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    requests.resendAll();
+                }
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                requests.setConnected(false);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                DecodedReply reply = decoder.decodeReply(message.getPayload(), null);
+                requests.complete(reply.requestId, reply.predictions);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setAutomaticReconnect(true);
+        options.setServerURIs(ranked.toArray(new String[0]));
+        device.connect(options).waitForCompletion(5000);
+        device.subscribe(replyTopic, 0).waitForCompletion(5000);
+        assertEquals(fastBroker.getUrl(), device.getCurrentServerURI());
+
+        assertNotNull(request(requests, clientId, "1").get(5, TimeUnit.SECONDS));
+
+        // The fast broker dies with a request on its way to a responder that is gone with it
+        fastResponder.stop();
+        fastResponder = null;
+        fastBroker.stop();
+        fastBroker = null;
+        CompletableFuture<CompactPredictions> inFlight = request(requests, clientId, "2");
+
+        assertNotNull(inFlight.get(15, TimeUnit.SECONDS));
+        assertEquals(slowProxy.getUrl(), device.getCurrentServerURI());
+        assertEquals(1, slowResponder.getServedCount());
+    }
+
+    private CompletableFuture<CompactPredictions> request(InFlightRequests<CompactPredictions> requests,
+                                                          String clientId, String requestId) {
+        return requests.submit(requestId, () -> {
+            ImageFrameOutputStream frame = new ImageFrameOutputStream(clientId, requestId,
+                    ImageFrameOutputStream.FLAG_REPLY_TOPIC, 4);
+            frame.write(new byte[]{1, 2, 3, 4}, 0, 4);
+            try {
+                device.publish(TOPIC_IMAGE, frame.toFrame(), 0, false);
+            } catch (MqttException e) {
+                // Not connected; sent again once the device is on the other broker
+            }
+        });
+    }
+}
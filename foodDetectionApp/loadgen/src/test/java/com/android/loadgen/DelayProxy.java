@@ -0,0 +1,101 @@
+package com.android.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP proxy in front of a broker that holds every read for {@code delayMs} before passing it on,
+ * in both directions, like a slow or overloaded broker. Bytes keep their order: each direction
+ * forwards through its own single-threaded scheduler.
+ */
+class DelayProxy {
+    private final int targetPort;
+    private final long delayMs;
+    private final ServerSocket serverSocket;
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "delay-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    DelayProxy(int targetPort, long delayMs) throws IOException {
+        this.targetPort = targetPort;
+        this.delayMs = delayMs;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    void start() {
+        threads.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket broker = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    pipe(client, broker);
+                    pipe(broker, client);
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+    }
+
+    String getUrl() {
+        return "tcp://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    private void pipe(Socket from, Socket to) {
+        ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delay-proxy-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+        threads.execute(() -> {
+            byte[] buffer = new byte[16 * 1024];
+            try (InputStream in = from.getInputStream()) {
+                OutputStream out = to.getOutputStream();
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    byte[] data = Arrays.copyOf(buffer, read);
+                    delayed.schedule(() -> {
+                        try {
+                            out.write(data);
+                            out.flush();
+                        } catch (IOException e) {
+                            closeQuietly(to);
+                        }
+                    }, delayMs, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                // Connection closed
+            }
+            delayed.schedule(() -> closeQuietly(to), delayMs, TimeUnit.MILLISECONDS);
+            delayed.shutdown();
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        threads.shutdownNow();
+    }
+}
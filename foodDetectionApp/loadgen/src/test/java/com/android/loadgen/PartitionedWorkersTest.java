@@ -0,0 +1,122 @@
+package com.android.loadgen;
+
+import com.android.service.ImagePartitions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * One stub worker per partition of the image topic on a local broker. The workers advertise the
+ * partition count in the config message; the devices must pick it up, spread evenly over the
+ * workers, and each device's requests must all reach one worker in the order they were sent.
+ */
+public class PartitionedWorkersTest {
+    private static final int PARTITIONS = 4;
+    private static final int DEVICES = 64;
+    private static final int REQUESTS_PER_DEVICE = 10;
+
+    private EmbeddedBroker broker;
+    private final List<StubResponder> workers = new ArrayList<>();
+    private final List<SimulatedDevice> fleet = new ArrayList<>();
+    private final ScheduledExecutorService timers = Executors.newScheduledThreadPool(1);
+    // Per worker: client id -> request ids in arrival order
+    private final List<Map<String, List<Long>>> arrivals = new ArrayList<>();
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Before
+    public void startWorkers() throws Exception {
+        broker = new EmbeddedBroker(freePort());
+        broker.start();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            Map<String, List<Long>> seen = new HashMap<>();
+            arrivals.add(seen);
+            StubResponder worker = new StubResponder(broker.getUrl(), "worker-" + partition, 1, 0,
+                    PARTITIONS, Collections.singletonList(partition));
+            worker.setRequestListener((topic, image) -> {
+                synchronized (seen) {
+                    seen.computeIfAbsent(image.clientId, id -> new ArrayList<>()).add(Long.parseLong(image.requestId));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @After
+    public void stopWorkers() {
+        for (SimulatedDevice device : fleet) {
+            device.disconnect();
+        }
+        for (StubResponder worker : workers) {
+            worker.stop();
+        }
+        timers.shutdownNow();
+        broker.stop();
+    }
+
+    @Test
+    public void devicesSpreadEvenlyAndKeepTheirOrder() throws Exception {
+        LoadStats stats = new LoadStats();
+        for (int i = 0; i < DEVICES; i++) {
+            SimulatedDevice device = new SimulatedDevice(broker.getUrl(), String.format(Locale.US, "loadgen-%05d", i),
+                    timers, stats, 10000, 0, REQUESTS_PER_DEVICE);
+            device.connect();
+            fleet.add(device);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        for (SimulatedDevice device : fleet) {
+            while (device.getImagePartitions() != PARTITIONS && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(PARTITIONS, device.getImagePartitions());
+        }
+
+        byte[] image = new byte[1000];
+        for (int n = 0; n < REQUESTS_PER_DEVICE; n++) {
+            for (SimulatedDevice device : fleet) {
+                device.sendImage(image, System.nanoTime());
+            }
+        }
+        int total = DEVICES * REQUESTS_PER_DEVICE;
+        deadline = System.currentTimeMillis() + 10000;
+        while (stats.replies.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(total, stats.replies.get());
+
+        double mean = total / (double) PARTITIONS;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            long served = workers.get(partition).getServedCount();
+            assertTrue("worker " + partition + " served " + served, served > 0.75 * mean && served < 1.25 * mean);
+
+            for (Map.Entry<String, List<Long>> device : arrivals.get(partition).entrySet()) {
+                assertEquals(partition, ImagePartitions.partitionOf(device.getKey(), PARTITIONS));
+                List<Long> requestIds = device.getValue();
+                assertEquals(device.getKey() + " " + requestIds, REQUESTS_PER_DEVICE, requestIds.size());
+                for (int i = 1; i < requestIds.size(); i++) {
+                    assertTrue(device.getKey() + " " + requestIds, requestIds.get(i) > requestIds.get(i - 1));
+                }
+            }
+        }
+    }
+}
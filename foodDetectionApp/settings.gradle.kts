@@ -21,4 +21,7 @@ dependencyResolutionManagement {
 
 rootProject.name = "foodDetectionApp"
 include(":app")
+include(":core")
+include(":loadgen")
+include(":benchmarks")
  
\ No newline at end of file
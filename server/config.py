@@ -4,13 +4,32 @@ import os
 MODEL_PATH = "food_detection_model.h5"
 USE_UPDATED_MODEL = False
 
-# UDP Server Configuration
+# UDP Server Configuration; each worker of a partitioned deployment needs its own port
 UDP_IP = "0.0.0.0"
-UDP_PORT = 5005
+UDP_PORT = int(os.environ.get("UDP_PORT", "5005"))
+
+# Scaling out: devices publish to project/images/<crc32(client_id) % IMAGE_PARTITIONS> (0 turns
+# partitioning off), and each worker process serves the partitions in WORKER_PARTITIONS, e.g.
+# "0,1" (all of them if empty). Every worker must be started with the same IMAGE_PARTITIONS.
+IMAGE_PARTITIONS = int(os.environ.get("IMAGE_PARTITIONS", "0"))
+WORKER_PARTITIONS = [int(p) for p in os.environ.get("WORKER_PARTITIONS", "").split(",") if p.strip()]
+# Devices that don't know about partitions (and confirmed labels) still use the plain topics; with
+# a group name, workers share those through an MQTT shared subscription ($share/<group>/...),
+# otherwise only the worker serving partition 0 takes them
+SHARED_SUBSCRIPTION_GROUP = os.environ.get("SHARED_SUBSCRIPTION_GROUP", "")
 
 # Confidence threshold for predictions
 CONFIDENCE_THRESHOLD = 0.01
 
+# Progressive upload: devices send a thumbnail first, and the full image only when asked.
+# Ask when the best thumbnail confidence is below this, or always to archive originals.
+NEED_FULL_BELOW_CONFIDENCE = 0.5
+ARCHIVE_FULL_IMAGES = False
+
+# Images arriving within this window share one model call, up to the batch size
+PREDICT_BATCH_SIZE = 16
+PREDICT_BATCH_WAIT_MS = 15
+
 # Retraining flag
 SHOULD_TRAIN = False  # No retraining
 
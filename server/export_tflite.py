@@ -0,0 +1,52 @@
+"""
+Exports the food model for on-device inference in the app.
+
+Converts the Keras model the server serves into a TensorFlow Lite model with dynamic-range
+quantization (int8 weights, float input and outputs, runs on the CPU with XNNPACK), and writes
+the labels in the model's output order, one "label<TAB>category_id" line per class, the same
+order predict() in model_utils.py uses. Run it from the server directory after (re)training:
+
+    python export_tflite.py [output_dir]
+"""
+import os
+import sys
+
+import tensorflow as tf
+from tensorflow.keras.models import load_model
+
+from config import MODEL_PATH
+from data_utils import load_category_mapping
+
+DEFAULT_OUTPUT_DIR = os.path.join("..", "foodDetectionApp", "app", "src", "main", "assets")
+MODEL_FILE = "food_model.tflite"
+LABELS_FILE = "food_labels.txt"
+
+
+def export(output_dir):
+    custom_objects = {"mse": tf.keras.losses.MeanSquaredError()}
+    model = load_model(MODEL_PATH, custom_objects=custom_objects)
+
+    converter = tf.lite.TFLiteConverter.from_keras_model(model)
+    converter.optimizations = [tf.lite.Optimize.DEFAULT]
+    tflite_model = converter.convert()
+
+    # First output is the category scores, as in predict()
+    num_classes = model.outputs[0].shape[-1]
+    category_mapping = load_category_mapping()
+    if len(category_mapping) < num_classes:
+        raise ValueError(f"Model has {num_classes} classes but data_info.csv only {len(category_mapping)}")
+    labels = list(category_mapping.items())[:num_classes]
+
+    os.makedirs(output_dir, exist_ok=True)
+    model_path = os.path.join(output_dir, MODEL_FILE)
+    with open(model_path, "wb") as f:
+        f.write(tflite_model)
+    with open(os.path.join(output_dir, LABELS_FILE), "w", encoding="utf-8") as f:
+        for label, category_id in labels:
+            f.write(f"{label}\t{int(category_id)}\n")
+
+    print(f"✅ Wrote {model_path} ({len(tflite_model) / 1024 / 1024:.1f} MB, {num_classes} classes)")
+
+
+if __name__ == "__main__":
+    export(sys.argv[1] if len(sys.argv) > 1 else DEFAULT_OUTPUT_DIR)
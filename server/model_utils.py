@@ -2,7 +2,10 @@ import numpy as np
 import tensorflow as tf
 from tensorflow.keras.models import load_model
 from PIL import Image
+import queue
 import threading
+import time
+from concurrent.futures import Future
 from config import MODEL_PATH, CONFIDENCE_THRESHOLD
 
 
@@ -12,19 +15,28 @@ model = load_model(MODEL_PATH, custom_objects=custom_objects)
 
 model_lock = threading.Lock()
 
+def preprocess(image: Image):
+    """Model input for one image: 224x224 RGB scaled to 0..1."""
+    return np.array(image.convert("RGB").resize((224, 224))) / 255.0
+
 def predict(image: Image, category_mapping):
     """Runs inference on a single image and ensures each predicted label is paired with a bounding box."""
-    with model_lock:
-        # Preprocess image
-        img_array = np.array(image.convert("RGB").resize((224, 224))) / 255.0
-        img_array = np.expand_dims(img_array, axis=0)
+    return predict_batch([image], category_mapping)[0]
 
+def predict_batch(images, category_mapping):
+    """Runs inference on several images in one model call; returns one result per image, in order."""
+    img_array = np.stack([preprocess(image) for image in images])
+
+    with model_lock:
         # Run inference (model has two outputs: category scores and bounding boxes)
-        category_predictions, bbox_predictions = model.predict(img_array, verbose=0)
+        category_predictions, bbox_predictions = model.predict(img_array, batch_size=len(images), verbose=0)
 
-        # Flatten category predictions and bounding boxes
-        category_predictions = category_predictions[0].flatten()
-        bbox_predictions = bbox_predictions[0]  # Extract bounding boxes
+    return [postprocess(category_predictions[i], bbox_predictions[i], category_mapping) for i in range(len(images))]
+
+def postprocess(category_predictions, bbox_predictions, category_mapping):
+    """Turns one image's model outputs into {"predictions": [...]}."""
+    # Flatten category predictions
+    category_predictions = category_predictions.flatten()
 
     # Get valid category predictions (sorted by confidence)
     valid_predictions = sorted(
@@ -67,6 +79,51 @@ def predict(image: Image, category_mapping):
     return {"predictions": predictions}
 
 
+class PredictionBatcher:
+    """
+    Coalesces images that arrive close together (e.g. a meal of several plates, or many devices
+    at once) into one predict_batch() call. The first image waits at most max_wait_ms for others
+    to join; a batch never exceeds max_batch_size. submit() returns a Future of
+    (result, wait_ms, inference_ms, batch_size).
+    """
+
+    def __init__(self, category_mapping, max_batch_size, max_wait_ms):
+        self.category_mapping = category_mapping
+        self.max_batch_size = max_batch_size
+        self.max_wait = max_wait_ms / 1000.0
+        self.pending = queue.Queue()
+        threading.Thread(target=self._run, daemon=True).start()
+
+    def submit(self, image: Image):
+        future = Future()
+        self.pending.put((image, future, time.perf_counter()))
+        return future
+
+    def _run(self):
+        while True:
+            batch = [self.pending.get()]
+            deadline = time.perf_counter() + self.max_wait
+            while len(batch) < self.max_batch_size:
+                remaining = deadline - time.perf_counter()
+                if remaining <= 0:
+                    break
+                try:
+                    batch.append(self.pending.get(timeout=remaining))
+                except queue.Empty:
+                    break
+
+            started = time.perf_counter()
+            try:
+                results = predict_batch([image for image, _, _ in batch], self.category_mapping)
+            except Exception as e:
+                for _, future, _ in batch:
+                    future.set_exception(e)
+                continue
+            inference_ms = (time.perf_counter() - started) * 1000
+            for (_, future, queued_at), result in zip(batch, results):
+                future.set_result((result, (started - queued_at) * 1000, inference_ms, len(batch)))
+
+
 import nbformat
 from nbconvert.preprocessors import ExecutePreprocessor
 
@@ -3,23 +3,112 @@ import threading
 import json
 import socket  
 import math
+import time
+import zlib
+from config import NEED_FULL_BELOW_CONFIDENCE, ARCHIVE_FULL_IMAGES, UDP_PORT
+from config import IMAGE_PARTITIONS, WORKER_PARTITIONS, SHARED_SUBSCRIPTION_GROUP
 
-MQTT_BROKER = "broker.hivemq.com"
-MQTT_PORT = 1883
+# Same brokers as the app's list; devices use whichever is fastest for them, so we serve all of them
+MQTT_BROKERS = [("broker.hivemq.com", 1883), ("broker.emqx.io", 1883), ("test.mosquitto.org", 1883)]
 TOPIC_IMAGE = "project/images"
 TOPIC_PREDICTIONS = "project/predictions"
+TOPIC_PREDICTIONS_PREFIX = "project/predictions/"
 TOPIC_CONFIRMED_LABELS = "project/confirmed_labels"
+TOPIC_CONFIG = "project/config"
+TOPIC_CHUNKS = "project/chunks"
 
-client = mqtt.Client()
+# Binary image frame: b"FD" | version | flags | len | client_id | len | request_id | JPEG bytes
+IMAGE_FRAME_MAGIC = b"FD"
+IMAGE_FORMAT_VERSION = 2
+FLAG_REPLY_TOPIC = 0x01
+# Thumbnail at the model's input size; the full image follows under the same request id if we
+# set "need_full" in the prediction
+FLAG_THUMBNAIL = 0x02
+FLAG_FULL_IMAGE = 0x04
+# Classify only, e.g. live preview frames: udp_handler.py stores neither the image nor a dataset row
+FLAG_NO_STORE = 0x08
+
+# Piece of a payload too large for one publish, sent to project/chunks:
+# b"FC" | version | flags | len | client_id | len | transfer_id | len | topic
+#       | seq (2) | chunk_count (2) | payload_length (4) | chunk bytes, big-endian
+CHUNK_MAGIC = b"FC"
+CHUNK_FORMAT_VERSION = 1
+# The joined chunks are a raw DEFLATE stream of the payload
+CHUNK_FLAG_DEFLATE = 0x01
+# Unfinished transfers are dropped after this long without a new chunk; finished ones are
+# remembered as long, so chunks resent after a reconnect don't deliver the payload twice
+CHUNK_TRANSFER_TTL_S = 120
+CHUNKED_TOPICS = (TOPIC_IMAGE, TOPIC_CONFIRMED_LABELS)
+# Limits on what a sender can make us hold: the size of one payload (after inflating), its number
+# of chunks, and the chunk bytes buffered over all unfinished transfers
+CHUNK_MAX_PAYLOAD_BYTES = 16 * 1024 * 1024
+CHUNK_MAX_COUNT = 2048
+CHUNK_MAX_BUFFERED_BYTES = 64 * 1024 * 1024
+
+chunk_transfers = {}
+finished_transfers = {}
+chunk_buffered_bytes = 0
+chunk_lock = threading.Lock()
+
+clients = [mqtt.Client() for _ in MQTT_BROKERS]
+# The primary broker's client runs in the main thread (see server.py), the others in their own
+client = clients[0]
+
+def served_partitions():
+    """Image topic partitions this worker serves."""
+    return WORKER_PARTITIONS or list(range(IMAGE_PARTITIONS))
+
+def shared(topic):
+    return f"$share/{SHARED_SUBSCRIPTION_GROUP}/{topic}" if SHARED_SUBSCRIPTION_GROUP else topic
+
+def chunks_accepted():
+    # All chunks of a transfer must reach the same worker, which a shared subscription doesn't
+    # promise; only partitioned chunk topics can be split between workers
+    return IMAGE_PARTITIONS > 0 or not SHARED_SUBSCRIPTION_GROUP
+
+def subscriptions():
+    """(topic, qos) pairs for this worker; see IMAGE_PARTITIONS in config.py."""
+    partitioned = IMAGE_PARTITIONS > 0
+    takes_plain_topics = not partitioned or 0 in served_partitions()
+    topics = []
+    if SHARED_SUBSCRIPTION_GROUP:
+        # Split between workers per message, so one device's requests may be answered out of order
+        topics += [(shared(TOPIC_IMAGE), 0), (shared(TOPIC_CONFIRMED_LABELS), 0)]
+    elif takes_plain_topics:
+        topics += [(TOPIC_IMAGE, 0), (TOPIC_CONFIRMED_LABELS, 0)]
+    if takes_plain_topics and chunks_accepted():
+        topics.append((TOPIC_CHUNKS, 1))
+    if partitioned:
+        for partition in served_partitions():
+            topics += [(f"{TOPIC_IMAGE}/{partition}", 0), (f"{TOPIC_CHUNKS}/{partition}", 1)]
+    return topics
+
+def base_topic(topic):
+    """project/images/3 -> project/images; unpartitioned topics are returned as they are."""
+    for base in (TOPIC_IMAGE, TOPIC_CHUNKS):
+        if topic.startswith(base + "/"):
+            return base
+    return topic
 
 def on_connect(client, userdata, flags, rc):
     print("Connected to MQTT broker with result code", rc)
-    client.subscribe(TOPIC_IMAGE)
-    client.subscribe(TOPIC_CONFIRMED_LABELS)
+    topics = subscriptions()
+    client.subscribe(topics)
+    print("Subscribed to", ", ".join(topic for topic, _ in topics))
+    # Tell devices which image formats we accept; retained so late joiners see it too
+    config = {"image_format_version": IMAGE_FORMAT_VERSION,
+              "thumbnail_upload": True,
+              "chunked_upload": chunks_accepted()}
+    if IMAGE_PARTITIONS > 0:
+        config["image_partitions"] = IMAGE_PARTITIONS
+    client.publish(TOPIC_CONFIG, json.dumps(config), retain=True)
 
 def on_message(client, userdata, msg):
     # run handle_client in thread
-    threading.Thread(target=handle_client, args=(msg.payload, msg.topic)).start()
+    if base_topic(msg.topic) == TOPIC_CHUNKS:
+        threading.Thread(target=handle_chunk, args=(msg.payload, client)).start()
+    else:
+        threading.Thread(target=handle_client, args=(msg.payload, msg.topic, client)).start()
 
 def send_udp_in_chunks(udp_sock, data, addr, chunk_size=60000):
     total_packets = math.ceil(len(data) / chunk_size)
@@ -34,22 +123,164 @@ def send_udp_in_chunks(udp_sock, data, addr, chunk_size=60000):
     print("🏁 Sent END signal")
 
 
-# UDP CONFIG — adjust to match udp_handler.py
+# UDP CONFIG — UDP_PORT comes from config.py, the same as udp_handler.py's
 UDP_IP = "127.0.0.1"  # same machine
-UDP_PORT = 5005       # match udp_handler.py port
+# Precedes an image's chunks, so udp_handler.py knows whose image it is and which flags it had
+UDP_IMAGE_HEADER_PREFIX = b"IMG "
 
 
 import base64
 
-def handle_client(data, topic):
+def get_reply_topic(message_json):
+    """Per-client reply topic if the device asked for one, otherwise the shared predictions topic."""
+    reply_to = message_json.get("reply_to")
+    if isinstance(reply_to, str) and reply_to.startswith(TOPIC_PREDICTIONS_PREFIX):
+        return reply_to
+    return TOPIC_PREDICTIONS
+
+def parse_image_frame(data):
+    """Splits a binary image frame into (client_id, request_id, reply_topic, flags, image_bytes)."""
+    version, flags = data[2], data[3]
+    if version != IMAGE_FORMAT_VERSION:
+        raise ValueError(f"Unsupported image frame version {version}")
+    pos = 4
+    client_id_len = data[pos]
+    client_id = data[pos + 1:pos + 1 + client_id_len].decode("utf-8")
+    pos += 1 + client_id_len
+    request_id_len = data[pos]
+    request_id = data[pos + 1:pos + 1 + request_id_len].decode("utf-8")
+    pos += 1 + request_id_len
+
+    reply_topic = TOPIC_PREDICTIONS_PREFIX + client_id if flags & FLAG_REPLY_TOPIC else TOPIC_PREDICTIONS
+    return client_id, request_id, reply_topic, flags, data[pos:]
+
+def parse_chunk(data):
+    """Splits a chunk message into (client_id, transfer_id, topic, flags, seq, chunk_count, payload_length, chunk)."""
+    if data[:2] != CHUNK_MAGIC or data[2] != CHUNK_FORMAT_VERSION:
+        raise ValueError("Not a chunk message")
+    flags = data[3]
+    pos = 4
+    fields = []
+    for _ in range(3):
+        length = data[pos]
+        fields.append(data[pos + 1:pos + 1 + length].decode("utf-8"))
+        pos += 1 + length
+    seq = int.from_bytes(data[pos:pos + 2], "big")
+    chunk_count = int.from_bytes(data[pos + 2:pos + 4], "big")
+    payload_length = int.from_bytes(data[pos + 4:pos + 8], "big")
+    client_id, transfer_id, topic = fields
+    return client_id, transfer_id, topic, flags, seq, chunk_count, payload_length, data[pos + 8:]
+
+def add_chunk(data):
+    """Stores one chunk; returns (topic, payload) when it completes its transfer, otherwise None."""
+    global chunk_buffered_bytes
+    client_id, transfer_id, topic, flags, seq, chunk_count, payload_length, chunk = parse_chunk(data)
+    if seq >= chunk_count:
+        raise ValueError(f"Chunk {seq} of {chunk_count}")
+    if chunk_count > CHUNK_MAX_COUNT or payload_length > CHUNK_MAX_PAYLOAD_BYTES:
+        raise ValueError(f"Transfer of {payload_length} bytes in {chunk_count} chunks is over the limit")
+    key = (client_id, transfer_id)
+    now = time.monotonic()
+    with chunk_lock:
+        for stale in [k for k, t in chunk_transfers.items() if now - t["updated"] > CHUNK_TRANSFER_TTL_S]:
+            chunk_buffered_bytes -= chunk_transfers.pop(stale)["bytes"]
+        for stale in [k for k, t in finished_transfers.items() if now - t["updated"] > CHUNK_TRANSFER_TTL_S]:
+            del finished_transfers[stale]
+        if key in finished_transfers:
+            return None
+        transfer = chunk_transfers.setdefault(key, {"parts": {}, "bytes": 0, "updated": now,
+                                                    "chunk_count": chunk_count, "payload_length": payload_length})
+        if (chunk_count, payload_length) != (transfer["chunk_count"], transfer["payload_length"]):
+            raise ValueError(f"Chunk {seq} of transfer {transfer_id} from {client_id} doesn't match the first one")
+        # Chunks resent after a reconnect may arrive twice; the first copy wins
+        if seq not in transfer["parts"]:
+            if transfer["bytes"] + len(chunk) > CHUNK_MAX_PAYLOAD_BYTES:
+                raise ValueError(f"Transfer {transfer_id} from {client_id} is over {CHUNK_MAX_PAYLOAD_BYTES} bytes")
+            if chunk_buffered_bytes + len(chunk) > CHUNK_MAX_BUFFERED_BYTES:
+                raise ValueError(f"Already buffering {chunk_buffered_bytes} bytes of chunks")
+            transfer["parts"][seq] = chunk
+            transfer["bytes"] += len(chunk)
+            chunk_buffered_bytes += len(chunk)
+        transfer["updated"] = now
+        if len(transfer["parts"]) < chunk_count:
+            return None
+        del chunk_transfers[key]
+        chunk_buffered_bytes -= transfer["bytes"]
+        finished_transfers[key] = {"updated": now}
+
+    parts = transfer["parts"]
+    payload = b"".join(parts[i] for i in range(chunk_count))
+    if flags & CHUNK_FLAG_DEFLATE:
+        # Inflate at most one byte past the announced length, so a small stream can't expand without bound
+        payload = zlib.decompressobj(-zlib.MAX_WBITS).decompress(payload, payload_length + 1)
+    if len(payload) != payload_length:
+        raise ValueError(f"Transfer {transfer_id} from {client_id}: {len(payload)} bytes, expected {payload_length}")
+    return topic, payload
+
+def handle_chunk(data, reply_client=None):
+    try:
+        completed = add_chunk(data)
+    except Exception as e:
+        print(f"⚠ Dropping bad chunk: {e}")
+        return
+    if completed is None:
+        return
+    topic, payload = completed
+    if base_topic(topic) not in CHUNKED_TOPICS:
+        print(f"⚠ Chunked payload for unexpected topic {topic}")
+        return
+    handle_client(payload, topic, reply_client)
+
+def ask_for_full_image(prediction_result):
+    """Adds "need_full" to a thumbnail's prediction when we want to see the full image."""
+    try:
+        prediction_json = json.loads(prediction_result)
+    except ValueError:
+        return prediction_result
+    if not isinstance(prediction_json, dict) or "predictions" not in prediction_json:
+        return prediction_result
+    top_confidence = max((p.get("confidence", 0) for p in prediction_json["predictions"]), default=0)
+    if ARCHIVE_FULL_IMAGES or top_confidence < NEED_FULL_BELOW_CONFIDENCE:
+        prediction_json["need_full"] = True
+        return json.dumps(prediction_json)
+    return prediction_result
+
+def split_timings(prediction_result):
+    """Pulls the UDP handler's stage timings out of its reply; returns (prediction, timings)."""
+    try:
+        prediction_json = json.loads(prediction_result)
+    except ValueError:
+        return prediction_result, {}
+    if not isinstance(prediction_json, dict) or "timings" not in prediction_json:
+        return prediction_result, {}
+    timings = prediction_json.pop("timings")
+    return json.dumps(prediction_json), timings
+
+def handle_client(data, topic, reply_client=None):
+    # Reply through the broker the request came in on; that's the one the device is connected to
+    reply_client = reply_client or client
+    topic = base_topic(topic)
     client_id = "unknown"
+    request_id = None
+    reply_topic = TOPIC_PREDICTIONS
     image_bytes = None
+    flags = 0
+    # Echoed in the reply for binary frames, so the device can tell a thumbnail's reply from its full image's
+    reply_extra = {}
+    received_at = time.perf_counter()
 
     try:
-        received_text = data.decode("utf-8")
-        message_json = json.loads(received_text)
+        if topic == TOPIC_IMAGE and data[:2] == IMAGE_FRAME_MAGIC:
+            client_id, request_id, reply_topic, flags, image_bytes = parse_image_frame(data)
+            reply_extra["flags"] = flags
+            message_json = {}
+        else:
+            received_text = data.decode("utf-8")
+            message_json = json.loads(received_text)
 
-        client_id = message_json.get("client_id", "unknown")
+            client_id = message_json.get("client_id", "unknown")
+            request_id = message_json.get("request_id")
+            reply_topic = get_reply_topic(message_json)
 
         udp_sock = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
         udp_sock.settimeout(10)
@@ -58,23 +289,48 @@ def handle_client(data, topic):
             image_base64 = message_json.get("image_data")
             if image_base64:
                 image_bytes = base64.b64decode(image_base64)
+            if image_bytes:
+                parse_ms = (time.perf_counter() - received_at) * 1000
+
                 # Send the image in safe chunks
+                udp_start = time.perf_counter()
+                header = {"client_id": client_id, "request_id": request_id, "flags": flags}
+                udp_sock.sendto(UDP_IMAGE_HEADER_PREFIX + json.dumps(header).encode("utf-8"), (UDP_IP, UDP_PORT))
                 send_udp_in_chunks(udp_sock, image_bytes, (UDP_IP, UDP_PORT))
 
                 response_data, _ = udp_sock.recvfrom(65536)
-                prediction_result = response_data.decode("utf-8")
+                prediction_result, timings = split_timings(response_data.decode("utf-8"))
+                if flags & FLAG_THUMBNAIL:
+                    prediction_result = ask_for_full_image(prediction_result)
+                elif flags & FLAG_FULL_IMAGE:
+                    print(f"🖼️ Full image for request {request_id} from {client_id} ({len(image_bytes)} bytes)")
+                timings["parse_ms"] = parse_ms
+                timings["udp_ms"] = (time.perf_counter() - udp_start) * 1000
+                timings["server_ms"] = (time.perf_counter() - received_at) * 1000
 
                 response_payload = json.dumps({
                     "client_id": client_id,
-                    "prediction": prediction_result
+                    "request_id": request_id,
+                    "prediction": prediction_result,
+                    "timings": timings,
+                    **reply_extra
                 })
 
-                client.publish(TOPIC_PREDICTIONS, response_payload)
+                reply_client.publish(reply_topic, response_payload)
 
             else:
-                print("⚠ No image_data found in payload")
+                print("⚠ No image data found in payload")
                 return  # skip if no image
 
+        elif topic == TOPIC_CONFIRMED_LABELS and message_json.get("type") == "batch":
+            items = message_json.get("items", [])
+            print(f"📩 Received batch of verified labels for {len(items)} images")
+
+            if items:
+                # One UDP message, so the CSV is rewritten once for the whole batch
+                payload_to_send = json.dumps({"type": "batch", "items": items}).encode("utf-8")
+                udp_sock.sendto(payload_to_send, (UDP_IP, UDP_PORT))
+
         elif topic == TOPIC_CONFIRMED_LABELS:
             img_id = message_json.get("img_id")
             confirmed_labels = message_json.get("confirmed_labels", [])
@@ -98,14 +354,23 @@ def handle_client(data, topic):
     except Exception as e:
         error_payload = json.dumps({
             "client_id": client_id,
-            "error": f"UDP error: {str(e)}"
+            "request_id": request_id,
+            "error": f"UDP error: {str(e)}",
+            **reply_extra
         })
-        client.publish(TOPIC_PREDICTIONS, error_payload)
+        reply_client.publish(reply_topic, error_payload)
+
 
 
+for broker_client in clients:
+    broker_client.on_connect = on_connect
+    broker_client.on_message = on_message
 
-client.on_connect = on_connect
-client.on_message = on_message
+client.connect(*MQTT_BROKERS[0], 60)
 
-client.connect(MQTT_BROKER, MQTT_PORT, 60)
+def start_secondary_brokers():
+    """Connects to the other brokers in the background; one being down doesn't stop the server."""
+    for broker_client, (host, port) in zip(clients[1:], MQTT_BROKERS[1:]):
+        broker_client.connect_async(host, port, 60)
+        broker_client.loop_start()
 
@@ -1,9 +1,10 @@
 from udp_handler import start_udp_server
-from mqtt_handler import client
+from mqtt_handler import client, start_secondary_brokers
 import threading
 
 if __name__ == "__main__":
     # Start UDP server in a separate thread
     threading.Thread(target=start_udp_server, daemon=True).start()
-    # Start MQTT loop in main thread
+    start_secondary_brokers()
+    # Start MQTT loop for the primary broker in main thread
     client.loop_forever()
\ No newline at end of file
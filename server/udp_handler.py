@@ -3,16 +3,20 @@ import json
 import threading
 import io
 import os
+import time
 from PIL import Image, UnidentifiedImageError
-from config import UDP_IP, UDP_PORT, SHOULD_TRAIN, USE_UPDATED_MODEL
-from model_utils import predict, retrain_model
-from data_utils import load_category_mapping, save_verified_label
+from config import UDP_IP, UDP_PORT, SHOULD_TRAIN, USE_UPDATED_MODEL, PREDICT_BATCH_SIZE, PREDICT_BATCH_WAIT_MS
+from model_utils import PredictionBatcher, retrain_model
+from data_utils import load_category_mapping, save_verified_label, save_verified_labels
 
-from utils import save_image, update_data_info, category_mapping
+from utils import save_image, update_data_info, replace_data_info, category_mapping
 
 # Load category mapping
 category_mapping = load_category_mapping()
 
+# Concurrent requests share model calls instead of queueing on the model lock one by one
+batcher = PredictionBatcher(category_mapping, PREDICT_BATCH_SIZE, PREDICT_BATCH_WAIT_MS)
+
 # Create UDP socket
 sock = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
 sock.bind((UDP_IP, UDP_PORT))
@@ -20,14 +24,67 @@ sock.bind((UDP_IP, UDP_PORT))
 # Lock for safe CSV access
 csv_lock = threading.Lock()
 
-
-def handle_client(data, addr):
-    """Handles client requests in a separate thread."""
+# Sent by mqtt_handler.py before an image's chunks: IMAGE_HEADER_PREFIX + {"client_id", "request_id", "flags"}
+IMAGE_HEADER_PREFIX = b"IMG "
+# Image frame flags, the same as mqtt_handler.py's
+FLAG_THUMBNAIL = 0x02
+FLAG_FULL_IMAGE = 0x04
+FLAG_NO_STORE = 0x08
+# A thumbnail's data_info.csv row, taken over by its full image if that arrives within this long
+THUMBNAIL_ROW_TTL_S = 600
+thumbnail_rows = {}
+thumbnail_lock = threading.Lock()
+
+
+def store_prediction(image_path, predicted_label, bounding_box, header):
+    """Adds the image's data_info.csv row and returns its img_id. A full image takes over the row of
+    its thumbnail, so each upload is one row, and labels confirmed against either reply land on it."""
+    flags = header.get("flags", 0)
+    key = (header.get("client_id"), header.get("request_id"))
+    now = time.monotonic()
+    with thumbnail_lock:
+        for stale in [k for k, row in thumbnail_rows.items() if now - row["updated"] > THUMBNAIL_ROW_TTL_S]:
+            del thumbnail_rows[stale]
+        thumbnail = thumbnail_rows.pop(key, None) if flags & FLAG_FULL_IMAGE else None
+
+    if thumbnail is not None and replace_data_info(thumbnail["img_id"], image_path, predicted_label, bounding_box):
+        if os.path.exists(thumbnail["path"]):
+            os.remove(thumbnail["path"])
+        return thumbnail["img_id"]
+
+    img_id = update_data_info(image_path, predicted_label, bounding_box)
+    if flags & FLAG_THUMBNAIL and img_id is not None and None not in key:
+        with thumbnail_lock:
+            thumbnail_rows[key] = {"img_id": img_id, "path": image_path, "updated": now}
+    return img_id
+
+
+def handle_client(data, addr, header=None):
+    """Handles client requests in a separate thread; header describes an image (see IMAGE_HEADER_PREFIX)."""
     try:
         received_text = data.decode("utf-8")
 
         if received_text.startswith("{"):  # JSON (user-confirmed label)
             user_result = json.loads(received_text)
+
+            if user_result.get("type") == "batch":  # Many confirmations in one message
+                entries = []
+                for item in user_result.get("items", []):
+                    for label_data in item.get("confirmed_labels") or []:
+                        if isinstance(label_data, dict) and "label" in label_data:
+                            entries.append((item.get("img_id"), label_data["label"],
+                                            label_data.get("bounding_box", [0, 0, 0, 0])))
+
+                print(f"📩 Received batch of {len(entries)} verified labels")
+                updated = save_verified_labels(entries)
+
+                if updated and SHOULD_TRAIN:
+                    threading.Thread(target=retrain_model).start()
+
+                response = json.dumps({"status": "success", "updated": updated})
+                sock.sendto(response.encode(), addr)
+                return
+
             img_id = user_result.get("img_id")
             confirmed_labels = user_result.get("confirmed_labels")  # This is a list of dictionaries
 
@@ -52,22 +109,37 @@ def handle_client(data, addr):
         pass  # Proceed with image processing
 
     image_data = data
+    header = header or {}
+    # Live frames are only classified; their predictions get img_id -1
+    store = not header.get("flags", 0) & FLAG_NO_STORE
     try:
+        # Stage timings in ms, echoed back so the app can break down its round trip
+        timings = {}
+        stage_start = time.perf_counter()
 
-        # Generate a unique filename for the image
-        image_filename = f"{addr[1]}_{len(image_data)}.jpg"  # Use client's port + size for uniqueness
-        image_path = save_image(image_data, image_filename)
+        if store:
+            # Generate a unique filename for the image
+            image_filename = f"{addr[1]}_{len(image_data)}.jpg"  # Use client's port + size for uniqueness
+            image_path = save_image(image_data, image_filename)
+            timings["save_ms"] = (time.perf_counter() - stage_start) * 1000
 
-        # Open image and run prediction
+        # Open image and run prediction, batched with any others arriving now
         img = Image.open(io.BytesIO(image_data))
-        prediction_result = predict(img, category_mapping) or {"predictions": []}
+        img.load()
+        prediction_result, wait_ms, inference_ms, batch_size = batcher.submit(img).result()
+        prediction_result = prediction_result or {"predictions": []}
+        timings["batch_wait_ms"] = wait_ms
+        timings["inference_ms"] = inference_ms
+        if batch_size > 1:
+            print(f"🍱 Predicted {batch_size} images in one batch ({inference_ms:.0f} ms)")
 
         if not prediction_result["predictions"]:
-            response = json.dumps({"predictions": []})
+            response = json.dumps({"predictions": [], "timings": timings})
             sock.sendto(response.encode(), addr)
             return
 
         # Extract all predictions (not just the best one)
+        stage_start = time.perf_counter()
         all_predictions = []
         oneTimeOnly = True
         for prediction in prediction_result["predictions"]:
@@ -77,7 +149,7 @@ def handle_client(data, addr):
 
             # Store each prediction in data_info.csv and get img_id
             if(oneTimeOnly):
-                img_id = update_data_info(image_path, predicted_label, bounding_box)
+                img_id = store_prediction(image_path, predicted_label, bounding_box, header) if store else -1
                 oneTimeOnly = False
 
             if img_id is not None:
@@ -97,13 +169,15 @@ def handle_client(data, addr):
                 {"img_id": int(img_id), "predicted_label": "rice", "category_id": category_mapping.get("rice", -1), "confidence": 0.953, "bounding_box": [0, 0, 1, 1]},
                 {"img_id": int(img_id), "predicted_label": "mixed rice", "category_id": category_mapping.get("mixed rice", -1), "confidence": 0.047, "bounding_box": [0, 0, 1, 1]}
             ]
-            response = json.dumps({"predictions": hardcoded_predictions})
+            timings["postprocess_ms"] = (time.perf_counter() - stage_start) * 1000
+            response = json.dumps({"predictions": hardcoded_predictions, "timings": timings})
             sock.sendto(response.encode(), addr)
             return
             
 
         # Send all predictions to the client
-        response = json.dumps({"predictions": all_predictions})
+        timings["postprocess_ms"] = (time.perf_counter() - stage_start) * 1000
+        response = json.dumps({"predictions": all_predictions, "timings": timings})
         sock.sendto(response.encode(), addr)
 
     except UnidentifiedImageError:
@@ -112,6 +186,8 @@ def handle_client(data, addr):
 
 def start_udp_server():
     print(f"🟢 UDP Server running on port {UDP_PORT}...")
+    pending_images = {}
+    image_headers = {}
     while True:
         try:
             data, addr = sock.recvfrom(65536)
@@ -119,9 +195,16 @@ def start_udp_server():
             print("Connection reset by client, continuing...")
             continue
 
+        if data.startswith(IMAGE_HEADER_PREFIX) and addr not in pending_images:
+            try:
+                image_headers[addr] = json.loads(data[len(IMAGE_HEADER_PREFIX):])
+            except ValueError:
+                print(f"⚠ Ignoring bad image header from {addr}")
+            continue
+
         try:
             text = data.decode("utf-8")
-            if text.startswith("{"):
+            if text.startswith("{") and addr not in pending_images:
                 # ✅ Immediately process JSON, no chunk loop
                 threading.Thread(target=handle_client, args=(data, addr)).start()
                 continue
@@ -129,19 +212,14 @@ def start_udp_server():
         except UnicodeDecodeError:
             pass
 
-        # ✅ Only for image chunk collection
-        image_data = bytearray()
-        image_data.extend(data)
-
-        while True:
-            chunk, incoming_addr = sock.recvfrom(65536)
-            if incoming_addr != addr:
-                continue
-            if chunk == b"END":
-                break
-            image_data.extend(chunk)
-
-        threading.Thread(target=handle_client, args=(image_data, addr)).start()
+        # ✅ Image chunks, collected per sender: several images can be in transit at once
+        if data == b"END":
+            image_data = pending_images.pop(addr, None)
+            header = image_headers.pop(addr, None)
+            if image_data:
+                threading.Thread(target=handle_client, args=(image_data, addr, header)).start()
+            continue
+        pending_images.setdefault(addr, bytearray()).extend(data)
 
 
 
@@ -6,7 +6,7 @@ import threading
 
 # Keep your global configs if needed (or import them from config.py)
 from config import DATA_INFO_CSV_PATH, IMAGE_STORAGE_PATH
-from data_utils import load_category_mapping, save_verified_label
+from data_utils import load_category_mapping, save_verified_label, csv_lock
 
 # Load category mapping once
 category_mapping = load_category_mapping()
@@ -21,7 +21,6 @@ def save_image(image_data, filename):
 
 def update_data_info(image_filename, predicted_label, predicted_bounding_box):
     """Safely updates data_info.csv with the predicted bounding box and label, and returns its img_id."""
-    csv_lock = threading.Lock()
     with csv_lock:  # Prevent race conditions
         # Load existing CSV or create a new one
         if os.path.exists(DATA_INFO_CSV_PATH):
@@ -66,4 +65,28 @@ def update_data_info(image_filename, predicted_label, predicted_bounding_box):
         # Save back to CSV
         df.to_csv(DATA_INFO_CSV_PATH, index=False)
     
-    return img_id
\ No newline at end of file
+    return img_id
+
+
+def replace_data_info(img_id, image_filename, predicted_label, predicted_bounding_box):
+    """Points an existing data_info.csv row at a new image and its prediction; False if img_id is gone."""
+    with csv_lock:
+        if not os.path.exists(DATA_INFO_CSV_PATH):
+            return False
+        df = pd.read_csv(DATA_INFO_CSV_PATH)
+        rows = df["img_id"] == img_id
+        if not rows.any():
+            return False
+
+        x1, y1, x2, y2 = predicted_bounding_box
+        category_mapping = load_category_mapping()
+        category_id = category_mapping.get(predicted_label, -1)
+        if category_id == -1:
+            category_id = max(category_mapping.values(), default=0) + 1
+        image_filename = os.path.normpath(image_filename).replace("\\", "/")
+        df.loc[rows, ["img_path", "category", "category_id", "x1", "y1", "x2", "y2"]] = [
+            image_filename, predicted_label, category_id, x1, y1, x2, y2
+        ]
+        print(f"🔄 Replaced image of img_id {img_id} with '{image_filename}' ('{predicted_label}').")
+        df.to_csv(DATA_INFO_CSV_PATH, index=False)
+    return True